@@ -1,12 +1,10 @@
 // This file is generated by genbeans tool. DO NOT EDIT! @formatter:off
 package jane.bean;
 
-import java.lang.reflect.Field;
 import jane.core.Bean;
 import jane.core.MarshalException;
 import jane.core.Octets;
 import jane.core.OctetsStream;
-import jane.core.SBase;
 import jane.core.SContext;
 
 /**
@@ -189,23 +187,6 @@ public class TestBean extends Bean<TestBean>
 
 	public static final class Safe extends SContext.Safe<TestBean>
 	{
-		private static final Field FIELD_value1;
-		private static final Field FIELD_value2;
-
-		static
-		{
-			try
-			{
-				Class<TestBean> _c_ = TestBean.class;
-				FIELD_value1 = _c_.getDeclaredField("value1"); FIELD_value1.setAccessible(true);
-				FIELD_value2 = _c_.getDeclaredField("value2"); FIELD_value2.setAccessible(true);
-			}
-			catch (Exception e)
-			{
-				throw new Error(e);
-			}
-		}
-
 		private Safe(TestBean bean, SContext.Safe<?> _parent_)
 		{
 			super(bean, _parent_);
@@ -220,7 +201,7 @@ public class TestBean extends Bean<TestBean>
 		/** @param value1 字段的注释 */
 		public void setValue1(int value1)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SInteger(_bean, FIELD_value1, _bean.getValue1()));
+			if (initSContext(1L << 0)) { int _v_ = _bean.value1; _sctx.addOnRollback(() -> _bean.value1 = _v_); }
 			_bean.setValue1(value1);
 		}
 
@@ -231,7 +212,7 @@ public class TestBean extends Bean<TestBean>
 
 		public void setValue2(long value2)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SLong(_bean, FIELD_value2, _bean.getValue2()));
+			if (initSContext(1L << 1)) { long _v_ = _bean.value2; _sctx.addOnRollback(() -> _bean.value2 = _v_); }
 			_bean.setValue2(value2);
 		}
 	}
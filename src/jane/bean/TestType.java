@@ -1,7 +1,6 @@
 // This file is generated by genbeans tool. DO NOT EDIT! @formatter:off
 package jane.bean;
 
-import java.lang.reflect.Field;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -19,7 +18,6 @@ import jane.core.DynBean;
 import jane.core.MarshalException;
 import jane.core.Octets;
 import jane.core.OctetsStream;
-import jane.core.SBase;
 import jane.core.SContext;
 import jane.core.SDeque;
 import jane.core.SList;
@@ -708,45 +706,12 @@ public final class TestType extends Bean<TestType>
 
 	public static final class Safe extends SContext.Safe<TestType>
 	{
-		private static final Field FIELD_v1;
-		private static final Field FIELD_v2;
-		private static final Field FIELD_v3;
-		private static final Field FIELD_v4;
-		private static final Field FIELD_v5;
-		private static final Field FIELD_v6;
-		private static final Field FIELD_v7;
-		private static final Field FIELD_v8;
-		private static final Field FIELD_v9;
 		private static SSetListener<Long> LISTENER_v13;
 		private static SSetListener<Float> LISTENER_v14;
 		private static SSetListener<Double> LISTENER_v15;
 		private static SMapListener<Long, String> LISTENER_v16;
 		private static SMapListener<TestBean, Boolean> LISTENER_v17;
 		private static SMapListener<Octets, TestBean> LISTENER_v18;
-		private static final Field FIELD_v20;
-
-		static
-		{
-			try
-			{
-				Class<TestType> _c_ = TestType.class;
-				FIELD_v1 = _c_.getDeclaredField("v1"); FIELD_v1.setAccessible(true);
-				FIELD_v2 = _c_.getDeclaredField("v2"); FIELD_v2.setAccessible(true);
-				FIELD_v3 = _c_.getDeclaredField("v3"); FIELD_v3.setAccessible(true);
-				FIELD_v4 = _c_.getDeclaredField("v4"); FIELD_v4.setAccessible(true);
-				FIELD_v5 = _c_.getDeclaredField("v5"); FIELD_v5.setAccessible(true);
-				FIELD_v6 = _c_.getDeclaredField("v6"); FIELD_v6.setAccessible(true);
-				FIELD_v7 = _c_.getDeclaredField("v7"); FIELD_v7.setAccessible(true);
-				FIELD_v8 = _c_.getDeclaredField("v8"); FIELD_v8.setAccessible(true);
-				FIELD_v9 = _c_.getDeclaredField("v9"); FIELD_v9.setAccessible(true);
-				FIELD_v20 = _c_.getDeclaredField("v20"); FIELD_v20.setAccessible(true);
-			}
-			catch (Exception e)
-			{
-				throw new Error(e);
-			}
-		}
-
 		private SSet<Long, Long> CACHE_v13;
 		private SSSet<Float, Float> CACHE_v14;
 		private SSet<Double, Double> CACHE_v15;
@@ -768,7 +733,7 @@ public final class TestType extends Bean<TestType>
 		/** @param v1 1字节布尔,0表示假,1表示真,其它默认表示真 */
 		public void setV1(boolean v1)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SBoolean(_bean, FIELD_v1, _bean.getV1()));
+			if (initSContext(1L << 0)) { boolean _v_ = _bean.v1; _sctx.addOnRollback(() -> _bean.v1 = _v_); }
 			_bean.setV1(v1);
 		}
 
@@ -781,7 +746,7 @@ public final class TestType extends Bean<TestType>
 		/** @param v2 1字节整数 */
 		public void setV2(byte v2)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SByte(_bean, FIELD_v2, _bean.getV2()));
+			if (initSContext(1L << 1)) { byte _v_ = _bean.v2; _sctx.addOnRollback(() -> _bean.v2 = _v_); }
 			_bean.setV2(v2);
 		}
 
@@ -794,7 +759,7 @@ public final class TestType extends Bean<TestType>
 		/** @param v3 2字节整数 */
 		public void setV3(short v3)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SShort(_bean, FIELD_v3, _bean.getV3()));
+			if (initSContext(1L << 2)) { short _v_ = _bean.v3; _sctx.addOnRollback(() -> _bean.v3 = _v_); }
 			_bean.setV3(v3);
 		}
 
@@ -807,7 +772,7 @@ public final class TestType extends Bean<TestType>
 		/** @param v4 4字节整数 */
 		public void setV4(int v4)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SInteger(_bean, FIELD_v4, _bean.getV4()));
+			if (initSContext(1L << 3)) { int _v_ = _bean.v4; _sctx.addOnRollback(() -> _bean.v4 = _v_); }
 			_bean.setV4(v4);
 		}
 
@@ -820,7 +785,7 @@ public final class TestType extends Bean<TestType>
 		/** @param v5 8字节整数 */
 		public void setV5(long v5)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SLong(_bean, FIELD_v5, _bean.getV5()));
+			if (initSContext(1L << 4)) { long _v_ = _bean.v5; _sctx.addOnRollback(() -> _bean.v5 = _v_); }
 			_bean.setV5(v5);
 		}
 
@@ -833,7 +798,7 @@ public final class TestType extends Bean<TestType>
 		/** @param v6 4字节浮点数 */
 		public void setV6(float v6)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SFloat(_bean, FIELD_v6, _bean.getV6()));
+			if (initSContext(1L << 5)) { float _v_ = _bean.v6; _sctx.addOnRollback(() -> _bean.v6 = _v_); }
 			_bean.setV6(v6);
 		}
 
@@ -846,7 +811,7 @@ public final class TestType extends Bean<TestType>
 		/** @param v7 8字节浮点数 */
 		public void setV7(double v7)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SDouble(_bean, FIELD_v7, _bean.getV7()));
+			if (initSContext(1L << 6)) { double _v_ = _bean.v7; _sctx.addOnRollback(() -> _bean.v7 = _v_); }
 			_bean.setV7(v7);
 		}
 
@@ -859,7 +824,7 @@ public final class TestType extends Bean<TestType>
 		/** @param v8 二进制数据(Octets) */
 		public void setV8(Octets v8)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SOctets(_bean, FIELD_v8, _bean.getV8(), false));
+			if (initSContext(1L << 7)) { Octets _v_ = _bean.v8; _sctx.addOnRollback(() -> _bean.v8 = _v_); }
 			_bean.setV8((v8 != null ? v8.clone() : new Octets(5)));
 		}
 
@@ -872,7 +837,7 @@ public final class TestType extends Bean<TestType>
 		/** 二进制数据(Octets) */
 		public void marshalV8(Bean<?> _b_)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SOctets(_bean, FIELD_v8, _bean.getV8(), false));
+			if (initSContext(1L << 7)) { Octets _v_ = _bean.v8; _sctx.addOnRollback(() -> _bean.v8 = _v_); }
 			_bean.setV8(_b_.marshal(new Octets(_b_.initSize())));
 		}
 
@@ -904,7 +869,7 @@ public final class TestType extends Bean<TestType>
 		/** @param v9 字符串(String) */
 		public void setV9(String v9)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SObject(_bean, FIELD_v9, _bean.getV9()));
+			if (initSContext(1L << 8)) { String _v_ = _bean.v9; _sctx.addOnRollback(() -> _bean.v9 = _v_); }
 			_bean.setV9((v9 != null ? v9 : ""));
 		}
 
@@ -1089,7 +1054,7 @@ public final class TestType extends Bean<TestType>
 		/** @param v20 非序列化字段 */
 		public void setV20(java.lang.String v20)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SObject(_bean, FIELD_v20, _bean.getV20()));
+			if (initSContext(1L << 19)) { java.lang.String _v_ = _bean.v20; _sctx.addOnRollback(() -> _bean.v20 = _v_); }
 			_bean.setV20(v20);
 		}
 	}
@@ -0,0 +1,17 @@
+package jane.core;
+
+/**
+ * 可合并运行的事务的基类(抽象类)
+ * <p>
+ * 通过sid队列调度({@link DBManager#submit})时,如果队列中紧接着的也是BatchProcedure,则在同一个事务中继续运行,共用锁和提交<br>
+ * 适合同一sid频繁提交的小事务. 合并运行的每个事务前都设置保存点,异常或undo时只回滚此事务的修改,不影响同批的其它事务<br>
+ * 合并的后续事务需要重做(redo,死锁),解锁(unlock,lock),无法按顺序追加锁或超过加锁上限,以及等待异步结果(await)时,
+ * 会回滚此事务的修改并放回队列,先提交之前合并的事务,再单独运行此事务<br>
+ * 同批事务的onCommit回调在整批提交后统一调用. 不要在不同的事务间传递获取的记录(安全封装)对象
+ */
+public abstract class BatchProcedure extends Procedure
+{
+	ProcQueue _batchQueue; // 运行时可合并后续事务的sid队列. 只在由sid队列调度运行时设置
+	int		  _batchMax;   // 最多合并的后续事务数量
+	int		  _batchCount; // 本次运行实际合并的后续事务数量
+}
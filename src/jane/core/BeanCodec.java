@@ -118,6 +118,7 @@ public class BeanCodec implements IoFilter
 		}
 		if (_psize > os.remain())
 			return false;
+		JfrEvents.NetDecode event = JfrEvents.beginNetDecode();
 		Bean<?> bean = createBean(_ptype);
 		if (bean != null)
 		{
@@ -131,6 +132,7 @@ public class BeanCodec implements IoFilter
 		else
 			bean = new RawBean(_ptype, _pserial, os.unmarshalRaw(_psize));
 		bean.serial(_pserial);
+		JfrEvents.endNetDecode(event, _ptype, _pserial, _psize);
 		_psize = -1;
 		next.messageReceived(bean);
 		return true;
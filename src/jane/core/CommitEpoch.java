@@ -0,0 +1,123 @@
+package jane.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 事务提交的轮次(epoch)
+ * <p>
+ * 每个事务运行时进入当前轮次,结束时退出. 提交线程保存剩余的修改时先切换到新一轮次,再等待旧轮次的事务全部结束<br>
+ * 新轮次的事务在首次修改记录前保留旧轮次的修改副本(见{@link TableBase#beginSnapshotAll}),所以提交线程保存的始终是旧轮次结束时的一致状态,不需要暂停事务<br>
+ * 计数按线程ID分散到多个独占缓存行的槽中,奇偶轮次分别计数
+ */
+final class CommitEpoch
+{
+	private static final int SLOT_SHIFT = 4; // 每个槽占用16个long(128字节),避免伪共享(包括相邻缓存行的预取)
+
+	private static final AtomicLongArray _slots;		// 各槽的事务计数. 每个槽的前2个long分别是偶数和奇数轮次的计数
+	private static final int			 _slotMask;		// 槽数量的掩码
+	private static volatile int			 _epoch = 1;	// 当前轮次
+	private static volatile int			 _saveEpoch;	// 正在保存的轮次. 此轮次的事务在保存快照期间属于旧事务
+	private static volatile Thread		 _waiter;		// 等待旧轮次事务结束的提交线程
+
+	static
+	{
+		int n = Integer.highestOneBit(Math.max(Math.max(Runtime.getRuntime().availableProcessors(), Const.dbThreadCount), 1) * 2 - 1) << 1;
+		_slots = new AtomicLongArray(n << SLOT_SHIFT);
+		_slotMask = n - 1;
+	}
+
+	private CommitEpoch()
+	{
+	}
+
+	private static int slotIndex(int epoch)
+	{
+		return (((int)Thread.currentThread().getId() & _slotMask) << SLOT_SHIFT) + (epoch & 1);
+	}
+
+	/**
+	 * 获取当前轮次
+	 */
+	static int current()
+	{
+		return _epoch;
+	}
+
+	/**
+	 * 进入当前轮次. 必须在同一线程中调用对应的{@link #exit}
+	 * @return 进入的轮次
+	 */
+	static int enter()
+	{
+		for (;;)
+		{
+			int e = _epoch;
+			int idx = slotIndex(e);
+			_slots.getAndIncrement(idx);
+			if (_epoch == e) // 上面的原子修改和这里的volatile读保证与轮次的切换和等待不会同时错过
+				return e;
+			release(idx);
+		}
+	}
+
+	/**
+	 * 退出之前进入的轮次
+	 */
+	static void exit(int epoch)
+	{
+		release(slotIndex(epoch));
+	}
+
+	private static void release(int idx)
+	{
+		if (_slots.decrementAndGet(idx) == 0)
+		{
+			Thread w = _waiter;
+			if (w != null)
+				LockSupport.unpark(w);
+		}
+	}
+
+	/**
+	 * 判断当前线程的事务是否属于正在保存的轮次
+	 * <p>
+	 * 只在保存快照期间有意义. 不在事务中时视为新轮次
+	 */
+	static boolean isSaving()
+	{
+		ProcContext ctx = ProcContext.current();
+		return ctx != null && ctx.proc != null && ctx.epoch == _saveEpoch;
+	}
+
+	/**
+	 * 标记当前轮次为即将保存的轮次. 只在提交线程中调用,之后再创建快照并调用{@link #flip}
+	 */
+	static void beginSave()
+	{
+		_saveEpoch = _epoch;
+	}
+
+	/**
+	 * 切换到新轮次,并等待旧轮次的事务全部结束. 只在提交线程中调用
+	 */
+	static void flip()
+	{
+		int e = _epoch;
+		_waiter = Thread.currentThread();
+		_epoch = e + 1;
+		boolean interrupted = false;
+		for (int i = e & 1, n = _slots.length(); i < n; i += 1 << SLOT_SHIFT)
+		{
+			while (_slots.get(i) != 0)
+			{
+				LockSupport.parkNanos(CommitEpoch.class, 1_000_000);
+				if (Thread.interrupted())
+					interrupted = true;
+			}
+		}
+		_waiter = null;
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
@@ -26,20 +26,44 @@ public final class Const
 	public static final String dbFilename;
 	public static final String dbBackupPath;
 	public static final int	   dbThreadCount;
+	public static final int	   dbProcScheduler;
+	public static final String dbProcCpus;
+	public static final int	   dbLaneMigrateQueue;
+	public static final int	   dbProcPriority;
+	public static final String dbPriorityWeights;
+	public static final int	   dbBackgroundMaxRunning;
 	public static final int	   deadlockCheckInterval;
 	public static final int	   maxSessionProcedure;
 	public static final int	   maxBatchProceduer;
 	public static final int	   maxProceduerRedo;
 	public static final int	   lockPoolSize;
 	public static final int	   maxLockPerProcedure;
+	public static final int	   lockProfileSample;
+	public static final int	   lockProfileDumpInterval;
+	public static final int	   procStat;
+	public static final int	   procStatDumpInterval;
+	public static final int	   procRedoBackoff;
+	public static final int	   procRedoBackoffMaxMs;
+	public static final int	   jfrEvents;
+	public static final int	   jfrRecordMaxAge;
+	public static final int	   jfrThresholdUs;
 	public static final int	   dbSimpleCacheSize;
+	public static final int	   dbSimpleShardCount;
+	public static final int	   lruCleanerThreadCount;
+	public static final int	   lruSweepStepSize;
+	public static final int	   statWindowSize;
 	public static final int	   dbCommitResaveCount;
 	public static final int	   dbCommitModCount;
+	public static final int	   dbMaxModCount;
+	public static final int	   dbAdmitQueueSize;
+	public static final int	   dbAdmitWaitTimeout;
+	public static final int	   dbShutdownParallelSave;
 	public static final long   dbCommitPeriod;
 	public static final String dbBackupBase;
 	public static final long   dbBackupPeriod;
 	public static final int	   procedureTimeout;
 	public static final int	   procedureDeadlockTimeout;
+	public static final int	   procedureDeadlockDetectWait;
 	public static final int	   procedureShutdownTimeout;
 	public static final int	   procedureShutdownNowTimeout;
 	public static final int	   autoIdBegin;
@@ -88,20 +112,44 @@ public final class Const
 		dbFilename = System.getProperty("jane.dbFilename", "db/jane");
 		dbBackupPath = System.getProperty("jane.dbBackupPath", "db");
 		dbThreadCount = getPropInt("jane.dbThreadCount", 0, 0);
+		dbProcScheduler = getPropInt("jane.dbProcScheduler", 1, 0, 3);
+		dbProcCpus = System.getProperty("jane.dbProcCpus", "").trim();
+		dbLaneMigrateQueue = getPropInt("jane.dbLaneMigrateQueue", 64, 0);
+		dbProcPriority = getPropInt("jane.dbProcPriority", 0, 0, 1);
+		dbPriorityWeights = System.getProperty("jane.dbPriorityWeights", "8,4,1");
+		dbBackgroundMaxRunning = getPropInt("jane.dbBackgroundMaxRunning", 0, 0);
 		deadlockCheckInterval = getPropInt("jane.deadlockCheckInterval", 10, 0);
 		maxSessionProcedure = getPropInt("jane.maxSessionProceduer", 65536, 1);
 		maxBatchProceduer = getPropInt("jane.maxBatchProceduer", 256, 1);
 		maxProceduerRedo = getPropInt("jane.maxProceduerRedo", 256, 1);
 		lockPoolSize = IntHashMap.nextPowerOfTwo(getPropInt("jane.lockPoolSize", 65536, 1, 0x4000_0000));
 		maxLockPerProcedure = getPropInt("jane.maxLockPerProcedure", 16, 4, 256);
+		lockProfileSample = getPropInt("jane.lockProfileSample", 0, 0);
+		lockProfileDumpInterval = getPropInt("jane.lockProfileDumpInterval", 300, 0);
+		procStat = getPropInt("jane.procStat", 0, 0, 1);
+		procStatDumpInterval = getPropInt("jane.procStatDumpInterval", 300, 0);
+		procRedoBackoff = getPropInt("jane.procRedoBackoff", 0, 0, 3);
+		procRedoBackoffMaxMs = getPropInt("jane.procRedoBackoffMaxMs", 50, 1);
+		jfrEvents = getPropInt("jane.jfrEvents", 0, 0, 1);
+		jfrRecordMaxAge = getPropInt("jane.jfrRecordMaxAge", 600, 0);
+		jfrThresholdUs = getPropInt("jane.jfrThresholdUs", 100, 0);
 		dbSimpleCacheSize = getPropInt("jane.dbSimpleCacheSize", 10000, 1);
+		dbSimpleShardCount = getPropInt("jane.dbSimpleShardCount", 0, 0, 256);
+		lruCleanerThreadCount = getPropInt("jane.lruCleanerThreadCount", 0, 0, 64);
+		lruSweepStepSize = getPropInt("jane.lruSweepStepSize", 16384, 256);
+		statWindowSize = getPropInt("jane.statWindowSize", 60, 0, 3600);
 		dbCommitResaveCount = getPropInt("jane.dbCommitResaveCount", 200000, 1);
 		dbCommitModCount = getPropInt("jane.dbCommitModCount", 200000, 1);
+		dbMaxModCount = getPropInt("jane.dbMaxModCount", 1000000, 0);
+		dbAdmitQueueSize = getPropInt("jane.dbAdmitQueueSize", 65536, 1);
+		dbAdmitWaitTimeout = getPropInt("jane.dbAdmitWaitTimeout", 10000, 0);
+		dbShutdownParallelSave = getPropInt("jane.dbShutdownParallelSave", 1, 0, 1);
 		dbCommitPeriod = getPropLong("jane.dbCommitPeriod", 60, 1, 86400L * 366 * 10000); // 0x49_A06B_5000L
 		dbBackupBase = System.getProperty("jane.dbBackupBase", "2014-01-06 04:00:00");
 		dbBackupPeriod = getPropLong("jane.dbBackupPeriod", 3600, 1, 86400L * 366 * 10000); // 0x49_A06B_5000L
 		procedureTimeout = getPropInt("jane.procedureTimeout", 60, 1);
 		procedureDeadlockTimeout = getPropInt("jane.procedureDeadlockTimeout", 5, 1);
+		procedureDeadlockDetectWait = getPropInt("jane.procedureDeadlockDetectWait", 10, 0, 60000);
 		procedureShutdownTimeout = getPropInt("jane.procedureShutdownTimeout", 5, 0);
 		procedureShutdownNowTimeout = getPropInt("jane.procedureShutdownNowTimeout", 1, 0);
 		autoIdBegin = getPropInt("jane.autoIdBegin", 1, 1);
@@ -4,18 +4,22 @@ import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayDeque;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import jane.core.SContext.Safe;
 
 /**
@@ -28,17 +32,29 @@ public final class DBManager
 		public static final DBManager instance = new DBManager();
 	}
 
-	private static volatile boolean _hasCreated; // 是否创建过此类的对象
+	private static final int		MOD_CHECK_MASK = 63; // 记录修改计数的每个槽每修改64次检查一次总数
+	private static volatile boolean	_hasCreated;		 // 是否创建过此类的对象
 
-	private final CommitThread								   _commitThread = new CommitThread();			// 处理数据提交的线程
-	private final ThreadPoolExecutor						   _procThreads;								// 事务线程池
-	private final ConcurrentMap<Object, ArrayDeque<Procedure>> _qmap		 = Util.newConcurrentHashMap();	// 当前sid队列的数量
-	private final AtomicLong								   _procCount	 = new AtomicLong();			// 绑定过sid的在队列中未运行的事务数量
-	private final AtomicLong								   _modCount	 = new AtomicLong();			// 当前缓存修改的记录数
-	private String											   _dbFilename;									// 数据库的文件名(不含父路径,对LevelDB而言是目录名)
-	private String											   _dbBackupPath;								// 数据库的备份路径
-	private Storage											   _storage;									// 存储引擎
-	private volatile boolean								   _exiting;									// 是否在退出状态(已经执行了ShutdownHook)
+	private final CommitThread						_commitThread = new CommitThread();				// 处理数据提交的线程
+	private final ThreadPoolExecutor				_procThreads;									// 事务线程池
+	private final ProcScheduler						_procScheduler;									// 事务调度器. null表示使用事务线程池或虚拟线程
+	private final boolean							_procVirtual;									// 是否使用虚拟线程运行事务(Const.dbProcScheduler=2且java支持时)
+	private final ExecutorService					_procExecutor;									// 实际运行事务的执行器(虚拟线程执行器,_procScheduler或_procThreads)
+	private final PriorityExecutor					_priorityExecutor;								// 按优先级分通道的执行器. null表示不区分优先级
+	private final ConcurrentMap<Object, ProcQueue>	_qmap		  = Util.newConcurrentHashMap();	// 当前sid队列的数量
+	private final StripedCounter					_procCount	  = new StripedCounter();			// 绑定过sid的在队列中未运行的事务数量
+	private final StripedCounter					_modCount	  = new StripedCounter();			// 当前缓存修改的记录数
+	private final ArrayBlockingQueue<Runnable>		_admitQueue;									// 修改数量超过上限时等待准入的事务队列
+	private final AtomicLong						_admitCount	  = new AtomicLong();				// 进入过准入队列的事务数量统计
+	private final AtomicLong						_admitRejects = new AtomicLong();				// 准入队列满并等待超时而拒绝的事务数量统计
+	private volatile int							_admitWaiters;									// 等待准入队列空位的线程数量. 只在_admitQueue的同步中修改
+	private volatile boolean						_admitLimited;									// 是否正在限制事务准入(修改数量超过上限时)
+	private volatile boolean						_admitDraining;									// 是否正在执行准入队列中的事务(执行完之前新的提交仍要进入准入队列,保证顺序)
+	private String									_dbFilename;									// 数据库的文件名(不含父路径,对LevelDB而言是目录名)
+	private String									_dbBackupPath;									// 数据库的备份路径
+	private Storage									_storage;										// 存储引擎
+	private volatile boolean						_exiting;										// 是否在退出状态(已经执行了ShutdownHook)
+	private volatile Thread							_drainWaiter;									// 关闭时等待全部sid队列运行完的线程. 删除最后一个队列时唤醒
 
 	/**
 	 * 周期向数据库存储提交事务性修改的线程(checkpoint)
@@ -73,6 +89,11 @@ public final class DBManager
 			_commitTime = System.currentTimeMillis();
 		}
 
+		void wakeUp()
+		{
+			LockSupport.unpark(this);
+		}
+
 		void backupNextCommit()
 		{
 			_backupTime = System.currentTimeMillis();
@@ -83,26 +104,23 @@ public final class DBManager
 		{
 			for (;;)
 			{
-				try
-				{
-					Thread.sleep(1000);
-				}
-				catch (InterruptedException e)
-				{
-					break;
-				}
-				if (!tryCommit(false))
+				LockSupport.parkNanos(1_000_000_000L); // 修改数量超过阙值时会被提前唤醒
+				if (isInterrupted() || !tryCommit(false, false))
 					break;
 			}
 		}
 
-		boolean tryCommit(boolean force)
+		/**
+		 * @param force 是否强制提交(即使没有到提交时间或者没有修改)
+		 * @param parallel 是否按表并行保存已修改的记录(仅StorageLevelDB支持). 一般只在关闭前没有事务运行时使用
+		 */
+		boolean tryCommit(boolean force, boolean parallel)
 		{
 			try
 			{
 				long t = System.currentTimeMillis();
 				long commitTime = _commitTime;
-				if (t < commitTime && _modCount.get() < Const.dbCommitModCount)
+				if (t < commitTime && _modCount.sum() < Const.dbCommitModCount)
 					return true;
 				synchronized (DBManager.this)
 				{
@@ -115,7 +133,7 @@ public final class DBManager
 					Storage storage = getStorage();
 					if (storage != null)
 					{
-						long t3, modCount = _modCount.get();
+						long t3, modCount = _modCount.sum();
 						if (modCount == 0 && !force)
 						{
 							Log.info("db-commit not found modified record");
@@ -127,53 +145,74 @@ public final class DBManager
 							long t0 = System.currentTimeMillis(), t1 = 0;
 							Log.info("db-commit saving: {}...", modCount);
 							_counts[0] = _counts[1] = _counts[2] = 0;
+							JfrEvents.CommitPhase event = JfrEvents.beginCommitPhase();
 							storage.putBegin();
-							TableBase.trySaveModifiedAll(_counts);
+							if (parallel && storage instanceof StorageLevelDB)
+								TableBase.trySaveModifiedAllParallel(_counts, (StorageLevelDB)storage);
+							else
+								TableBase.trySaveModifiedAll(_counts);
+							JfrEvents.endCommitPhase(event, "save", _counts[2]);
 							// 2.如果前一轮遍历之后仍然有过多的修改记录,则再试一轮
 							if (_counts[1] >= Const.dbCommitResaveCount)
 							{
 								Log.info("db-commit saved: {}=>{}({}), try again...", _counts[0], _counts[1], _counts[2]);
 								_counts[0] = _counts[1] = 0;
+								event = JfrEvents.beginCommitPhase();
 								TableBase.trySaveModifiedAll(_counts);
+								JfrEvents.endCommitPhase(event, "resave", _counts[2]);
 							}
-							// 3.然后加全局事务锁,待其它事务都停止等待时,保存剩余已修改的记录. 只有此步骤不能和其它事务并发
+							// 3.然后切换到新的提交轮次,待旧轮次的事务都结束后,保存旧轮次结束时剩余已修改的记录
+							// 新轮次的事务首次修改记录前会保留旧轮次的修改副本,所以此步骤也可以和其它事务并发
 							if (_counts[2] != 0 || _counts[1] != 0 || _counts[0] != 0 || force)
 							{
 								Log.info("db-commit saved: {}=>{}({}), flushing...", _counts[0], _counts[1], _counts[2]);
+								event = JfrEvents.beginCommitPhase();
 								storage.putFlush(false);
-								Log.info("db-commit procedure pausing...");
+								JfrEvents.endCommitPhase(event, "flush", 0);
+								Log.info("db-commit epoch switching...");
 								t1 = System.currentTimeMillis();
-								Procedure.writeLock();
+								event = JfrEvents.beginCommitPhase();
+								TableBase.beginSnapshotAll();
 								try
 								{
-									_modCount.set(0);
+									CommitEpoch.flip();
 									Log.info("db-commit saving left...");
-									Log.info("db-commit saved: {}, flushing left...", TableBase.saveModifiedAll());
+									_counts[0] = _counts[1] = 0;
+									TableBase.saveSnapshotAll(_counts);
+									_modCount.set(_counts[1]); // 剩余的都是新轮次的修改. 保存期间的并发修改可能导致计数不准确,只影响下次提交的时机
+									Log.info("db-commit saved: {}=>{}, flushing left...", _counts[0], _counts[1]);
 									storage.putFlush(true);
 								}
 								finally
 								{
-									Procedure.writeUnlock();
+									TableBase.endSnapshotAll();
 								}
+								JfrEvents.endCommitPhase(event, "snapshot", _counts[0]);
 								t1 = System.currentTimeMillis() - t1;
 								if (storage instanceof StorageLevelDB)
 								{
 									StorageLevelDB stoLDB = (StorageLevelDB)storage;
-									Log.info("db-commit procedure continued, committing({}:{})...", stoLDB.getPutCount(), stoLDB.getPutSize());
+									Log.info("db-commit snapshot saved, committing({}:{})...", stoLDB.getPutCount(), stoLDB.getPutSize());
 								}
 								else
-									Log.info("db-commit procedure continued, committing...");
+									Log.info("db-commit snapshot saved, committing...");
 							}
 							else
 								Log.info("db-commit not found modified record");
-							// 4.最后恢复其它事务的运行,并对数据库存储系统做提交操作,完成一整轮的事务性持久化
+							// 4.最后对数据库存储系统做提交操作,完成一整轮的事务性持久化
 							long t2 = System.currentTimeMillis();
+							event = JfrEvents.beginCommitPhase();
 							storage.commit();
+							JfrEvents.endCommitPhase(event, "commit", 0);
 							t3 = System.currentTimeMillis();
 							Log.info("db-commit done ({}/{}/{} ms)", t1, t3 - t2, t3 - t0);
 						}
 
-						// 5.判断备份周期并启动备份
+						// 5.如果之前限制了事务准入,则恢复准入并执行准入队列中的事务
+						if (_admitLimited && _modCount.sum() < Const.dbMaxModCount)
+							Log.info("db-commit admission resumed: {} procedures", resumeAdmission());
+
+						// 6.判断备份周期并启动备份
 						long backupTime = _backupTime;
 						String dbBackupPath = _dbBackupPath;
 						if (backupTime <= t3 && dbBackupPath != null)
@@ -190,11 +229,6 @@ public final class DBManager
 								Log.error("db-commit backup error({}) ({} ms)", r, System.currentTimeMillis() - t);
 						}
 					}
-
-					// 6.清理一遍事务队列
-					collectQueue(_counts);
-					if (_counts[0] != 0 || _counts[1] != 0)
-						Log.info("db-commit collect queue: {}=>{}", _counts[0], _counts[1]);
 				}
 			}
 			catch (Throwable e)
@@ -218,14 +252,57 @@ public final class DBManager
 	private DBManager()
 	{
 		_hasCreated = true;
+		_admitQueue = new ArrayBlockingQueue<>(Const.dbAdmitQueueSize);
 		AtomicInteger counter = new AtomicInteger();
-		_procThreads = (ThreadPoolExecutor)Executors.newFixedThreadPool(
-				Const.dbThreadCount > 0 ? Const.dbThreadCount : Runtime.getRuntime().availableProcessors(), r ->
-				{
-					Thread t = new ProcThread("ProcThread-" + counter.incrementAndGet(), r);
-					t.setDaemon(true);
-					return t;
-				});
+		int threadCount = (Const.dbThreadCount > 0 ? Const.dbThreadCount : Runtime.getRuntime().availableProcessors());
+		_procThreads = (ThreadPoolExecutor)Executors.newFixedThreadPool(threadCount, r ->
+		{
+			Thread t = new ProcThread("ProcThread-" + counter.incrementAndGet(), r);
+			t.setDaemon(true);
+			return t;
+		});
+		ExecutorService virtualExecutor = (Const.dbProcScheduler == 2 ? newVirtualExecutor() : null);
+		if (Const.dbProcScheduler == 2 && virtualExecutor == null)
+			Log.warn("virtual thread is not supported in java {}, use ProcScheduler instead", System.getProperty("java.version"));
+		_procVirtual = (virtualExecutor != null);
+		if (Const.dbProcScheduler != 0 && !_procVirtual)
+		{
+			boolean lanes = (Const.dbProcScheduler == 3);
+			_procScheduler = new ProcScheduler(threadCount, lanes ? "ProcLane" : "ProcThread", lanes, ProcScheduler.parseCpus(Const.dbProcCpus));
+		}
+		else
+			_procScheduler = null;
+		_procExecutor = (_procVirtual ? virtualExecutor : (_procScheduler != null ? _procScheduler : _procThreads));
+		if (Const.dbProcPriority != 0)
+		{
+			int maxRunning = (_procVirtual ? Integer.MAX_VALUE : threadCount); // 虚拟线程不限制同时运行的数量,只限制后台通道
+			int bgMax = (Const.dbBackgroundMaxRunning > 0 ? Const.dbBackgroundMaxRunning : Math.max(threadCount / 4, 1));
+			_priorityExecutor = new PriorityExecutor(_procExecutor, maxRunning, bgMax, PriorityExecutor.parseWeights(Const.dbPriorityWeights));
+		}
+		else
+			_priorityExecutor = null;
+	}
+
+	/**
+	 * 创建为每个事务启动一个虚拟线程的执行器
+	 * <p>
+	 * 虚拟线程需要java 21以上,这里通过反射创建以兼容低版本的编译和运行
+	 * @return 当前java不支持虚拟线程时返回null
+	 */
+	private static ExecutorService newVirtualExecutor()
+	{
+		try
+		{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "ProcVThread-", 1L);
+			ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+			return (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return null;
+		}
 	}
 
 	/**
@@ -238,10 +315,170 @@ public final class DBManager
 
 	/**
 	 * 增加一次记录修改计数
+	 * <p>
+	 * 计数分散到各线程的槽中,每个槽每修改{@link #MOD_CHECK_MASK}+1次才检查一次总数,所以触发提交和限制准入的时机是近似的
 	 */
 	void incModCount()
 	{
-		_modCount.getAndIncrement();
+		if ((_modCount.increment() & MOD_CHECK_MASK) != 0)
+			return;
+		long n = _modCount.sum();
+		if (n >= Const.dbCommitModCount)
+			_commitThread.wakeUp(); // 提前唤醒提交线程,不必等到下次检查
+		if (n >= Const.dbMaxModCount && Const.dbMaxModCount > 0 && !_admitLimited && _commitThread.isAlive())
+		{
+			_admitLimited = true;
+			_commitThread.wakeUp();
+			Log.warn("db-commit too many modified records: {}, limit procedure admission", n);
+		}
+	}
+
+	/**
+	 * 获取当前缓存修改的记录数(自上次提交以来的修改次数)
+	 */
+	public long getModCount()
+	{
+		return _modCount.sum();
+	}
+
+	/**
+	 * 判断当前是否因修改数量超过上限({@link Const#dbMaxModCount})而限制了新事务的准入
+	 */
+	public boolean isAdmitLimited()
+	{
+		return _admitLimited;
+	}
+
+	/**
+	 * 获取准入队列中等待的事务数量
+	 */
+	public int getAdmitQueuedCount()
+	{
+		return _admitQueue.size();
+	}
+
+	/**
+	 * 获取进入过准入队列的事务数量统计
+	 */
+	public long getAdmitCount()
+	{
+		return _admitCount.get();
+	}
+
+	/**
+	 * 获取因准入队列满并等待超时而拒绝提交的事务数量统计
+	 */
+	public long getAdmitRejectCount()
+	{
+		return _admitRejects.get();
+	}
+
+	/**
+	 * 尝试把事务的提交放入准入队列
+	 * <p>
+	 * 只在限制准入或正在执行准入队列时才会放入,后者保证新的提交不会越过队列中更早的提交(同一sid的顺序不变)<br>
+	 * 事务线程中的提交不受限制(否则可能阻塞提交线程的全局锁而死锁). 只读事务不增加修改数量,也不受限制<br>
+	 * 队列满时阻塞提交的线程直到队列有空位,以此向提交者(通常是网络线程)施加背压. 等待超过dbAdmitWaitTimeout毫秒则抛出IllegalStateException
+	 * @return false表示没有放入,需要直接提交; true表示已放入准入队列
+	 */
+	private boolean tryAdmitLater(Procedure p, Runnable r)
+	{
+		if (!_admitLimited && !_admitDraining || ProcContext.current() != null || _exiting || p instanceof ReadOnlyProcedure)
+			return false;
+		synchronized (_admitQueue)
+		{
+			long deadline = 0;
+			for (;;)
+			{
+				if (!_admitLimited && !_admitDraining || _exiting)
+					return false;
+				if (_admitQueue.offer(r))
+					break;
+				long t = System.currentTimeMillis();
+				if (deadline == 0)
+					deadline = t + Const.dbAdmitWaitTimeout;
+				else if (t >= deadline)
+				{
+					long n = _admitRejects.incrementAndGet();
+					throw new IllegalStateException("admit queue is full(" + Const.dbAdmitQueueSize + ") for " + Const.dbAdmitWaitTimeout +
+							" ms: procedure=" + p.getClass().getName() + ", total rejected: " + n);
+				}
+				++_admitWaiters;
+				try
+				{
+					_admitQueue.wait(deadline - t); // 执行准入队列时唤醒
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("interrupted while waiting for admit queue: procedure=" + p.getClass().getName(), e);
+				}
+				finally
+				{
+					--_admitWaiters;
+				}
+			}
+		}
+		_admitCount.getAndIncrement();
+		return true;
+	}
+
+	/**
+	 * 恢复事务准入,并依次执行准入队列中的事务提交
+	 * @return 执行的数量
+	 */
+	private int resumeAdmission()
+	{
+		synchronized (_admitQueue)
+		{
+			_admitDraining = true; // 先设置再取消限制,使新的提交一直进入准入队列直到队列执行完
+			_admitLimited = false;
+		}
+		return drainAdmitQueue();
+	}
+
+	/**
+	 * 依次执行准入队列中的事务提交
+	 * <p>
+	 * 只在确认队列为空的同时结束执行状态,之后的提交才会直接提交. 由同步保证不会有多个线程同时执行而打乱顺序
+	 * @return 执行的数量
+	 */
+	private synchronized int drainAdmitQueue()
+	{
+		int n = 0;
+		for (;;)
+		{
+			Runnable r = _admitQueue.poll();
+			if (r == null)
+			{
+				synchronized (_admitQueue)
+				{
+					if (_admitQueue.isEmpty())
+					{
+						_admitDraining = false;
+						_admitQueue.notifyAll(); // 等待中的提交可以直接提交了
+						return n;
+					}
+				}
+				continue;
+			}
+			if (_admitWaiters > 0)
+			{
+				synchronized (_admitQueue)
+				{
+					_admitQueue.notifyAll();
+				}
+			}
+			try
+			{
+				r.run();
+			}
+			catch (Throwable e)
+			{
+				Log.error("drainAdmitQueue exception:", e);
+			}
+			++n;
+		}
 	}
 
 	/**
@@ -282,17 +519,43 @@ public final class DBManager
 		ExitManager.getShutdownSystemCallbacks().add(() ->
 		{
 			Log.info("DBManager.OnJVMShutDown: db shutdown");
+			long t0 = System.nanoTime(), t1 = t0, t2 = t0, t3, t4, t5;
 			try
 			{
+				// 1.先停止网络层接收新的连接和请求,不再产生新的事务
+				int n = NetManager.stopIntake();
+				t1 = System.nanoTime();
+				Log.info("DBManager.OnJVMShutDown: net intake stopped: {} servers", n);
+				// 2.在超时前等待全部sid队列中的事务运行完(此时还没进入退出状态,队列中的事务会正常运行). 之后进入退出状态会取消剩余的事务
+				resumeAdmission();
+				long deadline = t1 + Const.procedureShutdownTimeout * 1_000_000_000L;
+				_drainWaiter = Thread.currentThread();
+				try
+				{
+					for (long left; !_qmap.isEmpty() && (left = deadline - System.nanoTime()) > 0;)
+					{
+						LockSupport.parkNanos(this, left); // 删除最后一个队列时会被唤醒
+						if (Thread.interrupted())
+							throw new InterruptedException();
+					}
+				}
+				finally
+				{
+					_drainWaiter = null;
+				}
+				t2 = System.nanoTime();
+				Log.info("DBManager.OnJVMShutDown: sid queues drained: {} left", _qmap.size());
 				synchronized (DBManager.this)
 				{
 					_exiting = true;
-					_procThreads.shutdown();
-					if (!_procThreads.awaitTermination(Const.procedureShutdownTimeout, TimeUnit.SECONDS))
+					drainAdmitQueue();
+					// 3.等待线程池中的事务运行完
+					_procExecutor.shutdown();
+					if (!_procExecutor.awaitTermination(Math.max(deadline - t2, 0), TimeUnit.NANOSECONDS))
 					{
-						List<Runnable> procs = _procThreads.shutdownNow();
+						List<Runnable> procs = _procExecutor.shutdownNow();
 						Log.warn("DBManager.OnJVMShutDown: {} procedures aborted", procs.size());
-						if (!_procThreads.awaitTermination(Const.procedureShutdownNowTimeout, TimeUnit.SECONDS))
+						if (!_procExecutor.awaitTermination(Const.procedureShutdownNowTimeout, TimeUnit.SECONDS))
 							Log.warn("DBManager.OnJVMShutDown: current procedures aborted");
 					}
 				}
@@ -303,9 +566,16 @@ public final class DBManager
 			}
 			finally
 			{
-				shutdown();
+				// 4.最后一次提交,按表并行保存全部修改后一次批量写入. 然后关闭数据库(最后一次提交失败或仍有没结束的事务写入时,关闭前会再提交一次)
+				t3 = System.nanoTime();
+				_commitThread.commitNext();
+				_commitThread.tryCommit(true, Const.dbShutdownParallelSave > 0);
+				t4 = System.nanoTime();
+				shutdown(false);
+				t5 = System.nanoTime();
 			}
-			Log.info("DBManager.OnJVMShutDown: db closed");
+			Log.info("DBManager.OnJVMShutDown: db closed (intake/drain/procs/save/close: {}/{}/{}/{}/{} ms)",
+					(t1 - t0) / 1_000_000, (t2 - t1) / 1_000_000, (t3 - t2) / 1_000_000, (t4 - t3) / 1_000_000, (t5 - t4) / 1_000_000);
 		});
 	}
 
@@ -378,7 +648,7 @@ public final class DBManager
 	public void checkpoint()
 	{
 		_commitThread.commitNext();
-		_commitThread.tryCommit(true);
+		_commitThread.tryCommit(true, false);
 	}
 
 	/**
@@ -405,6 +675,14 @@ public final class DBManager
 	 * 停止后不能再操作此对象的方法. 下次启动应构造一个新对象,重新调用startup,openTable,startCommitThread
 	 */
 	public void shutdown()
+	{
+		shutdown(true);
+	}
+
+	/**
+	 * @param checkpoint 是否在关闭前强制提交一次. 为false时只在还有表的写缓存不为空时提交(修改计数是估算值,不能作为依据)
+	 */
+	private void shutdown(boolean checkpoint)
 	{
 		synchronized (this)
 		{
@@ -413,7 +691,8 @@ public final class DBManager
 			Storage sto = _storage;
 			if (sto != null)
 			{
-				checkpoint();
+				if (checkpoint || TableBase.hasModifiedAll())
+					checkpoint();
 				_storage = null;
 				sto.close();
 			}
@@ -428,10 +707,23 @@ public final class DBManager
 		}
 	}
 
+	/**
+	 * 删除sid队列. 关闭时删除了最后一个队列则唤醒等待的线程
+	 */
+	private void removeQueue(Object sid, ProcQueue q)
+	{
+		if (_qmap.remove(sid, q))
+		{
+			Thread w = _drainWaiter;
+			if (w != null && _qmap.isEmpty())
+				LockSupport.unpark(w);
+		}
+	}
+
 	/**
 	 * 获取当前sid队列的数量
 	 * <p>
-	 * 现在只能通过clearSession或clearAllSessions来减少队列的数量
+	 * 队列中的事务全部运行完后会立即删除队列
 	 */
 	public long getSessionCount()
 	{
@@ -443,23 +735,78 @@ public final class DBManager
 	 */
 	public long getProcQueuedCount()
 	{
-		return _procCount.get();
+		return _procCount.sum();
 	}
 
 	/**
 	 * 获取当前事务线程池对象
+	 * <p>
+	 * 使用事务调度器({@link Const#dbProcScheduler})时,事务不在此线程池中运行
 	 */
 	public ThreadPoolExecutor getProcThreads()
 	{
 		return _procThreads;
 	}
 
+	/**
+	 * 获取实际运行事务的执行器
+	 */
+	public ExecutorService getProcExecutor()
+	{
+		return _procExecutor;
+	}
+
+	/**
+	 * 获取当前事务调度器. 没有使用时返回null
+	 */
+	public ProcScheduler getProcScheduler()
+	{
+		return _procScheduler;
+	}
+
+	/**
+	 * 判断是否使用虚拟线程运行事务
+	 */
+	public boolean isProcVirtual()
+	{
+		return _procVirtual;
+	}
+
+	/**
+	 * 获取按优先级分通道的执行器. 没有开启优先级({@link Const#dbProcPriority})时返回null
+	 */
+	public PriorityExecutor getPriorityExecutor()
+	{
+		return _priorityExecutor;
+	}
+
+	/**
+	 * 获取指定优先级提交事务的执行器. 没有开启优先级时都返回实际运行事务的执行器
+	 * @param priority 见{@link PriorityExecutor#INTERACTIVE},{@link PriorityExecutor#NORMAL},{@link PriorityExecutor#BACKGROUND}
+	 */
+	public Executor getProcExecutor(int priority)
+	{
+		return _priorityExecutor != null ? _priorityExecutor.getLane(priority) : _procExecutor;
+	}
+
+	/**
+	 * 获取运行事务的线程数量. 使用虚拟线程时是当前正在运行事务的虚拟线程数量
+	 */
+	public int getProcThreadCount()
+	{
+		if (_procVirtual)
+			return ProcContext.getBoundCount();
+		return _procScheduler != null ? _procScheduler.getThreadCount() : _procThreads.getPoolSize();
+	}
+
 	/**
 	 * 获取当前事务线程池待运行的事务数量
 	 */
 	public int getProcSubmittedCount()
 	{
-		return _procThreads.getQueue().size();
+		if (_procVirtual)
+			return 0; // 虚拟线程提交后立即运行,没有等待的事务
+		return _procScheduler != null ? _procScheduler.getQueuedCount() : _procThreads.getQueue().size();
 	}
 
 	/**
@@ -467,7 +814,9 @@ public final class DBManager
 	 */
 	public int getProcRunningCount()
 	{
-		return _procThreads.getActiveCount();
+		if (_procVirtual)
+			return ProcContext.getBoundCount();
+		return _procScheduler != null ? _procScheduler.getActiveCount() : _procThreads.getActiveCount();
 	}
 
 	/**
@@ -475,7 +824,9 @@ public final class DBManager
 	 */
 	public long getProcCompletedCount()
 	{
-		return _procThreads.getCompletedTaskCount();
+		if (_procVirtual)
+			return ProcContext.getUnbindCount();
+		return _procScheduler != null ? _procScheduler.getCompletedCount() : _procThreads.getCompletedTaskCount();
 	}
 
 	/**
@@ -488,58 +839,71 @@ public final class DBManager
 			@Override
 			protected void onProcess()
 			{
-				ArrayDeque<Procedure> q = _qmap.get(sid);
+				ProcQueue q = _qmap.get(sid);
 				if (q != null)
 				{
-					synchronized (q)
-					{
-						_procCount.getAndAdd(1L - q.size());
-						q.clear();
-						q.addLast(this); // 清除此队列所有的任务,只留当前任务待完成时会删除
-						_qmap.remove(sid); // _qmap删除队列的地方只有两处,另一处是collectQueue中队列判空的时候(有synchronized保护)
-					}
+					q.stopped = true; // 之后此队列剩余的事务都会被丢弃,新提交的事务会放入新的队列
+					removeQueue(sid, q);
 				}
 			}
 		});
 	}
 
 	/**
-	 * 回收空的事务队列
-	 * <p>
-	 * 一般在长时间间隔(如备份周期)的定时任务中调用
-	 * @param counts 输出回收前后的两个队列数量值
+	 * 向工作线程池提交一个事务
 	 */
-	private void collectQueue(long[] counts) //NOSONAR
+	public void submit(Procedure p)
 	{
-		counts[0] = _qmap.size();
-		_qmap.forEach((sid, q) ->
-		{
-			if (q.isEmpty())
-			{
-				synchronized (q)
-				{
-					if (q.isEmpty())
-						_qmap.remove(sid, q);
-				}
-			}
-		});
-		counts[1] = _qmap.size();
+		submitPriority(PriorityExecutor.NORMAL, p);
 	}
 
 	/**
-	 * 向工作线程池提交一个事务
+	 * 按优先级向工作线程池提交一个事务
+	 * <p>
+	 * 不作为submit的重载,避免int类型的sid调用{@link #submit(Object, Procedure)}时被当成优先级
+	 * @param priority 见{@link PriorityExecutor#INTERACTIVE},{@link PriorityExecutor#NORMAL},{@link PriorityExecutor#BACKGROUND}
 	 */
-	public void submit(Procedure p)
+	public void submitPriority(int priority, Procedure p)
 	{
-		_procThreads.execute(p);
+		if (JfrEvents.ENABLED)
+			p._queueEvent = JfrEvents.beginProcQueueWait();
+		p._priority = priority;
+		Executor executor = getProcExecutor(priority);
+		if (!tryAdmitLater(p, () -> executor.execute(p)))
+			executor.execute(p);
 	}
 
 	/**
 	 * 向工作线程池提交一个事务,并获取异步执行的future,可用于同步等待
+	 * <p>
+	 * 事务因等待异步结果({@link Procedure#await})而挂起时future不会完成,恢复运行并结束后才完成<br>
+	 * 运行前取消future可以阻止事务运行,但不会中断正在运行的事务
 	 */
 	public Future<?> submitFuture(Procedure p)
 	{
-		return _procThreads.submit(p);
+		return submitFuture(PriorityExecutor.NORMAL, p);
+	}
+
+	/**
+	 * 同{@link #submitFuture(Procedure)},但指定优先级
+	 * @param priority 见{@link PriorityExecutor#INTERACTIVE},{@link PriorityExecutor#NORMAL},{@link PriorityExecutor#BACKGROUND}
+	 */
+	public Future<?> submitFuture(int priority, Procedure p)
+	{
+		if (JfrEvents.ENABLED)
+			p._queueEvent = JfrEvents.beginProcQueueWait();
+		p._priority = priority;
+		CompletableFuture<Void> f = new CompletableFuture<>();
+		Runnable r = () -> p.run(f);
+		if (!_admitLimited && !_admitDraining && _priorityExecutor == null)
+		{
+			_procExecutor.execute(r);
+			return f;
+		}
+		Executor executor = getProcExecutor(priority);
+		if (!tryAdmitLater(p, () -> executor.execute(r)))
+			executor.execute(r);
+		return f;
 	}
 
 	/**
@@ -548,18 +912,39 @@ public final class DBManager
 	 * 不同sid的事务会并发处理,但相同的sid会按照提交顺序排队处理<br>
 	 * 如果队列中的事务数量超过上限(Const.maxSessionProcedure),则会清除这个sid的整个队列并输出错误日志<br>
 	 * sid即SessionId,一般表示网络连接的ID,事务运行时可以获取这个对象({@link Procedure#getSid})<br>
-	 * 当这个sid失效且不需要处理其任何未处理的事务时,应该调用clearSession清除这个sid的队列以避免少量的内存泄漏
+	 * 队列中的事务全部运行完后会立即回收这个sid的队列. 当这个sid失效且不需要处理其任何未处理的事务时,可以调用stopQueue丢弃剩余的事务<br>
+	 * 当修改数量超过上限({@link Const#dbMaxModCount})时,非事务线程的提交(只读事务除外)会先进入准入队列,待提交线程完成一轮提交后再按原顺序排队<br>
+	 * 准入队列满时会阻塞等待队列有空位,等待超过{@link Const#dbAdmitWaitTimeout}毫秒则抛出IllegalStateException,事务不会被提交
 	 */
 	public void submit(Object sid, Procedure p)
 	{
-		submit(_procThreads, sid, p);
+		submit(getProcExecutor(PriorityExecutor.NORMAL), sid, p);
+	}
+
+	/**
+	 * 同{@link #submit(Object sid, Procedure p)},但指定优先级
+	 * <p>
+	 * 同一sid的队列按开始调度此队列时提交的事务的优先级运行,直到队列运行完
+	 * @param priority 见{@link PriorityExecutor#INTERACTIVE},{@link PriorityExecutor#NORMAL},{@link PriorityExecutor#BACKGROUND}
+	 */
+	public void submitPriority(int priority, Object sid, Procedure p)
+	{
+		submit(getProcExecutor(priority), sid, p);
 	}
 
 	/**
 	 * 见{@link #submit(Object sid, Procedure p)}<br>
-	 * 可使用自定义的线程池(必须是ProcThread)
+	 * 可使用自定义的线程池
 	 */
 	public void submit(Executor executor, Object sid, Procedure p)
+	{
+		if (JfrEvents.ENABLED)
+			p._queueEvent = JfrEvents.beginProcQueueWait();
+		if (!tryAdmitLater(p, () -> submit0(executor, sid, p)))
+			submit0(executor, sid, p);
+	}
+
+	private void submit0(Executor executor, Object sid, Procedure p)
 	{
 		p.setSid(sid);
 		if (sid == null)
@@ -567,28 +952,30 @@ public final class DBManager
 			executor.execute(p);
 			return;
 		}
-		ArrayDeque<Procedure> q;
+		ProcQueue q;
 		for (;;)
 		{
-			q = _qmap.computeIfAbsent(sid, __ -> new ArrayDeque<>()); // _qmap增加队列的地方只有这一处
-			synchronized (q)
+			q = _qmap.computeIfAbsent(sid, __ -> new ProcQueue()); // _qmap增加队列的地方只有这一处
+			int qs = q.tryAcquire(Const.maxSessionProcedure);
+			if (qs == ProcQueue.CLOSED)
 			{
-				if (q != _qmap.get(sid))
-					continue; // maybe just collected
-				int qs = q.size();
-				if (qs >= Const.maxSessionProcedure)
-					throw new IllegalStateException("procedure overflow: procedure=" + p.getClass().getName() +
-							",sid=" + sid + ",size=" + q.size() + ",maxsize=" + Const.maxSessionProcedure);
-				q.addLast(p);
-				_procCount.getAndIncrement();
-				if (qs > 0)
-					return;
+				removeQueue(sid, q); // 可能刚被关闭或停止,还没来得及删除
+				continue;
 			}
+			if (qs >= Const.maxSessionProcedure)
+				throw new IllegalStateException("procedure overflow: procedure=" + p.getClass().getName() +
+						",sid=" + sid + ",size=" + qs + ",maxsize=" + Const.maxSessionProcedure);
+			q.push(p);
+			_procCount.increment();
+			if (qs > 0)
+				return; // 已有消费者在运行此队列
 			break;
 		}
-		ArrayDeque<Procedure> _q = q;
-		executor.execute(new Runnable()
+		ProcQueue _q = q;
+		execute(executor, sid, new Runnable()
 		{
+			private Procedure _resumeProc; // 挂起后等待恢复运行的事务
+
 			@Override
 			public void run()
 			{
@@ -596,31 +983,59 @@ public final class DBManager
 				{
 					for (int n = Const.maxBatchProceduer;;) // 一次调度可运行多个事务,避免切换调度导致的效率损失
 					{
-						Procedure proc;
-						synchronized (_q)
-						{
-							proc = _q.peekFirst(); // 这里只能先peek而不能poll或remove,否则可能和下次commit并发
-						}
-						if (proc == null)
-							return;
-						_procCount.getAndDecrement();
-						try
+						Procedure proc = _resumeProc;
+						if (proc != null)
+							_resumeProc = null;
+						else
 						{
-							proc.execute();
+							proc = _q.poll();
+							_procCount.decrement();
 						}
-						catch (Throwable e)
+						if (!_q.stopped)
 						{
-							Log.error(e, "procedure(sid={}) exception:", sid);
+							BatchProcedure bp = (proc instanceof BatchProcedure ? (BatchProcedure)proc : null);
+							if (bp != null)
+							{
+								bp._batchQueue = _q;
+								bp._batchMax = n - 1;
+							}
+							int r = Procedure.EXECUTE_FAILED;
+							try
+							{
+								r = proc.execute0();
+							}
+							catch (Throwable e)
+							{
+								Log.error(e, "procedure(sid={}) exception:", sid);
+							}
+							if (bp != null)
+							{
+								int c = bp._batchCount;
+								bp._batchQueue = null;
+								bp._batchCount = 0;
+								if (c > 0) // 合并运行的后续事务已从队列取出并运行完
+								{
+									_procCount.add(-c);
+									_q.release(c);
+									n -= c;
+								}
+							}
+							if (r == Procedure.EXECUTE_SUSPENDED) // 挂起的事务恢复运行并结束前,此队列的后续事务都要等待
+							{
+								_resumeProc = proc;
+								proc.resumeOnComplete(() -> execute(executor, sid, this));
+								return;
+							}
 						}
-						synchronized (_q)
+						if (!_q.release())
 						{
-							_q.pollFirst();
-							if (_q.isEmpty())
-								return;
+							if (_q.close())
+								removeQueue(sid, _q); // 队列为空时立即删除,关闭失败说明有新加入的事务,已由其提交者调度
+							return;
 						}
 						if (--n <= 0)
 						{
-							executor.execute(this);
+							execute(executor, sid, this);
 							return;
 						}
 					}
@@ -628,11 +1043,21 @@ public final class DBManager
 				catch (Throwable e)
 				{
 					if (e instanceof RejectedExecutionException && _exiting)
-						Log.info("procedure queue canceled. sid={}, queueSize={}", sid, _q.size());
+						Log.info("procedure queue canceled. sid={}, queueSize={}", sid, _q.get());
 					else
 						Log.error(e, "procedure(sid={}) fatal exception:", sid);
 				}
 			}
 		});
 	}
+
+	private static void execute(Executor executor, Object sid, Runnable r)
+	{
+		if (executor instanceof ProcScheduler)
+			((ProcScheduler)executor).execute(sid, r); // 同一sid的队列尽量在同一线程上运行
+		else if (executor instanceof PriorityExecutor.Lane)
+			((PriorityExecutor.Lane)executor).execute(sid, r);
+		else
+			executor.execute(r);
+	}
 }
@@ -7,22 +7,31 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import jane.core.Storage.WalkLongRawHandler;
 import jane.core.Storage.WalkLongValueHandler;
 import jane.core.Storage.WalkRawHandler;
 import jane.core.Storage.WalkValueHandler;
+import jane.core.map.ConcurrentLRUMap;
 
 /**
  * 数据库管理器(单件)的简单版
  * <p>
  * 可直接对bean的存取,没有事务性,存取均有缓存,定期存库和备份. 目前仅支持StorageLevelDB,记录格式与DBManager兼容. 不能与DBManager同时访问同一个数据库.<br>
  * 对同一个记录并发访问不会出错,但顺序不能保证. 一般只在单线程环境下访问此类,或者用户自行处理同一记录的互斥访问.<br>
+ * 读写缓存按key的哈希值分片,减少多线程访问的竞争; 提交时各分片并行收集修改,再合并成一次批量写入存储.<br>
  * 只依赖Log, Const, Util, Octets*, MarshalException, ExitManager, Bean, StorageLevelDB.<br>
  * 一般不再使用DBManager,Proc*,Table*,S*; 不生成dbt,只生成bean
  */
@@ -30,23 +39,54 @@ public final class DBSimpleManager
 {
 	private static final class InstanceHolder
 	{
-		public static final DBSimpleManager instance = new DBSimpleManager(Const.dbSimpleCacheSize);
+		public static final DBSimpleManager instance = new DBSimpleManager(Const.dbSimpleCacheSize, Const.dbSimpleShardCount);
 	}
 
-	private static final Octets		_deleted = new Octets(); // 表示已删除的值
-	private static volatile boolean	_hasCreated;			 // 是否创建过此类的对象
+	private static final Octets				 _deleted = new Octets();						  // 表示已删除的值
+	private static final ThreadLocal<Octets> _tempKey = ThreadLocal.withInitial(Octets::new); // 每个线程临时构造key的缓冲区(查找时不用每次创建新key)
+	private static volatile boolean			 _hasCreated;									  // 是否创建过此类的对象
 
-	private final CommitThread					_commitThread	= new CommitThread();		   // 处理数据提交的线程
-	private final Map<Octets, Octets>			_readCache;									   // 读缓冲区
-	private final ConcurrentMap<Octets, Octets>	_writeCache		= Util.newConcurrentHashMap(); // 写缓冲区
-	protected final AtomicLong					_readCount		= new AtomicLong();			   // 读操作次数统计
-	protected final AtomicLong					_readStoCount	= new AtomicLong();			   // 读数据库存储的次数统计(即cache-miss的次数统计)
-	protected final AtomicLong					_readValueCount	= new AtomicLong();			   // 读数据库存储的值次数统计(即cache-miss且读到值的次数统计)
-	protected final AtomicLong					_readValueSize	= new AtomicLong();			   // 读数据库存储的值大小统计(即cache-miss且读到值的大小统计)
-	private String								_dbFilename;								   // 数据库的文件名(不含父路径,对LevelDB而言是目录名)
-	private String								_dbBackupPath;								   // 数据库的备份路径
-	private StorageLevelDB						_storage;									   // 存储引擎
-	private volatile boolean					_exiting;									   // 是否在退出状态(已经执行了ShutdownHook)
+	private final CommitThread _commitThread   = new CommitThread(); // 处理数据提交的线程
+	private final Shard[]	   _shards;								 // 读写缓冲区的分片
+	private final int		   _shardShift;							 // 计算分片序号时哈希值右移的位数
+	protected final LongAdder  _readCount	   = new LongAdder();	 // 读操作次数统计
+	protected final LongAdder  _readStoCount   = new LongAdder();	 // 读数据库存储的次数统计(即cache-miss的次数统计)
+	protected final AtomicLong _readValueCount = new AtomicLong();	 // 读数据库存储的值次数统计(即cache-miss且读到值的次数统计)
+	protected final AtomicLong _readValueSize  = new AtomicLong();	 // 读数据库存储的值大小统计(即cache-miss且读到值的大小统计)
+	private String			   _dbFilename;							 // 数据库的文件名(不含父路径,对LevelDB而言是目录名)
+	private String			   _dbBackupPath;						 // 数据库的备份路径
+	private StorageLevelDB	   _storage;							 // 存储引擎
+	private volatile boolean   _exiting;							 // 是否在退出状态(已经执行了ShutdownHook)
+
+	/**
+	 * 按key的哈希值划分的一个读写缓冲区分片
+	 */
+	private static final class Shard
+	{
+		final Map<Octets, Octets>			readCache;								  // 读缓冲区
+		final ConcurrentMap<Octets, Octets>	writeCache = Util.newConcurrentHashMap(); // 写缓冲区
+		ArrayList<Entry<Octets, Octets>>	writeBuf;								  // 提交时收集的写缓冲区快照(只在提交中访问)
+
+		Shard(int readCacheSize, String name)
+		{
+			readCache = (readCacheSize > 0 ? Util.newConcurrentLRUMap(readCacheSize, name) : null);
+		}
+
+		void collect()
+		{
+			ArrayList<Entry<Octets, Octets>> buf = new ArrayList<>(writeCache.size());
+			for (Entry<Octets, Octets> e : writeCache.entrySet())
+				buf.add(new SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+			writeBuf = buf;
+		}
+
+		void clean()
+		{
+			for (Entry<Octets, Octets> e : writeBuf)
+				writeCache.remove(e.getKey(), e.getValue());
+			writeBuf = null;
+		}
+	}
 
 	/**
 	 * 周期向数据库存储提交事务性修改的线程(checkpoint)
@@ -117,9 +157,8 @@ public final class DBSimpleManager
 			try
 			{
 				long t = System.currentTimeMillis();
-				ConcurrentMap<Octets, Octets> writeCache = _writeCache;
 				long commitTime = _commitTime;
-				if (t < commitTime && writeCache.size() < Const.dbCommitModCount)
+				if (t < commitTime && getWriteCacheSize() < Const.dbCommitModCount)
 					return true;
 				synchronized (DBSimpleManager.this)
 				{
@@ -132,7 +171,7 @@ public final class DBSimpleManager
 					StorageLevelDB storage = getStorage();
 					if (storage != null)
 					{
-						long t1, modCount = writeCache.size();
+						long t1, modCount = getWriteCacheSize();
 						if (modCount == 0)
 						{
 							Log.info("db-commit not found modified record");
@@ -140,25 +179,33 @@ public final class DBSimpleManager
 						}
 						else
 						{
-							// 1.首先尝试遍历单个加锁的方式保存已修改的记录. 此时和其它事务可以并发
+							// 1.各分片并行收集已修改的记录,合并成一次批量写入存储. 此时和其它访问可以并发
 							long t0 = System.currentTimeMillis();
 							Log.info("db-commit saving: {}...", modCount);
-							ArrayList<Entry<Octets, Octets>> writeBuf = new ArrayList<>(writeCache.size());
-							for (Entry<Octets, Octets> e : writeCache.entrySet())
-								writeBuf.add(new SimpleImmutableEntry<>(e.getKey(), e.getValue()));
-							Log.info("db-commit committing: {}...", writeBuf.size());
-							if (storage.dbcommit(writeBuf.iterator()))
+							forEachShard(Shard::collect);
+							int n = 0;
+							for (Shard shard : _shards)
+								n += shard.writeBuf.size();
+							Log.info("db-commit committing: {}...", n);
+							boolean r;
+							try
 							{
-								Log.info("db-commit cleaning...");
-								int n = writeCache.size();
-								for (Entry<Octets, Octets> e : writeBuf)
-									writeCache.remove(e.getKey(), e.getValue());
-								writeBuf.clear();
-								t1 = System.currentTimeMillis();
-								Log.info("db-commit done: {}=>{} ({} ms)", n, writeCache.size(), t1 - t0);
+								r = storage.dbcommit(new WriteBufIterator(_shards));
+								if (r)
+								{
+									Log.info("db-commit cleaning...");
+									n = getWriteCacheSize();
+									forEachShard(Shard::clean);
+								}
 							}
-							else
-								t1 = System.currentTimeMillis();
+							finally
+							{
+								for (Shard shard : _shards)
+									shard.writeBuf = null;
+							}
+							t1 = System.currentTimeMillis();
+							if (r)
+								Log.info("db-commit done: {}=>{} ({} ms)", n, getWriteCacheSize(), t1 - t0);
 						}
 
 						// 2.判断备份周期并启动备份
@@ -191,6 +238,42 @@ public final class DBSimpleManager
 		}
 	}
 
+	/**
+	 * 按分片顺序遍历各分片提交时收集的写缓冲区快照
+	 */
+	private static final class WriteBufIterator implements Iterator<Entry<Octets, Octets>>
+	{
+		private final Shard[]					shards;
+		private int								index;
+		private Iterator<Entry<Octets, Octets>>	it;
+
+		WriteBufIterator(Shard[] shards)
+		{
+			this.shards = shards;
+			it = shards[0].writeBuf.iterator();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (!it.hasNext())
+			{
+				if (++index >= shards.length)
+					return false;
+				it = shards[index].writeBuf.iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public Entry<Octets, Octets> next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return it.next();
+		}
+	}
+
 	public static DBSimpleManager instance()
 	{
 		return InstanceHolder.instance;
@@ -202,9 +285,51 @@ public final class DBSimpleManager
 	}
 
 	public DBSimpleManager(int readCacheSize)
+	{
+		this(readCacheSize, 1);
+	}
+
+	/**
+	 * @param readCacheSize 读缓存的总记录数,平均分到各分片. 0表示不使用读缓存
+	 * @param shardCount 读写缓存的分片数量,会向上取2的幂. 0表示按CPU核数自动决定
+	 */
+	public DBSimpleManager(int readCacheSize, int shardCount)
 	{
 		_hasCreated = true;
-		_readCache = (readCacheSize > 0 ? Util.newConcurrentLRUMap(readCacheSize, "SimpleReadCache") : null);
+		if (shardCount <= 0)
+			shardCount = Runtime.getRuntime().availableProcessors();
+		int shardBits = 32 - Integer.numberOfLeadingZeros(Math.min(shardCount, 1 << 16) - 1);
+		shardCount = 1 << shardBits;
+		_shardShift = 32 - shardBits;
+		_shards = new Shard[shardCount];
+		int shardCacheSize = (readCacheSize > 0 ? Math.max((readCacheSize + shardCount - 1) / shardCount, 1) : 0);
+		for (int i = 0; i < shardCount; ++i)
+			_shards[i] = new Shard(shardCacheSize, shardCount > 1 ? "SimpleReadCache" + i : "SimpleReadCache");
+	}
+
+	/**
+	 * 获取key所在的分片. 用哈希值的高位选择分片,避免与分片内ConcurrentHashMap使用的低位相关
+	 */
+	private Shard shard(Octets key)
+	{
+		return _shardShift < 32 ? _shards[(key.hashCode() * 0x9e3779b9) >>> _shardShift] : _shards[0];
+	}
+
+	/**
+	 * 对每个分片执行操作. 多于1个分片时并行执行(使用ForkJoinPool.commonPool),全部完成后返回
+	 */
+	private void forEachShard(Consumer<Shard> action)
+	{
+		Shard[] shards = _shards;
+		if (shards.length == 1)
+		{
+			action.accept(shards[0]);
+			return;
+		}
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>(shards.length);
+		for (Shard shard : shards)
+			tasks.add(ForkJoinTask.adapt(() -> action.accept(shard)));
+		ForkJoinTask.invokeAll(tasks);
 	}
 
 	/**
@@ -279,24 +404,49 @@ public final class DBSimpleManager
 		return _storage;
 	}
 
+	public int getShardCount()
+	{
+		return _shards.length;
+	}
+
 	public int getReadCacheSize()
 	{
-		return _readCache != null ? _readCache.size() : 0;
+		int n = 0;
+		for (Shard shard : _shards)
+		{
+			if (shard.readCache != null)
+				n += shard.readCache.size();
+		}
+		return n;
 	}
 
 	public int getWriteCacheSize()
 	{
-		return _writeCache.size();
+		int n = 0;
+		for (Shard shard : _shards)
+			n += shard.writeCache.size();
+		return n;
 	}
 
 	public long getReadCount()
 	{
-		return _readCount.get();
+		return _readCount.sum();
 	}
 
 	public long getReadStoCount()
 	{
-		return _readStoCount.get();
+		return _readStoCount.sum();
+	}
+
+	public long getReadCacheEvictCount()
+	{
+		long n = 0;
+		for (Shard shard : _shards)
+		{
+			if (shard.readCache instanceof ConcurrentLRUMap)
+				n += ((ConcurrentLRUMap<?, ?>)shard.readCache).getSweepEvictCount();
+		}
+		return n;
 	}
 
 	public int getAverageValueSize()
@@ -312,21 +462,35 @@ public final class DBSimpleManager
 
 	private static Octets toKey(int tableId, long key)
 	{
-		return Octets.createSpace(Octets.marshalUIntLen(tableId) + Octets.marshalLen(key))
-				.marshalUInt(tableId).marshal(key);
+		return toKey(Octets.createSpace(Octets.marshalUIntLen(tableId) + Octets.marshalLen(key)), tableId, key);
+	}
+
+	/**
+	 * 获取当前线程的临时key缓冲区(已清空). 只用于查找,保存到缓存时需要复制
+	 */
+	private static Octets tempKey()
+	{
+		Octets os = _tempKey.get();
+		os.clear();
+		return os;
 	}
 
-	private static Octets toKey(int tableId, Octets key)
+	private static Octets toKey(Octets os, int tableId, long key)
 	{
-		return Octets.createSpace(Octets.marshalUIntLen(tableId) + key.size()).marshalUInt(tableId).append(key);
+		return os.marshalUInt(tableId).marshal(key);
 	}
 
-	private static Octets toKey(int tableId, String key)
+	private static Octets toKey(Octets os, int tableId, Octets key)
 	{
-		int tableIdLen = Octets.marshalUIntLen(tableId);
+		return os.marshalUInt(tableId).append(key);
+	}
+
+	private static Octets toKey(Octets os, int tableId, String key)
+	{
+		os.marshalUInt(tableId);
 		int bn = Octets.marshalStrLen(key);
-		Octets os = Octets.createSpace(tableIdLen + bn).marshalUInt(tableId);
 		int cn = key.length();
+		os.reserve(os.size() + bn);
 		if (bn == cn)
 		{
 			for (int i = 0; i < cn; ++i)
@@ -340,29 +504,34 @@ public final class DBSimpleManager
 		return os;
 	}
 
-	private static Octets toKey(int tableId, Bean<?> key)
+	private static Octets toKey(Octets os, int tableId, Bean<?> key)
 	{
-		return new Octets(5 + key.initSize()).marshalUInt(tableId).marshal(key);
+		return os.marshalUInt(tableId).marshal(key);
 	}
 
+	/**
+	 * @param key 临时key,保存到读缓存时会复制一份
+	 */
 	private <B extends Bean<B>> B get0(Octets key, B beanStub) throws MarshalException
 	{
-		_readCount.getAndIncrement();
-		Octets val = (_readCache != null ? _readCache.get(key) : null);
+		_readCount.increment();
+		Shard shard = shard(key);
+		Map<Octets, Octets> readCache = shard.readCache;
+		Octets val = (readCache != null ? readCache.get(key) : null);
 		if (val == null)
 		{
-			val = _writeCache.get(key);
+			val = shard.writeCache.get(key);
 			if (val == null)
 			{
-				_readStoCount.getAndIncrement();
+				_readStoCount.increment();
 				byte[] v = _storage.dbget(key);
 				if (v == null)
 					return null;
 				_readValueCount.getAndIncrement();
 				_readValueSize.getAndAdd(v.length);
 				OctetsStreamEx os = OctetsStreamEx.wrap(v);
-				if (_readCache != null)
-					_readCache.put(key, os);
+				if (readCache != null)
+					readCache.put(Octets.wrap(key.getBytes()), os);
 				return StorageLevelDB.toBean(os, beanStub);
 			}
 			if (val.size() <= 0)
@@ -371,25 +540,34 @@ public final class DBSimpleManager
 		return StorageLevelDB.toBean(OctetsStreamEx.wrap(val), beanStub);
 	}
 
+	/**
+	 * @param key 临时key,会复制一份同时用于读写缓存
+	 */
 	private void put0(Octets key, Octets value)
 	{
-		_writeCache.put(key, value);
-		if (_readCache != null)
-			_readCache.put(key, value);
+		Shard shard = shard(key);
+		key = Octets.wrap(key.getBytes());
+		shard.writeCache.put(key, value);
+		if (shard.readCache != null)
+			shard.readCache.put(key, value);
 	}
 
+	/**
+	 * @param key 临时key,会复制一份用于写缓存
+	 */
 	private void remove0(Octets key)
 	{
-		_writeCache.put(key, _deleted);
-		if (_readCache != null)
-			_readCache.remove(key);
+		Shard shard = shard(key);
+		if (shard.readCache != null)
+			shard.readCache.remove(key);
+		shard.writeCache.put(Octets.wrap(key.getBytes()), _deleted);
 	}
 
 	public <B extends Bean<B>> B get(int tableId, long key, B beanStub)
 	{
 		try
 		{
-			return get0(toKey(tableId, key), beanStub);
+			return get0(toKey(tempKey(), tableId, key), beanStub);
 		}
 		catch (Exception e)
 		{
@@ -402,7 +580,7 @@ public final class DBSimpleManager
 	{
 		try
 		{
-			return get0(toKey(tableId, key), beanStub);
+			return get0(toKey(tempKey(), tableId, key), beanStub);
 		}
 		catch (Exception e)
 		{
@@ -415,7 +593,7 @@ public final class DBSimpleManager
 	{
 		try
 		{
-			return get0(toKey(tableId, key), beanStub);
+			return get0(toKey(tempKey(), tableId, key), beanStub);
 		}
 		catch (Exception e)
 		{
@@ -428,7 +606,7 @@ public final class DBSimpleManager
 	{
 		try
 		{
-			return get0(toKey(tableId, key), beanStub);
+			return get0(toKey(tempKey(), tableId, key), beanStub);
 		}
 		catch (Exception e)
 		{
@@ -439,42 +617,211 @@ public final class DBSimpleManager
 
 	public void put(int tableId, long key, Bean<?> bean)
 	{
-		put0(toKey(tableId, key), new Octets(bean.initSize()).marshalZero().marshal(bean)); // format
+		put0(toKey(tempKey(), tableId, key), new Octets(bean.initSize()).marshalZero().marshal(bean)); // format
 	}
 
 	public void put(int tableId, Octets key, Bean<?> bean)
 	{
-		put0(toKey(tableId, key), new Octets(bean.initSize()).marshalZero().marshal(bean)); // format
+		put0(toKey(tempKey(), tableId, key), new Octets(bean.initSize()).marshalZero().marshal(bean)); // format
 	}
 
 	public void put(int tableId, String key, Bean<?> bean)
 	{
-		put0(toKey(tableId, key), new Octets(bean.initSize()).marshalZero().marshal(bean)); // format
+		put0(toKey(tempKey(), tableId, key), new Octets(bean.initSize()).marshalZero().marshal(bean)); // format
 	}
 
 	public void put(int tableId, Bean<?> key, Bean<?> bean)
 	{
-		put0(toKey(tableId, key), new Octets(bean.initSize()).marshalZero().marshal(bean)); // format
+		put0(toKey(tempKey(), tableId, key), new Octets(bean.initSize()).marshalZero().marshal(bean)); // format
 	}
 
 	public void remove(int tableId, long key)
 	{
-		remove0(toKey(tableId, key));
+		remove0(toKey(tempKey(), tableId, key));
 	}
 
 	public void remove(int tableId, Octets key)
 	{
-		remove0(toKey(tableId, key));
+		remove0(toKey(tempKey(), tableId, key));
 	}
 
 	public void remove(int tableId, String key)
 	{
-		remove0(toKey(tableId, key));
+		remove0(toKey(tempKey(), tableId, key));
 	}
 
 	public void remove(int tableId, Bean<?> key)
 	{
-		remove0(toKey(tableId, key));
+		remove0(toKey(tempKey(), tableId, key));
+	}
+
+	private static <B extends Bean<B>> B toBean(int tableId, long key, Octets val, B beanStub)
+	{
+		try
+		{
+			return StorageLevelDB.toBean(OctetsStreamEx.wrap(val), beanStub);
+		}
+		catch (Exception e)
+		{
+			Log.error(e, "get record exception: tableId={}, key={}, type={}", tableId, key, beanStub.typeName());
+			return null;
+		}
+	}
+
+	/**
+	 * 批量获取long类型key的多个记录
+	 * <p>
+	 * 先从读写缓存中查找,剩下的key按存储顺序排序后集中从存储中读取(提高存储块缓存的命中率),并放入读缓存
+	 * @return 与keys一一对应的记录列表. 不存在或解码失败的记录为null
+	 */
+	public <B extends Bean<B>> ArrayList<B> getMulti(int tableId, long[] keys, B beanStub)
+	{
+		int n = keys.length;
+		ArrayList<B> beans = new ArrayList<>(n);
+		long[] missKeys = null; // 未命中的key异或最高位,按有符号比较的顺序即是编码后key在存储中的顺序
+		int[] missIdxes = null;
+		int missCount = 0;
+		_readCount.add(n);
+		for (int i = 0; i < n; ++i)
+		{
+			Octets key = toKey(tempKey(), tableId, keys[i]);
+			Shard shard = shard(key);
+			Octets val = (shard.readCache != null ? shard.readCache.get(key) : null);
+			if (val == null && (val = shard.writeCache.get(key)) == null)
+			{
+				if (missKeys == null)
+				{
+					missKeys = new long[n];
+					missIdxes = new int[n];
+				}
+				missKeys[missCount] = keys[i] ^ Long.MIN_VALUE;
+				missIdxes[missCount++] = i;
+			}
+			beans.add(val != null && val.size() > 0 ? toBean(tableId, keys[i], val, beanStub) : null);
+		}
+		if (missCount > 0)
+		{
+			_readStoCount.add(missCount);
+			long[] sortedKeys = Arrays.copyOf(missKeys, missCount);
+			Arrays.sort(sortedKeys);
+			Octets[] vals = new Octets[missCount]; // 与sortedKeys一一对应的存储中的值
+			for (int j = 0; j < missCount; ++j)
+			{
+				long k = sortedKeys[j];
+				if (j > 0 && k == sortedKeys[j - 1]) // 重复的key只读取一次
+				{
+					vals[j] = vals[j - 1];
+					continue;
+				}
+				Octets key = toKey(tableId, k ^ Long.MIN_VALUE);
+				byte[] v = _storage.dbget(key);
+				if (v != null)
+				{
+					_readValueCount.getAndIncrement();
+					_readValueSize.getAndAdd(v.length);
+					OctetsStreamEx os = OctetsStreamEx.wrap(v);
+					Shard shard = shard(key);
+					if (shard.readCache != null)
+						shard.readCache.put(key, os);
+					vals[j] = os;
+				}
+			}
+			for (int j = 0; j < missCount; ++j)
+			{
+				Octets val = vals[Arrays.binarySearch(sortedKeys, missKeys[j])];
+				if (val != null)
+				{
+					int i = missIdxes[j];
+					beans.set(i, toBean(tableId, keys[i], val, beanStub));
+				}
+			}
+		}
+		return beans;
+	}
+
+	/**
+	 * 批量写入long类型key的多个记录
+	 * @param beans 与keys一一对应的记录. 为null表示删除对应的记录
+	 */
+	public void putMulti(int tableId, long[] keys, Bean<?>[] beans)
+	{
+		int n = keys.length;
+		if (beans.length != n)
+			throw new IllegalArgumentException("keys.length(" + n + ") != beans.length(" + beans.length + ')');
+		for (int i = 0; i < n; ++i)
+		{
+			Octets key = toKey(tempKey(), tableId, keys[i]);
+			Bean<?> bean = beans[i];
+			if (bean != null)
+				put0(key, new Octets(bean.initSize()).marshalZero().marshal(bean)); // format
+			else
+				remove0(key);
+		}
+	}
+
+	private static <B extends Bean<B>> boolean addScanRecord(ArrayList<Entry<Long, B>> result, int limit, int tableIdLen, Octets key,
+			Octets val, B beanStub)
+	{
+		if (val.size() > 0) // 跳过已删除的记录
+		{
+			try
+			{
+				OctetsStreamEx os = OctetsStreamEx.wrap(key);
+				os.setPosition(tableIdLen);
+				result.add(new SimpleImmutableEntry<>(os.unmarshalLong(), StorageLevelDB.toBean(OctetsStreamEx.wrap(val), beanStub)));
+			}
+			catch (Exception e)
+			{
+				Log.error(e, "scan record exception: key={}, type={}", key.dump(), beanStub.typeName());
+			}
+		}
+		return result.size() < limit;
+	}
+
+	/**
+	 * 分页获取long类型key的表中从fromKey(包含)开始的最多limit个记录
+	 * <p>
+	 * 按存储中的key顺序(同walkLongTable,即先0到Long.MAX_VALUE,再Long.MIN_VALUE到-1)返回,已合并写缓存中尚未提交的修改和删除<br>
+	 * 存储只遍历到够数为止. 需要遍历全部写缓存,写缓存很大时开销较高. 不会放入读缓存
+	 * @return 按key顺序的记录列表. 少于limit个表示已经遍历到表尾,否则下一页可用最后一个key+1作为fromKey(最后一个key为-1时也已到表尾)
+	 */
+	public <B extends Bean<B>> ArrayList<Entry<Long, B>> scan(int tableId, long fromKey, int limit, B beanStub)
+	{
+		ArrayList<Entry<Long, B>> result = new ArrayList<>(Math.min(Math.max(limit, 0), 1024));
+		if (limit <= 0)
+			return result;
+		Octets keyFrom = toKey(tableId, fromKey);
+		Octets keyTo = toKey(tableId, -1);
+		TreeMap<Octets, Octets> pending = new TreeMap<>(); // 写缓存中在范围内的修改. 先于遍历存储收集,保证正在提交的修改不会遗漏
+		for (Shard shard : _shards)
+		{
+			for (Entry<Octets, Octets> e : shard.writeCache.entrySet())
+			{
+				Octets k = e.getKey();
+				if (k.compareTo(keyFrom) >= 0 && k.compareTo(keyTo) <= 0)
+					pending.put(k, e.getValue());
+			}
+		}
+		int tableIdLen = Octets.marshalUIntLen(tableId);
+		_storage.dbwalk(keyFrom, keyTo, true, false, (k, v) ->
+		{
+			Octets key = Octets.wrap(k);
+			for (Entry<Octets, Octets> e; (e = pending.firstEntry()) != null;)
+			{
+				int c = e.getKey().compareTo(key);
+				if (c > 0)
+					break;
+				pending.pollFirstEntry();
+				if (c == 0)
+					return addScanRecord(result, limit, tableIdLen, key, e.getValue(), beanStub); // 写缓存中的修改覆盖存储中的值
+				if (!addScanRecord(result, limit, tableIdLen, e.getKey(), e.getValue(), beanStub))
+					return false;
+			}
+			return addScanRecord(result, limit, tableIdLen, key, Octets.wrap(v), beanStub);
+		});
+		for (Entry<Octets, Octets> e; result.size() < limit && (e = pending.pollFirstEntry()) != null;)
+			addScanRecord(result, limit, tableIdLen, e.getKey(), e.getValue(), beanStub);
+		return result;
 	}
 
 	public <B extends Bean<B>> boolean walkLongTable(int tableId, long keyFrom, long keyTo, B beanStub, WalkLongValueHandler<B> handler)
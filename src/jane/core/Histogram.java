@@ -0,0 +1,132 @@
+package jane.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 可并发记录的对数线性分桶直方图
+ * <p>
+ * 每个2的幂区间再均分成4个子桶,相对误差不超过25%,适合统计耗时(纳秒)等分布很广的数值<br>
+ * 支持滑动窗口: 定时调用{@link #snapshot}保存当前累计值的快照,窗口内的分布即当前累计值与最旧快照之差
+ */
+public final class Histogram
+{
+	private static final int SUB_BITS	  = 2;
+	private static final int SUB_COUNT	  = 1 << SUB_BITS;
+	private static final int MAX_EXP	  = 40;													  // 超过2^41的值都统计到最后一个桶
+	public static final int	 BUCKET_COUNT = SUB_COUNT * 2 + (MAX_EXP - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT); // 各桶的累计计数
+	private final long[][]		  _snapshots;								   // 滑动窗口的累计计数快照(环形)
+	private int					  _snapshotPos;								   // 下次保存快照的位置
+	private int					  _snapshotCount;							   // 已保存快照的数量
+
+	/**
+	 * @param windowSlots 滑动窗口的快照数量. 0表示不支持滑动窗口
+	 */
+	public Histogram(int windowSlots)
+	{
+		_snapshots = new long[windowSlots][];
+	}
+
+	/**
+	 * 计算数值对应的桶索引
+	 */
+	public static int bucketIndex(long v)
+	{
+		if (v < SUB_COUNT * 2)
+			return v > 0 ? (int)v : 0;
+		int exp = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BITS+1
+		if (exp > MAX_EXP)
+			return BUCKET_COUNT - 1;
+		return SUB_COUNT * 2 + (exp - SUB_BITS - 1) * SUB_COUNT + (int)(v >>> (exp - SUB_BITS)) - SUB_COUNT;
+	}
+
+	/**
+	 * 获取桶索引对应数值范围的上限(包含)
+	 */
+	public static long bucketValue(int idx)
+	{
+		if (idx < SUB_COUNT * 2)
+			return idx;
+		idx -= SUB_COUNT * 2;
+		int exp = idx / SUB_COUNT + SUB_BITS + 1;
+		return ((long)(idx % SUB_COUNT + SUB_COUNT + 1) << (exp - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * 记录一个数值
+	 */
+	public void record(long v)
+	{
+		_counts.getAndIncrement(bucketIndex(v));
+	}
+
+	/**
+	 * 保存当前累计计数的快照,用于计算滑动窗口内的分布
+	 * <p>
+	 * 一般由单个定时线程周期调用,窗口时长即快照数量*调用周期
+	 */
+	public synchronized void snapshot()
+	{
+		int n = _snapshots.length;
+		if (n <= 0)
+			return;
+		long[] s = _snapshots[_snapshotPos];
+		if (s == null)
+			_snapshots[_snapshotPos] = s = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; ++i)
+			s[i] = _counts.get(i);
+		if (++_snapshotPos >= n)
+			_snapshotPos = 0;
+		if (_snapshotCount < n)
+			++_snapshotCount;
+	}
+
+	/**
+	 * 获取累计计数的分布
+	 * @param window 是否只获取滑动窗口内的分布
+	 */
+	public synchronized long[] getCounts(boolean window)
+	{
+		long[] r = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; ++i)
+			r[i] = _counts.get(i);
+		if (window && _snapshotCount > 0)
+		{
+			long[] s = _snapshots[_snapshotCount < _snapshots.length ? 0 : _snapshotPos]; // 最旧的快照
+			for (int i = 0; i < BUCKET_COUNT; ++i)
+				r[i] -= s[i];
+		}
+		return r;
+	}
+
+	/**
+	 * 获取分布的总计数
+	 */
+	public static long getCount(long[] counts)
+	{
+		long n = 0;
+		for (long c : counts)
+			n += c;
+		return n;
+	}
+
+	/**
+	 * 获取分布的百分位数值(桶上限的近似值)
+	 * @param p 百分位[0,1]. 如0.99
+	 * @return 没有计数时返回-1
+	 */
+	public static long getPercentile(long[] counts, double p)
+	{
+		long n = getCount(counts);
+		if (n <= 0)
+			return -1;
+		long k = Math.max((long)Math.ceil(n * p), 1);
+		for (int i = 0, m = counts.length; i < m; ++i)
+		{
+			if ((k -= counts[i]) <= 0)
+				return bucketValue(i);
+		}
+		return bucketValue(counts.length - 1);
+	}
+}
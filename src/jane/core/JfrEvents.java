@@ -0,0 +1,396 @@
+package jane.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+/**
+ * 自定义的JFR(JDK Flight Recorder)事件
+ * <p>
+ * 开启后(jfrEvents>0)记录事务排队,等锁,读存储,事务提交,数据库提交各阶段,以及网络解码和处理的耗时,用于按请求分析卡顿<br>
+ * 未开启时ENABLED为常量false,各处的begin*方法直接返回null,JIT编译后几乎没有开销<br>
+ * 开启且jfrRecordMaxAge>0时会自动开始一个只包含这些事件的记录,也可以用JVM参数或jcmd开始其它记录. 可通过{@link #dump}导出当前全部记录的快照
+ */
+public final class JfrEvents
+{
+	public static final boolean ENABLED = Const.jfrEvents > 0; // 是否开启自定义JFR事件
+
+	private static Recording _recording; // 自动开始的记录. null表示没有开始
+
+	@Name("jane.ProcQueueWait")
+	@Label("Procedure Queue Wait")
+	@Category({ "Jane", "Procedure" })
+	@Description("procedure submitted until started")
+	@StackTrace(false)
+	static final class ProcQueueWait extends Event
+	{
+		@Label("Procedure")
+		String proc;
+		@Label("Sid")
+		String sid;
+	}
+
+	@Name("jane.LockWait")
+	@Label("Procedure Lock Wait")
+	@Category({ "Jane", "Procedure" })
+	@Description("procedure waiting for a record lock")
+	static final class LockWait extends Event
+	{
+		@Label("Procedure")
+		String proc;
+		@Label("Lock Index")
+		int	   lockIndex;
+		@Label("Table")
+		String table;
+	}
+
+	@Name("jane.StorageGet")
+	@Label("Storage Get")
+	@Category({ "Jane", "Database" })
+	@Description("record read from storage after cache miss")
+	@StackTrace(false)
+	static final class StorageGet extends Event
+	{
+		@Label("Table")
+		String	table;
+		@Label("Key")
+		String	key;
+		@Label("Found")
+		boolean	found;
+	}
+
+	@Name("jane.ProcCommit")
+	@Label("Procedure Commit")
+	@Category({ "Jane", "Procedure" })
+	@Description("SContext.commit of a procedure")
+	@StackTrace(false)
+	static final class ProcCommit extends Event
+	{
+		@Label("Record Count")
+		int	recordCount;
+		@Label("OnCommit Count")
+		int	onCommitCount;
+	}
+
+	@Name("jane.CommitPhase")
+	@Label("DB Commit Phase")
+	@Category({ "Jane", "Database" })
+	@Description("one phase of the database commit thread")
+	@StackTrace(false)
+	static final class CommitPhase extends Event
+	{
+		@Label("Phase")
+		String phase;
+		@Label("Count")
+		long   count;
+	}
+
+	@Name("jane.NetDecode")
+	@Label("Bean Decode")
+	@Category({ "Jane", "Network" })
+	@Description("bean decoded from network data")
+	@StackTrace(false)
+	static final class NetDecode extends Event
+	{
+		@Label("Type")
+		int	type;
+		@Label("Serial")
+		int	serial;
+		@Label("Size")
+		int	size;
+	}
+
+	@Name("jane.NetDispatch")
+	@Label("Bean Dispatch")
+	@Category({ "Jane", "Network" })
+	@Description("received bean dispatched to its handler")
+	@StackTrace(false)
+	static final class NetDispatch extends Event
+	{
+		@Label("Manager")
+		String manager;
+		@Label("Session")
+		long   sessionId;
+		@Label("Bean")
+		String bean;
+		@Label("Serial")
+		int	   serial;
+	}
+
+	private JfrEvents()
+	{
+	}
+
+	// 以下begin*方法在没有开启事件时返回null; end*方法的事件参数可以为null,此时直接返回
+
+	static ProcQueueWait beginProcQueueWait()
+	{
+		if (!ENABLED)
+			return null;
+		ProcQueueWait e = new ProcQueueWait();
+		if (!e.isEnabled())
+			return null;
+		e.begin();
+		return e;
+	}
+
+	static void endProcQueueWait(ProcQueueWait e, Procedure proc)
+	{
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit())
+		{
+			e.proc = proc.getClass().getName();
+			e.sid = String.valueOf(proc.getSid());
+			e.commit();
+		}
+	}
+
+	static LockWait beginLockWait()
+	{
+		if (!ENABLED)
+			return null;
+		LockWait e = new LockWait();
+		if (!e.isEnabled())
+			return null;
+		e.begin();
+		return e;
+	}
+
+	static void endLockWait(LockWait e, ProcContext ctx, int lockIndex)
+	{
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit())
+		{
+			Procedure proc = ctx.proc;
+			TableBase<?> table = ctx.lockTable;
+			e.proc = (proc != null ? proc.getClass().getName() : null);
+			e.lockIndex = lockIndex;
+			e.table = (table != null ? table.getTableName() : null);
+			e.commit();
+		}
+	}
+
+	static StorageGet beginStorageGet()
+	{
+		if (!ENABLED)
+			return null;
+		StorageGet e = new StorageGet();
+		if (!e.isEnabled())
+			return null;
+		e.begin();
+		return e;
+	}
+
+	static void endStorageGet(StorageGet e, String table, Object key, boolean found)
+	{
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit())
+		{
+			e.table = table;
+			e.key = String.valueOf(key);
+			e.found = found;
+			e.commit();
+		}
+	}
+
+	static ProcCommit beginProcCommit()
+	{
+		if (!ENABLED)
+			return null;
+		ProcCommit e = new ProcCommit();
+		if (!e.isEnabled())
+			return null;
+		e.begin();
+		return e;
+	}
+
+	static void endProcCommit(ProcCommit e, int recordCount, int onCommitCount)
+	{
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit())
+		{
+			e.recordCount = recordCount;
+			e.onCommitCount = onCommitCount;
+			e.commit();
+		}
+	}
+
+	static CommitPhase beginCommitPhase()
+	{
+		if (!ENABLED)
+			return null;
+		CommitPhase e = new CommitPhase();
+		if (!e.isEnabled())
+			return null;
+		e.begin();
+		return e;
+	}
+
+	static void endCommitPhase(CommitPhase e, String phase, long count)
+	{
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit())
+		{
+			e.phase = phase;
+			e.count = count;
+			e.commit();
+		}
+	}
+
+	static NetDecode beginNetDecode()
+	{
+		if (!ENABLED)
+			return null;
+		NetDecode e = new NetDecode();
+		if (!e.isEnabled())
+			return null;
+		e.begin();
+		return e;
+	}
+
+	static void endNetDecode(NetDecode e, int type, int serial, int size)
+	{
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit())
+		{
+			e.type = type;
+			e.serial = serial;
+			e.size = size;
+			e.commit();
+		}
+	}
+
+	static NetDispatch beginNetDispatch()
+	{
+		if (!ENABLED)
+			return null;
+		NetDispatch e = new NetDispatch();
+		if (!e.isEnabled())
+			return null;
+		e.begin();
+		return e;
+	}
+
+	static void endNetDispatch(NetDispatch e, String manager, long sessionId, Bean<?> bean)
+	{
+		if (e == null)
+			return;
+		e.end();
+		if (e.shouldCommit())
+		{
+			e.manager = manager;
+			e.sessionId = sessionId;
+			e.bean = bean.typeName();
+			e.serial = bean.serial();
+			e.commit();
+		}
+	}
+
+	/**
+	 * 判断当前是否有正在进行的JFR记录
+	 */
+	public static boolean isRecording()
+	{
+		if (!FlightRecorder.isAvailable())
+			return false;
+		for (Recording r : FlightRecorder.getFlightRecorder().getRecordings())
+		{
+			if (r.getState() == RecordingState.RUNNING)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 导出当前全部JFR记录的快照数据(.jfr格式)
+	 * @return 没有正在进行的记录时返回null
+	 */
+	public static byte[] dump() throws IOException
+	{
+		if (!isRecording())
+			return null;
+		Path path = Files.createTempFile("jane-", ".jfr");
+		try
+		{
+			try (Recording snapshot = FlightRecorder.getFlightRecorder().takeSnapshot())
+			{
+				snapshot.dump(path);
+			}
+			return Files.readAllBytes(path);
+		}
+		finally
+		{
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * 停止并关闭自动开始的记录
+	 */
+	public static synchronized void stopRecording()
+	{
+		if (_recording != null)
+		{
+			_recording.close();
+			_recording = null;
+		}
+	}
+
+	private static synchronized void startRecording()
+	{
+		if (_recording != null || !FlightRecorder.isAvailable())
+			return;
+		Recording r = new Recording();
+		r.setName("jane");
+		r.setMaxAge(Duration.ofSeconds(Const.jfrRecordMaxAge));
+		r.setToDisk(true);
+		Duration threshold = Duration.ofNanos(Const.jfrThresholdUs * 1000L);
+		r.enable(ProcQueueWait.class).withThreshold(threshold);
+		r.enable(LockWait.class).withThreshold(threshold).withStackTrace();
+		r.enable(StorageGet.class).withThreshold(threshold);
+		r.enable(ProcCommit.class).withThreshold(threshold);
+		r.enable(CommitPhase.class);
+		r.enable(NetDecode.class).withThreshold(threshold);
+		r.enable(NetDispatch.class).withThreshold(threshold);
+		r.start();
+		_recording = r;
+		Log.info("JfrEvents: recording started (maxAge={}s, threshold={}us)", Const.jfrRecordMaxAge, Const.jfrThresholdUs);
+	}
+
+	static
+	{
+		if (ENABLED && Const.jfrRecordMaxAge > 0)
+		{
+			try
+			{
+				startRecording();
+			}
+			catch (Throwable e)
+			{
+				Log.error("JfrEvents: start recording failed:", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package jane.core;
+
+import java.util.ArrayList;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import jane.core.Procedure.IndexLock;
+
+/**
+ * 记录锁竞争的采样统计
+ * <p>
+ * 全局锁池中每个锁(槽位)按记录的lockId取模共享,不相关的表和记录也可能落到同一个槽位上<br>
+ * 开启后(lockProfileSample>0),每N次等待锁采样一次,按槽位统计等待时间,持有锁和等待锁的事务类,以及等待的记录所属的表<br>
+ * 用于调整lockPoolSize和选择表的锁名. 只统计需要等待的加锁,直接加锁成功的不统计
+ */
+public final class LockProfiler
+{
+	public static final boolean ENABLED	 = Const.lockProfileSample > 0;	// 是否开启锁竞争采样
+	private static final int	DUMP_TOP = 20;							// 输出到日志的槽位数量
+
+	private static final ConcurrentHashMap<Integer, SlotStat> _slots   = new ConcurrentHashMap<>(); // 发生过采样的槽位统计
+	private static final LongAdder							  _samples = new LongAdder();			 // 总采样次数
+
+	/**
+	 * 一个锁槽位的竞争统计
+	 */
+	public static final class SlotStat
+	{
+		private final int									index;									// 锁池下标
+		private final LongAdder								waitCount = new LongAdder();			// 采样的等待次数
+		private final LongAdder								waitNanos = new LongAdder();			// 采样的等待总时间(纳秒)
+		private final AtomicLong							maxNanos  = new AtomicLong();			// 采样的最大等待时间(纳秒)
+		private final ConcurrentHashMap<String, LongAdder>	holders	  = new ConcurrentHashMap<>();	// 持有锁的事务类名对应的次数
+		private final ConcurrentHashMap<String, LongAdder>	waiters	  = new ConcurrentHashMap<>();	// 等待锁的事务类名对应的次数
+		private final ConcurrentHashMap<String, LongAdder>	tables	  = new ConcurrentHashMap<>();	// 等待锁的记录所属的表名对应的次数
+
+		SlotStat(int index)
+		{
+			this.index = index;
+		}
+
+		public int getIndex()
+		{
+			return index;
+		}
+
+		public long getWaitCount()
+		{
+			return waitCount.sum();
+		}
+
+		public long getWaitNanos()
+		{
+			return waitNanos.sum();
+		}
+
+		public long getMaxNanos()
+		{
+			return maxNanos.get();
+		}
+
+		/**
+		 * 获取持有锁次数最多的事务类. 格式:"类名:次数,..."
+		 */
+		public String getTopHolders(int n)
+		{
+			return top(holders, n);
+		}
+
+		/**
+		 * 获取等待锁次数最多的事务类. 格式:"类名:次数,..."
+		 */
+		public String getTopWaiters(int n)
+		{
+			return top(waiters, n);
+		}
+
+		/**
+		 * 获取等待锁次数最多的表. 格式:"表名:次数,...". 不是通过表的lockGet加锁的记为"?"
+		 */
+		public String getTopTables(int n)
+		{
+			return top(tables, n);
+		}
+
+		void add(long nanos, String holder, String waiter, String table)
+		{
+			waitCount.increment();
+			waitNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+			holders.computeIfAbsent(holder, __ -> new LongAdder()).increment();
+			waiters.computeIfAbsent(waiter, __ -> new LongAdder()).increment();
+			tables.computeIfAbsent(table, __ -> new LongAdder()).increment();
+		}
+
+		private static String top(ConcurrentHashMap<String, LongAdder> map, int n)
+		{
+			ArrayList<Entry<String, LongAdder>> list = new ArrayList<>(map.entrySet());
+			list.sort((e1, e2) -> Long.compare(e2.getValue().sum(), e1.getValue().sum()));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0, m = Math.min(n, list.size()); i < m; ++i)
+			{
+				Entry<String, LongAdder> e = list.get(i);
+				if (i > 0)
+					sb.append(',');
+				sb.append(e.getKey()).append(':').append(e.getValue().sum());
+			}
+			return sb.toString();
+		}
+	}
+
+	private LockProfiler()
+	{
+	}
+
+	/**
+	 * 需要等待锁时调用,决定是否采样. 采样时记下当前持有锁的事务类
+	 * @return 采样时返回开始等待的时间(纳秒,非0),否则返回0
+	 */
+	static long beginWait(ProcContext ctx, IndexLock lock)
+	{
+		if (ThreadLocalRandom.current().nextInt(Const.lockProfileSample) != 0)
+			return 0;
+		ProcContext holderCtx = ProcContext.of(lock.owner());
+		Procedure holder = (holderCtx != null ? holderCtx.proc : null); // 非volatile读,只用于统计,不准确也没关系
+		ctx.lockHolder = (holder != null ? holder.getClass().getName() : "?");
+		long t = System.nanoTime();
+		return t != 0 ? t : 1;
+	}
+
+	/**
+	 * 采样的等待结束并成功加锁后调用
+	 */
+	static void endWait(ProcContext ctx, IndexLock lock, long beginTime)
+	{
+		long nanos = System.nanoTime() - beginTime;
+		Procedure waiter = ctx.proc;
+		TableBase<?> table = ctx.lockTable;
+		_slots.computeIfAbsent(lock.index, SlotStat::new).add(nanos, ctx.lockHolder,
+				waiter != null ? waiter.getClass().getName() : "?", table != null ? table.getTableName() : "?");
+		ctx.lockHolder = null;
+		_samples.increment();
+	}
+
+	/**
+	 * 获取总采样次数
+	 */
+	public static long getSampleCount()
+	{
+		return _samples.sum();
+	}
+
+	/**
+	 * 获取采样的等待总时间最多的若干个槽位统计,按等待总时间从大到小排序
+	 */
+	public static ArrayList<SlotStat> getTopSlots(int n)
+	{
+		ArrayList<SlotStat> list = new ArrayList<>(_slots.values());
+		list.sort((s1, s2) -> Long.compare(s2.getWaitNanos(), s1.getWaitNanos()));
+		if (list.size() > n)
+			list.subList(n, list.size()).clear();
+		return list;
+	}
+
+	/**
+	 * 清除全部统计
+	 */
+	public static void reset()
+	{
+		_slots.clear();
+		_samples.reset();
+	}
+
+	/**
+	 * 输出竞争最多的槽位统计到日志
+	 */
+	public static void dump()
+	{
+		ArrayList<SlotStat> list = getTopSlots(DUMP_TOP);
+		StringBuilder sb = new StringBuilder(list.size() * 200 + 100);
+		sb.append("lock profile: samples=").append(getSampleCount()).append(", slots=").append(_slots.size()).append('/').append(Const.lockPoolSize);
+		for (SlotStat s : list)
+		{
+			long c = s.getWaitCount();
+			sb.append("\n\tslot=").append(s.index).append(", waits=").append(c).append(", waitMs=").append(s.getWaitNanos() / 1_000_000)
+					.append(", avgUs=").append(c > 0 ? s.getWaitNanos() / c / 1000 : 0).append(", maxUs=").append(s.getMaxNanos() / 1000)
+					.append(", tables=[").append(s.getTopTables(3)).append("], holders=[").append(s.getTopHolders(3))
+					.append("], waiters=[").append(s.getTopWaiters(3)).append(']');
+		}
+		Log.info(sb.toString());
+	}
+
+	static
+	{
+		if (ENABLED && Const.lockProfileDumpInterval > 0)
+		{
+			NetManager.scheduleWithFixedDelay(Const.lockProfileDumpInterval, Const.lockProfileDumpInterval, () ->
+			{
+				try
+				{
+					if (!_slots.isEmpty())
+						dump();
+				}
+				catch (Throwable e)
+				{
+					Log.error("lock profile dump exception:", e);
+				}
+			});
+		}
+	}
+}
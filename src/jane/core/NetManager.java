@@ -5,12 +5,11 @@ import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import org.apache.mina.core.filterchain.IoFilter;
@@ -29,7 +28,6 @@ import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 import org.apache.mina.transport.socket.nio.NioSocketConnector;
 import jane.core.map.IntHashMap;
 import jane.core.map.LongConcurrentHashMap;
-import jane.core.map.LongMap.MapIterator;
 
 /**
  * 网络管理器
@@ -55,65 +53,31 @@ public class NetManager implements IoHandler
 
 	private static final class BeanContext<B extends Bean<B>>
 	{
-		final int		 askTime = (int)getTimeSec(); // 发送请求的时间戳(秒)
-		int				 timeout = Integer.MAX_VALUE; // 超时时间(秒)
-		IoSession		 session;					  // 请求时绑定的session
-		Bean<?>			 askBean;					  // 请求的bean
-		AnswerHandler<B> answerHandler;				  // 接收回复的回调,超时也会回调(传入的bean为null)
-	}
-
-	private static final LongConcurrentHashMap<BeanContext<?>> _beanCtxMap	  = new LongConcurrentHashMap<>();	   // 当前等待回复的所有请求上下文
-	private static final ConcurrentLinkedQueue<IoSession>	   _closings	  = new ConcurrentLinkedQueue<>();	   // 已经closeOnFlush的session队列,超时则closeNow
-	private static final ScheduledExecutorService			   _scheduledThread;								   // NetManager自带的单线程调度器(处理重连,请求和事务超时)
-	private static final AtomicInteger						   _serialCounter = new AtomicInteger(1);			   // 协议序列号的分配器
-	private static volatile SimpleIoProcessorPool			   _sharedIoProcessorPool;							   // 共享的网络IO线程池
-	private static int										   _sharedIoThreadCount;							   // 共享的网络IO线程数量(<=0表示默认的线程数量)
-	private static long										   _timeSec		  = System.currentTimeMillis() / 1000; // NetManager的秒级时间戳值,可以快速获取
-	private final String									   _name		  = getClass().getSimpleName();		   // 当前管理器的名字
-	private volatile Supplier<IoFilter>						   _codecFactory  = () -> new BeanCodec(this);		   // 协议编码器的工厂
-	private volatile IntHashMap<BeanHandler<?>>				   _handlers	  = new IntHashMap<>(0);			   // bean的处理器
-	private volatile NioSocketAcceptor						   _acceptor;										   // mina的网络监听器
-	private volatile NioSocketConnector						   _connector;										   // mina的网络连接器
-	private int												   _ioThreadCount;									   // 网络IO线程数量(0表示使用共享的IO线程池;<0表示默认的线程数量)
-	private boolean											   _enableTrace	  = Log.hasTrace;					   // 是否输出TRACE级日志
+		volatile TimingWheel.Timer	timer;			// 超时的定时器. null表示不检测超时
+		IoSession					session;		// 请求时绑定的session
+		Bean<?>						askBean;		// 请求的bean
+		AnswerHandler<B>			answerHandler;	// 接收回复的回调,超时也会回调(传入的bean为null)
+	}
+
+	private static final LongConcurrentHashMap<BeanContext<?>>	_beanCtxMap	   = new LongConcurrentHashMap<>();			// 当前等待回复的所有请求上下文
+	private static final ConcurrentLinkedQueue<IoSession>		_closings	   = new ConcurrentLinkedQueue<>();			// 已经closeOnFlush的session队列,超时则closeNow
+	private static final TimingWheel							_timingWheel   = new TimingWheel("ScheduledThread");	// NetManager自带的单线程时间轮调度器(处理重连,请求和事务超时)
+	private static final AtomicInteger							_serialCounter = new AtomicInteger(1);					// 协议序列号的分配器
+	private static final Set<NetManager>						_servers	   = ConcurrentHashMap.newKeySet();			// 创建过监听器的网络管理器(用于关闭前统一停止监听)
+	private static volatile boolean								_intakeStopped;											// 是否已停止接收新的连接和请求(关闭进程前)
+	private static volatile SimpleIoProcessorPool				_sharedIoProcessorPool;									// 共享的网络IO线程池
+	private static int											_sharedIoThreadCount;									// 共享的网络IO线程数量(<=0表示默认的线程数量)
+	private static long											_timeSec	   = System.currentTimeMillis() / 1000;		// NetManager的秒级时间戳值,可以快速获取
+	private final String										_name		   = getClass().getSimpleName();			// 当前管理器的名字
+	private volatile Supplier<IoFilter>							_codecFactory  = () -> new BeanCodec(this);				// 协议编码器的工厂
+	private volatile IntHashMap<BeanHandler<?>>					_handlers	   = new IntHashMap<>(0);					// bean的处理器
+	private volatile NioSocketAcceptor							_acceptor;												// mina的网络监听器
+	private volatile NioSocketConnector							_connector;												// mina的网络连接器
+	private int													_ioThreadCount;											// 网络IO线程数量(0表示使用共享的IO线程池;<0表示默认的线程数量)
+	private boolean												_enableTrace   = Log.hasTrace;							// 是否输出TRACE级日志
 
 	static
 	{
-		_scheduledThread = Executors.newSingleThreadScheduledExecutor(r ->
-		{
-			Thread t = new Thread(r, "ScheduledThread");
-			t.setDaemon(true);
-			return t;
-		});
-		if (Const.askCheckInterval > 0)
-		{
-			scheduleWithFixedDelay(Const.askCheckInterval, Const.askCheckInterval, () ->
-			{
-				try
-				{
-					int now = (int)_timeSec;
-					for (MapIterator<BeanContext<?>> it = _beanCtxMap.entryIterator(); it.moveToNext();)
-					{
-						BeanContext<?> beanCtx = it.value();
-						if (now - beanCtx.askTime > beanCtx.timeout && _beanCtxMap.remove(it.key(), beanCtx))
-						{
-							IoSession session = beanCtx.session;
-							Bean<?> askBean = beanCtx.askBean;
-							AnswerHandler<?> answerHandler = beanCtx.answerHandler;
-							beanCtx.session = null;
-							beanCtx.askBean = null;
-							beanCtx.answerHandler = null;
-							if (session != null)
-								((NetManager)session.getHandler()).onAnswer(session, answerHandler, askBean, null);
-						}
-					}
-				}
-				catch (Throwable e)
-				{
-					Log.error("NetManager: ask check fatal exception:", e);
-				}
-			});
-		}
 		scheduleWithFixedDelay(1, 1, () ->
 		{
 			try
@@ -142,6 +106,37 @@ public class NetManager implements IoHandler
 		});
 	}
 
+	private static void onAskTimeout(int serial, BeanContext<?> beanCtx)
+	{
+		try
+		{
+			if (!_beanCtxMap.remove(serial, beanCtx))
+				return;
+			IoSession session = beanCtx.session;
+			Bean<?> askBean = beanCtx.askBean;
+			AnswerHandler<?> answerHandler = beanCtx.answerHandler;
+			beanCtx.session = null;
+			beanCtx.askBean = null;
+			beanCtx.answerHandler = null;
+			if (session != null)
+				((NetManager)session.getHandler()).onAnswer(session, answerHandler, askBean, null);
+		}
+		catch (Throwable e)
+		{
+			Log.error("NetManager: ask timeout fatal exception:", e);
+		}
+	}
+
+	private static void cancelAskTimeout(BeanContext<?> beanCtx)
+	{
+		TimingWheel.Timer timer = beanCtx.timer;
+		if (timer != null)
+		{
+			beanCtx.timer = null;
+			timer.cancel(false);
+		}
+	}
+
 	/**
 	 * 获取当前通信中请求的数量
 	 */
@@ -231,6 +226,7 @@ public class NetManager implements IoHandler
 					t.setReuseAddress(true);
 					t.setHandler(this);
 					_acceptor = acceptor = t;
+					_servers.add(this);
 				}
 			}
 		}
@@ -450,6 +446,44 @@ public class NetManager implements IoHandler
 			acceptor.unbind();
 	}
 
+	/**
+	 * 停止全部网络管理器接收新的连接和请求
+	 * <p>
+	 * 一般在关闭进程前调用(DBManager关闭时会先调用). 停止全部监听,但保留已有的连接以便发出剩余的回复<br>
+	 * 之后收到的协议除了回复(answer)以外都直接丢弃,不再处理
+	 * @return 停止监听的网络管理器数量
+	 */
+	public static int stopIntake()
+	{
+		_intakeStopped = true;
+		int n = 0;
+		for (NetManager mgr : _servers)
+		{
+			NioSocketAcceptor acceptor = mgr._acceptor;
+			if (acceptor != null && !acceptor.isDisposed() && !acceptor.getLocalAddresses().isEmpty())
+			{
+				try
+				{
+					acceptor.unbind();
+					++n;
+				}
+				catch (Throwable e)
+				{
+					Log.error(e, "{}: stop intake exception:", mgr._name);
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * 是否已调用{@link #stopIntake}停止接收新的连接和请求
+	 */
+	public static boolean isIntakeStopped()
+	{
+		return _intakeStopped;
+	}
+
 	/**
 	 * 停止全部相关客户端的连接
 	 * @param force 是否立即强制关闭(丢弃当前的发送缓存)
@@ -477,12 +511,12 @@ public class NetManager implements IoHandler
 	 */
 	public static ScheduledFuture<?> schedule(long delaySec, Runnable runnable)
 	{
-		return _scheduledThread.schedule(runnable, delaySec, TimeUnit.SECONDS);
+		return _timingWheel.schedule(delaySec * 1000, runnable);
 	}
 
 	public static ScheduledFuture<?> scheduleMs(long delayMs, Runnable runnable)
 	{
-		return _scheduledThread.schedule(runnable, delayMs, TimeUnit.MILLISECONDS);
+		return _timingWheel.schedule(delayMs, runnable);
 	}
 
 	/**
@@ -491,12 +525,12 @@ public class NetManager implements IoHandler
 	 */
 	public static ScheduledFuture<?> scheduleWithFixedDelay(int delaySec, int periodSec, Runnable runnable)
 	{
-		return _scheduledThread.scheduleWithFixedDelay(runnable, delaySec, periodSec, TimeUnit.SECONDS);
+		return _timingWheel.scheduleWithFixedDelay(delaySec * 1000L, periodSec * 1000L, runnable);
 	}
 
 	public static ScheduledFuture<?> scheduleWithFixedDelayMs(int delayMs, int periodSec, Runnable runnable)
 	{
-		return _scheduledThread.scheduleWithFixedDelay(runnable, delayMs, periodSec, TimeUnit.MILLISECONDS);
+		return _timingWheel.scheduleWithFixedDelay(delayMs, periodSec * 1000L, runnable);
 	}
 
 	/**
@@ -505,12 +539,12 @@ public class NetManager implements IoHandler
 	 */
 	public static ScheduledFuture<?> scheduleAtFixedRate(int delaySec, int periodSec, Runnable runnable)
 	{
-		return _scheduledThread.scheduleAtFixedRate(runnable, delaySec, periodSec, TimeUnit.SECONDS);
+		return _timingWheel.scheduleAtFixedRate(delaySec * 1000L, periodSec * 1000L, runnable);
 	}
 
 	public static ScheduledFuture<?> scheduleAtFixedRateMs(int delayMs, int periodSec, Runnable runnable)
 	{
-		return _scheduledThread.scheduleAtFixedRate(runnable, delayMs, periodSec, TimeUnit.MILLISECONDS);
+		return _timingWheel.scheduleAtFixedRate(delayMs, periodSec * 1000L, runnable);
 	}
 
 	public static final class SimpleWriteRequest implements WriteRequest
@@ -681,7 +715,7 @@ public class NetManager implements IoHandler
 		return true;
 	}
 
-	private static <B extends Bean<B>> BeanContext<B> allocBeanContext(Bean<?> bean, IoSession session, AnswerHandler<B> onAnswer)
+	private static <B extends Bean<B>> BeanContext<B> allocBeanContext(Bean<?> bean, IoSession session, int timeout, AnswerHandler<B> onAnswer)
 	{
 		BeanContext<B> beanCtx = new BeanContext<>();
 		beanCtx.session = session;
@@ -695,6 +729,8 @@ public class NetManager implements IoHandler
 				if (_beanCtxMap.putIfAbsent(serial, beanCtx) == null)
 				{
 					bean.serial(serial);
+					if (Const.askCheckInterval > 0)
+						beanCtx.timer = _timingWheel.schedule(timeout * 1000L, () -> onAskTimeout(serial, beanCtx));
 					return beanCtx;
 				}
 			}
@@ -724,18 +760,18 @@ public class NetManager implements IoHandler
 	{
 		if (session.isClosing() || bean == null)
 			return false;
-		BeanContext<B> beanCtx = allocBeanContext(bean, session, onAnswer);
+		BeanContext<B> beanCtx = allocBeanContext(bean, session, timeout, onAnswer);
 		if (!send0(session, bean))
 		{
 			if (_beanCtxMap.remove(bean.serial(), beanCtx))
 			{
+				cancelAskTimeout(beanCtx);
 				beanCtx.session = null;
 				beanCtx.askBean = null;
 				beanCtx.answerHandler = null;
 			}
 			return false;
 		}
-		beanCtx.timeout = timeout;
 		return true;
 	}
 
@@ -774,18 +810,18 @@ public class NetManager implements IoHandler
 		if (session.isClosing() || bean == null)
 			return null;
 		CompletableFuture<B> cf = new CompletableFuture<>();
-		BeanContext<B> beanCtx = allocBeanContext(bean, session, cf::complete);
+		BeanContext<B> beanCtx = allocBeanContext(bean, session, timeout, cf::complete);
 		if (!send0(session, bean))
 		{
 			if (_beanCtxMap.remove(bean.serial(), beanCtx))
 			{
+				cancelAskTimeout(beanCtx);
 				beanCtx.session = null;
 				beanCtx.askBean = null;
 				beanCtx.answerHandler = null;
 			}
 			return null;
 		}
-		beanCtx.timeout = timeout;
 		return cf;
 	}
 
@@ -916,23 +952,39 @@ public class NetManager implements IoHandler
 		int serial = bean.serial();
 		if (_enableTrace)
 			Log.trace("{}({}): recv: {}({}):{}", _name, session.getId(), bean.typeName(), serial, bean);
+		JfrEvents.NetDispatch event = JfrEvents.beginNetDispatch();
 		if (serial < 0)
 		{
 			BeanContext<?> beanCtx = _beanCtxMap.get(-serial);
 			if (beanCtx != null && beanCtx.session == session) // 判断session是否一致,避免伪造影响其它session的answer处理
 			{
 				if (!_beanCtxMap.remove(-serial, beanCtx))
+				{
+					JfrEvents.endNetDispatch(event, _name, session.getId(), bean);
 					return; // 异常情况,刚刚被其它地方处理了,所以不再继续处理了
+				}
+				cancelAskTimeout(beanCtx);
 				Bean<?> askBean = beanCtx.askBean;
 				AnswerHandler<?> answerHandler = beanCtx.answerHandler;
 				beanCtx.session = null;
 				beanCtx.askBean = null;
 				beanCtx.answerHandler = null;
 				if (onAnswer(session, answerHandler, askBean, bean))
+				{
+					JfrEvents.endNetDispatch(event, _name, session.getId(), bean);
 					return;
+				}
 			}
 		}
+		if (_intakeStopped)
+		{
+			if (_enableTrace)
+				Log.trace("{}({}): drop after intake stopped: {}({})", _name, session.getId(), bean.typeName(), serial);
+			JfrEvents.endNetDispatch(event, _name, session.getId(), bean);
+			return;
+		}
 		onProcess(session, _handlers.get(bean.type()), bean);
+		JfrEvents.endNetDispatch(event, _name, session.getId(), bean);
 	}
 
 	/**
@@ -1,6 +1,9 @@
 package jane.core;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Collection;
@@ -15,13 +18,14 @@ import java.util.Map.Entry;
  */
 public class Octets implements Cloneable, Comparable<Octets>
 {
-	private static final byte[] HEX             = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
-	public static final int     HASH_PRIME      = 16777619;               // from Fowler-Noll-Vo hash function
-	public static final byte[]  EMPTY           = new byte[0];            // 共享的空缓冲区
-	public static final int     DEFAULT_SIZE    = 16;                     // 默认的缓冲区
-	private static Charset      _defaultCharset = StandardCharsets.UTF_8; // 本类的默认字符集
-	protected byte[]            _buffer         = EMPTY;                  // 数据缓冲区. 注意此变量名字和类型的改变要和leveldb中的jni.cc对应
-	protected int               _count;                                   // 当前有效的数据缓冲区大小. 注意此变量名字和类型的改变要和leveldb中的jni.cc对应
+	private static final byte[]    HEX             = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+	private static final VarHandle LONG_VIEW       = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN); // 按小端long读取字节数组的视图(用于每次检查8字节)
+	public static final int        HASH_PRIME      = 16777619;               // from Fowler-Noll-Vo hash function
+	public static final byte[]     EMPTY           = new byte[0];            // 共享的空缓冲区
+	public static final int        DEFAULT_SIZE    = 16;                     // 默认的缓冲区
+	private static Charset         _defaultCharset = StandardCharsets.UTF_8; // 本类的默认字符集
+	protected byte[]               _buffer         = EMPTY;                  // 数据缓冲区. 注意此变量名字和类型的改变要和leveldb中的jni.cc对应
+	protected int                  _count;                                   // 当前有效的数据缓冲区大小. 注意此变量名字和类型的改变要和leveldb中的jni.cc对应
 
 	public static Charset getDefaultEncoding()
 	{
@@ -1083,10 +1087,13 @@ public class Octets implements Cloneable, Comparable<Octets>
 
 	public static int marshalStrLen(String str)
 	{
-		if (str == null)
-			return 0;
+		return str != null ? marshalStrLen(str, 0) : 0;
+	}
+
+	private static int marshalStrLen(String str, int from)
+	{
 		int bn = 0;
-		for (int i = 0, cn = str.length(); i < cn; ++i)
+		for (int i = from, cn = str.length(); i < cn; ++i)
 		{
 			int c = str.charAt(i);
 			if (c < 0x80)
@@ -1097,27 +1104,79 @@ public class Octets implements Cloneable, Comparable<Octets>
 		return bn;
 	}
 
+	/**
+	 * 序列化字符串. 每个char按UTF-8格式编码成1~3字节(代理对的两个char分别编码)
+	 * <p>
+	 * 先假定全是ASCII字符,一次遍历直接写入缓冲区. 遇到非ASCII字符时再计算剩余部分的长度,调整已写入的ASCII前缀位置后继续编码
+	 */
 	public Octets marshal(String str)
 	{
-		int bn = marshalStrLen(str);
-		if (bn <= 0)
+		int cn;
+		if (str == null || (cn = str.length()) <= 0)
 			return marshalZero();
-		reserve(_count + marshalUIntLen(bn) + bn);
-		marshalUInt(bn);
-		int cn = str.length();
-		if (bn == cn)
+		int start = _count;
+		reserve(start + marshalUIntLen(cn) + cn);
+		marshalUInt(cn);
+		int pos = _count;
+		byte[] buf = _buffer;
+		int i = 0;
+		for (int c; i < cn && (c = str.charAt(i)) < 0x80; ++i)
+			buf[pos + i] = (byte)c;
+		if (i == cn)
 		{
-			for (int i = 0; i < cn; ++i)
-				marshal1((byte)str.charAt(i));
+			_count = pos + cn;
+			return this;
 		}
-		else
+		_count = pos + i; // 保留已写入的ASCII前缀
+		int bn = i + marshalStrLen(str, i);
+		int lenLen = marshalUIntLen(bn);
+		reserve(start + lenLen + bn);
+		buf = _buffer;
+		int p = start + lenLen;
+		if (p != pos)
+			System.arraycopy(buf, pos, buf, p, i);
+		_count = start;
+		marshalUInt(bn);
+		for (p += i; i < cn; ++i)
 		{
-			for (int i = 0; i < cn; ++i)
-				marshalUTF8(str.charAt(i));
+			int c = str.charAt(i);
+			if (c < 0x80)
+				buf[p++] = (byte)c; // 0xxx xxxx
+			else if (c < 0x800)
+			{
+				buf[p++] = (byte)(0xc0 + (c >> 6)); // 110x xxxx  10xx xxxx
+				buf[p++] = (byte)(0x80 + (c & 0x3f));
+			}
+			else
+			{
+				buf[p++] = (byte)(0xe0 + (c >> 12)); // 1110 xxxx  10xx xxxx  10xx xxxx
+				buf[p++] = (byte)(0x80 + ((c >> 6) & 0x3f));
+				buf[p++] = (byte)(0x80 + (c & 0x3f));
+			}
 		}
+		_count = p;
 		return this;
 	}
 
+	/**
+	 * 计算字节数组中从pos开始连续ASCII字节(最高位为0)的数量,最多计算到end(不含)
+	 * <p>
+	 * 每次读取8字节检查,遇到非ASCII字节时再定位
+	 */
+	public static int countAscii(byte[] buf, int pos, int end)
+	{
+		int i = pos;
+		for (int e = end - 8; i <= e; i += 8)
+		{
+			long v = (long)LONG_VIEW.get(buf, i) & 0x8080_8080_8080_8080L;
+			if (v != 0)
+				return i - pos + (Long.numberOfTrailingZeros(v) >> 3);
+		}
+		while (i < end && buf[i] >= 0)
+			++i;
+		return i - pos;
+	}
+
 	public Octets marshal(Bean<?> b)
 	{
 		return b != null ? b.marshal(this) : marshalZero();
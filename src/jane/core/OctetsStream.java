@@ -1,5 +1,6 @@
 package jane.core;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -862,10 +863,35 @@ public class OctetsStream extends Octets
 			throw getEOFException();
 		if (posNew < pos)
 			throw getMarshalException();
+		byte[] buf = _buffer;
+		int n = countAscii(buf, pos, posNew);
+		if (n == size) // 全是ASCII字符时直接按Latin-1构造,不需要逐个解码
+		{
+			_pos = posNew;
+			return new String(buf, pos, size, StandardCharsets.ISO_8859_1);
+		}
 		char[] tmp = new char[size];
-		int n = 0;
-		while (_pos < posNew)
-			tmp[n++] = unmarshalUTF8();
+		for (int i = 0; i < n; ++i)
+			tmp[i] = (char)buf[pos + i];
+		for (int p = pos + n, end = _count; p < posNew;)
+		{
+			int b = buf[p++];
+			if (b >= 0)
+				tmp[n++] = (char)b;
+			else if (b < -0x20)
+			{
+				if (p >= end)
+					throw getEOFException();
+				tmp[n++] = (char)(((b & 0x1f) << 6) + (buf[p++] & 0x3f));
+			}
+			else
+			{
+				if (p + 1 >= end)
+					throw getEOFException();
+				tmp[n++] = (char)(((b & 0xf) << 12) + ((buf[p] & 0x3f) << 6) + (buf[p + 1] & 0x3f));
+				p += 2;
+			}
+		}
 		_pos = posNew;
 		return new String(tmp, 0, n);
 	}
@@ -0,0 +1,14 @@
+package jane.core;
+
+/**
+ * 乐观事务的基类(抽象类)
+ * <p>
+ * 通过lockGet获取记录时,如果记录在读写cache中,则不加锁直接读取,只记下对应锁的版本号; cache中没有时仍然加锁读取<br>
+ * 首次修改记录(包括put/remove)时才尝试加写锁,并验证此前读到的版本号. 提交前再验证所有无锁读取的版本号未变且未被其它事务加锁<br>
+ * 加锁失败或验证失败时回滚并以普通的加锁方式重做. 适合读多写少,冲突较少的事务<br>
+ * 无锁读取期间可能读到其它事务正在修改的数据,此时抛出的任何异常都会先验证版本号,验证失败则按冲突重做<br>
+ * 显式调用lock/appendLock等加锁方法仍然按普通事务的规则执行
+ */
+public abstract class OptimisticProcedure extends Procedure
+{
+}
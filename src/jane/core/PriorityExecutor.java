@@ -0,0 +1,306 @@
+package jane.core;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * 按优先级分通道的事务执行器
+ * <p>
+ * 任务按优先级放入3个通道: 交互(玩家请求等),普通(默认),后台(如每日奖励发放等批量任务)<br>
+ * 同时运行的任务数量不超过底层执行器的线程数量,有空闲时直接交给底层执行器运行,否则在各自的通道中排队<br>
+ * 有任务结束时按权重从有排队的通道中轮流取出任务(平滑加权轮询),后台通道另有同时运行的数量上限,避免批量任务占满所有线程<br>
+ * 每个通道统计排队数量和排队等待时间的分布
+ */
+public final class PriorityExecutor
+{
+	public static final int	INTERACTIVE	= 0;	// 交互优先级. 玩家请求等需要低延迟的事务
+	public static final int	NORMAL		= 1;	// 普通优先级. 默认的优先级
+	public static final int	BACKGROUND	= 2;	// 后台优先级. 可以延迟运行的批量维护任务
+	public static final int	LANE_COUNT	= 3;	// 优先级通道的数量
+
+	private static final String[] LANE_NAMES = { "interactive", "normal", "background" };
+
+	private final Executor	_executor;							// 底层执行器
+	private final int		_maxRunning;						// 同时运行的任务数量上限
+	private final int		_backgroundMax;						// 后台通道同时运行的任务数量上限
+	private final int[]		_weights;							// 各通道的权重
+	private final int[]		_current = new int[LANE_COUNT];		// 平滑加权轮询中各通道的当前值
+	private final Lane[]	_lanes	 = new Lane[LANE_COUNT];	// 各优先级的通道
+	private int				_running;							// 正在运行的任务数量
+	private int				_backgroundRunning;					// 后台通道正在运行的任务数量
+
+	/**
+	 * 一个优先级的通道. 可作为执行器提交此优先级的任务
+	 */
+	public final class Lane implements Executor
+	{
+		private final int				_priority;						// 优先级
+		private final ArrayDeque<Task>	_queue	  = new ArrayDeque<>();	// 排队的任务. 由外层对象的锁保护
+		private final Histogram			_waitTime = new Histogram(0);	// 任务排队等待时间(纳秒)的分布. 直接运行的任务记为0
+		private long					_submitCount;					// 提交的任务数量统计
+		private long					_queuedCount;					// 需要排队的任务数量统计
+
+		Lane(int priority)
+		{
+			_priority = priority;
+		}
+
+		public int getPriority()
+		{
+			return _priority;
+		}
+
+		public String getName()
+		{
+			return LANE_NAMES[_priority];
+		}
+
+		/**
+		 * 获取当前排队的任务数量
+		 */
+		public int getQueueSize()
+		{
+			synchronized (PriorityExecutor.this)
+			{
+				return _queue.size();
+			}
+		}
+
+		/**
+		 * 获取提交的任务数量统计
+		 */
+		public long getSubmitCount()
+		{
+			synchronized (PriorityExecutor.this)
+			{
+				return _submitCount;
+			}
+		}
+
+		/**
+		 * 获取需要排队的任务数量统计
+		 */
+		public long getQueuedCount()
+		{
+			synchronized (PriorityExecutor.this)
+			{
+				return _queuedCount;
+			}
+		}
+
+		/**
+		 * 获取排队等待时间(纳秒)的百分位数值
+		 * @param ps 多个百分位[0,1]. 如0.5,0.99
+		 * @return 对应各百分位的数值,没有统计数据时为-1
+		 */
+		public long[] getWaitTimePercentiles(double... ps)
+		{
+			long[] counts = _waitTime.getCounts(false);
+			long[] r = new long[ps.length];
+			for (int i = 0; i < ps.length; ++i)
+				r[i] = Histogram.getPercentile(counts, ps[i]);
+			return r;
+		}
+
+		@Override
+		public void execute(Runnable r)
+		{
+			submit(this, null, r);
+		}
+
+		/**
+		 * 提交绑定key(如sid)的任务. 底层执行器是{@link ProcScheduler}时会按key调度
+		 */
+		public void execute(Object key, Runnable r)
+		{
+			submit(this, key, r);
+		}
+	}
+
+	private final class Task implements Runnable
+	{
+		final Lane		lane;		// 所属的通道
+		final Object	key;		// 绑定的key. 可以为null
+		final Runnable	runnable;	// 实际运行的任务
+		long			queueTime;	// 开始排队的时间(纳秒)
+
+		Task(Lane lane, Object key, Runnable runnable)
+		{
+			this.lane = lane;
+			this.key = key;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				runnable.run();
+			}
+			finally
+			{
+				onDone(lane);
+			}
+		}
+	}
+
+	/**
+	 * 解析各通道的权重. 格式如"8,4,1",依次是交互,普通,后台通道的权重
+	 */
+	public static int[] parseWeights(String weights)
+	{
+		String[] ss = weights.split(",");
+		if (ss.length != LANE_COUNT)
+			throw new IllegalArgumentException("invalid priority weights: " + weights);
+		int[] r = new int[LANE_COUNT];
+		for (int i = 0; i < LANE_COUNT; ++i)
+		{
+			r[i] = Integer.parseInt(ss[i].trim());
+			if (r[i] <= 0)
+				throw new IllegalArgumentException("invalid priority weights: " + weights);
+		}
+		return r;
+	}
+
+	/**
+	 * @param executor 底层执行器
+	 * @param maxRunning 同时运行的任务数量上限. 一般是底层执行器的线程数量
+	 * @param backgroundMax 后台通道同时运行的任务数量上限
+	 * @param weights 交互,普通,后台通道的权重. 都必须>0
+	 */
+	public PriorityExecutor(Executor executor, int maxRunning, int backgroundMax, int[] weights)
+	{
+		if (maxRunning <= 0 || backgroundMax <= 0 || weights.length != LANE_COUNT)
+			throw new IllegalArgumentException("maxRunning=" + maxRunning + ",backgroundMax=" + backgroundMax + ",weights=" + weights.length);
+		_executor = executor;
+		_maxRunning = maxRunning;
+		_backgroundMax = Math.min(backgroundMax, maxRunning);
+		_weights = weights.clone();
+		for (int i = 0; i < LANE_COUNT; ++i)
+			_lanes[i] = new Lane(i);
+	}
+
+	/**
+	 * 获取指定优先级的通道
+	 */
+	public Lane getLane(int priority)
+	{
+		return _lanes[priority];
+	}
+
+	/**
+	 * 获取正在运行的任务数量
+	 */
+	public synchronized int getRunningCount()
+	{
+		return _running;
+	}
+
+	/**
+	 * 获取后台通道正在运行的任务数量
+	 */
+	public synchronized int getBackgroundRunningCount()
+	{
+		return _backgroundRunning;
+	}
+
+	private void acquire(Lane lane)
+	{
+		++_running;
+		if (lane._priority == BACKGROUND)
+			++_backgroundRunning;
+	}
+
+	private void release(Lane lane)
+	{
+		--_running;
+		if (lane._priority == BACKGROUND)
+			--_backgroundRunning;
+	}
+
+	/**
+	 * 按平滑加权轮询从可运行的通道中取出一个排队的任务
+	 */
+	private Task pollNext()
+	{
+		Lane best = null;
+		int total = 0;
+		for (Lane lane : _lanes)
+		{
+			if (lane._queue.isEmpty() || lane._priority == BACKGROUND && _backgroundRunning >= _backgroundMax)
+				continue;
+			int p = lane._priority;
+			_current[p] += _weights[p];
+			total += _weights[p];
+			if (best == null || _current[p] > _current[best._priority])
+				best = lane;
+		}
+		if (best == null)
+			return null;
+		_current[best._priority] -= total;
+		return best._queue.pollFirst();
+	}
+
+	private void execute0(Task t)
+	{
+		if (t.key != null && _executor instanceof ProcScheduler)
+			((ProcScheduler)_executor).execute(t.key, t);
+		else
+			_executor.execute(t);
+	}
+
+	void submit(Lane lane, Object key, Runnable r)
+	{
+		Task t = new Task(lane, key, r);
+		synchronized (this)
+		{
+			++lane._submitCount;
+			if (_running >= _maxRunning || !lane._queue.isEmpty() || lane._priority == BACKGROUND && _backgroundRunning >= _backgroundMax)
+			{
+				++lane._queuedCount;
+				t.queueTime = System.nanoTime();
+				lane._queue.addLast(t);
+				return;
+			}
+			acquire(lane);
+		}
+		lane._waitTime.record(0);
+		try
+		{
+			execute0(t);
+		}
+		catch (RuntimeException e)
+		{
+			onDone(lane);
+			throw e;
+		}
+	}
+
+	private void onDone(Lane lane)
+	{
+		for (;;)
+		{
+			Task t;
+			synchronized (this)
+			{
+				release(lane);
+				t = pollNext();
+				if (t == null)
+					return;
+				acquire(t.lane);
+			}
+			t.lane._waitTime.record(System.nanoTime() - t.queueTime);
+			try
+			{
+				execute0(t);
+				return;
+			}
+			catch (Throwable e)
+			{
+				Log.error(e, "PriorityExecutor: execute {} task failed:", t.lane.getName());
+				lane = t.lane;
+			}
+		}
+	}
+}
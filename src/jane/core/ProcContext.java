@@ -0,0 +1,257 @@
+package jane.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.Procedure.IndexLock;
+
+/**
+ * 事务运行的上下文
+ * <p>
+ * 保存事务运行中的锁和安全修改的上下文等状态. 每个ProcThread固定持有一个上下文<br>
+ * 其它线程(如虚拟线程)运行事务时,从空闲池中取出上下文绑定到当前线程,事务结束后解绑并放回空闲池
+ */
+final class ProcContext
+{
+	private static final int DEADLOCK_CHECK_DEPTH = 256; // 检测死锁时沿等待链查找的最大深度
+
+	private static final ConcurrentLinkedQueue<ProcContext>		_contexts	   = new ConcurrentLinkedQueue<>();	// 全部的上下文. 用于判断是否超时
+	private static final ConcurrentLinkedQueue<ProcContext>		_freeContexts  = new ConcurrentLinkedQueue<>();	// 空闲的非ProcThread上下文
+	private static final ConcurrentHashMap<Thread, ProcContext>	_boundContexts = new ConcurrentHashMap<>();		// 非ProcThread线程当前绑定的上下文. 用于检测死锁时查找锁持有者
+	private static final ThreadLocal<ProcContext>				_curContext	   = new ThreadLocal<>();			// 非ProcThread线程当前绑定的上下文
+	private static final AtomicLong								_unbindCount   = new AtomicLong();				// 非ProcThread线程运行完事务的次数统计
+	private static volatile long								_interruptCount;								// 事务被打断的次数统计
+
+	final IndexLock[]	locks	 = new IndexLock[Const.maxLockPerProcedure];	// 已经加过的锁
+	int					lockCount;												// 已经加过锁的数量
+	final SContext		sctx	 = new SContext();								// 安全修改的上下文
+	Procedure			proc;													// 当前运行的事务
+	long				beginTime;												// 当前/上个事务运行的起始时间. 用于判断是否超时
+	final long[]		versions = new long[Const.maxLockPerProcedure];			// 已经加过的锁版本号(只在需要时临时设置,这里只是为了避免反复分配)
+	boolean				optimistic;												// 当前事务是否以乐观模式运行(无锁读取,提交前验证版本号)
+	int[]				readIdxes;												// 乐观模式下无锁读取过的锁下标
+	long[]				readVersions;											// 乐观模式下无锁读取时对应的锁版本号
+	int					readCount;												// 乐观模式下无锁读取的次数
+	TableBase<?>		lockTable;												// 正在加锁的记录所属的表. 只在开启锁竞争采样时设置
+	String				lockHolder;												// 锁竞争采样时持有锁的事务类名
+	boolean				batching;												// 是否正在运行合并的后续事务(BatchProcedure). 此时不能解锁或重排已持有的锁
+	int					epoch;													// 当前事务所在的提交轮次({@link CommitEpoch})
+	long				lockWaitNanos;											// 当前事务本次运行中等待锁的总时间(纳秒). 只在开启事务统计(procStat)时记录
+
+	volatile Thread		thread;			// 绑定的线程. 空闲时为null
+	volatile IndexLock	waitLock;		// 当前正在等待的锁. 用于检测死锁
+	volatile long		beginNanoTime;	// 当前事务开始运行的时间(纳秒). 用于选择死锁时重做的事务
+
+	ProcContext(Thread t)
+	{
+		thread = t;
+		_contexts.add(this);
+	}
+
+	/**
+	 * 获取当前线程的上下文. 不是ProcThread且没有绑定上下文时返回null
+	 */
+	static ProcContext current()
+	{
+		Thread t = Thread.currentThread();
+		return t instanceof ProcThread ? ((ProcThread)t).ctx : _curContext.get();
+	}
+
+	/**
+	 * 获取指定线程的上下文. 不是ProcThread且没有绑定上下文时返回null
+	 */
+	static ProcContext of(Thread t)
+	{
+		if (t instanceof ProcThread)
+			return ((ProcThread)t).ctx;
+		return t != null ? _boundContexts.get(t) : null;
+	}
+
+	/**
+	 * 给当前的非ProcThread线程绑定一个空闲的上下文
+	 */
+	static ProcContext bind()
+	{
+		ProcContext ctx = _freeContexts.poll();
+		Thread t = Thread.currentThread();
+		if (ctx != null)
+			ctx.thread = t;
+		else
+			ctx = new ProcContext(t);
+		_curContext.set(ctx);
+		_boundContexts.put(t, ctx);
+		return ctx;
+	}
+
+	/**
+	 * 解绑当前线程的上下文并放回空闲池. 只能在事务结束后调用
+	 */
+	void unbind()
+	{
+		_boundContexts.remove(thread);
+		_curContext.remove();
+		thread = null;
+		_unbindCount.getAndIncrement();
+		_freeContexts.offer(this);
+	}
+
+	/**
+	 * 获取非ProcThread线程正在运行的事务数量
+	 */
+	static int getBoundCount()
+	{
+		return _boundContexts.size();
+	}
+
+	/**
+	 * 获取非ProcThread线程运行完事务的次数统计
+	 */
+	static long getUnbindCount()
+	{
+		return _unbindCount.get();
+	}
+
+	/**
+	 * 获取事务被打断的次数统计
+	 */
+	static long getInterruptCount()
+	{
+		return _interruptCount;
+	}
+
+	/**
+	 * 判断当前事务是否应该重做来解除死锁
+	 * <p>
+	 * 沿着等待的锁找到持有者,再看持有者等待的锁,如此反复. 如果回到了当前线程就是死锁<br>
+	 * 环中的每个线程都会检测到同一个环,只有最晚开始运行的事务返回true,其它线程继续等待
+	 */
+	boolean isDeadlockVictim()
+	{
+		Thread self = thread;
+		long maxTime = beginNanoTime;
+		long maxId = self.getId();
+		IndexLock lock = waitLock;
+		for (int i = 0; lock != null && i < DEADLOCK_CHECK_DEPTH; ++i)
+		{
+			Thread owner = lock.owner();
+			if (owner == self)
+				return maxId == self.getId();
+			ProcContext ctx = of(owner);
+			if (ctx == null)
+				return false;
+			long t = ctx.beginNanoTime;
+			long id = owner.getId();
+			if (t - maxTime > 0 || t == maxTime && id > maxId)
+			{
+				maxTime = t;
+				maxId = id;
+			}
+			lock = ctx.waitLock;
+		}
+		return false;
+	}
+
+	/**
+	 * 记录乐观模式下无锁读取时的锁下标和版本号
+	 */
+	void addRead(int lockIdx, long version)
+	{
+		int n = readCount;
+		if (readIdxes == null)
+		{
+			readIdxes = new int[16];
+			readVersions = new long[16];
+		}
+		else if (n >= readIdxes.length)
+		{
+			readIdxes = Arrays.copyOf(readIdxes, n * 2);
+			readVersions = Arrays.copyOf(readVersions, n * 2);
+		}
+		readIdxes[n] = lockIdx;
+		readVersions[n] = version;
+		readCount = n + 1;
+	}
+
+	static
+	{
+		if (Const.deadlockCheckInterval > 0)
+		{
+			NetManager.scheduleWithFixedDelay(Const.deadlockCheckInterval, Const.deadlockCheckInterval, () ->
+			{
+				try
+				{
+					long[] tids = null;
+					boolean foundDeadlock = false;
+					long now = NetManager.getTimeSec();
+					long procTimeout = Const.procedureTimeout;
+					long procDeadlockTimeout = Const.procedureDeadlockTimeout;
+					long procTimoutMin = Math.min(procTimeout, procDeadlockTimeout);
+					for (ProcContext ctx : _contexts)
+					{
+						Thread pt = ctx.thread;
+						if (pt == null) // 空闲的上下文
+							continue;
+						if (pt instanceof ProcThread && pt.getState() == Thread.State.TERMINATED) // 还未启动的ProcThread也要保留
+						{
+							_contexts.remove(ctx);
+							continue;
+						}
+						Procedure p = ctx.proc; // 虽然非volatile读,但因为对及时性要求不高,而且下面有double check,所以没什么问题
+						if (p != null && now - ctx.beginTime > procTimoutMin) // beginTime的问题同上
+						{
+							synchronized (p)
+							{
+								if (p == ctx.proc && (pt = ctx.thread) != null) // 事务结束并解绑上下文前会在p的锁中清除proc,所以这里的线程一定是运行p的线程
+								{
+									long timeout = now - ctx.beginTime;
+									if (timeout > procTimeout)
+									{
+										StringBuilder sb = new StringBuilder(2000);
+										sb.append("procedure({}) in {} interrupted for timeout ({} ms): sid={}\n");
+										for (StackTraceElement ste : pt.getStackTrace())
+											sb.append("\tat ").append(ste).append('\n');
+										Log.error(sb.toString(), p.getClass().getName(), pt, timeout, p.getSid());
+										++_interruptCount;
+										pt.interrupt();
+									}
+									else if (timeout > procDeadlockTimeout)
+									{
+										if (!foundDeadlock)
+										{
+											foundDeadlock = true;
+											tids = ManagementFactory.getThreadMXBean().findDeadlockedThreads(); // 只能找到平台线程的死锁,虚拟线程依靠等待锁时的死锁检测
+										}
+										if (tids != null)
+										{
+											long tid = pt.getId();
+											for (int i = tids.length - 1; i >= 0; --i)
+											{
+												if (tids[i] == tid)
+												{
+													StringBuilder sb = new StringBuilder(2000);
+													sb.append("procedure({}) in {} interrupted for deadlock timeout({} ms): sid={}\n");
+													for (StackTraceElement ste : pt.getStackTrace())
+														sb.append("\tat ").append(ste).append('\n');
+													Log.error(sb.toString(), p.getClass().getName(), pt, timeout, p.getSid());
+													++_interruptCount;
+													pt.interrupt();
+													break;
+												}
+											}
+										}
+									}
+								}
+							}
+						}
+					}
+				}
+				catch (Throwable e)
+				{
+					Log.error("procedure timeout fatal exception:", e);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package jane.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * 绑定sid的事务队列
+ * <p>
+ * 多生产者单消费者的无锁链表队列. 父类的计数值是队列中(包括正在运行的)事务数量<br>
+ * 把计数从0增加到1的生产者负责调度消费者,消费者每运行完一个事务减少计数,减到0时结束并尝试关闭队列<br>
+ * 关闭后的队列不能再加入事务,应立即从sid映射中删除,之后的事务会放入新的队列,因此同一时刻每个sid最多只有一个消费者
+ */
+final class ProcQueue extends AtomicInteger
+{
+	private static final long serialVersionUID = 1L;
+	static final int		  CLOSED		   = -1; // 已关闭的计数值
+
+	private static final AtomicReferenceFieldUpdater<ProcQueue, Node> TAIL = AtomicReferenceFieldUpdater.newUpdater(ProcQueue.class, Node.class, "_tail");
+
+	private static final class Node
+	{
+		Procedure	  proc;
+		volatile Node next;
+
+		Node(Procedure p)
+		{
+			proc = p;
+		}
+	}
+
+	private transient Node			_head = new Node(null); // 只由消费者访问
+	private transient volatile Node	_tail = _head;			// 生产者竞争修改
+	volatile boolean				stopped;				// 是否已停止. 停止后消费者丢弃剩余的事务
+
+	/**
+	 * 生产者尝试增加计数
+	 * @return 增加前的计数. 如果已关闭或已停止则返回CLOSED; 如果已达到上限则返回上限值并且不增加计数
+	 */
+	int tryAcquire(int maxSize)
+	{
+		for (;;)
+		{
+			int n = get();
+			if (n < 0 || stopped)
+				return CLOSED;
+			if (n >= maxSize)
+				return n;
+			if (compareAndSet(n, n + 1))
+				return n;
+		}
+	}
+
+	/**
+	 * 生产者在增加计数后加入事务
+	 */
+	void push(Procedure p)
+	{
+		Node node = new Node(p);
+		TAIL.getAndSet(this, node).next = node;
+	}
+
+	/**
+	 * 消费者取出下一个事务. 只能在计数大于0时调用
+	 */
+	Procedure poll()
+	{
+		Node next;
+		while ((next = _head.next) == null) // 生产者已增加计数但可能还没链接上节点
+			Thread.onSpinWait();
+		_head = next;
+		Procedure p = next.proc;
+		next.proc = null;
+		return p;
+	}
+
+	/**
+	 * 消费者取出下一个可以合并运行的事务({@link BatchProcedure})
+	 * @return 下一个事务还没有加入或不能合并时返回null
+	 */
+	Procedure pollBatch()
+	{
+		Node next = _head.next;
+		if (next == null || !(next.proc instanceof BatchProcedure))
+			return null;
+		_head = next;
+		Procedure p = next.proc;
+		next.proc = null;
+		return p;
+	}
+
+	/**
+	 * 消费者把刚取出的事务放回队列头部. 计数不变
+	 */
+	void unpoll(Procedure p)
+	{
+		Node head = _head;
+		head.proc = p; // 当前的头节点恢复成普通节点,再在前面加个新的头节点
+		Node node = new Node(null);
+		node.next = head;
+		_head = node;
+	}
+
+	/**
+	 * 消费者运行完一个事务后减少计数
+	 * @return 是否还有待运行的事务. 返回false时消费者必须结束
+	 */
+	boolean release()
+	{
+		return decrementAndGet() > 0;
+	}
+
+	/**
+	 * 消费者合并运行完多个事务后减少计数. 消费者仍持有当前运行事务的计数,所以不会减到0
+	 */
+	void release(int n)
+	{
+		addAndGet(-n);
+	}
+
+	/**
+	 * 消费者结束后尝试关闭队列
+	 * @return 是否关闭成功. 失败说明有生产者刚加入了事务并已负责调度新的消费者
+	 */
+	boolean close()
+	{
+		return compareAndSet(0, CLOSED);
+	}
+}
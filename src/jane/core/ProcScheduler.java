@@ -0,0 +1,484 @@
+package jane.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 带亲和性和工作窃取的事务调度器
+ * <p>
+ * 每个工作线程(ProcThread)有自己的任务队列. 绑定key(如sid)的任务固定调度到key对应的工作线程上,使同一sid的事务尽量在同一线程上运行<br>
+ * 工作线程自己的队列为空时,从其它工作线程的队列中窃取任务. 没有任务时休眠,有新任务时由提交者唤醒<br>
+ * 通道(lane)模式: 每个工作线程是一个单线程通道,不窃取任务,key按一致性哈希分配到通道上,使同一sid的记录始终在同一CPU核心的缓存中<br>
+ * 通道积压过多时,新调度的key会迁移到最空闲的通道(见{@link Const#dbLaneMigrateQueue}),也可以手动迁移({@link #migrate})<br>
+ * 工作线程可以依次绑定到指定的CPU上(见{@link Const#dbProcCpus}和{@link #setAffinityHook})
+ */
+public final class ProcScheduler extends AbstractExecutorService
+{
+	private static final long	PARK_NANOS	= 1_000_000_000L;	// 空闲时的最长休眠时间(纳秒),只用于防止意外的漏唤醒
+	private static final int	RING_VNODES	= 64;				// 一致性哈希中每个通道的虚拟节点数量
+	private static final int	MIGRATE_MAX	= 65536;			// 最多记录的迁移key数量,超过则全部清除,恢复按哈希分配
+
+	private static volatile AffinityHook _affinityHook; // 工作线程绑定CPU的实现
+
+	private final Worker[]							_workers;									// 全部工作线程
+	private final AtomicInteger						_idleCount	  = new AtomicInteger();		// 空闲(休眠或准备休眠)的工作线程数量
+	private final boolean							_lanes;										// 是否通道模式
+	private final int[]								_ringHashes;								// 一致性哈希环上虚拟节点的哈希值(升序)
+	private final Worker[]							_ringWorkers;								// 一致性哈希环上虚拟节点对应的工作线程
+	private final ConcurrentHashMap<Object, Worker>	_migrated	  = new ConcurrentHashMap<>();	// 迁移过的key对应的工作线程
+	private final AtomicLong						_migrateCount = new AtomicLong();			// 迁移key的次数统计
+	private volatile int							_state;										// 0:运行中; 1:已关闭,执行完剩余的任务后结束; 2:已停止
+
+	/**
+	 * 工作线程绑定CPU的接口
+	 * <p>
+	 * java本身不支持设置线程的CPU亲和性,需要通过此接口调用第三方库(如Java-Thread-Affinity)或本地方法实现
+	 */
+	public interface AffinityHook
+	{
+		/**
+		 * 在工作线程启动时由工作线程自己调用
+		 * @param cpu 配置中为此线程指定的CPU编号
+		 */
+		void bind(Thread thread, int cpu) throws Exception;
+	}
+
+	private final class Worker extends ProcThread
+	{
+		final ConcurrentLinkedDeque<Runnable>	tasks  = new ConcurrentLinkedDeque<>();	// 调度到此线程的任务队列
+		final AtomicInteger						queued = new AtomicInteger();			// 队列中的任务数量
+		final int								index;									// 在全部工作线程中的下标
+		final int								cpu;									// 绑定的CPU编号. <0表示不绑定
+		volatile boolean						idle;									// 是否空闲
+		volatile long							completedCount;							// 已完成的任务数量(只由本线程修改)
+
+		Worker(String name, int index, int cpu)
+		{
+			super(cpu >= 0 ? name + "@cpu" + cpu : name);
+			this.index = index;
+			this.cpu = cpu;
+			setDaemon(true);
+		}
+
+		ProcScheduler scheduler()
+		{
+			return ProcScheduler.this;
+		}
+
+		private Runnable steal()
+		{
+			Worker[] workers = _workers;
+			int n = workers.length;
+			for (int i = 1, s = ThreadLocalRandom.current().nextInt(n); i < n; ++i) // 从随机位置开始窃取,避免总是集中窃取同一个线程
+			{
+				Worker w = workers[(s + i) % n];
+				if (w != this)
+				{
+					Runnable r = w.tasks.pollFirst();
+					if (r != null)
+					{
+						w.queued.getAndDecrement();
+						return r;
+					}
+				}
+			}
+			return null;
+		}
+
+		private Runnable next()
+		{
+			Runnable r = tasks.pollFirst();
+			if (r != null)
+			{
+				queued.getAndDecrement();
+				return r;
+			}
+			return _lanes ? null : steal();
+		}
+
+		@Override
+		public void run()
+		{
+			if (cpu >= 0)
+			{
+				AffinityHook hook = _affinityHook;
+				if (hook != null)
+				{
+					try
+					{
+						hook.bind(this, cpu);
+					}
+					catch (Throwable e)
+					{
+						Log.error(e, "ProcScheduler: bind cpu({}) failed:", cpu);
+					}
+				}
+			}
+			for (;;)
+			{
+				Runnable r = next();
+				if (r == null)
+				{
+					idle = true;
+					_idleCount.getAndIncrement();
+					if ((r = next()) == null) // 设置空闲后再检查一次,避免和提交者的唤醒判断同时错过
+					{
+						if (_state != 0)
+						{
+							_idleCount.getAndDecrement();
+							return;
+						}
+						LockSupport.parkNanos(this, PARK_NANOS);
+					}
+					idle = false;
+					_idleCount.getAndDecrement();
+					if (r == null)
+						continue;
+				}
+				try
+				{
+					r.run();
+				}
+				catch (Throwable e)
+				{
+					Log.error("ProcScheduler: task fatal exception:", e);
+				}
+				completedCount = completedCount + 1;
+				Thread.interrupted(); // 清除interrupted标识,避免影响下个任务
+				if (_state == 2)
+					return;
+			}
+		}
+	}
+
+	/**
+	 * 设置工作线程绑定CPU的实现
+	 * <p>
+	 * 需要在创建调度器之前设置,一般在DBManager初始化之前调用
+	 */
+	public static void setAffinityHook(AffinityHook hook)
+	{
+		_affinityHook = hook;
+	}
+
+	/**
+	 * 解析CPU编号列表. 格式如"0-3,6,7"
+	 * @return 空字符串返回null
+	 */
+	public static int[] parseCpus(String cpus)
+	{
+		if (cpus == null || (cpus = cpus.trim()).isEmpty())
+			return null;
+		int[] r = new int[8];
+		int n = 0;
+		for (String s : cpus.split(","))
+		{
+			s = s.trim();
+			int p = s.indexOf('-');
+			int from = Integer.parseInt((p < 0 ? s : s.substring(0, p)).trim());
+			int to = (p < 0 ? from : Integer.parseInt(s.substring(p + 1).trim()));
+			if (from < 0 || from > to)
+				throw new IllegalArgumentException("invalid cpus: " + cpus);
+			for (int i = from; i <= to; ++i)
+			{
+				if (n == r.length)
+					r = Arrays.copyOf(r, n * 2);
+				r[n++] = i;
+			}
+		}
+		return Arrays.copyOf(r, n);
+	}
+
+	private static int ringHash(int h)
+	{
+		h *= 0x9e3779b1;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @param threadCount 工作线程数量
+	 * @param name 工作线程的名字前缀
+	 */
+	public ProcScheduler(int threadCount, String name)
+	{
+		this(threadCount, name, false, null);
+	}
+
+	/**
+	 * @param threadCount 工作线程数量(通道模式下即通道数量)
+	 * @param name 工作线程的名字前缀
+	 * @param lanes 是否通道模式
+	 * @param cpus 工作线程依次绑定的CPU编号,线程多于CPU时循环使用. null表示不绑定
+	 */
+	public ProcScheduler(int threadCount, String name, boolean lanes, int[] cpus)
+	{
+		if (threadCount <= 0)
+			throw new IllegalArgumentException("threadCount=" + threadCount);
+		if (cpus != null && cpus.length == 0)
+			cpus = null;
+		if (cpus != null && _affinityHook == null)
+			Log.warn("ProcScheduler: affinity hook is not set, cpus are only marked in thread names");
+		_lanes = lanes;
+		_workers = new Worker[threadCount];
+		for (int i = 0; i < threadCount; ++i)
+			_workers[i] = new Worker(name + '-' + (i + 1), i, cpus != null ? cpus[i % cpus.length] : -1);
+
+		int n = threadCount * RING_VNODES;
+		long[] ring = new long[n]; // 高32位是哈希值,低32位是工作线程下标,排序后即按哈希值排序
+		for (int i = 0; i < n; ++i)
+			ring[i] = ((long)ringHash(i + 1) << 32) + i / RING_VNODES;
+		Arrays.sort(ring);
+		_ringHashes = new int[n];
+		_ringWorkers = new Worker[n];
+		for (int i = 0; i < n; ++i)
+		{
+			_ringHashes[i] = (int)(ring[i] >> 32);
+			_ringWorkers[i] = _workers[(int)ring[i]];
+		}
+
+		for (Worker w : _workers)
+			w.start();
+	}
+
+	/**
+	 * 是否通道模式
+	 */
+	public boolean isLanes()
+	{
+		return _lanes;
+	}
+
+	public int getThreadCount()
+	{
+		return _workers.length;
+	}
+
+	/**
+	 * 获取正在运行任务的工作线程数量(近似值)
+	 */
+	public int getActiveCount()
+	{
+		return Math.max(_workers.length - _idleCount.get(), 0);
+	}
+
+	/**
+	 * 获取等待运行的任务数量
+	 */
+	public int getQueuedCount()
+	{
+		int n = 0;
+		for (Worker w : _workers)
+			n += w.queued.get();
+		return n;
+	}
+
+	/**
+	 * 获取指定工作线程(通道)等待运行的任务数量
+	 */
+	public int getQueuedCount(int index)
+	{
+		return _workers[index].queued.get();
+	}
+
+	/**
+	 * 获取迁移key的次数统计
+	 */
+	public long getMigrateCount()
+	{
+		return _migrateCount.get();
+	}
+
+	/**
+	 * 获取已运行完成的任务数量
+	 */
+	public long getCompletedCount()
+	{
+		long n = 0;
+		for (Worker w : _workers)
+			n += w.completedCount;
+		return n;
+	}
+
+	private void execute(Worker w, Runnable r)
+	{
+		if (r == null)
+			throw new NullPointerException();
+		if (_state != 0)
+			throw new RejectedExecutionException("ProcScheduler has been shutdown");
+		w.queued.getAndIncrement();
+		w.tasks.addLast(r);
+		if (w.idle)
+			LockSupport.unpark(w);
+		else if (!_lanes && _idleCount.get() > 0) // 目标线程正忙,唤醒一个空闲线程来窃取
+		{
+			for (Worker w2 : _workers)
+			{
+				if (w2.idle)
+				{
+					LockSupport.unpark(w2);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 获取key按一致性哈希对应的工作线程下标. 不考虑迁移
+	 */
+	public int getHomeIndex(Object key)
+	{
+		return ringWorker(key).index;
+	}
+
+	private Worker ringWorker(Object key)
+	{
+		int i = Arrays.binarySearch(_ringHashes, ringHash(key.hashCode()));
+		if (i < 0)
+		{
+			i = -i - 1; // 顺时针方向的下一个虚拟节点
+			if (i == _ringHashes.length)
+				i = 0;
+		}
+		return _ringWorkers[i];
+	}
+
+	private Worker route(Object key)
+	{
+		Worker w = (_migrated.isEmpty() ? null : _migrated.get(key));
+		return w != null ? w : ringWorker(key);
+	}
+
+	/**
+	 * 把key迁移到指定的工作线程(通道)上
+	 * <p>
+	 * DBManager中同一sid同时只有一个调度任务,所以迁移不影响同一sid的事务顺序
+	 * @param index 工作线程下标. <0表示取消迁移,恢复按哈希分配
+	 */
+	public void migrate(Object key, int index)
+	{
+		if (index < 0)
+			_migrated.remove(key);
+		else
+		{
+			if (_migrated.size() >= MIGRATE_MAX)
+				_migrated.clear();
+			_migrated.put(key, _workers[index]);
+			_migrateCount.getAndIncrement();
+		}
+	}
+
+	/**
+	 * 提交任务到key对应的工作线程
+	 * <p>
+	 * 相同key的任务总是先调度到同一个工作线程,只在该线程忙时才可能被其它线程窃取<br>
+	 * 通道模式下不会被窃取,但在通道积压过多时会把key迁移到最空闲的通道
+	 */
+	public void execute(Object key, Runnable r)
+	{
+		Worker w = route(key);
+		int limit = Const.dbLaneMigrateQueue;
+		if (_lanes && limit > 0 && w.queued.get() >= limit)
+		{
+			Worker best = w;
+			int bestQueued = Integer.MAX_VALUE;
+			for (Worker w2 : _workers)
+			{
+				int q = w2.queued.get();
+				if (q < bestQueued)
+				{
+					best = w2;
+					bestQueued = q;
+				}
+			}
+			if (bestQueued <= limit / 2) // 只迁移到明显空闲的通道,避免来回迁移
+			{
+				migrate(key, best.index);
+				w = best;
+			}
+		}
+		execute(w, r);
+	}
+
+	/**
+	 * 提交任务. 在工作线程中提交的任务放入当前线程的队列,否则随机选择工作线程
+	 */
+	@Override
+	public void execute(Runnable r)
+	{
+		Thread t = Thread.currentThread();
+		Worker w = (t instanceof Worker && ((Worker)t).scheduler() == this ? (Worker)t :
+				_workers[ThreadLocalRandom.current().nextInt(_workers.length)]);
+		execute(w, r);
+	}
+
+	@Override
+	public void shutdown()
+	{
+		if (_state == 0)
+			_state = 1;
+		for (Worker w : _workers)
+			LockSupport.unpark(w);
+	}
+
+	@Override
+	public List<Runnable> shutdownNow()
+	{
+		_state = 2;
+		List<Runnable> rs = new ArrayList<>();
+		for (Worker w : _workers)
+		{
+			for (Runnable r; (r = w.tasks.pollFirst()) != null;)
+			{
+				w.queued.getAndDecrement();
+				rs.add(r);
+			}
+			w.interrupt();
+		}
+		return rs;
+	}
+
+	@Override
+	public boolean isShutdown()
+	{
+		return _state != 0;
+	}
+
+	@Override
+	public boolean isTerminated()
+	{
+		if (_state == 0)
+			return false;
+		for (Worker w : _workers)
+		{
+			if (w.isAlive())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Worker w : _workers)
+		{
+			long ms = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (ms <= 0 && w.isAlive())
+				return false;
+			w.join(Math.max(ms, 1));
+			if (w.isAlive())
+				return false;
+		}
+		return true;
+	}
+}
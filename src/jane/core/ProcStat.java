@@ -0,0 +1,184 @@
+package jane.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按事务类的运行统计
+ * <p>
+ * 开启后(procStat>0),每个事务类统计运行,重做,撤销和异常的次数,以及每次运行等待锁的时间和总运行时间的分布<br>
+ * 用于找出因冲突(版本号变化,乐观冲突,死锁)而反复重做浪费CPU的事务类. 重做次数可配合procRedoBackoff调整重做前的退避方式<br>
+ * 挂起({@link Procedure#await})或退避延迟后恢复的运行各自算一次运行
+ */
+public final class ProcStat
+{
+	public static final boolean	ENABLED	 = Const.procStat > 0;	// 是否开启事务运行统计
+	private static final int	DUMP_TOP = 20;					// 输出到日志的事务类数量
+
+	private static final ConcurrentHashMap<Class<?>, ClassStat>	_stats = new ConcurrentHashMap<>();	// 运行过的事务类统计
+
+	/**
+	 * 一个事务类的运行统计
+	 */
+	public static final class ClassStat
+	{
+		private final String	name;								// 事务类名
+		private final LongAdder	execCount	   = new LongAdder();	// 运行次数
+		private final LongAdder	redoCount	   = new LongAdder();	// 重做次数
+		private final LongAdder	undoCount	   = new LongAdder();	// 撤销次数
+		private final LongAdder	exceptionCount = new LongAdder();	// 异常次数(不包括撤销)
+		private final Histogram	lockWaitTime   = new Histogram(0);	// 每次运行等待锁的总时间(纳秒)分布
+		private final Histogram	runTime		   = new Histogram(0);	// 每次运行的时间(纳秒)分布
+
+		ClassStat(Class<?> cls)
+		{
+			name = cls.getName();
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public long getExecCount()
+		{
+			return execCount.sum();
+		}
+
+		public long getRedoCount()
+		{
+			return redoCount.sum();
+		}
+
+		public long getUndoCount()
+		{
+			return undoCount.sum();
+		}
+
+		public long getExceptionCount()
+		{
+			return exceptionCount.sum();
+		}
+
+		/**
+		 * 获取每次运行等待锁时间(纳秒)的百分位数. 没有统计时为-1
+		 */
+		public long[] getLockWaitPercentiles(double... ps)
+		{
+			return percentiles(lockWaitTime, ps);
+		}
+
+		/**
+		 * 获取每次运行时间(纳秒)的百分位数. 没有统计时为-1
+		 */
+		public long[] getRunTimePercentiles(double... ps)
+		{
+			return percentiles(runTime, ps);
+		}
+
+		private static long[] percentiles(Histogram h, double[] ps)
+		{
+			long[] counts = h.getCounts(false);
+			long[] r = new long[ps.length];
+			for (int i = 0; i < ps.length; ++i)
+				r[i] = Histogram.getPercentile(counts, ps[i]);
+			return r;
+		}
+	}
+
+	private ProcStat()
+	{
+	}
+
+	/**
+	 * 一次运行结束时调用
+	 * @param redoCount 本次运行中重做的次数
+	 * @param undo 是否撤销
+	 * @param exception 是否因撤销以外的异常而结束
+	 */
+	static void record(Procedure proc, long runNanos, long lockWaitNanos, int redoCount, boolean undo, boolean exception)
+	{
+		ClassStat s = _stats.computeIfAbsent(proc.getClass(), ClassStat::new);
+		s.execCount.increment();
+		if (redoCount > 0)
+			s.redoCount.add(redoCount);
+		if (undo)
+			s.undoCount.increment();
+		else if (exception)
+			s.exceptionCount.increment();
+		s.lockWaitTime.record(lockWaitNanos);
+		s.runTime.record(runNanos);
+	}
+
+	/**
+	 * 获取指定事务类的统计. 没有运行过时返回null
+	 */
+	public static ClassStat getStat(Class<? extends Procedure> cls)
+	{
+		return _stats.get(cls);
+	}
+
+	/**
+	 * 获取重做次数最多的若干个事务类统计,重做次数相同的按运行次数从大到小排序
+	 */
+	public static ArrayList<ClassStat> getTopStats(int n)
+	{
+		ArrayList<ClassStat> list = new ArrayList<>(_stats.values());
+		list.sort((s1, s2) ->
+		{
+			int c = Long.compare(s2.getRedoCount(), s1.getRedoCount());
+			return c != 0 ? c : Long.compare(s2.getExecCount(), s1.getExecCount());
+		});
+		if (list.size() > n)
+			list.subList(n, list.size()).clear();
+		return list;
+	}
+
+	/**
+	 * 清除全部统计
+	 */
+	public static void reset()
+	{
+		_stats.clear();
+	}
+
+	/**
+	 * 输出重做最多的事务类统计到日志
+	 */
+	public static void dump()
+	{
+		ArrayList<ClassStat> list = getTopStats(DUMP_TOP);
+		StringBuilder sb = new StringBuilder(list.size() * 200 + 50);
+		sb.append("procedure stat: classes=").append(_stats.size());
+		for (ClassStat s : list)
+		{
+			long[] lw = s.getLockWaitPercentiles(0.5, 0.99);
+			long[] rt = s.getRunTimePercentiles(0.5, 0.99, 1);
+			sb.append("\n\t").append(s.name).append(": execs=").append(s.getExecCount()).append(", redos=").append(s.getRedoCount())
+					.append(", undos=").append(s.getUndoCount()).append(", exceptions=").append(s.getExceptionCount())
+					.append(", lockWaitUs(P50/P99)=").append(lw[0] / 1000).append('/').append(lw[1] / 1000)
+					.append(", runUs(P50/P99/MAX)=").append(rt[0] / 1000).append('/').append(rt[1] / 1000).append('/').append(rt[2] / 1000);
+		}
+		Log.info(sb.toString());
+	}
+
+	static
+	{
+		if (ENABLED && Const.procStatDumpInterval > 0)
+		{
+			NetManager.scheduleWithFixedDelay(Const.procStatDumpInterval, Const.procStatDumpInterval, () ->
+			{
+				try
+				{
+					if (!_stats.isEmpty())
+						dump();
+				}
+				catch (Throwable e)
+				{
+					Log.error("procedure stat dump exception:", e);
+				}
+			});
+		}
+	}
+}
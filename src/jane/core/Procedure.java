@@ -1,11 +1,21 @@
 package jane.core;
 
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 import jane.core.SContext.Safe;
 
@@ -14,6 +24,10 @@ import jane.core.SContext.Safe;
  */
 public abstract class Procedure implements Runnable
 {
+	static final int	EXECUTE_FAILED	  = 0;	// execute0的返回值: 事务因异常,撤销或取消而结束,修改已回滚
+	static final int	EXECUTE_COMMITTED = 1;	// execute0的返回值: 事务运行结束并已提交
+	static final int	EXECUTE_SUSPENDED = 2;	// execute0的返回值: 事务挂起,还没有结束,需要通过resumeOnComplete恢复运行
+
 	public interface ExceptionHandler
 	{
 		void onException(Throwable e);
@@ -29,17 +43,34 @@ public abstract class Procedure implements Runnable
 		{
 			index = i;
 		}
+
+		Thread owner()
+		{
+			return getOwner();
+		}
 	}
 
 	private static final IndexLock[]					 _lockPool	   = new IndexLock[Const.lockPoolSize];		  // 全局共享的锁池
 	private static final AtomicLongArray				 _lockVersions = new AtomicLongArray(Const.lockPoolSize); // 全局共享的锁版本号池
 	private static final AtomicReferenceArray<IndexLock> _lockCreator  = new AtomicReferenceArray<>(_lockPool);	  // 锁池中锁的线程安全创造器(副本)
 	private static final int							 _lockMask	   = Const.lockPoolSize - 1;				  // 锁池下标的掩码
-	private static final FastRWLock						 _rwlCommit	   = new FastRWLock();						  // 用于数据提交的读写锁
+	private static final AtomicLong						 _optConflicts = new AtomicLong();						  // 乐观事务的冲突次数统计
+	private static final AtomicLong						 _deadlocks	   = new AtomicLong();						  // 检测到死锁而重做的次数统计
+	private static final AtomicLong						 _suspends	   = new AtomicLong();						  // 事务等待异步结果而挂起的次数统计
+	private static final boolean						 _lockProfile  = LockProfiler.ENABLED;					  // 是否开启记录锁竞争的采样统计
+	private static final boolean						 _procStat	   = ProcStat.ENABLED;						  // 是否开启按事务类的运行统计
 	private static ExceptionHandler						 _defaultEh;											  // 默认的全局异常处理
 
-	private ProcThread _pt;	 // 事务所属的线程上下文. 只在事务运行中有效
-	private Object	   _sid; // 事务绑定的SessionId
+	private ProcContext						_ctx;					// 事务所属的上下文. 只在事务运行中有效
+	private Object							_sid;					// 事务绑定的SessionId
+	private ArrayList<AwaitResult>			_awaits;				// 已调用过的await结果. 挂起后重新运行时按调用顺序直接返回
+	private int								_awaitCount;			// 本次运行中调用await的次数
+	private volatile CompletableFuture<?>	_awaiting;				// 挂起时等待的异步结果. null表示没有挂起
+	private int[]							_suspendLockIdxes;		// 挂起时持有的锁下标
+	private long[]							_suspendLockVersions;	// 挂起时持有的锁版本号. 重新运行到挂起处时验证
+	private int								_redoCount;				// 挂起或退避延迟前已重做的次数. 重新运行时继续累计,用于限制总的重做次数
+	JfrEvents.ProcQueueWait					_queueEvent;			// 提交后排队等待运行的JFR事件. 只在开启JFR事件时使用
+	int									_priority = PriorityExecutor.NORMAL;	// 提交时指定的优先级. 挂起后按此优先级重新调度
 
 	static void incVersion(int lockId)
 	{
@@ -47,18 +78,27 @@ public abstract class Procedure implements Runnable
 	}
 
 	/**
-	 * 加提交的写锁
-	 * <p>
-	 * 用于提交线程暂停工作线程之用
+	 * 获取乐观事务({@link OptimisticProcedure})的冲突次数统计
 	 */
-	static void writeLock()
+	public static long getOptimisticConflictCount()
 	{
-		_rwlCommit.writeLock();
+		return _optConflicts.get();
 	}
 
-	static void writeUnlock()
+	/**
+	 * 获取检测到死锁而重做的次数统计
+	 */
+	public static long getDeadlockCount()
 	{
-		_rwlCommit.writeUnlock();
+		return _deadlocks.get();
+	}
+
+	/**
+	 * 获取事务等待异步结果({@link #await})而挂起的次数统计
+	 */
+	public static long getSuspendCount()
+	{
+		return _suspends.get();
 	}
 
 	/**
@@ -74,8 +114,8 @@ public abstract class Procedure implements Runnable
 	 */
 	public static Procedure getCurProcedure()
 	{
-		Thread t = Thread.currentThread();
-		return t instanceof ProcThread ? ((ProcThread)t).proc : null;
+		ProcContext ctx = ProcContext.current();
+		return ctx != null ? ctx.proc : null;
 	}
 
 	/**
@@ -98,12 +138,12 @@ public abstract class Procedure implements Runnable
 
 	protected final void addOnCommit(Runnable r)
 	{
-		_pt.sctx.addOnCommit(r);
+		_ctx.sctx.addOnCommit(r);
 	}
 
 	protected final void addOnRollback(Runnable r)
 	{
-		_pt.sctx.addOnRollback(r);
+		_ctx.sctx.addOnRollback(r);
 	}
 
 	/**
@@ -114,9 +154,9 @@ public abstract class Procedure implements Runnable
 	 */
 	protected final synchronized void setUnintterrupted()
 	{
-		ProcThread pt = _pt;
-		if (pt != null)
-			pt.beginTime = Long.MAX_VALUE;
+		ProcContext ctx = _ctx;
+		if (ctx != null)
+			ctx.beginTime = Long.MAX_VALUE;
 	}
 
 	@SuppressWarnings("serial")
@@ -145,6 +185,63 @@ public abstract class Procedure implements Runnable
 		}
 	}
 
+	@SuppressWarnings("serial")
+	private static final class Suspend extends Error
+	{
+		static final Suspend _instance = new Suspend();
+
+		@SuppressWarnings("sync-override")
+		@Override
+		public Throwable fillInStackTrace()
+		{
+			return this;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static final class BatchBreak extends Error
+	{
+		static final BatchBreak _instance = new BatchBreak();
+
+		@SuppressWarnings("sync-override")
+		@Override
+		public Throwable fillInStackTrace()
+		{
+			return this;
+		}
+	}
+
+	/**
+	 * 一次await的结果
+	 */
+	private static final class AwaitResult implements BiConsumer<Object, Throwable>
+	{
+		private Object	  _value; // 异步结果
+		private Throwable _error; // 异步结果的异常
+
+		@Override
+		public void accept(Object v, Throwable e)
+		{
+			_value = v;
+			_error = e;
+		}
+
+		@SuppressWarnings("unchecked")
+		<T> T get() throws Exception
+		{
+			Throwable e = _error;
+			if (e == null)
+				return (T)_value;
+			if (e instanceof CompletionException && e.getCause() != null)
+				e = e.getCause();
+			if (e instanceof Exception)
+				throw (Exception)e;
+			if (e instanceof Error)
+				throw (Error)e;
+			throw new ExecutionException(e);
+		}
+	}
+
 	public static Error redoException()
 	{
 		return Redo._instance;
@@ -168,14 +265,40 @@ public abstract class Procedure implements Runnable
 	@SuppressWarnings("deprecation")
 	public final <V extends Bean<V>, S extends Safe<V>> S lockGet(TableLong<V, S> t, long k) throws InterruptedException
 	{
-		appendLock(t.lockId(k));
+		ProcContext ctx = _ctx;
+		if (ctx != null && ctx.optimistic)
+		{
+			int lockIdx = t.lockId(k) & _lockMask;
+			if (readOptimistic(ctx, lockIdx))
+			{
+				V v = t.getCacheOnly(k);
+				if (v != null)
+					return v != t._deleted ? ctx.sctx.addRecord(t, k, v) : ctx.sctx.getRecord(t, k);
+			}
+			lockOptimistic(ctx, lockIdx); // cache中没有时需要加锁读取,以免并发加载出不同的对象
+			return t.getNoLock(k);
+		}
+		appendLock(ctx, t, t.lockId(k));
 		return t.getNoLock(k);
 	}
 
 	@SuppressWarnings("deprecation")
 	public final <K, V extends Bean<V>, S extends Safe<V>> S lockGet(Table<K, V, S> t, K k) throws InterruptedException
 	{
-		appendLock(t.lockId(k));
+		ProcContext ctx = _ctx;
+		if (ctx != null && ctx.optimistic)
+		{
+			int lockIdx = t.lockId(k) & _lockMask;
+			if (readOptimistic(ctx, lockIdx))
+			{
+				V v = t.getCacheOnly(k);
+				if (v != null)
+					return v != t._deleted ? ctx.sctx.addRecord(t, k, v) : ctx.sctx.getRecord(t, k);
+			}
+			lockOptimistic(ctx, lockIdx); // cache中没有时需要加锁读取,以免并发加载出不同的对象
+			return t.getNoLock(k);
+		}
+		appendLock(ctx, t, t.lockId(k));
 		return t.getNoLock(k);
 	}
 
@@ -221,6 +344,100 @@ public abstract class Procedure implements Runnable
 		return lockGetOrNew(t, k, t._deleted::create);
 	}
 
+	/**
+	 * 等待异步结果
+	 * <p>
+	 * 异步结果未完成时挂起当前事务: 回滚修改并解锁,释放线程. 异步结果完成后在原来的sid队列中(没有sid则通过事务执行器)从头重新运行onProcess<br>
+	 * 重新运行时,之前调用过的await按调用顺序直接返回记录的结果,不再调用supplier. 因此onProcess中调用await的顺序必须是确定的<br>
+	 * 重新运行到挂起处时,如果挂起时持有的锁没有再次持有,或者其版本号有变化(记录被其它事务修改过),则丢弃所有await结果并重做,重新发起异步请求<br>
+	 * 挂起期间同一sid队列中的后续事务会等待,所以异步结果必须保证最终会完成(如带超时的askAsync). 等待异步结果的事务不使用乐观模式
+	 * @param supplier 发起异步请求并返回其结果. 返回null视为结果是null
+	 * @return 异步结果. 异步结果异常完成时抛出该异常
+	 */
+	protected final <T> T await(Supplier<? extends CompletableFuture<? extends T>> supplier) throws Exception
+	{
+		ProcContext ctx = _ctx;
+		if (ctx == null)
+			throw new IllegalStateException("invalid await out of procedure");
+		if (ctx.batching) // 合并运行时不能挂起,放回队列后单独运行
+			throw BatchBreak._instance;
+		if (ctx.optimistic) // 挂起恢复时只能验证持有的锁,所以改用普通的加锁方式重做
+		{
+			ctx.optimistic = false;
+			redo();
+		}
+		ArrayList<AwaitResult> awaits = _awaits;
+		int i = _awaitCount++;
+		if (awaits != null && i < awaits.size())
+		{
+			if (i == awaits.size() - 1 && _suspendLockIdxes != null) // 重新运行到了上次挂起处
+			{
+				boolean valid = validateSuspendLocks();
+				_suspendLockIdxes = null;
+				_suspendLockVersions = null;
+				if (!valid)
+				{
+					awaits.clear();
+					Log.info("procedure records modified while suspended, redo: {}", toString());
+					redo();
+				}
+			}
+			return awaits.get(i).get();
+		}
+		if (awaits == null)
+			_awaits = awaits = new ArrayList<>();
+		AwaitResult ar = new AwaitResult();
+		awaits.add(ar);
+		CompletableFuture<? extends T> f = supplier.get();
+		if (f != null)
+		{
+			CompletableFuture<?> cf = f.whenComplete(ar);
+			if (!cf.isDone())
+			{
+				_awaiting = cf;
+				throw Suspend._instance;
+			}
+		}
+		return ar.get();
+	}
+
+	/**
+	 * 判断事务是否因等待异步结果({@link #await})或重做退避的延迟而挂起
+	 */
+	public final boolean isSuspended()
+	{
+		return _awaiting != null;
+	}
+
+	/**
+	 * 事务挂起后,在等待的异步结果完成时调用r来恢复运行事务
+	 * <p>
+	 * 只能在{@link #execute0}返回后调用. 调度运行和{@link #execute}都会自动恢复,用户不需要调用
+	 * @return 事务没有挂起时返回false
+	 */
+	final boolean resumeOnComplete(Runnable r)
+	{
+		CompletableFuture<?> f = _awaiting;
+		if (f == null)
+			return false;
+		f.whenComplete((__, ___) ->
+		{
+			_awaiting = null;
+			try
+			{
+				r.run();
+			}
+			catch (Throwable e)
+			{
+				if (e instanceof RejectedExecutionException && DBManager.instance().isExiting())
+					Log.info("procedure resume canceled: {}", toString());
+				else
+					Log.error(e, "procedure resume fatal exception: {}", toString());
+			}
+		});
+		return true;
+	}
+
 	public static void check(boolean a, boolean b)
 	{
 		if (a != b)
@@ -312,13 +529,15 @@ public abstract class Procedure implements Runnable
 	 */
 	protected final void unlock()
 	{
-		ProcThread pt = _pt;
-		if (pt == null)
+		ProcContext ctx = _ctx;
+		if (ctx == null)
 			throw new IllegalStateException("invalid lock/unlock out of procedure");
-		int lockCount = pt.lockCount;
+		int lockCount = ctx.lockCount;
 		if (lockCount == 0)
 			return;
-		IndexLock[] locks = pt.locks;
+		if (ctx.batching) // 合并运行时不能释放之前事务的锁,放回队列后单独运行
+			throw BatchBreak._instance;
+		IndexLock[] locks = ctx.locks;
 		for (int i = lockCount - 1; i >= 0; --i)
 		{
 			try
@@ -330,8 +549,8 @@ public abstract class Procedure implements Runnable
 				Log.error("UNLOCK FAILED!!!", e);
 			}
 		}
-		pt.lockCount = 0;
-		if (pt.sctx.hasDirty())
+		ctx.lockCount = 0;
+		if (ctx.sctx.hasDirty())
 			throw new IllegalStateException("invalid unlock after any dirty record");
 	}
 
@@ -376,6 +595,18 @@ public abstract class Procedure implements Runnable
 		return lock.tryLock() ? lock : null;
 	}
 
+	/**
+	 * 等待并加锁一个lockId
+	 * <p>
+	 * 只用于内部提交数据,不能在事务中调用
+	 */
+	static IndexLock waitLock(int lockId)
+	{
+		IndexLock lock = getLock(lockId & _lockMask);
+		lock.lock();
+		return lock;
+	}
+
 	/**
 	 * 加锁一个lockId
 	 * <p>
@@ -385,9 +616,272 @@ public abstract class Procedure implements Runnable
 	protected final void lock(int lockId) throws InterruptedException
 	{
 		unlock();
-		ProcThread pt = _pt;
-		(pt.locks[0] = getLock(lockId & _lockMask)).lockInterruptibly();
-		pt.lockCount = 1;
+		ProcContext ctx = _ctx;
+		lockWait(ctx, ctx.locks[0] = getLock(lockId & _lockMask));
+		ctx.lockCount = 1;
+	}
+
+	/**
+	 * 等待加锁
+	 * <p>
+	 * 每等待一段时间检测一次死锁,如果当前事务是死锁环中最晚开始的事务则抛出Redo异常,回滚解锁后重做
+	 */
+	private static void lockWait(ProcContext ctx, IndexLock lock) throws InterruptedException
+	{
+		int waitMs = Const.procedureDeadlockDetectWait;
+		if (waitMs <= 0 && !_lockProfile && !_procStat && !JfrEvents.ENABLED)
+		{
+			lock.lockInterruptibly();
+			return;
+		}
+		if (lock.tryLock())
+			return;
+		long profileTime = (_lockProfile ? LockProfiler.beginWait(ctx, lock) : 0);
+		long waitTime = (_procStat ? System.nanoTime() : 0);
+		JfrEvents.LockWait event = JfrEvents.beginLockWait();
+		if (waitMs <= 0)
+			lock.lockInterruptibly();
+		else
+		{
+			ctx.waitLock = lock;
+			try
+			{
+				while (!lock.tryLock(waitMs, TimeUnit.MILLISECONDS))
+				{
+					if (ctx.isDeadlockVictim())
+					{
+						_deadlocks.getAndIncrement();
+						Log.info("procedure deadlock detected, redo: {}", ctx.proc);
+						redo();
+					}
+				}
+			}
+			finally
+			{
+				ctx.waitLock = null;
+			}
+		}
+		if (profileTime != 0)
+			LockProfiler.endWait(ctx, lock, profileTime);
+		if (waitTime != 0)
+			ctx.lockWaitNanos += System.nanoTime() - waitTime;
+		JfrEvents.endLockWait(event, ctx, lock.index);
+	}
+
+	/**
+	 * 重做前按procRedoBackoff退避,减少高竞争时反复冲突的活锁
+	 * @param redoCount 已重做的次数(>0)
+	 * @return 需要回滚解锁后延迟重新调度时返回true,此时已设置好挂起等待的定时结果
+	 */
+	private boolean redoBackoff(int redoCount)
+	{
+		switch (Const.procRedoBackoff)
+		{
+		case 1: // 自旋等待
+			for (int i = 1 << Math.min(redoCount, 10); i > 0; --i)
+				Thread.onSpinWait();
+			return false;
+		case 2: // 让出线程
+			Thread.yield();
+			return false;
+		case 3: // 延迟随机时间后重新调度
+			int maxMs = Math.min(1 << Math.min(redoCount - 1, 20), Const.procRedoBackoffMaxMs);
+			CompletableFuture<Object> f = new CompletableFuture<>();
+			_awaiting = f;
+			NetManager.scheduleMs(maxMs / 2 + ThreadLocalRandom.current().nextInt(maxMs - maxMs / 2) + 1, () -> f.complete(null));
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * 乐观模式下无锁读取前记录锁的版本号
+	 * <p>
+	 * 发现锁已被其它事务持有时视为冲突
+	 * @return 当前线程已持有此锁时返回false,此时不需要记录版本号
+	 */
+	private static boolean readOptimistic(ProcContext ctx, int lockIdx)
+	{
+		IndexLock lock = getLock(lockIdx);
+		if (lock.isHeldByCurrentThread())
+			return false;
+		long version = _lockVersions.get(lockIdx);
+		if (lock.isLocked())
+			conflict(ctx);
+		ctx.addRead(lockIdx, version);
+		return true;
+	}
+
+	/**
+	 * 乐观模式下追加一个锁
+	 * <p>
+	 * 只尝试加锁而不等待,因此不需要按顺序加锁,但仍然按顺序插入以兼容appendLock. 加锁失败时视为冲突<br>
+	 * 加锁成功后验证之前无锁读取时的版本号,验证过的读取记录不再参与提交前的验证
+	 */
+	private static void lockOptimistic(ProcContext ctx, int lockIdx)
+	{
+		final IndexLock[] locks = ctx.locks;
+		final int n = ctx.lockCount;
+		int i = n;
+		for (; i > 0; --i) // 算出需要插入锁的下标位置i时跳出循环
+		{
+			int idx = locks[i - 1].index;
+			if (idx <= lockIdx)
+			{
+				if (idx == lockIdx)
+					return; // 之前加过当前锁则直接返回
+				break;
+			}
+		}
+		if (n >= Const.maxLockPerProcedure)
+			throw new IllegalStateException("appendLock exceed: " + (n + 1) + '>' + Const.maxLockPerProcedure);
+		IndexLock lock = getLock(lockIdx);
+		if (!lock.tryLock())
+			conflict(ctx);
+		System.arraycopy(locks, i, locks, i + 1, n - i);
+		locks[i] = lock;
+		ctx.lockCount = n + 1;
+		final int[] idxes = ctx.readIdxes;
+		final long[] versions = ctx.readVersions;
+		final long version = _lockVersions.get(lockIdx);
+		for (int j = ctx.readCount - 1; j >= 0; --j)
+		{
+			if (idxes[j] == lockIdx)
+			{
+				if (versions[j] != version)
+					conflict(ctx);
+				versions[j] = -1; // 已加锁并验证过
+			}
+		}
+	}
+
+	/**
+	 * 乐观事务首次修改记录时的加锁
+	 * <p>
+	 * 由记录和表的加锁检查调用. 加锁失败或之前读到的版本号已变化时抛出Redo异常
+	 * @return 当前不在乐观模式的事务中时返回false
+	 */
+	static boolean lockForWrite(int lockId)
+	{
+		ProcContext ctx = ProcContext.current();
+		if (ctx == null || !ctx.optimistic)
+			return false;
+		lockOptimistic(ctx, lockId & _lockMask);
+		return true;
+	}
+
+	/**
+	 * 验证乐观模式下所有无锁读取的记录在读取后没有被修改,也没有被其它事务加锁
+	 */
+	private static boolean validateReads(ProcContext ctx)
+	{
+		VarHandle.acquireFence(); // 确保之前的无锁读取不会重排到下面读版本号之后
+		final int[] idxes = ctx.readIdxes;
+		final long[] versions = ctx.readVersions;
+		for (int i = 0, n = ctx.readCount; i < n; ++i)
+		{
+			long version = versions[i];
+			if (version < 0)
+				continue;
+			int lockIdx = idxes[i];
+			IndexLock lock = getLock(lockIdx);
+			if (_lockVersions.get(lockIdx) != version || lock.isLocked() && !lock.isHeldByCurrentThread())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 乐观事务发生冲突时调用,之后的重做改用普通的加锁方式
+	 */
+	private static void onConflict(ProcContext ctx)
+	{
+		ctx.optimistic = false;
+		_optConflicts.getAndIncrement();
+	}
+
+	private static void conflict(ProcContext ctx)
+	{
+		onConflict(ctx);
+		throw Redo._instance;
+	}
+
+	/**
+	 * 回滚当前事务的修改
+	 * <p>
+	 * 有修改时先增加已加锁的版本号,因为回滚不会增加版本号,而乐观事务可能无锁读到了回滚前的修改
+	 */
+	private static void rollback(ProcContext ctx)
+	{
+		SContext sctx = ctx.sctx;
+		if (sctx.hasDirty())
+		{
+			IndexLock[] locks = ctx.locks;
+			for (int i = ctx.lockCount - 1; i >= 0; --i)
+				_lockVersions.getAndIncrement(locks[i].index);
+		}
+		sctx.rollback();
+	}
+
+	/**
+	 * 挂起当前事务
+	 * <p>
+	 * 回滚后记录仍持有的锁和版本号,之后由执行结束时统一解锁
+	 */
+	private void suspend(ProcContext ctx)
+	{
+		rollback(ctx);
+		int n = ctx.lockCount;
+		IndexLock[] locks = ctx.locks;
+		int[] idxes = new int[n];
+		long[] versions = new long[n];
+		for (int i = 0; i < n; ++i)
+		{
+			int lockIdx = locks[i].index;
+			idxes[i] = lockIdx;
+			versions[i] = _lockVersions.get(lockIdx);
+		}
+		_suspendLockIdxes = idxes;
+		_suspendLockVersions = versions;
+		_suspends.getAndIncrement();
+	}
+
+	/**
+	 * 验证挂起时持有的锁都已重新持有,并且版本号没有变化
+	 */
+	private boolean validateSuspendLocks()
+	{
+		final int[] idxes = _suspendLockIdxes;
+		final long[] versions = _suspendLockVersions;
+		for (int i = idxes.length - 1; i >= 0; --i)
+		{
+			int lockIdx = idxes[i];
+			if (!getLock(lockIdx).isHeldByCurrentThread() || _lockVersions.get(lockIdx) != versions[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 同appendLock,开启锁竞争采样时记录正在加锁的记录所属的表. 加锁异常时也要清除,以免采样被错误地归到此表
+	 */
+	private void appendLock(ProcContext ctx, TableBase<?> t, int lockId) throws InterruptedException
+	{
+		if (_lockProfile && ctx != null)
+		{
+			ctx.lockTable = t;
+			try
+			{
+				appendLock(lockId);
+			}
+			finally
+			{
+				ctx.lockTable = null;
+			}
+		}
+		else
+			appendLock(lockId);
 	}
 
 	/**
@@ -398,17 +892,17 @@ public abstract class Procedure implements Runnable
 	 */
 	protected final void appendLock(int lockId) throws InterruptedException
 	{
-		final ProcThread pt = _pt;
-		if (pt == null)
+		final ProcContext ctx = _ctx;
+		if (ctx == null)
 			throw new IllegalStateException("invalid appendLock out of procedure");
-		final IndexLock[] locks = pt.locks;
+		final IndexLock[] locks = ctx.locks;
 		final int lockIdx = lockId & _lockMask;
-		final int n = pt.lockCount;
+		final int n = ctx.lockCount;
 		IndexLock lock = getLock(lockIdx);
 		if (n == 0)
 		{
-			(locks[0] = lock).lockInterruptibly(); // 之前没有加任何锁则可以直接加锁
-			pt.lockCount = 1;
+			lockWait(ctx, locks[0] = lock); // 之前没有加任何锁则可以直接加锁
+			ctx.lockCount = 1;
 			return;
 		}
 		IndexLock lastLock = locks[n - 1];
@@ -418,9 +912,13 @@ public abstract class Procedure implements Runnable
 			if (lastLockIdx != lockIdx)
 			{
 				if (n >= Const.maxLockPerProcedure)
+				{
+					if (ctx.batching)
+						throw BatchBreak._instance;
 					throw new IllegalStateException("appendLock exceed: " + (n + 1) + '>' + Const.maxLockPerProcedure);
-				(locks[n] = lock).lockInterruptibly(); // 要加的锁比之前的锁都大则直接加锁
-				pt.lockCount = n + 1;
+				}
+				lockWait(ctx, locks[n] = lock); // 要加的锁比之前的锁都大则直接加锁
+				ctx.lockCount = n + 1;
 			}
 			return;
 		}
@@ -436,32 +934,38 @@ public abstract class Procedure implements Runnable
 			}
 		}
 		if (n >= Const.maxLockPerProcedure)
+		{
+			if (ctx.batching)
+				throw BatchBreak._instance;
 			throw new IllegalStateException("appendLock exceed: " + (n + 1) + '>' + Const.maxLockPerProcedure);
+		}
 		if (lock.tryLock()) // 尝试直接加锁,成功则直接按顺序插入锁
 		{
 			for (int j = n - 1; j >= i; --j)
 				locks[j + 1] = locks[j];
 			locks[i] = lock;
-			pt.lockCount = n + 1;
+			ctx.lockCount = n + 1;
 			return;
 		}
-		if (pt.sctx.hasDirty()) // 必须要解部分锁了,所以确保之前不能有修改操作
+		if (ctx.batching) // 合并运行时不能为了按顺序加锁而解开之前事务的锁,放回队列后单独运行
+			throw BatchBreak._instance;
+		if (ctx.sctx.hasDirty()) // 必须要解部分锁了,所以确保之前不能有修改操作
 			throw new IllegalStateException("invalid appendLock after any dirty record");
-		final long[] versions = pt.versions;
+		final long[] versions = ctx.versions;
 		for (int j = n - 1; j >= i; --j)
 		{
 			lastLock = locks[j];
 			versions[j] = _lockVersions.get(lastLock.index);
 			lastLock.unlock(); // 尝试解所有比当前锁大的锁
 		}
-		pt.lockCount = i;
-		(locks[i] = lock).lockInterruptibly(); // 加当前锁
-		pt.lockCount = ++i;
+		ctx.lockCount = i;
+		lockWait(ctx, locks[i] = lock); // 加当前锁
+		ctx.lockCount = ++i;
 		for (;;)
 		{
 			lock = locks[i];
-			(locks[i] = lastLock).lockInterruptibly(); // 继续加比当前锁大的所有锁
-			pt.lockCount = ++i;
+			lockWait(ctx, locks[i] = lastLock); // 继续加比当前锁大的所有锁
+			ctx.lockCount = ++i;
 			if (_lockVersions.get(lastLock.index) != versions[i - 2])
 				redo(); // 发现解锁和加锁期间有版本变化则回滚重做
 			if (i > n)
@@ -486,12 +990,12 @@ public abstract class Procedure implements Runnable
 		for (int i = 0; i < n; ++i)
 			lockIds[i] &= _lockMask;
 		Arrays.sort(lockIds);
-		ProcThread pt = _pt;
-		IndexLock[] locks = pt.locks;
+		ProcContext ctx = _ctx;
+		IndexLock[] locks = ctx.locks;
 		for (int i = 0; i < n;)
 		{
-			(locks[i] = getLock(lockIds[i])).lockInterruptibly();
-			pt.lockCount = ++i;
+			lockWait(ctx, locks[i] = getLock(lockIds[i]));
+			ctx.lockCount = ++i;
 		}
 	}
 
@@ -522,12 +1026,12 @@ public abstract class Procedure implements Runnable
 				idxes[i++] = lockId & _lockMask;
 		}
 		Arrays.sort(idxes);
-		ProcThread pt = _pt;
-		IndexLock[] locks = pt.locks;
+		ProcContext ctx = _ctx;
+		IndexLock[] locks = ctx.locks;
 		for (i = 0; i < n;)
 		{
-			(locks[i] = getLock(idxes[i])).lockInterruptibly();
-			pt.lockCount = ++i;
+			lockWait(ctx, locks[i] = getLock(idxes[i]));
+			ctx.lockCount = ++i;
 		}
 	}
 
@@ -556,22 +1060,22 @@ public abstract class Procedure implements Runnable
 	 */
 	private void lock2(int lockIdx0, int lockIdx1) throws InterruptedException
 	{
-		ProcThread pt = _pt;
-		IndexLock[] locks = pt.locks;
-		int i = pt.lockCount;
+		ProcContext ctx = _ctx;
+		IndexLock[] locks = ctx.locks;
+		int i = ctx.lockCount;
 		if (lockIdx0 < lockIdx1)
 		{
-			(locks[i] = getLock(lockIdx0)).lockInterruptibly();
-			pt.lockCount = ++i;
-			(locks[i] = getLock(lockIdx1)).lockInterruptibly();
-			pt.lockCount = ++i;
+			lockWait(ctx, locks[i] = getLock(lockIdx0));
+			ctx.lockCount = ++i;
+			lockWait(ctx, locks[i] = getLock(lockIdx1));
+			ctx.lockCount = ++i;
 		}
 		else
 		{
-			(locks[i] = getLock(lockIdx1)).lockInterruptibly();
-			pt.lockCount = ++i;
-			(locks[i] = getLock(lockIdx0)).lockInterruptibly();
-			pt.lockCount = ++i;
+			lockWait(ctx, locks[i] = getLock(lockIdx1));
+			ctx.lockCount = ++i;
+			lockWait(ctx, locks[i] = getLock(lockIdx0));
+			ctx.lockCount = ++i;
 		}
 	}
 
@@ -581,43 +1085,43 @@ public abstract class Procedure implements Runnable
 	 */
 	private void lock3(int lockIdx0, int lockIdx1, int lockIdx2) throws InterruptedException
 	{
-		ProcThread pt = _pt;
-		IndexLock[] locks = pt.locks;
-		int i = pt.lockCount;
+		ProcContext ctx = _ctx;
+		IndexLock[] locks = ctx.locks;
+		int i = ctx.lockCount;
 		if (lockIdx0 <= lockIdx1)
 		{
 			if (lockIdx0 < lockIdx2)
 			{
-				(locks[i] = getLock(lockIdx0)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockIdx0));
+				ctx.lockCount = ++i;
 				lock2(lockIdx1, lockIdx2);
 			}
 			else
 			{
-				(locks[i] = getLock(lockIdx2)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockIdx0)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockIdx1)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockIdx2));
+				ctx.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockIdx0));
+				ctx.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockIdx1));
+				ctx.lockCount = ++i;
 			}
 		}
 		else
 		{
 			if (lockIdx1 < lockIdx2)
 			{
-				(locks[i] = getLock(lockIdx1)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockIdx1));
+				ctx.lockCount = ++i;
 				lock2(lockIdx0, lockIdx2);
 			}
 			else
 			{
-				(locks[i] = getLock(lockIdx2)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockIdx1)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockIdx0)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockIdx2));
+				ctx.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockIdx1));
+				ctx.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockIdx0));
+				ctx.lockCount = ++i;
 			}
 		}
 	}
@@ -662,8 +1166,8 @@ public abstract class Procedure implements Runnable
 		lockId1 &= _lockMask;
 		lockId2 &= _lockMask;
 		lockId3 &= _lockMask;
-		ProcThread pt = _pt;
-		IndexLock[] locks = pt.locks;
+		ProcContext ctx = _ctx;
+		IndexLock[] locks = ctx.locks;
 		int i = 0;
 		if (lockId0 <= lockId1)
 		{
@@ -671,49 +1175,49 @@ public abstract class Procedure implements Runnable
 			{
 				if (lockId0 < lockId3)
 				{
-					(locks[i] = getLock(lockId0)).lockInterruptibly();
-					pt.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId0));
+					ctx.lockCount = ++i;
 					lock3(lockId1, lockId2, lockId3);
 				}
 				else
 				{
-					(locks[i] = getLock(lockId3)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId0)).lockInterruptibly();
-					pt.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId3));
+					ctx.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId0));
+					ctx.lockCount = ++i;
 					lock2(lockId1, lockId2);
 				}
 			}
 			else if (lockId2 < lockId3)
 			{
-				(locks[i] = getLock(lockId2)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockId2));
+				ctx.lockCount = ++i;
 				if (lockId0 < lockId3)
 				{
-					(locks[i] = getLock(lockId0)).lockInterruptibly();
-					pt.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId0));
+					ctx.lockCount = ++i;
 					lock2(lockId1, lockId3);
 				}
 				else
 				{
-					(locks[i] = getLock(lockId3)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId0)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId1)).lockInterruptibly();
-					pt.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId3));
+					ctx.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId0));
+					ctx.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId1));
+					ctx.lockCount = ++i;
 				}
 			}
 			else
 			{
-				(locks[i] = getLock(lockId3)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId2)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId0)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId1)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockId3));
+				ctx.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockId2));
+				ctx.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockId0));
+				ctx.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockId1));
+				ctx.lockCount = ++i;
 			}
 		}
 		else
@@ -722,49 +1226,49 @@ public abstract class Procedure implements Runnable
 			{
 				if (lockId1 < lockId3)
 				{
-					(locks[i] = getLock(lockId1)).lockInterruptibly();
-					pt.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId1));
+					ctx.lockCount = ++i;
 					lock3(lockId0, lockId2, lockId3);
 				}
 				else
 				{
-					(locks[i] = getLock(lockId3)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId1)).lockInterruptibly();
-					pt.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId3));
+					ctx.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId1));
+					ctx.lockCount = ++i;
 					lock2(lockId0, lockId2);
 				}
 			}
 			else if (lockId2 < lockId3)
 			{
-				(locks[i] = getLock(lockId2)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockId2));
+				ctx.lockCount = ++i;
 				if (lockId1 < lockId3)
 				{
-					(locks[i] = getLock(lockId1)).lockInterruptibly();
-					pt.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId1));
+					ctx.lockCount = ++i;
 					lock2(lockId0, lockId3);
 				}
 				else
 				{
-					(locks[i] = getLock(lockId3)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId1)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId0)).lockInterruptibly();
-					pt.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId3));
+					ctx.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId1));
+					ctx.lockCount = ++i;
+					lockWait(ctx, locks[i] = getLock(lockId0));
+					ctx.lockCount = ++i;
 				}
 			}
 			else
 			{
-				(locks[i] = getLock(lockId3)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId2)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId1)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId0)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockId3));
+				ctx.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockId2));
+				ctx.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockId1));
+				ctx.lockCount = ++i;
+				lockWait(ctx, locks[i] = getLock(lockId0));
+				ctx.lockCount = ++i;
 			}
 		}
 	}
@@ -779,63 +1283,189 @@ public abstract class Procedure implements Runnable
 	{
 		try
 		{
-			execute();
+			if (execute0() == EXECUTE_SUSPENDED)
+				resumeOnComplete(() -> DBManager.instance().getProcExecutor(_priority).execute(this)); // 挂起时,异步结果完成后按原优先级重新调度
+		}
+		catch (Throwable e)
+		{
+			Log.error(e, "procedure fatal exception: {}", toString());
+		}
+	}
+
+	/**
+	 * 同{@link #run},但在事务真正运行结束时完成future
+	 * <p>
+	 * 挂起时不完成future,异步结果完成后重新调度,恢复运行并结束后才完成. 运行前future已取消则不再运行
+	 */
+	final void run(CompletableFuture<?> f)
+	{
+		if (f.isDone())
+			return;
+		try
+		{
+			if (execute0() == EXECUTE_SUSPENDED)
+			{
+				resumeOnComplete(() ->
+				{
+					try
+					{
+						DBManager.instance().getProcExecutor(_priority).execute(() -> run(f));
+					}
+					catch (Throwable e)
+					{
+						f.completeExceptionally(e); // 无法恢复运行时也要结束future,以免等待者永远等待
+						throw e;
+					}
+				});
+				return;
+			}
 		}
 		catch (Throwable e)
 		{
 			Log.error(e, "procedure fatal exception: {}", toString());
 		}
+		f.complete(null);
 	}
 
 	/**
 	 * 事务的运行入口
 	 * <p>
-	 * 必须在ProcThread类的线程上运行. 一般应通过调度来运行({@link DBManager#submit})<br>
-	 * 如果确保没有顺序问题,也可以由用户直接调用,但不能在事务中嵌套调用
+	 * 一般应通过调度来运行({@link DBManager#submit}). 在ProcThread以外的线程(如虚拟线程)上运行时,会临时绑定一个事务上下文<br>
+	 * 如果确保没有顺序问题,也可以由用户直接调用,但不能在事务中嵌套调用<br>
+	 * 事务因等待异步结果({@link #await})或重做退避(procRedoBackoff=3)而挂起时,当前线程会等待异步结果完成后继续运行,事务结束后才返回
+	 * @return 事务提交时返回true,因异常,撤销或取消而结束时返回false
 	 */
 	public boolean execute() throws Exception
+	{
+		for (int r;;)
+		{
+			if ((r = execute0()) != EXECUTE_SUSPENDED)
+				return r == EXECUTE_COMMITTED;
+			try
+			{
+				_awaiting.get();
+			}
+			catch (ExecutionException | CancellationException e) // 异步结果的异常在恢复运行时由await抛出
+			{
+			}
+			catch (InterruptedException e)
+			{
+				_awaiting = null;
+				clearAwaits();
+				Log.info("procedure canceled while suspended: {}", toString());
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			_awaiting = null;
+		}
+	}
+
+	/**
+	 * 事务结束(没有挂起)时清除await的结果和挂起时记录的锁版本,以便事务对象可以再次运行
+	 */
+	private void clearAwaits()
+	{
+		_awaits = null;
+		_suspendLockIdxes = null;
+		_suspendLockVersions = null;
+		_redoCount = 0;
+	}
+
+	/**
+	 * 运行一次事务,挂起时立即返回
+	 * <p>
+	 * 供调度和恢复运行使用,挂起时由调用者通过{@link #resumeOnComplete}在异步结果完成后再次调用
+	 * @return {@link #EXECUTE_COMMITTED},{@link #EXECUTE_FAILED}或{@link #EXECUTE_SUSPENDED}
+	 */
+	final int execute0() throws Exception
 	{
 		if (DBManager.instance().isExiting())
 		{
 			Log.info("procedure canceled: {}", toString());
-			return false;
+			return EXECUTE_FAILED;
 		}
-		ProcThread pt = (ProcThread)Thread.currentThread();
-		SContext sctx = pt.sctx;
-		_rwlCommit.readLock();
+		if (_queueEvent != null)
+		{
+			JfrEvents.endProcQueueWait(_queueEvent, this);
+			_queueEvent = null;
+		}
+		ProcContext ctx = ProcContext.current();
+		boolean bound = (ctx == null);
+		if (bound)
+			ctx = ProcContext.bind();
+		SContext sctx = ctx.sctx;
+		int epoch = CommitEpoch.enter();
+		int redoStart = _redoCount;
+		int redoCount = redoStart;
+		int undoOrError = 0; // 1:撤销; 2:异常
+		boolean owned = false; // 此次调用是否已占有事务对象. 嵌套或并发调用时没有占有,结束时不能清理其它调用的状态
 		try
 		{
 			synchronized (this)
 			{
-				if (pt.proc != null) // 防止嵌套调用
+				if (ctx.proc != null) // 防止嵌套调用
 					throw new IllegalStateException("procedure can not be reentrant: " + toString());
-				if (_pt != null) // 防止多线程并发
+				if (_ctx != null) // 防止多线程并发
 					throw new IllegalStateException("procedure is running already: " + toString());
-				pt.beginTime = NetManager.getTimeSec();
-				pt.proc = this;
-				_pt = pt;
+				ctx.epoch = epoch;
+				ctx.beginTime = NetManager.getTimeSec();
+				ctx.beginNanoTime = System.nanoTime();
+				ctx.lockWaitNanos = 0;
+				ctx.proc = this;
+				_ctx = ctx;
+				owned = true;
 			}
-			for (int n = Const.maxProceduerRedo;;)
+			if (this instanceof ReadOnlyProcedure)
+				sctx.setReadOnly(true);
+			else if (this instanceof OptimisticProcedure && _awaits == null)
+				ctx.optimistic = true;
+			for (;;)
 			{
 				try
 				{
+					_awaitCount = 0;
 					onProcess();
-					break;
+					if (ctx.readCount == 0 || validateReads(ctx)) // 此时已持有所有写锁,验证通过即可提交
+						break;
+					onConflict(ctx);
 				}
 				catch (Redo e)
 				{
 				}
-				sctx.rollback();
+				catch (Suspend e)
+				{
+					suspend(ctx);
+					return EXECUTE_SUSPENDED;
+				}
+				catch (Throwable e)
+				{
+					if (ctx.readCount == 0 || validateReads(ctx))
+						throw e;
+					onConflict(ctx); // 无锁读到了不一致的数据而导致的异常,按冲突重做
+				}
+				rollback(ctx);
 				unlock();
-				if (--n <= 0)
+				ctx.readCount = 0;
+				if (epoch != CommitEpoch.current()) // 与新一轮次的修改冲突而重做时,以新一轮次的事务重新运行
+				{
+					CommitEpoch.exit(epoch);
+					ctx.epoch = epoch = CommitEpoch.enter();
+				}
+				if (++redoCount >= Const.maxProceduerRedo)
 					throw new Exception("procedure redo too many times=" + Const.maxProceduerRedo + ": " + toString());
-				Log.info("procedure redo({}): {}", Const.maxProceduerRedo - n, toString());
+				Log.info("procedure redo({}): {}", redoCount, toString());
+				if (Const.procRedoBackoff > 0 && redoBackoff(redoCount))
+					return EXECUTE_SUSPENDED; // 已回滚解锁,定时结果完成后同挂起一样恢复运行
 			}
-			sctx.commit();
-			return true;
+			if (this instanceof BatchProcedure)
+				executeBatch(ctx, (BatchProcedure)this);
+			else
+				sctx.commit();
+			return EXECUTE_COMMITTED;
 		}
 		catch (Throwable e)
 		{
+			undoOrError = (e == Undo._instance ? 1 : 2);
 			try
 			{
 				if (e instanceof InterruptedException && DBManager.instance().isExiting())
@@ -849,21 +1479,148 @@ public abstract class Procedure implements Runnable
 			}
 			finally
 			{
-				sctx.rollback();
+				if (owned)
+					rollback(ctx);
 			}
-			return false;
+			return EXECUTE_FAILED;
 		}
 		finally // 以下代码绝不能抛出异常
 		{
-			if (_pt != null)
+			if (owned)
+			{
+				if (_awaiting == null) // 没有挂起则运行结束,清除await结果以便事务对象可以再次运行
+					clearAwaits();
+				else
+					_redoCount = redoCount;
+				sctx.setReadOnly(false);
+				ctx.optimistic = false;
+				ctx.readCount = 0;
 				unlock();
-			synchronized (this)
+				if (_procStat)
+					ProcStat.record(this, System.nanoTime() - ctx.beginNanoTime, ctx.lockWaitNanos, redoCount - redoStart, undoOrError == 1, undoOrError == 2);
+				synchronized (this)
+				{
+					_ctx = null;
+					ctx.proc = null;
+				}
+			}
+			Thread.interrupted(); // 清除interrupted标识
+			CommitEpoch.exit(epoch);
+			if (bound)
+				ctx.unbind();
+		}
+	}
+
+	/**
+	 * 在当前事务中继续运行同一sid队列中紧接着的可合并事务
+	 * <p>
+	 * 每个事务运行前设置保存点,异常或undo时只回滚此事务的修改. 需要单独运行的事务会放回队列头部并结束合并<br>
+	 * 最后提交整批事务. 提交失败时已合并运行的事务会随整批回滚,放回队列头部以便之后单独运行
+	 */
+	private static void executeBatch(ProcContext ctx, BatchProcedure first)
+	{
+		SContext sctx = ctx.sctx;
+		ProcQueue q = first._batchQueue;
+		if (q == null)
+		{
+			sctx.commit();
+			return;
+		}
+		ArrayList<Procedure> merged = null; // 已合并运行且没有撤销或异常的事务
+		int count = 0;
+		try
+		{
+			for (int n = first._batchMax; count < n && !q.stopped; ++count)
+			{
+				Procedure p = q.pollBatch();
+				if (p == null)
+					break;
+				synchronized (p)
+				{
+					if (p._ctx != null) // 防止多线程并发
+					{
+						q.unpoll(p);
+						break;
+					}
+					ctx.beginTime = NetManager.getTimeSec();
+					ctx.proc = p;
+					p._ctx = ctx;
+				}
+				if (p._queueEvent != null)
+				{
+					JfrEvents.endProcQueueWait(p._queueEvent, p);
+					p._queueEvent = null;
+				}
+				long beginNanoTime = (_procStat ? System.nanoTime() : 0);
+				long lockWaitNanos = ctx.lockWaitNanos;
+				int undoOrError = 0; // 1:撤销; 2:异常; 3:需要单独运行
+				sctx.savepoint();
+				ctx.batching = true;
+				try
+				{
+					p.onProcess();
+				}
+				catch (Undo e)
+				{
+					sctx.rollbackToSavepoint();
+					undoOrError = 1;
+				}
+				catch (BatchBreak | Redo e)
+				{
+					sctx.rollbackToSavepoint();
+					undoOrError = 3;
+				}
+				catch (Throwable e)
+				{
+					sctx.rollbackToSavepoint();
+					undoOrError = 2;
+					try
+					{
+						p.onException(e);
+					}
+					catch (Throwable ex)
+					{
+						Log.error(ex, "procedure.onException exception: {}", p.toString());
+					}
+				}
+				finally
+				{
+					ctx.batching = false;
+					synchronized (p)
+					{
+						p._ctx = null;
+						ctx.proc = first;
+					}
+				}
+				if (undoOrError == 3)
+				{
+					q.unpoll(p);
+					break;
+				}
+				if (_procStat)
+					ProcStat.record(p, System.nanoTime() - beginNanoTime, ctx.lockWaitNanos - lockWaitNanos, 0, undoOrError == 1, undoOrError == 2);
+				if (undoOrError == 0)
+				{
+					if (merged == null)
+						merged = new ArrayList<>();
+					merged.add(p);
+				}
+			}
+			sctx.commit();
+		}
+		catch (Throwable e)
+		{
+			if (merged != null) // 按原顺序放回队列头部,计数不变,只减少已合并的数量
 			{
-				_pt = null;
-				pt.proc = null;
-				Thread.interrupted(); // 清除interrupted标识
+				for (int i = merged.size() - 1; i >= 0; --i)
+					q.unpoll(merged.get(i));
+				count -= merged.size();
 			}
-			_rwlCommit.readUnlock();
+			throw e;
+		}
+		finally
+		{
+			first._batchCount = count;
 		}
 	}
 
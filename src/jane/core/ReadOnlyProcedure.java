@@ -0,0 +1,12 @@
+package jane.core;
+
+/**
+ * 只读事务的基类(抽象类)
+ * <p>
+ * 只读事务中获取的记录不会记录到SContext中,没有提交时的修改检查和回滚列表的开销<br>
+ * 获取的记录仍是安全封装,但对记录及其容器字段的任何修改,以及对表的put/remove都会立即抛出IllegalStateException<br>
+ * 仍然需要像普通事务一样加锁后再获取记录,以保证读到的数据一致. addOnCommit等回调可以正常使用
+ */
+public abstract class ReadOnlyProcedure extends Procedure
+{
+}
@@ -4,7 +4,10 @@ import java.lang.reflect.Field;
 
 /**
  * 各种基础类型的安全修改类
+ * <p>
+ * 通过反射回滚字段的值. 生成的bean已改为直接赋值字段的回滚记录,这里只为兼容手写的Safe类保留
  */
+@Deprecated
 public abstract class SBase implements Runnable
 {
 	protected final Bean<?>	_bean;
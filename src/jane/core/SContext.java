@@ -1,12 +1,13 @@
 package jane.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * 安全修改的上下文类
  * <p>
- * 管理当前线程的回滚和提交<br>
- * 由ProcThread管理上下文
+ * 管理当前事务的回滚和提交<br>
+ * 由事务上下文(ProcContext)管理
  */
 public final class SContext
 {
@@ -19,6 +20,9 @@ public final class SContext
 		private Runnable	  _onDirty;
 		private boolean		  _dirty;
 		protected boolean	  _fullUndo;
+		private long		  _undoMask;
+		private int			  _undoSp;	// 记录_fullUndo和_undoMask时SContext的保存点序号
+		private int			  _dirtySp;	// 设置_dirty时SContext的保存点序号
 
 		protected Safe(B bean, Safe<?> parent)
 		{
@@ -84,7 +88,16 @@ public final class SContext
 		public void dirty()
 		{
 			if (_parent == this)
-				_dirty = true;
+			{
+				if (_rec != null)
+					_rec.checkLock(); // 子对象的修改也要检查根记录的锁. 乐观事务会在此时加写锁,只读事务会抛出异常
+				if (!_dirty)
+				{
+					_dirty = true;
+					ProcContext ctx = ProcContext.current();
+					_dirtySp = (ctx != null ? ctx.sctx._spSerial : 0);
+				}
+			}
 			else
 				_parent.dirty();
 			if (_onDirty != null)
@@ -98,9 +111,8 @@ public final class SContext
 		{
 			if (_rec != null)
 				_rec.checkLock();
-			if (_fullUndo)
-				return false;
-			if (_sctx == null)
+			SContext sctx = _sctx;
+			if (sctx == null)
 			{
 				if (_onDirty != null)
 				{
@@ -108,8 +120,29 @@ public final class SContext
 					_onDirty = null;
 				}
 				_parent.dirty();
-				_sctx = current();
+				_sctx = sctx = current();
+				_undoSp = sctx._spSerial;
+			}
+			else if (_undoSp != sctx._spSerial) // 之后设置过保存点,之前合并的回滚记录不能回滚到保存点,需要重新记录
+			{
+				_undoSp = sctx._spSerial;
+				_undoMask = 0;
+				_fullUndo = false;
 			}
+			return !_fullUndo;
+		}
+
+		/**
+		 * 同initSContext,并且同一字段只需要记录一次回滚
+		 * <p>
+		 * 回滚只需要恢复第一次修改前的值,所以同一字段的多次修改合并成一条回滚记录
+		 * @param fieldBit 字段对应的位. 0表示不合并
+		 */
+		protected boolean initSContext(long fieldBit)
+		{
+			if (!initSContext() || (_undoMask & fieldBit) != 0)
+				return false;
+			_undoMask |= fieldBit;
 			return true;
 		}
 
@@ -196,6 +229,42 @@ public final class SContext
 		void checkLock();
 	}
 
+	/**
+	 * 只读事务中获取的记录共享的记录信息. 不包含表和key,用于阻止任何修改
+	 */
+	static final Rec READ_ONLY_REC = new Rec()
+	{
+		@Override
+		public TableBase<?> getTable()
+		{
+			return null;
+		}
+
+		@Override
+		public Object getKey()
+		{
+			return null;
+		}
+
+		@Override
+		public long getKeyLong()
+		{
+			return 0;
+		}
+
+		@Override
+		public Object getValue()
+		{
+			return null;
+		}
+
+		@Override
+		public void checkLock()
+		{
+			throw new IllegalStateException("modify record in read-only procedure");
+		}
+	};
+
 	static final class Record<K, V extends Bean<V>, S extends Safe<V>> implements Rec
 	{
 		private final Table<K, V, S> _table;
@@ -238,8 +307,9 @@ public final class SContext
 		@Override
 		public void checkLock()
 		{
-			if (!Procedure.isLockedByCurrentThread(_lockId))
+			if (!Procedure.isLockedByCurrentThread(_lockId) && !Procedure.lockForWrite(_lockId))
 				throw new IllegalAccessError("write unlocked record! table=" + _table.getTableName() + ",key=" + _key);
+			_table.beforeWrite(_key);
 		}
 	}
 
@@ -285,20 +355,33 @@ public final class SContext
 		@Override
 		public void checkLock()
 		{
-			if (!Procedure.isLockedByCurrentThread(_lockId))
+			if (!Procedure.isLockedByCurrentThread(_lockId) && !Procedure.lockForWrite(_lockId))
 				throw new IllegalAccessError("write unlocked record! table=" + _table.getTableName() + ",key=" + _key);
+			_table.beforeWrite(_key);
 		}
 	}
 
+	private static final int INDEX_THRESHOLD	= 16;	// 事务中的记录数超过此值时才建立查找记录的索引,否则直接遍历
+	private static final int INDEX_MAX_RETAIN	= 1024;	// 事务结束后保留索引数组的最大长度,超过则丢弃,避免长期占用内存
+
 	private final ArrayList<Record<?, ?, ?>>  _records	   = new ArrayList<>();
 	private final ArrayList<RecordLong<?, ?>> _recordLongs = new ArrayList<>();
 	private final ArrayList<Runnable>		  _onRollbacks = new ArrayList<>();
 	private final ArrayList<Runnable>		  _onCommits   = new ArrayList<>();
+	private Rec[]							  _index;						// 以(表,key)为键的开放寻址索引(线性探测). 记录数超过INDEX_THRESHOLD后才启用
+	private int								  _indexCount;					// 索引中的记录数量. 为0表示索引未启用
 	private boolean							  _hasDirty;
+	private int								  _spRecords;					// 保存点时的记录数量
+	private int								  _spRecordLongs;				// 保存点时的记录数量(long类型key)
+	private int								  _spOnRollbacks;				// 保存点时的回滚回调数量
+	private int								  _spOnCommits;					// 保存点时的提交回调数量
+	private boolean							  _spHasDirty;					// 保存点时是否有表的修改
+	private int								  _spSerial;					// 保存点序号. 每次设置保存点时增加,使之前合并的回滚记录和修改标记只作用于保存点之前
+	private boolean							  _readOnly;
 
 	public static SContext current()
 	{
-		return ((ProcThread)Thread.currentThread()).sctx;
+		return ProcContext.current().sctx;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -319,13 +402,35 @@ public final class SContext
 		return (V)(v instanceof Safe ? ((Safe<?>)v).unsafe() : v);
 	}
 
+	/**
+	 * 判断当前是否在只读事务中({@link ReadOnlyProcedure})
+	 */
+	public boolean isReadOnly()
+	{
+		return _readOnly;
+	}
+
+	void setReadOnly(boolean readOnly)
+	{
+		_readOnly = readOnly;
+	}
+
 	<K, V extends Bean<V>, S extends Safe<V>> S addRecord(Table<K, V, S> table, K key, V value)
 	{
 		@SuppressWarnings("unchecked")
 		S s = (S)value.safe(null);
+		if (_readOnly)
+		{
+			s.record(READ_ONLY_REC); // 只读事务不记录,也不允许修改
+			return s;
+		}
 		Record<K, V, S> rec = new Record<>(table, key, s);
 		s.record(rec);
 		_records.add(rec);
+		if (_indexCount > 0)
+			indexAdd(rec);
+		else if (_records.size() + _recordLongs.size() > INDEX_THRESHOLD)
+			indexBuild();
 		return s;
 	}
 
@@ -333,15 +438,128 @@ public final class SContext
 	{
 		@SuppressWarnings("unchecked")
 		S s = (S)value.safe(null);
+		if (_readOnly)
+		{
+			s.record(READ_ONLY_REC);
+			return s;
+		}
 		RecordLong<V, S> rec = new RecordLong<>(table, key, s);
 		s.record(rec);
 		_recordLongs.add(rec);
+		if (_indexCount > 0)
+			indexAdd(rec);
+		else if (_records.size() + _recordLongs.size() > INDEX_THRESHOLD)
+			indexBuild();
 		return s;
 	}
 
+	private static int indexHash(TableBase<?> table, int keyHash)
+	{
+		int h = (keyHash + table._lockId) * 0x9e3779b9; // 不用记录的lockId,因为同一个锁的记录其lockId也常相同
+		return h ^ (h >>> 16);
+	}
+
+	private static int indexHash(TableBase<?> table, long key)
+	{
+		return indexHash(table, (int)((key * 0x9e3779b97f4a7c15L) >>> 32));
+	}
+
+	private static int indexHash(Rec r)
+	{
+		if (r instanceof Record)
+			return indexHash(((Record<?, ?, ?>)r)._table, ((Record<?, ?, ?>)r)._key.hashCode());
+		return indexHash(((RecordLong<?, ?>)r)._table, ((RecordLong<?, ?>)r)._key);
+	}
+
+	private static boolean sameRecord(Rec a, Rec b)
+	{
+		if (a instanceof Record)
+			return b instanceof Record && ((Record<?, ?, ?>)a)._table == ((Record<?, ?, ?>)b)._table &&
+					((Record<?, ?, ?>)a)._key.equals(((Record<?, ?, ?>)b)._key);
+		return b instanceof RecordLong && ((RecordLong<?, ?>)a)._table == ((RecordLong<?, ?>)b)._table &&
+				((RecordLong<?, ?>)a)._key == ((RecordLong<?, ?>)b)._key;
+	}
+
+	/**
+	 * 记录数刚超过INDEX_THRESHOLD时,把已有的记录全部加入索引
+	 */
+	private void indexBuild()
+	{
+		int n = _records.size() + _recordLongs.size();
+		int cap = Integer.highestOneBit(n * 4 - 1); // 保证负载不超过1/2
+		if (_index == null || _index.length < cap)
+			_index = new Rec[cap];
+		for (int i = 0, m = _records.size(); i < m; ++i)
+			indexPut(_records.get(i));
+		for (int i = 0, m = _recordLongs.size(); i < m; ++i)
+			indexPut(_recordLongs.get(i));
+	}
+
+	private void indexAdd(Rec rec)
+	{
+		if ((_indexCount + 1) * 2 > _index.length)
+		{
+			Rec[] old = _index;
+			_index = new Rec[old.length * 2];
+			_indexCount = 0;
+			for (Rec r : old)
+			{
+				if (r != null)
+					indexPut(r);
+			}
+		}
+		indexPut(rec);
+	}
+
+	/**
+	 * 加入索引. 同一事务中同一记录可能被加入多次,这时保留最早加入的,与遍历查找的结果一致
+	 */
+	private void indexPut(Rec rec)
+	{
+		Rec[] index = _index;
+		int mask = index.length - 1;
+		for (int i = indexHash(rec) & mask;; i = (i + 1) & mask)
+		{
+			Rec r = index[i];
+			if (r == null)
+			{
+				index[i] = rec;
+				++_indexCount;
+				return;
+			}
+			if (sameRecord(r, rec))
+				return;
+		}
+	}
+
+	private void indexClear()
+	{
+		if (_indexCount > 0)
+		{
+			if (_index.length > INDEX_MAX_RETAIN)
+				_index = null;
+			else
+				Arrays.fill(_index, null);
+			_indexCount = 0;
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	<K, V extends Bean<V>, S extends Safe<V>> S getRecord(Table<K, V, S> table, K key)
 	{
+		if (_indexCount > 0)
+		{
+			Rec[] index = _index;
+			int mask = index.length - 1;
+			for (int i = indexHash(table, key.hashCode()) & mask;; i = (i + 1) & mask)
+			{
+				Rec r = index[i];
+				if (r == null)
+					return null;
+				if (r instanceof Record && ((Record<?, ?, ?>)r)._table == table && ((Record<?, ?, ?>)r)._key.equals(key))
+					return (S)r.getValue();
+			}
+		}
 		for (int i = 0, n = _records.size(); i < n; ++i)
 		{
 			Record<?, ?, ?> r = _records.get(i);
@@ -354,6 +572,19 @@ public final class SContext
 	@SuppressWarnings("unchecked")
 	<V extends Bean<V>, S extends Safe<V>> S getRecord(TableLong<V, S> table, long key)
 	{
+		if (_indexCount > 0)
+		{
+			Rec[] index = _index;
+			int mask = index.length - 1;
+			for (int i = indexHash(table, key) & mask;; i = (i + 1) & mask)
+			{
+				Rec r = index[i];
+				if (r == null)
+					return null;
+				if (r instanceof RecordLong && ((RecordLong<?, ?>)r)._table == table && ((RecordLong<?, ?>)r)._key == key)
+					return (S)r.getValue();
+			}
+		}
 		for (int i = 0, n = _recordLongs.size(); i < n; ++i)
 		{
 			RecordLong<?, ?> r = _recordLongs.get(i);
@@ -392,12 +623,17 @@ public final class SContext
 
 	void addOnRollbackDirty(Runnable r)
 	{
+		if (_readOnly)
+			throw new IllegalStateException("modify table in read-only procedure");
 		_onRollbacks.add(r);
 		_hasDirty = true;
 	}
 
 	void commit()
 	{
+		JfrEvents.ProcCommit event = JfrEvents.beginProcCommit();
+		int recordCount = (event != null ? _records.size() + _recordLongs.size() : 0);
+		int onCommitCount = (event != null ? _onCommits.size() : 0);
 		_onRollbacks.clear();
 
 		int n = _records.size();
@@ -427,6 +663,7 @@ public final class SContext
 			while (++i < n);
 			_recordLongs.clear();
 		}
+		indexClear();
 
 		n = _onCommits.size();
 		if (n > 0)
@@ -448,12 +685,77 @@ public final class SContext
 		}
 
 		_hasDirty = false;
+		JfrEvents.endProcCommit(event, recordCount, onCommitCount);
+	}
+
+	/**
+	 * 设置保存点. 之后可以只回滚保存点之后的修改({@link #rollbackToSavepoint}). 同一时刻只有一个保存点
+	 * <p>
+	 * 保存点之前已获取的记录在保存点之后的修改会重新记录回滚,不与保存点之前的修改合并
+	 */
+	void savepoint()
+	{
+		++_spSerial;
+		_spRecords = _records.size();
+		_spRecordLongs = _recordLongs.size();
+		_spOnRollbacks = _onRollbacks.size();
+		_spOnCommits = _onCommits.size();
+		_spHasDirty = _hasDirty;
+	}
+
+	/**
+	 * 只回滚保存点之后的修改,保存点之前的记录和回调保持不变
+	 */
+	void rollbackToSavepoint()
+	{
+		int n = _records.size();
+		if (n > _spRecords)
+			_records.subList(_spRecords, n).clear();
+		for (int i = 0; i < _spRecords; ++i) // 保存点之后才有修改标记的记录,回滚后恢复成没有修改
+		{
+			Safe<?> v = _records.get(i)._value;
+			if (v._dirty && v._dirtySp == _spSerial)
+				v._dirty = false;
+		}
+		n = _recordLongs.size();
+		if (n > _spRecordLongs)
+			_recordLongs.subList(_spRecordLongs, n).clear();
+		for (int i = 0; i < _spRecordLongs; ++i)
+		{
+			Safe<?> v = _recordLongs.get(i)._value;
+			if (v._dirty && v._dirtySp == _spSerial)
+				v._dirty = false;
+		}
+		if (_indexCount > 0)
+		{
+			indexClear();
+			if (_records.size() + _recordLongs.size() > INDEX_THRESHOLD)
+				indexBuild();
+		}
+		n = _onCommits.size();
+		if (n > _spOnCommits)
+			_onCommits.subList(_spOnCommits, n).clear();
+
+		for (int i = _onRollbacks.size(); --i >= _spOnRollbacks;)
+		{
+			try
+			{
+				_onRollbacks.get(i).run();
+			}
+			catch (Throwable e)
+			{
+				Log.error("onRollback exception:", e);
+			}
+			_onRollbacks.remove(i);
+		}
+		_hasDirty = _spHasDirty;
 	}
 
 	void rollback()
 	{
 		_records.clear();
 		_recordLongs.clear();
+		indexClear();
 		_onCommits.clear();
 
 		for (int i = _onRollbacks.size(); --i >= 0;)
@@ -6,11 +6,13 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ForkJoinTask;
 import java.util.zip.CRC32;
 
 /**
@@ -26,6 +28,8 @@ public final class StorageLevelDB implements Storage
 	private final Octets				_writeBuf	  = new Octets(0x10000);					   // 提交中的写缓冲区
 	private final Map<Slice, Slice>		_writeMap	  = Util.newConcurrentHashMap();			   // 提交中的写记录
 	private final FastRWLock			_writeBufLock = new FastRWLock();						   // 访问_writeBuf和_writeMap的读写锁
+	private final ThreadLocal<PutBuf>	_putBuf		  = new ThreadLocal<>();					   // 并行批量写时当前线程的任务写缓冲区
+	private volatile boolean			_putParallel;											   // 是否正在并行批量写
 	private long						_db;													   // LevelDB的数据库对象句柄
 	private File						_dbFile;												   // 当前数据库的文件
 	private final SimpleDateFormat		_sdf		  = new SimpleDateFormat("yy-MM-dd-HH-mm-ss"); // 备份文件后缀名的时间格式
@@ -33,6 +37,15 @@ public final class StorageLevelDB implements Storage
 	private boolean						_useSnappy	  = true;									   // 是否使用LevelDB内置的snappy压缩
 	private boolean						_reuseLogs	  = true;									   // 是否使用LevelDB内置的reuse_logs功能
 
+	/**
+	 * 并行批量写时每个任务独立的写缓冲区
+	 */
+	private static final class PutBuf
+	{
+		final Octets buf = new Octets(0x1000); // 不含开头4字节的记录数量
+		int			 count;					   // 记录数量
+	}
+
 	private static final class Slice
 	{
 		private final byte[] _buf;
@@ -174,9 +187,8 @@ public final class StorageLevelDB implements Storage
 		return pos;
 	}
 
-	private int writeVarUInt(int v)
+	private static int writeVarUInt(Octets os, int v)
 	{
-		Octets os = _writeBuf;
 		if (v < 0x80)
 			return os.marshal1((byte)v).size();
 		int size = os.size();
@@ -186,12 +198,11 @@ public final class StorageLevelDB implements Storage
 		return size;
 	}
 
-	private int writeValue(Bean<?> bean) // size(VarUInt) + data
+	private static int writeValue(Octets os, Bean<?> bean) // size(VarUInt) + data
 	{
 		int maxSize = 1 + bean.maxSize(); // 1 for format
 		int initLenLen = Octets.marshalUIntLen(maxSize > 1 ? maxSize : Integer.MAX_VALUE);
 
-		Octets os = _writeBuf;
 		int pos = os.size(); // 记录当前位置,之后写大小
 		int vpos = pos + initLenLen;
 		os.resize(vpos); // 跳过估计大小的长度
@@ -254,13 +265,13 @@ public final class StorageLevelDB implements Storage
 
 	private final class TableLong<V extends Bean<V>> implements Storage.TableLong<V>
 	{
-		private final String	 _tableName;
-		private final int		 _tableId;
-		private final int		 _tableIdLen;
-		private final Octets	 _tableIdCounter;
-		private final V			 _stubV;
-		private final AtomicLong _getCount = new AtomicLong();
-		private final AtomicLong _getSize  = new AtomicLong();
+		private final String		 _tableName;
+		private final int			 _tableId;
+		private final int			 _tableIdLen;
+		private final Octets		 _tableIdCounter;
+		private final V				 _stubV;
+		private final StripedCounter _getCount = new StripedCounter();
+		private final StripedCounter _getSize  = new StripedCounter();
 
 		public TableLong(int tableId, String tableName, V stubV)
 		{
@@ -299,8 +310,8 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public int getAverageValueSize()
 		{
-			long n = _getCount.get();
-			return n > 0 ? (int)(_getSize.get() / n) : -1;
+			long n = _getCount.sum();
+			return n > 0 ? (int)(_getSize.sum() / n) : -1;
 		}
 
 		@Override
@@ -309,8 +320,8 @@ public final class StorageLevelDB implements Storage
 			byte[] buf = dbget(marshalKey(k));
 			if (buf == null)
 				return null;
-			_getCount.getAndIncrement();
-			_getSize.getAndAdd(buf.length);
+			_getCount.increment();
+			_getSize.add(buf.length);
 			OctetsStreamEx val = OctetsStreamEx.wrap(buf);
 			try
 			{
@@ -330,8 +341,7 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void put(long k, V v)
 		{
-			incWriteCount();
-			Octets os = _writeBuf;
+			Octets os = beginPut();
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int klen = _tableIdLen + Octets.marshalLen(k);
 			os.marshal1((byte)klen);
@@ -341,7 +351,7 @@ public final class StorageLevelDB implements Storage
 			else
 				os.marshalUInt(_tableId);
 			os.marshal(k);
-			int vpos = writeValue(v);
+			int vpos = writeValue(os, v);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -349,8 +359,7 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void remove(long k)
 		{
-			incWriteCount();
-			Octets os = _writeBuf;
+			Octets os = beginPut();
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
 			int klen = _tableIdLen + Octets.marshalLen(k);
 			os.marshal1((byte)klen);
@@ -385,8 +394,7 @@ public final class StorageLevelDB implements Storage
 		{
 			if (v == getIdCounter())
 				return;
-			incWriteCount();
-			Octets os = _writeBuf;
+			Octets os = beginPut();
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int klen = _tableIdCounter.size();
 			os.marshal1((byte)klen);
@@ -548,13 +556,13 @@ public final class StorageLevelDB implements Storage
 
 	private abstract class TableBase<K, V extends Bean<V>> implements Storage.Table<K, V>
 	{
-		protected final String	   _tableName;
-		protected final int		   _tableId;
-		protected final int		   _tableIdLen;
-		protected final Octets	   _tableIdNext	= Octets.createSpace(5);
-		protected final V		   _stubV;
-		protected final AtomicLong _getCount	= new AtomicLong();
-		protected final AtomicLong _getSize		= new AtomicLong();
+		protected final String		   _tableName;
+		protected final int			   _tableId;
+		protected final int			   _tableIdLen;
+		protected final Octets		   _tableIdNext	= Octets.createSpace(5);
+		protected final V			   _stubV;
+		protected final StripedCounter _getCount	= new StripedCounter();
+		protected final StripedCounter _getSize		= new StripedCounter();
 
 		protected TableBase(int tableId, String tableName, V stubV)
 		{
@@ -586,15 +594,15 @@ public final class StorageLevelDB implements Storage
 
 		protected void addValueSize(int size)
 		{
-			_getCount.getAndIncrement();
-			_getSize.getAndAdd(size);
+			_getCount.increment();
+			_getSize.add(size);
 		}
 
 		@Override
 		public int getAverageValueSize()
 		{
-			long n = _getCount.get();
-			return n > 0 ? (int)(_getSize.get() / n) : -1;
+			long n = _getCount.sum();
+			return n > 0 ? (int)(_getSize.sum() / n) : -1;
 		}
 
 		@Override
@@ -794,12 +802,11 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void put(Octets k, V v)
 		{
-			incWriteCount();
-			Octets os = _writeBuf;
+			Octets os = beginPut();
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int ksize = k.size();
 			int klen = _tableIdLen + ksize;
-			int kpos = writeVarUInt(klen);
+			int kpos = writeVarUInt(os, klen);
 			if (_tableIdLen == 1)
 				os.marshal1((byte)_tableId);
 			else
@@ -807,7 +814,7 @@ public final class StorageLevelDB implements Storage
 			int pos = os.size();
 			os.resize(pos + ksize);
 			System.arraycopy(k.array(), 0, os.array(), pos, ksize);
-			int vpos = writeValue(v);
+			int vpos = writeValue(os, v);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -815,12 +822,11 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void remove(Octets k)
 		{
-			incWriteCount();
-			Octets os = _writeBuf;
+			Octets os = beginPut();
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
 			int ksize = k.size();
 			int klen = _tableIdLen + ksize;
-			int kpos = writeVarUInt(klen);
+			int kpos = writeVarUInt(os, klen);
 			if (_tableIdLen == 1)
 				os.marshal1((byte)_tableId);
 			else
@@ -896,12 +902,11 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void put(String k, V v)
 		{
-			incWriteCount();
-			Octets os = _writeBuf;
+			Octets os = beginPut();
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int bn = Octets.marshalStrLen(k);
 			int klen = _tableIdLen + bn;
-			int kpos = writeVarUInt(klen);
+			int kpos = writeVarUInt(os, klen);
 			if (_tableIdLen == 1)
 				os.marshal1((byte)_tableId);
 			else
@@ -917,7 +922,7 @@ public final class StorageLevelDB implements Storage
 				for (int i = 0; i < cn; ++i)
 					os.marshalUTF8(k.charAt(i));
 			}
-			int vpos = writeValue(v);
+			int vpos = writeValue(os, v);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -925,12 +930,11 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void remove(String k)
 		{
-			incWriteCount();
-			Octets os = _writeBuf;
+			Octets os = beginPut();
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
 			int bn = Octets.marshalStrLen(k);
 			int klen = _tableIdLen + bn;
-			int kpos = writeVarUInt(klen);
+			int kpos = writeVarUInt(os, klen);
 			if (_tableIdLen == 1)
 				os.marshal1((byte)_tableId);
 			else
@@ -1009,12 +1013,11 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void put(K k, V v)
 		{
-			incWriteCount();
-			Octets os = _writeBuf;
+			Octets os = beginPut();
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
-			int kpos = writeValue((Bean<?>)k);
+			int kpos = writeValue(os, (Bean<?>)k);
 			int klen = os.size() - kpos;
-			int vpos = writeValue(v);
+			int vpos = writeValue(os, v);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -1022,10 +1025,9 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void remove(K k)
 		{
-			incWriteCount();
-			Octets os = _writeBuf;
+			Octets os = beginPut();
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
-			int kpos = writeValue((Bean<?>)k);
+			int kpos = writeValue(os, (Bean<?>)k);
 			_writeMap.put(new Slice(os.array(), kpos, os.size() - kpos), _deletedSlice);
 		}
 	}
@@ -1106,6 +1108,76 @@ public final class StorageLevelDB implements Storage
 		++_writeCount;
 	}
 
+	/**
+	 * 准备写入一个记录,返回要写入的缓冲区
+	 */
+	private Octets beginPut()
+	{
+		if (_putParallel)
+		{
+			PutBuf pb = _putBuf.get();
+			if (pb != null)
+			{
+				++pb.count;
+				return pb.buf;
+			}
+		}
+		incWriteCount();
+		return _writeBuf;
+	}
+
+	/**
+	 * 并行执行多个批量写任务
+	 * <p>
+	 * 每个任务在各自的写缓冲区中序列化记录,在ForkJoinPool.commonPool中并发执行. 全部完成后按任务顺序合并到当前的写缓冲区,仍由commit一次批量写入<br>
+	 * 只能在putBegin和commit之间由批量写的线程调用. 任务中只能调用各表的put/remove,同一个表的写操作只能在同一个任务中
+	 */
+	public void putParallel(List<? extends Runnable> tasks)
+	{
+		int n = tasks.size();
+		PutBuf[] bufs = new PutBuf[n];
+		ArrayList<ForkJoinTask<?>> fjTasks = new ArrayList<>(n);
+		for (int i = 0; i < n; ++i)
+		{
+			PutBuf pb = bufs[i] = new PutBuf();
+			Runnable r = tasks.get(i);
+			fjTasks.add(ForkJoinTask.adapt(() ->
+			{
+				_putBuf.set(pb);
+				try
+				{
+					r.run();
+				}
+				finally
+				{
+					_putBuf.remove();
+				}
+			}));
+		}
+		_putParallel = true;
+		try
+		{
+			ForkJoinTask.invokeAll(fjTasks);
+		}
+		finally
+		{
+			_putParallel = false;
+			synchronized (this)
+			{
+				for (PutBuf pb : bufs)
+				{
+					if (pb.count > 0)
+					{
+						if (Integer.toUnsignedLong(_writeCount) + pb.count >= 0xffff_ffffL)
+							throw new IllegalStateException("wrote too many records");
+						_writeCount += pb.count;
+						_writeBuf.append(pb.buf);
+					}
+				}
+			}
+		}
+	}
+
 	public synchronized void dbput(Octets key, Octets value)
 	{
 		incWriteCount();
@@ -0,0 +1,92 @@
+package jane.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段的计数器
+ * <p>
+ * 计数按线程ID分散到多个独占缓存行的槽中,修改只针对自己的槽,适合很多线程频繁修改而很少读取总数的统计<br>
+ * 与LongAdder相比,槽在创建时就全部分配好,修改时返回当前槽的计数,可以用来低成本地每隔N次修改检查一次总数<br>
+ * 读取的总数是逐个槽累加的,并发修改时只是近似值
+ */
+public final class StripedCounter
+{
+	private static final int SLOT_SHIFT = 4; // 每个槽占用16个long(128字节),避免伪共享(包括相邻缓存行的预取)
+
+	private final AtomicLongArray _slots;	 // 各槽的计数
+	private final int			  _slotMask; // 槽数量的掩码
+
+	/**
+	 * @param concurrency 预计并发修改的线程数量. 槽数量是不小于其2倍的2的N次幂
+	 */
+	public StripedCounter(int concurrency)
+	{
+		int n = Integer.highestOneBit(Math.max(concurrency, 1) * 2 - 1) << 1;
+		_slots = new AtomicLongArray(n << SLOT_SHIFT);
+		_slotMask = n - 1;
+	}
+
+	public StripedCounter()
+	{
+		this(Math.max(Runtime.getRuntime().availableProcessors(), Const.dbThreadCount));
+	}
+
+	private int slotIndex()
+	{
+		return ((int)Thread.currentThread().getId() & _slotMask) << SLOT_SHIFT;
+	}
+
+	/**
+	 * 增加计数
+	 * @return 当前线程所在槽的计数(不是总数)
+	 */
+	public long add(long v)
+	{
+		return _slots.addAndGet(slotIndex(), v);
+	}
+
+	/**
+	 * 计数加1
+	 * @return 当前线程所在槽的计数(不是总数)
+	 */
+	public long increment()
+	{
+		return _slots.incrementAndGet(slotIndex());
+	}
+
+	/**
+	 * 计数减1
+	 * @return 当前线程所在槽的计数(不是总数). 可能为负数
+	 */
+	public long decrement()
+	{
+		return _slots.decrementAndGet(slotIndex());
+	}
+
+	/**
+	 * 获取总数. 并发修改时只是近似值
+	 */
+	public long sum()
+	{
+		long s = 0;
+		for (int i = 0, n = _slots.length(); i < n; i += 1 << SLOT_SHIFT)
+			s += _slots.get(i);
+		return s;
+	}
+
+	/**
+	 * 设置总数. 并发的修改可能会丢失
+	 */
+	public void set(long v)
+	{
+		for (int i = 0, n = _slots.length(); i < n; i += 1 << SLOT_SHIFT)
+			_slots.set(i, 0);
+		_slots.addAndGet(slotIndex(), v);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.valueOf(sum());
+	}
+}
@@ -1,7 +1,6 @@
 package jane.core;
 
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
 import java.util.function.Supplier;
@@ -11,15 +10,17 @@ import jane.core.Storage.Helper;
 import jane.core.Storage.WalkHandler;
 import jane.core.Storage.WalkRawHandler;
 import jane.core.Storage.WalkValueHandler;
+import jane.core.map.ConcurrentLRUMap;
 
 /**
  * 通用key类型的数据库表类
  */
 public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableBase<V>
 {
-	private final Storage.Table<K, V> _stoTable; // 存储引擎的表对象
-	private final Map<K, Supplier<V>> _cache;	 // 读缓存. 有大小限制,溢出自动清理
-	private final ConcurrentMap<K, V> _cacheMod; // 写缓存. 不会溢出,保存到数据库存储引擎后清理
+	private final Storage.Table<K, V>			_stoTable;	// 存储引擎的表对象
+	private final Map<K, Supplier<V>>			_cache;		// 读缓存. 有大小限制,溢出自动清理
+	private final ConcurrentMap<K, V>			_cacheMod;	// 写缓存. 不会溢出,保存到数据库存储引擎后清理
+	private volatile ConcurrentMap<K, Object>	_snapshot;	// 保存快照期间,新轮次的事务首次修改记录前保留的旧轮次修改副本. 只在保存快照期间非null
 
 	/**
 	 * 创建一个数据库表
@@ -94,29 +95,99 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		}
 	}
 
+	@Override
+	protected void beginSnapshot()
+	{
+		if (_cacheMod != null)
+			_snapshot = Util.newConcurrentHashMap();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void saveSnapshot(long[] counts)
+	{
+		ConcurrentMap<K, Object> snapshot = _snapshot;
+		if (snapshot == null)
+			return;
+		long n = 0;
+		try
+		{
+			for (K k : _cacheMod.keySet()) //NOSONAR
+			{
+				Lock lock = Procedure.waitLock(lockId(k));
+				try
+				{
+					Object s = snapshot.get(k);
+					if (s == SNAPSHOT_SKIP) // 只有新轮次的修改,留到下次保存
+						continue;
+					V v = (s != null ? (V)s : _cacheMod.get(k)); // 新轮次修改过的记录只保存旧轮次的副本,记录留到下次保存
+					if (v == null)
+						continue;
+					++n;
+					if (v == _deleted)
+						_stoTable.remove(k);
+					else
+						_stoTable.put(k, v);
+					if (s == null)
+					{
+						if (v != _deleted)
+							v.setSaveState(1);
+						_cacheMod.remove(k, v);
+					}
+				}
+				finally
+				{
+					lock.unlock();
+				}
+			}
+		}
+		finally
+		{
+			counts[0] += n;
+			counts[1] += _cacheMod.size();
+		}
+	}
+
+	@Override
+	protected void endSnapshot()
+	{
+		_snapshot = null;
+	}
+
 	/**
-	 * 在所有事务暂停的情况下直接依次保存此表已修改的记录
+	 * 事务修改记录前调用. 只在保存快照期间起作用
+	 * <p>
+	 * 旧轮次的事务: 如果记录已被新轮次的事务修改过,则需要重做(会以新轮次的事务重新运行)<br>
+	 * 新轮次的事务: 首次修改时保留此记录在旧轮次中未保存的修改副本,没有未保存的修改则标记此记录留到下次保存
 	 */
-	@Override
-	protected int saveModified()
+	void beforeWrite(K k)
 	{
-		if (_cacheMod == null)
-			return 0;
-		for (Entry<K, V> e : _cacheMod.entrySet())
+		ConcurrentMap<K, Object> snapshot = _snapshot;
+		if (snapshot != null)
 		{
-			K k = e.getKey();
-			V v = e.getValue();
-			if (v == _deleted)
-				_stoTable.remove(k);
-			else
+			if (CommitEpoch.isSaving())
+			{
+				if (snapshot.containsKey(k))
+					Procedure.redo();
+			}
+			else if (!snapshot.containsKey(k))
 			{
-				_stoTable.put(k, v);
-				v.setSaveState(1);
+				V v = _cacheMod.get(k);
+				snapshot.put(k, v == null ? SNAPSHOT_SKIP : (v != _deleted ? v.clone() : v));
 			}
 		}
-		int m = _cacheMod.size();
-		_cacheMod.clear();
-		return m;
+	}
+
+	/**
+	 * 事务读取记录前调用. 只在保存快照期间起作用
+	 * <p>
+	 * 旧轮次的事务读取已被新轮次的事务修改过的记录时需要重做
+	 */
+	void beforeRead(K k)
+	{
+		ConcurrentMap<K, Object> snapshot = _snapshot;
+		if (snapshot != null && snapshot.containsKey(k) && CommitEpoch.isSaving())
+			Procedure.redo();
 	}
 
 	@Override
@@ -131,6 +202,12 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		return _cache.size();
 	}
 
+	@Override
+	public long getCacheEvictCount()
+	{
+		return _cache instanceof ConcurrentLRUMap ? ((ConcurrentLRUMap<?, ?>)_cache).getSweepEvictCount() : 0;
+	}
+
 	@Override
 	public int getCacheModSize()
 	{
@@ -146,7 +223,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	@Deprecated
 	public V getUnsafe(K k)
 	{
-		_readCount.getAndIncrement();
+		_readCount.increment();
 		Supplier<V> r = _cache.get(k);
 		V v;
 		if (r != null && (v = r.get()) != null)
@@ -161,8 +238,12 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 			_cache.put(k, new CacheRefK<>(_cache, k, v));
 			return v;
 		}
-		_readStoCount.getAndIncrement();
+		_readStoCount.increment();
+		JfrEvents.StorageGet event = JfrEvents.beginStorageGet();
+		long t = System.nanoTime();
 		v = _stoTable.get(k);
+		_stoGetTime.record(System.nanoTime() - t);
+		JfrEvents.endStorageGet(event, _tableName, k, v != null);
 		if (v != null)
 		{
 			v.setSaveState(1);
@@ -204,6 +285,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	@Deprecated
 	S getNoLock(K k)
 	{
+		beforeRead(k);
 		V v = getUnsafe(k);
 		SContext sctx = SContext.current();
 		return v != null ? sctx.addRecord(this, k, v) : sctx.getRecord(this, k);
@@ -254,8 +336,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		Procedure proc = Procedure.getCurProcedure();
 		if (proc == null)
 			throw new IllegalStateException("invalid lockGet out of procedure");
-		proc.appendLock(lockId(k));
-		return getNoLock(k);
+		return proc.lockGet(this, k);
 	}
 
 	/**
@@ -298,7 +379,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	@Deprecated
 	public V getNoCacheUnsafe(K k)
 	{
-		_readCount.getAndIncrement();
+		_readCount.increment();
 		Supplier<V> r = _cache.get(k);
 		V v;
 		if (r != null)
@@ -312,8 +393,13 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		v = _cacheMod.get(k);
 		if (v != null)
 			return v != _deleted ? v : null;
-		_readStoCount.getAndIncrement();
-		return _stoTable.get(k);
+		_readStoCount.increment();
+		JfrEvents.StorageGet event = JfrEvents.beginStorageGet();
+		long t = System.nanoTime();
+		v = _stoTable.get(k);
+		_stoGetTime.record(System.nanoTime() - t);
+		JfrEvents.endStorageGet(event, _tableName, k, v != null);
+		return v;
 	}
 
 	/**
@@ -324,6 +410,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	{
 		if (!Procedure.isLockedByCurrentThread(lockId(k)))
 			throw new IllegalAccessError("get unlocked record! table=" + _tableName + ",key=" + k);
+		beforeRead(k);
 		V v = getNoCacheUnsafe(k);
 		SContext sctx = SContext.current();
 		return v != null ? sctx.addRecord(this, k, v) : sctx.getRecord(this, k);
@@ -338,7 +425,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	@Deprecated
 	public V getCacheUnsafe(K k)
 	{
-		_readCount.getAndIncrement();
+		_readCount.increment();
 		Supplier<V> r = _cache.get(k);
 		V v;
 		if (r != null)
@@ -353,6 +440,22 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		return v != null && v != _deleted ? v : null;
 	}
 
+	/**
+	 * 只在读和写cache中获取记录,用于乐观事务的无锁读取
+	 * <p>
+	 * 不会改动cache. 确定记录不存在时返回_deleted, 返回null表示cache中没有,需要加锁后再获取
+	 */
+	V getCacheOnly(K k)
+	{
+		beforeRead(k);
+		_readCount.increment();
+		Supplier<V> r = _cache.get(k);
+		V v;
+		if (r != null && (v = r.get()) != null)
+			return v;
+		return _cacheMod != null ? _cacheMod.get(k) : _deleted;
+	}
+
 	/**
 	 * 同getCacheUnsafe,但增加了加锁检查和安全封装,可回滚修改
 	 */
@@ -360,6 +463,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	{
 		if (!Procedure.isLockedByCurrentThread(lockId(k)))
 			throw new IllegalAccessError("get unlocked record! table=" + _tableName + ",key=" + k);
+		beforeRead(k);
 		V v = getCacheUnsafe(k);
 		SContext sctx = SContext.current();
 		return v != null ? sctx.addRecord(this, k, v) : sctx.getRecord(this, k);
@@ -451,8 +555,9 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	{
 		if (v == null)
 			throw new NullPointerException();
-		if (!Procedure.isLockedByCurrentThread(lockId(k)))
+		if (!Procedure.isLockedByCurrentThread(lockId(k)) && !Procedure.lockForWrite(lockId(k)))
 			throw new IllegalAccessError("put unlocked record! table=" + _tableName + ",key=" + k);
+		beforeWrite(k);
 		V vOld = getNoCacheUnsafe(k);
 		if (vOld == v)
 			return v;
@@ -504,8 +609,9 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	 */
 	public V remove(K k)
 	{
-		if (!Procedure.isLockedByCurrentThread(lockId(k)))
+		if (!Procedure.isLockedByCurrentThread(lockId(k)) && !Procedure.lockForWrite(lockId(k)))
 			throw new IllegalAccessError("remove unlocked record! table=" + _tableName + ",key=" + k);
+		beforeWrite(k);
 		V vOld = getNoCacheUnsafe(k);
 		if (vOld == null)
 			return null;
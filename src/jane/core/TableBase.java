@@ -3,23 +3,83 @@ package jane.core;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class TableBase<V extends Bean<V>>
 {
-	protected static final ArrayList<TableBase<?>> _tables		 = new ArrayList<>(16);	// 所有表的容器
-	protected final String						   _tableName;							// 表名
-	protected final int							   _tableId;							// 表ID
-	protected final int							   _lockId;								// 当前表的锁ID. 即锁名的hash值,一般和记录key的hash值计算得出记录的lockId
-	protected final V							   _deleted;							// 表示已删除的value. 同存根bean
-	protected final AtomicLong					   _readCount	 = new AtomicLong();	// 读操作次数统计
-	protected final AtomicLong					   _readStoCount = new AtomicLong();	// 读数据库存储的次数统计(即cache-miss的次数统计)
+	private static final int STAT_HIST_STEP	= 5;	// 耗时分布的滑动窗口快照间隔(秒)
+	private static int		 _statTick;				// 统计滑动窗口的定时计数
+
+	protected static final CopyOnWriteArrayList<TableBase<?>> _tables		= new CopyOnWriteArrayList<>();							// 所有表的容器
+	protected static final Object							  SNAPSHOT_SKIP	= new Object();											// 快照中标记记录只有新轮次的修改,不需要在本次保存
+	protected final String									  _tableName;															// 表名
+	protected final int										  _tableId;																// 表ID
+	protected final int										  _lockId;																// 当前表的锁ID. 即锁名的hash值,一般和记录key的hash值计算得出记录的lockId
+	protected final V										  _deleted;																// 表示已删除的value. 同存根bean
+	protected final StripedCounter							  _readCount	= new StripedCounter();									// 读操作次数统计
+	protected final StripedCounter							  _readStoCount	= new StripedCounter();									// 读数据库存储的次数统计(即cache-miss的次数统计)
+	protected final Histogram								  _stoGetTime	= new Histogram(Const.statWindowSize / STAT_HIST_STEP);	// 读数据库存储的耗时(纳秒)分布
+	private final long[]									  _readWin		= new long[Const.statWindowSize + 1];					// 滑动窗口内每秒的读操作累计次数(环形)
+	private final long[]									  _readStoWin	= new long[Const.statWindowSize + 1];					// 滑动窗口内每秒的读数据库存储累计次数(环形)
+	private int												  _winPos;																// 滑动窗口的下次写入位置
+	private int												  _winCount;															// 滑动窗口已写入的数量
+
+	static
+	{
+		if (Const.statWindowSize > 0)
+			NetManager.scheduleWithFixedDelay(1, 1, TableBase::updateStatWindowAll);
+	}
 
 	public static List<TableBase<?>> getTables()
 	{
 		return Collections.unmodifiableList(_tables);
 	}
 
+	/**
+	 * 更新全部表的统计滑动窗口. 每秒执行一次
+	 */
+	private static void updateStatWindowAll()
+	{
+		try
+		{
+			boolean histStep = (++_statTick % STAT_HIST_STEP == 0);
+			for (int i = 0, n = _tables.size(); i < n; ++i)
+			{
+				TableBase<?> table = _tables.get(i);
+				table.updateStatWindow();
+				if (histStep)
+					table._stoGetTime.snapshot();
+			}
+		}
+		catch (Throwable e)
+		{
+			Log.error("updateStatWindowAll exception:", e);
+		}
+	}
+
+	private synchronized void updateStatWindow()
+	{
+		int p = _winPos;
+		_readWin[p] = _readCount.sum();
+		_readStoWin[p] = _readStoCount.sum();
+		_winPos = (p + 1 < _readWin.length ? p + 1 : 0);
+		if (_winCount < _readWin.length)
+			++_winCount;
+	}
+
+	/**
+	 * 获取滑动窗口内的平均每秒次数
+	 */
+	private synchronized double getWindowRate(long[] win)
+	{
+		int n = _winCount;
+		if (n < 2)
+			return 0;
+		int last = (_winPos > 0 ? _winPos : win.length) - 1;
+		int first = (n < win.length ? 0 : _winPos);
+		return (double)(win[last] - win[first]) / (n - 1);
+	}
+
 	/**
 	 * 尝试依次加锁并保存全部表已修改的记录
 	 * <p>
@@ -42,24 +102,94 @@ public abstract class TableBase<V extends Bean<V>>
 	}
 
 	/**
-	 * 在所有事务暂停的情况下直接依次保存全部表已修改的记录
+	 * 判断是否有表的写缓存中还有未保存的记录
 	 */
-	static int saveModifiedAll()
+	static boolean hasModifiedAll()
+	{
+		for (int i = 0, n = _tables.size(); i < n; ++i)
+		{
+			if (_tables.get(i).getCacheModSize() > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 同trySaveModifiedAll,但各表在不同的线程中并行保存,各自序列化到独立的写缓冲区后再合并成一次批量写入
+	 * <p>
+	 * 用于关闭数据库前的最后一次提交,此时已经没有事务在运行,主要开销是序列化已修改的记录
+	 * @param counts 同trySaveModifiedAll
+	 */
+	static void trySaveModifiedAllParallel(long[] counts, StorageLevelDB sto)
+	{
+		int n = _tables.size();
+		long[][] tableCounts = new long[n][3];
+		ArrayList<Runnable> tasks = new ArrayList<>(n);
+		for (int i = 0; i < n; ++i)
+		{
+			TableBase<?> table = _tables.get(i);
+			long[] c = tableCounts[i];
+			tasks.add(() ->
+			{
+				try
+				{
+					table.trySaveModified(c);
+				}
+				catch (Throwable e)
+				{
+					Log.error(e, "db-commit thread exception(trySaveModified:{}):", table.getTableName());
+				}
+			});
+		}
+		sto.putParallel(tasks);
+		for (long[] c : tableCounts)
+		{
+			counts[0] += c[0];
+			counts[1] += c[1];
+			counts[2] += c[2];
+		}
+	}
+
+	/**
+	 * 开始保存全部表的快照
+	 * <p>
+	 * 提交线程在切换轮次({@link CommitEpoch#flip})前调用. 之后新轮次的事务在首次修改记录前,会保留此记录在旧轮次中未保存的修改副本
+	 */
+	static void beginSnapshotAll()
+	{
+		CommitEpoch.beginSave();
+		for (int i = 0, n = _tables.size(); i < n; ++i)
+			_tables.get(i).beginSnapshot();
+	}
+
+	/**
+	 * 在旧轮次的事务全部结束后,依次加锁保存全部表在旧轮次结束时已修改的记录. 此时和其它事务可以并发
+	 * <p>
+	 * @param counts 长度必须>=2,用于保存2个统计值,分别是保存的记录数,保存后的剩余记录数(新轮次的修改)
+	 */
+	static void saveSnapshotAll(long[] counts)
 	{
-		int m = 0;
 		for (int i = 0, n = _tables.size(); i < n; ++i)
 		{
 			TableBase<?> table = _tables.get(i);
 			try
 			{
-				m += table.saveModified();
+				table.saveSnapshot(counts);
 			}
 			catch (Throwable e)
 			{
-				Log.error(e, "db-commit thread exception(saveModified:{}):", table.getTableName());
+				Log.error(e, "db-commit thread exception(saveSnapshot:{}):", table.getTableName());
 			}
 		}
-		return m;
+	}
+
+	/**
+	 * 结束保存全部表的快照,丢弃保留的修改副本
+	 */
+	static void endSnapshotAll()
+	{
+		for (int i = 0, n = _tables.size(); i < n; ++i)
+			_tables.get(i).endSnapshot();
 	}
 
 	protected TableBase(int tableId, String tableName, V stubV, int lockId)
@@ -101,12 +231,28 @@ public abstract class TableBase<V extends Bean<V>>
 	 */
 	public abstract int getCacheModSize();
 
+	/**
+	 * 获取写缓存记录的估算字节数(写缓存记录数*平均记录大小)
+	 * <p>
+	 * 无法获取平均记录大小(如内存表)时返回-1
+	 */
+	public long getCacheModBytes()
+	{
+		int s = getAverageValueSize();
+		return s >= 0 ? (long)getCacheModSize() * s : -1;
+	}
+
+	/**
+	 * 获取读缓存因超出容量而被后台清理淘汰的记录数统计
+	 */
+	public abstract long getCacheEvictCount();
+
 	/**
 	 * 获取对当前表读取的统计次数
 	 */
 	public long getReadCount()
 	{
-		return _readCount.get();
+		return _readCount.sum();
 	}
 
 	/**
@@ -114,7 +260,39 @@ public abstract class TableBase<V extends Bean<V>>
 	 */
 	public long getReadStoCount()
 	{
-		return _readStoCount.get();
+		return _readStoCount.sum();
+	}
+
+	/**
+	 * 获取滑动窗口({@link Const#statWindowSize})内平均每秒的读操作次数
+	 */
+	public double getReadRate()
+	{
+		return getWindowRate(_readWin);
+	}
+
+	/**
+	 * 获取滑动窗口({@link Const#statWindowSize})内平均每秒的读数据库存储次数(即cache-miss的次数)
+	 */
+	public double getReadStoRate()
+	{
+		return getWindowRate(_readStoWin);
+	}
+
+	/**
+	 * 获取读数据库存储耗时(纳秒)的百分位数值
+	 * <p>
+	 * 统计滑动窗口({@link Const#statWindowSize})内的分布,以5秒为粒度. 不统计滑动窗口时为全部历史的分布
+	 * @param ps 多个百分位[0,1]. 如0.5,0.99
+	 * @return 对应各百分位的数值,没有统计数据时为-1
+	 */
+	public long[] getStoGetTimePercentiles(double... ps)
+	{
+		long[] counts = _stoGetTime.getCounts(Const.statWindowSize > 0);
+		long[] r = new long[ps.length];
+		for (int i = 0; i < ps.length; ++i)
+			r[i] = Histogram.getPercentile(counts, ps[i]);
+		return r;
 	}
 
 	/**
@@ -125,7 +303,19 @@ public abstract class TableBase<V extends Bean<V>>
 	protected abstract void trySaveModified(long[] counts);
 
 	/**
-	 * 在所有事务暂停的情况下直接依次保存此表已修改的记录
+	 * 开始保存此表的快照
+	 */
+	protected abstract void beginSnapshot();
+
+	/**
+	 * 依次加锁保存此表在旧轮次结束时已修改的记录. 新轮次修改过的记录保存其保留的副本,并留到下次保存
+	 * <p>
+	 * @param counts 长度必须>=2,用于保存2个统计值,分别是保存的记录数,保存后的剩余记录数
+	 */
+	protected abstract void saveSnapshot(long[] counts);
+
+	/**
+	 * 结束保存此表的快照
 	 */
-	protected abstract int saveModified();
+	protected abstract void endSnapshot();
 }
@@ -11,6 +11,7 @@ import jane.core.Storage.WalkLongHandler;
 import jane.core.Storage.WalkLongRawHandler;
 import jane.core.Storage.WalkLongValueHandler;
 import jane.core.map.LongConcurrentHashMap;
+import jane.core.map.LongConcurrentLRUMap;
 import jane.core.map.LongMap;
 import jane.core.map.LongMap.LongIterator;
 import jane.core.map.LongMap.MapIterator;
@@ -23,13 +24,14 @@ import jane.core.map.LongMap.MapIterator;
  */
 public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends TableBase<V>
 {
-	private final Storage.TableLong<V> _stoTable;							// 存储引擎的表对象
-	private final LongMap<Supplier<V>> _cache;								// 读缓存. 有大小限制,溢出自动清理
-	private final LongMap<V>		   _cacheMod;							// 写缓存. 不会溢出,保存到数据库存储引擎后清理
-	private final AtomicLong		   _idCounter	 = new AtomicLong();	// 用于自增长ID的计数器
-	private final AtomicBoolean		   _idCounterMod = new AtomicBoolean();	// idCounter是否待存状态(有修改未存库)
-	private int						   _autoIdBegin	 = Const.autoIdBegin;	// 自增长ID的初始值, 可运行时指定
-	private int						   _autoIdStride = Const.autoIdStride;	// 自增长ID的分配跨度, 可运行时指定
+	private final Storage.TableLong<V>				_stoTable;								// 存储引擎的表对象
+	private final LongMap<Supplier<V>>				_cache;									// 读缓存. 有大小限制,溢出自动清理
+	private final LongMap<V>						_cacheMod;								// 写缓存. 不会溢出,保存到数据库存储引擎后清理
+	private volatile LongConcurrentHashMap<Object>	_snapshot;								// 保存快照期间,新轮次的事务首次修改记录前保留的旧轮次修改副本. 只在保存快照期间非null
+	private final AtomicLong						_idCounter	  = new AtomicLong();		// 用于自增长ID的计数器
+	private final AtomicBoolean						_idCounterMod = new AtomicBoolean();	// idCounter是否待存状态(有修改未存库)
+	private int										_autoIdBegin  = Const.autoIdBegin;		// 自增长ID的初始值, 可运行时指定
+	private int										_autoIdStride = Const.autoIdStride;		// 自增长ID的分配跨度, 可运行时指定
 
 	/**
 	 * 创建一个数据库表
@@ -135,31 +137,102 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		}
 	}
 
+	@Override
+	protected void beginSnapshot()
+	{
+		if (_cacheMod != null)
+			_snapshot = new LongConcurrentHashMap<>();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void saveSnapshot(long[] counts)
+	{
+		LongConcurrentHashMap<Object> snapshot = _snapshot;
+		if (snapshot == null)
+			return;
+		long n = 0;
+		try
+		{
+			for (LongIterator it = _cacheMod.keyIterator(); it.hasNext();)
+			{
+				long k = it.next();
+				Lock lock = Procedure.waitLock(lockId(k));
+				try
+				{
+					Object s = snapshot.get(k);
+					if (s == SNAPSHOT_SKIP) // 只有新轮次的修改,留到下次保存
+						continue;
+					V v = (s != null ? (V)s : _cacheMod.get(k)); // 新轮次修改过的记录只保存旧轮次的副本,记录留到下次保存
+					if (v == null)
+						continue;
+					++n;
+					if (v == _deleted)
+						_stoTable.remove(k);
+					else
+						_stoTable.put(k, v);
+					if (s == null)
+					{
+						if (v != _deleted)
+							v.setSaveState(1);
+						_cacheMod.remove(k, v);
+					}
+				}
+				finally
+				{
+					lock.unlock();
+				}
+			}
+			_idCounterMod.set(false);
+			_stoTable.setIdCounter(_idCounter.get()); // 可能包含新轮次分配的ID,只会使以后分配的ID跳过一些值
+		}
+		finally
+		{
+			counts[0] += n;
+			counts[1] += _cacheMod.size();
+		}
+	}
+
+	@Override
+	protected void endSnapshot()
+	{
+		_snapshot = null;
+	}
+
 	/**
-	 * 在所有事务暂停的情况下直接依次保存此表已修改的记录
+	 * 事务修改记录前调用. 只在保存快照期间起作用
+	 * <p>
+	 * 旧轮次的事务: 如果记录已被新轮次的事务修改过,则需要重做(会以新轮次的事务重新运行)<br>
+	 * 新轮次的事务: 首次修改时保留此记录在旧轮次中未保存的修改副本,没有未保存的修改则标记此记录留到下次保存
 	 */
-	@Override
-	protected int saveModified()
+	void beforeWrite(long k)
 	{
-		if (_cacheMod == null)
-			return 0;
-		for (MapIterator<V> it = _cacheMod.entryIterator(); it.moveToNext();)
+		LongConcurrentHashMap<Object> snapshot = _snapshot;
+		if (snapshot != null)
 		{
-			long k = it.key();
-			V v = it.value();
-			if (v == _deleted)
-				_stoTable.remove(k);
-			else
+			if (CommitEpoch.isSaving())
+			{
+				if (snapshot.containsKey(k))
+					Procedure.redo();
+			}
+			else if (!snapshot.containsKey(k))
 			{
-				_stoTable.put(k, v);
-				v.setSaveState(1);
+				V v = _cacheMod.get(k);
+				snapshot.put(k, v == null ? SNAPSHOT_SKIP : (v != _deleted ? v.clone() : v));
 			}
 		}
-		int m = _cacheMod.size();
-		_cacheMod.clear();
-		_stoTable.setIdCounter(_idCounter.get());
-		_idCounterMod.set(false);
-		return m;
+	}
+
+	/**
+	 * 事务读取记录前调用. 只在保存快照期间起作用
+	 * <p>
+	 * 旧轮次的事务读取已被新轮次的事务修改过的记录时需要重做
+	 */
+	void beforeRead(long k)
+	{
+		LongConcurrentHashMap<Object> snapshot = _snapshot;
+		if (snapshot != null && snapshot.containsKey(k) && CommitEpoch.isSaving())
+			Procedure.redo();
 	}
 
 	@Override
@@ -174,6 +247,12 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		return _cache.size();
 	}
 
+	@Override
+	public long getCacheEvictCount()
+	{
+		return _cache instanceof LongConcurrentLRUMap ? ((LongConcurrentLRUMap<?>)_cache).getSweepEvictCount() : 0;
+	}
+
 	@Override
 	public int getCacheModSize()
 	{
@@ -189,7 +268,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	@Deprecated
 	public V getUnsafe(long k)
 	{
-		_readCount.getAndIncrement();
+		_readCount.increment();
 		Supplier<V> r = _cache.get(k);
 		V v;
 		if (r != null && (v = r.get()) != null)
@@ -204,8 +283,12 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 			_cache.put(k, new CacheRefLong<>(_cache, k, v));
 			return v;
 		}
-		_readStoCount.getAndIncrement();
+		_readStoCount.increment();
+		JfrEvents.StorageGet event = JfrEvents.beginStorageGet();
+		long t = System.nanoTime();
 		v = _stoTable.get(k);
+		_stoGetTime.record(System.nanoTime() - t);
+		JfrEvents.endStorageGet(event, _tableName, k, v != null);
 		if (v != null)
 		{
 			v.setSaveState(1);
@@ -247,6 +330,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	@Deprecated
 	S getNoLock(long k)
 	{
+		beforeRead(k);
 		V v = getUnsafe(k);
 		SContext sctx = SContext.current();
 		return v != null ? sctx.addRecord(this, k, v) : sctx.getRecord(this, k);
@@ -297,8 +381,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		Procedure proc = Procedure.getCurProcedure();
 		if (proc == null)
 			throw new IllegalStateException("invalid lockGet out of procedure");
-		proc.appendLock(lockId(k));
-		return getNoLock(k);
+		return proc.lockGet(this, k);
 	}
 
 	/**
@@ -341,7 +424,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	@Deprecated
 	public V getNoCacheUnsafe(long k)
 	{
-		_readCount.getAndIncrement();
+		_readCount.increment();
 		Supplier<V> r = _cache.get(k);
 		V v;
 		if (r != null)
@@ -355,8 +438,13 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		v = _cacheMod.get(k);
 		if (v != null)
 			return v != _deleted ? v : null;
-		_readStoCount.getAndIncrement();
-		return _stoTable.get(k);
+		_readStoCount.increment();
+		JfrEvents.StorageGet event = JfrEvents.beginStorageGet();
+		long t = System.nanoTime();
+		v = _stoTable.get(k);
+		_stoGetTime.record(System.nanoTime() - t);
+		JfrEvents.endStorageGet(event, _tableName, k, v != null);
+		return v;
 	}
 
 	/**
@@ -367,6 +455,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	{
 		if (!Procedure.isLockedByCurrentThread(lockId(k)))
 			throw new IllegalAccessError("get unlocked record! table=" + _tableName + ",key=" + k);
+		beforeRead(k);
 		V v = getNoCacheUnsafe(k);
 		SContext sctx = SContext.current();
 		return v != null ? sctx.addRecord(this, k, v) : sctx.getRecord(this, k);
@@ -381,7 +470,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	@Deprecated
 	public V getCacheUnsafe(long k)
 	{
-		_readCount.getAndIncrement();
+		_readCount.increment();
 		Supplier<V> r = _cache.get(k);
 		V v;
 		if (r != null)
@@ -396,6 +485,22 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		return v != null && v != _deleted ? v : null;
 	}
 
+	/**
+	 * 只在读和写cache中获取记录,用于乐观事务的无锁读取
+	 * <p>
+	 * 不会改动cache. 确定记录不存在时返回_deleted, 返回null表示cache中没有,需要加锁后再获取
+	 */
+	V getCacheOnly(long k)
+	{
+		beforeRead(k);
+		_readCount.increment();
+		Supplier<V> r = _cache.get(k);
+		V v;
+		if (r != null && (v = r.get()) != null)
+			return v;
+		return _cacheMod != null ? _cacheMod.get(k) : _deleted;
+	}
+
 	/**
 	 * 同getCacheUnsafe,但增加了加锁检查和安全封装,可回滚修改
 	 */
@@ -403,6 +508,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	{
 		if (!Procedure.isLockedByCurrentThread(lockId(k)))
 			throw new IllegalAccessError("get unlocked record! table=" + _tableName + ",key=" + k);
+		beforeRead(k);
 		V v = getCacheUnsafe(k);
 		SContext sctx = SContext.current();
 		return v != null ? sctx.addRecord(this, k, v) : sctx.getRecord(this, k);
@@ -494,8 +600,9 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	{
 		if (v == null)
 			throw new NullPointerException();
-		if (!Procedure.isLockedByCurrentThread(lockId(k)))
+		if (!Procedure.isLockedByCurrentThread(lockId(k)) && !Procedure.lockForWrite(lockId(k)))
 			throw new IllegalAccessError("put unlocked record! table=" + _tableName + ",key=" + k);
+		beforeWrite(k);
 		V vOld = getNoCacheUnsafe(k);
 		if (vOld == v)
 			return v;
@@ -585,8 +692,9 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	 */
 	public V remove(long k)
 	{
-		if (!Procedure.isLockedByCurrentThread(lockId(k)))
+		if (!Procedure.isLockedByCurrentThread(lockId(k)) && !Procedure.lockForWrite(lockId(k)))
 			throw new IllegalAccessError("remove unlocked record! table=" + _tableName + ",key=" + k);
+		beforeWrite(k);
 		V vOld = getNoCacheUnsafe(k);
 		if (vOld == null)
 			return null;
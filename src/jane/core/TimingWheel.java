@@ -0,0 +1,349 @@
+package jane.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 分层时间轮定时器
+ * <p>
+ * 按毫秒精度调度大量定时任务. 第0层有256个槽,每槽1毫秒; 其上4层各有64个槽,每槽是下一层转一圈的时间,共覆盖2^32毫秒(约49.7天)<br>
+ * 更远的任务先放到最高层,降层时再重新计算位置. 每当低一层转完一圈,就把高一层的下一个槽中的任务重新放到低层(降层)<br>
+ * 添加和取消都是O(1)的: 其它线程只把任务放入无锁队列,由时间轮线程在推进前链入或移出所在槽的链表<br>
+ * 到期的任务直接在时间轮线程中运行,因此只适合简单的处理,运行时间不要过长<br>
+ * 时间轮线程睡眠到第0层下一个有任务的槽(最多到下一次降层),没有任务时一直睡眠,添加更早到期的任务时会被唤醒
+ */
+public final class TimingWheel
+{
+	private static final int	ROOT_BITS	= 8;											// 第0层的槽数量位数
+	private static final int	ROOT_SIZE	= 1 << ROOT_BITS;								// 第0层的槽数量
+	private static final int	ROOT_MASK	= ROOT_SIZE - 1;
+	private static final int	LEVEL_BITS	= 6;											// 第1层以上每层的槽数量位数
+	private static final int	LEVEL_SIZE	= 1 << LEVEL_BITS;								// 第1层以上每层的槽数量
+	private static final int	LEVEL_MASK	= LEVEL_SIZE - 1;
+	private static final int	LEVEL_COUNT	= 4;											// 第1层以上的层数
+	private static final long	MAX_SPAN	= 1L << (ROOT_BITS + LEVEL_BITS * LEVEL_COUNT);	// 时间轮能覆盖的毫秒数
+
+	private final Timer[]						_heads		= new Timer[ROOT_SIZE + LEVEL_SIZE * LEVEL_COUNT];	// 各槽的任务链表头
+	private final ConcurrentLinkedQueue<Timer>	_adds		= new ConcurrentLinkedQueue<>();					// 待链入槽中的任务
+	private final ConcurrentLinkedQueue<Timer>	_cancels	= new ConcurrentLinkedQueue<>();					// 已取消待移出槽的任务
+	private final long							_startNanos	= System.nanoTime();								// 时间轮的起始时间(纳秒)
+	private final Thread						_thread;														// 时间轮线程
+	private volatile long						_wakeTime	= -1;												// 时间轮线程睡眠到的时间(毫秒). -1表示没有睡眠
+	private volatile int						_count;															// 当前链入槽中的任务数量
+	private long								_tick;															// 下一个待处理的时间(毫秒). 只在时间轮线程中访问
+
+	/**
+	 * 时间轮中的定时任务. 可以用{@link #cancel}取消
+	 */
+	public final class Timer extends FutureTask<Object> implements ScheduledFuture<Object>
+	{
+		private final long	period;		// 运行周期(毫秒). >0表示固定频率; <0表示固定间隔; 0表示只运行一次
+		private long		deadline;	// 到期时间(毫秒)
+		private int			slot = -1;	// 所在的槽. -1表示没有链入槽中. 只在时间轮线程中访问
+		private Timer		prev;		// 所在槽的双向链表中的前一个任务. 只在时间轮线程中访问
+		private Timer		next;		// 所在槽的双向链表中的后一个任务. 只在时间轮线程中访问
+
+		Timer(Runnable r, long deadline, long period)
+		{
+			super(r, null);
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit)
+		{
+			return unit.convert(deadline - currentTime(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o)
+		{
+			return o == this ? 0 : Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+		}
+
+		/**
+		 * 是否周期运行的任务
+		 */
+		public boolean isPeriodic()
+		{
+			return period != 0;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			if (!super.cancel(mayInterruptIfRunning))
+				return false;
+			_cancels.offer(this); // 由时间轮线程移出槽,不需要唤醒
+			return true;
+		}
+
+		/**
+		 * 运行一次周期任务. 返回是否需要继续调度
+		 */
+		private boolean runPeriodic()
+		{
+			return runAndReset(); // 抛出异常或被取消后不再运行,同ScheduledThreadPoolExecutor
+		}
+	}
+
+	/**
+	 * 创建并启动时间轮线程(daemon)
+	 */
+	public TimingWheel(String threadName)
+	{
+		_thread = new Thread(this::loop, threadName);
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * 获取时间轮的当前时间(毫秒). 从时间轮创建时开始计时
+	 */
+	public long currentTime()
+	{
+		return (System.nanoTime() - _startNanos) / 1_000_000;
+	}
+
+	/**
+	 * 获取当前链入时间轮中的任务数量. 不包括刚刚添加还没链入的任务
+	 */
+	public int getTimerCount()
+	{
+		return _count;
+	}
+
+	private Timer add(Runnable r, long delayMs, long period)
+	{
+		Timer t = new Timer(r, currentTime() + Math.max(delayMs, 0), period);
+		_adds.offer(t);
+		if (t.deadline < _wakeTime)
+			LockSupport.unpark(_thread);
+		return t;
+	}
+
+	/**
+	 * 调度一个延迟运行的任务
+	 * @param delayMs 延迟的毫秒数
+	 */
+	public Timer schedule(long delayMs, Runnable r)
+	{
+		return add(r, delayMs, 0);
+	}
+
+	/**
+	 * 调度一个固定间隔运行的任务(上次运行结束到下次运行开始的间隔)
+	 * @param periodMs 间隔的毫秒数. 必须>0
+	 */
+	public Timer scheduleWithFixedDelay(long delayMs, long periodMs, Runnable r)
+	{
+		if (periodMs <= 0)
+			throw new IllegalArgumentException("periodMs=" + periodMs);
+		return add(r, delayMs, -periodMs);
+	}
+
+	/**
+	 * 调度一个固定频率运行的任务(同一任务不会并发,即使延迟过大也会保证运行的次数)
+	 * @param periodMs 周期的毫秒数. 必须>0
+	 */
+	public Timer scheduleAtFixedRate(long delayMs, long periodMs, Runnable r)
+	{
+		if (periodMs <= 0)
+			throw new IllegalArgumentException("periodMs=" + periodMs);
+		return add(r, delayMs, periodMs);
+	}
+
+	/**
+	 * 把任务链入对应的槽. 只在时间轮线程中调用
+	 */
+	private void link(Timer t)
+	{
+		long tick = _tick;
+		long deadline = Math.max(t.deadline, tick); // 已过期的放到下一个待处理的槽
+		long d = deadline - tick;
+		int slot;
+		if (d < ROOT_SIZE)
+			slot = (int)deadline & ROOT_MASK;
+		else
+		{
+			if (d >= MAX_SPAN)
+				deadline = tick + MAX_SPAN - 1; // 超出范围的先放到最高层的最远处,降层时再重新计算
+			int level = 0;
+			for (int shift = ROOT_BITS + LEVEL_BITS; level < LEVEL_COUNT - 1 && d >= 1L << shift; shift += LEVEL_BITS)
+				++level;
+			slot = ROOT_SIZE + level * LEVEL_SIZE + ((int)(deadline >>> (ROOT_BITS + level * LEVEL_BITS)) & LEVEL_MASK);
+		}
+		Timer head = _heads[slot];
+		t.slot = slot;
+		t.prev = null;
+		t.next = head;
+		if (head != null)
+			head.prev = t;
+		_heads[slot] = t;
+		++_count;
+	}
+
+	/**
+	 * 把任务移出所在的槽. 只在时间轮线程中调用
+	 */
+	private void unlink(Timer t)
+	{
+		Timer prev = t.prev, next = t.next;
+		if (prev != null)
+			prev.next = next;
+		else
+			_heads[t.slot] = next;
+		if (next != null)
+			next.prev = prev;
+		t.slot = -1;
+		t.prev = null;
+		t.next = null;
+		--_count;
+	}
+
+	/**
+	 * 取出一个槽的全部任务. 返回链表头,通过next遍历
+	 */
+	private Timer detach(int slot)
+	{
+		Timer head = _heads[slot];
+		if (head == null)
+			return null;
+		_heads[slot] = null;
+		int n = 0;
+		for (Timer t = head; t != null; t = t.next)
+		{
+			t.slot = -1;
+			++n;
+		}
+		_count -= n;
+		return head;
+	}
+
+	/**
+	 * 把第level(>=1)层的对应槽降层
+	 * @return 此层在当前时间的槽下标. 为0时表示此层也转完了一圈,需要继续降更高一层
+	 */
+	private int cascade(int level)
+	{
+		int idx = (int)(_tick >>> (ROOT_BITS + (level - 1) * LEVEL_BITS)) & LEVEL_MASK;
+		for (Timer t = detach(ROOT_SIZE + (level - 1) * LEVEL_SIZE + idx), next; t != null; t = next)
+		{
+			next = t.next;
+			link(t);
+		}
+		return idx;
+	}
+
+	private void drainQueues()
+	{
+		for (Timer t; (t = _adds.poll()) != null;)
+		{
+			if (!t.isCancelled())
+				link(t);
+		}
+		for (Timer t; (t = _cancels.poll()) != null;)
+		{
+			if (t.slot >= 0)
+				unlink(t);
+		}
+	}
+
+	/**
+	 * 处理一个时间(毫秒)的槽. 先按需降层,再运行第0层对应槽中的全部任务
+	 */
+	private void processTick()
+	{
+		long tick = _tick;
+		if (((int)tick & ROOT_MASK) == 0)
+		{
+			for (int level = 1; level <= LEVEL_COUNT && cascade(level) == 0; ++level)
+			{
+			}
+		}
+		Timer t = detach((int)tick & ROOT_MASK);
+		_tick = tick + 1;
+		for (Timer next; t != null; t = next)
+		{
+			next = t.next;
+			t.next = null;
+			t.prev = null;
+			if (t.deadline > tick) // 降层时放在更远处的任务
+			{
+				link(t);
+				continue;
+			}
+			try
+			{
+				if (t.period == 0)
+					t.run();
+				else if (t.runPeriodic())
+				{
+					t.deadline = (t.period > 0 ? t.deadline + t.period : currentTime() - t.period);
+					if (!t.isCancelled())
+						link(t); // _tick已经推进,不会放回当前槽
+				}
+			}
+			catch (Throwable e)
+			{
+				Log.error("TimingWheel: timer fatal exception:", e);
+			}
+		}
+	}
+
+	private void loop()
+	{
+		for (;;)
+		{
+			try
+			{
+				_wakeTime = -1;
+				long now = currentTime();
+				if (_count == 0 && _tick < now)
+					_tick = now; // 没有任务时直接跳过中间的时间
+				drainQueues();
+				while (_tick <= now)
+				{
+					processTick();
+					drainQueues();
+				}
+				long wake;
+				if (_count == 0)
+					wake = Long.MAX_VALUE;
+				else
+				{
+					long tick = _tick;
+					wake = (tick + ROOT_MASK) & ~(long)ROOT_MASK; // 最晚到下次降层时(包括当前待处理的时间)
+					for (long t = tick; t < wake; ++t)
+					{
+						if (_heads[(int)t & ROOT_MASK] != null)
+						{
+							wake = t;
+							break;
+						}
+					}
+				}
+				_wakeTime = wake;
+				if (!_adds.isEmpty()) // 和添加任务时检查_wakeTime配合,避免错过唤醒
+					continue;
+				if (wake == Long.MAX_VALUE)
+					LockSupport.park(this);
+				else
+				{
+					long nanos = wake * 1_000_000 - (System.nanoTime() - _startNanos);
+					if (nanos > 0)
+						LockSupport.parkNanos(this, nanos);
+				}
+			}
+			catch (Throwable e)
+			{
+				Log.error("TimingWheel: fatal exception:", e);
+			}
+		}
+	}
+}
@@ -25,6 +25,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import jane.core.Const;
 import jane.core.Log;
 import jane.core.map.LRUCleaner.Cleanable;
 
@@ -51,6 +52,12 @@ public final class ConcurrentLRUMap<K, V> implements Map<K, V>, Cleanable
 	private final int									 acceptSize;
 	private final String								 name;
 	private long										 minVersion;
+	private Iterator<CacheEntry<K, V>>					 sweepIter;
+	private CacheEntry<?, ?>[]							 sweepHeap;
+	private long										 sweepRoundCount;
+	private long										 sweepStepCount;
+	private long										 sweepEvictCount;
+	private long										 sweepMaxStepTime;
 
 	public ConcurrentLRUMap(int upperSize, int lowerSize, int acceptSize, int initialSize, float loadFactor, String name)
 	{
@@ -361,6 +368,111 @@ public final class ConcurrentLRUMap<K, V> implements Map<K, V>, Cleanable
 		}
 	}
 
+	/**
+	 * 执行一步增量清理. 由{@link LRUCleaner}在后台线程池中反复调用,直到返回false
+	 * <p>
+	 * 每步最多扫描{@link Const#lruSweepStepSize}条记录,并按比例淘汰其中最旧的部分,
+	 * 避免一次扫描整个map造成的长时间停顿. 一轮扫描完整个map后如果仍高于acceptSize则继续下一轮
+	 */
+	@Override
+	public synchronized boolean sweepStep()
+	{
+		final long time = System.nanoTime();
+		final int sizeCur = size.get();
+		if (sizeCur <= lowerSize)
+		{
+			sweepIter = null;
+			return false;
+		}
+		Iterator<CacheEntry<K, V>> it = sweepIter;
+		if (it == null)
+		{
+			sweepIter = it = map.values().iterator();
+			sweepRoundCount++;
+		}
+		final int stepSize = Const.lruSweepStepSize;
+		final int numToRemove = (int)(((long)stepSize * (sizeCur - lowerSize) + sizeCur - 1) / sizeCur); // 本步按比例需要淘汰的数量
+		CacheEntry<?, ?>[] heap = sweepHeap;
+		if (heap == null || heap.length < LRUQueue.calHeapSize(numToRemove))
+			sweepHeap = heap = new CacheEntry<?, ?>[LRUQueue.calHeapSize(stepSize)];
+		final LRUQueue<CacheEntry<?, ?>> queue = new LRUQueue<>(numToRemove, heap);
+		final long keepV = versionCounter.get() - lowerSize; // 最新的lowerSize个版本之内的记录不会被淘汰
+		for (int n = 0; n < stepSize && it.hasNext(); ++n)
+		{
+			final CacheEntry<?, ?> ce = it.next();
+			final long v = ce.version;
+			if (v >= keepV)
+				continue;
+			ce.versionCopy = v;
+			queue.insertWithOverflow(ce);
+		}
+		int numRemoved = 0;
+		for (int i = 1, n = queue.size; i <= n; ++i)
+		{
+			evictEntry(heap[i].key);
+			heap[i] = null;
+			numRemoved++;
+		}
+		sweepStepCount++;
+		sweepEvictCount += numRemoved;
+		final long stepTime = System.nanoTime() - time;
+		if (sweepMaxStepTime < stepTime)
+			sweepMaxStepTime = stepTime;
+		final int sizeNew = size.get();
+		if (it.hasNext())
+			return sizeNew > lowerSize;
+		sweepIter = null;
+		if (Log.hasDebug)
+			Log.debug("LRUMap.sweepRound({}: {}=>{}, round={})", name, sizeCur, sizeNew, sweepRoundCount);
+		return sizeNew > acceptSize;
+	}
+
+	@Override
+	public boolean needSweep()
+	{
+		return size.get() >= upperSize;
+	}
+
+	/**
+	 * 获取增量清理的轮数统计
+	 */
+	public long getSweepRoundCount()
+	{
+		return sweepRoundCount;
+	}
+
+	/**
+	 * 获取增量清理的步数统计
+	 */
+	public long getSweepStepCount()
+	{
+		return sweepStepCount;
+	}
+
+	/**
+	 * 获取增量清理淘汰的记录数量统计
+	 */
+	public long getSweepEvictCount()
+	{
+		return sweepEvictCount;
+	}
+
+	/**
+	 * 获取增量清理单步的最大耗时(纳秒)
+	 */
+	public long getSweepMaxStepTime()
+	{
+		return sweepMaxStepTime;
+	}
+
+	/**
+	 * 是否正在后台清理中
+	 */
+	public boolean isSweeping()
+	{
+		return sweepStatus.get() != 0;
+	}
+
 	@Override
 	public Set<K> keySet()
 	{
@@ -5,9 +5,16 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.Const;
 import jane.core.Log;
 
-final class LRUCleaner
+/**
+ * LRUMap的后台清理器
+ * <p>
+ * 每个map的清理被拆分成多个有限大小的步骤,每步完成后重新排队,使多个map可以在小线程池中交替并发清理
+ */
+public final class LRUCleaner
 {
 	private static final class Singleton
 	{
@@ -16,42 +23,98 @@ final class LRUCleaner
 
 	interface Cleanable
 	{
+		/**
+		 * 执行一步增量清理
+		 * @return 是否还需要继续下一步清理
+		 */
+		boolean sweepStep();
+
+		/**
+		 * 判断是否需要启动一轮新的清理
+		 */
+		boolean needSweep();
+
 		void sweep();
 
 		void sweep(int newLowerSize, int newAcceptSize);
 	}
 
-	private final ExecutorService cleanerThread;
+	private static final AtomicInteger _sweepingCount  = new AtomicInteger(); // 正在清理中的map数量
+	private static final AtomicLong	   _sweepStepCount = new AtomicLong();	  // 已执行的清理步骤数量统计
+	private final ExecutorService	   cleanerThreads;
 
 	private LRUCleaner()
 	{
-		cleanerThread = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r ->
+		int threadCount = Const.lruCleanerThreadCount;
+		if (threadCount <= 0)
+			threadCount = Math.min(Math.max(Runtime.getRuntime().availableProcessors() / 8, 1), 4);
+		AtomicInteger counter = new AtomicInteger();
+		ThreadPoolExecutor tpe = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r ->
 		{
-			Thread t = new Thread(r, "LRUMapCleanerThread");
+			Thread t = new Thread(r, "LRUMapCleanerThread-" + counter.incrementAndGet());
 			t.setDaemon(true);
 			t.setPriority(Thread.NORM_PRIORITY + 2);
 			return t;
 		});
+		tpe.allowCoreThreadTimeOut(true);
+		cleanerThreads = tpe;
 	}
 
-	static void submit(AtomicInteger status, Cleanable c)
+	/**
+	 * 获取正在清理中的map数量
+	 */
+	public static int getSweepingCount()
 	{
-		if (!status.compareAndSet(0, 1))
-			return;
-		Singleton.instance.cleanerThread.submit(() ->
+		return _sweepingCount.get();
+	}
+
+	/**
+	 * 获取所有map已执行的清理步骤数量统计
+	 */
+	public static long getSweepStepCount()
+	{
+		return _sweepStepCount.get();
+	}
+
+	private static final class SweepTask implements Runnable
+	{
+		private final AtomicInteger	status;
+		private final Cleanable		cleanable;
+
+		SweepTask(AtomicInteger s, Cleanable c)
+		{
+			status = s;
+			cleanable = c;
+		}
+
+		@Override
+		public void run()
 		{
 			try
 			{
-				c.sweep();
+				_sweepStepCount.getAndIncrement();
+				if (cleanable.sweepStep())
+				{
+					Singleton.instance.cleanerThreads.execute(this); // 每步之后重新排队,让其它map有机会清理
+					return;
+				}
 			}
 			catch (Throwable e)
 			{
 				Log.error("LRUCleaner fatal exception:", e);
 			}
-			finally
-			{
-				status.set(0);
-			}
-		});
+			_sweepingCount.getAndDecrement();
+			status.set(0);
+			if (cleanable.needSweep()) // 清理结束前可能错过了新的清理请求
+				submit(status, cleanable);
+		}
+	}
+
+	static void submit(AtomicInteger status, Cleanable c)
+	{
+		if (!status.compareAndSet(0, 1))
+			return;
+		_sweepingCount.getAndIncrement();
+		Singleton.instance.cleanerThreads.execute(new SweepTask(status, c));
 	}
 }
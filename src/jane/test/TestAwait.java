@@ -0,0 +1,260 @@
+package jane.test;
+
+import static jane.bean.AllTables.Benchmark;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.DBManager;
+import jane.core.ProcThread;
+import jane.core.Procedure;
+import jane.bean.AllTables;
+import jane.bean.TestBean;
+
+/**
+ * 事务等待异步结果(await)的测试
+ * <p>
+ * 1. 大量sid的事务等待模拟的远程应答,验证挂起时不占用线程,并且同一sid的事务仍按顺序运行<br>
+ * 2. 事务挂起期间其读取的记录被其它事务修改,验证恢复后会丢弃旧的应答并重新请求<br>
+ * 3. 通过submitFuture提交会挂起的事务,验证挂起期间future没有完成,事务提交后才完成<br>
+ * 4. 直接调用execute运行会挂起的事务,验证等待异步结果后继续运行,提交后才返回true<br>
+ * 5. 事务运行中被其它线程再次调用execute,验证此调用失败且不影响正在运行的调用
+ */
+public final class TestAwait
+{
+	private static final int	SID_COUNT	 = 1000;	// sid的数量,每个sid对应一条记录
+	private static final int	PROC_PER_SID = 20;		// 每个sid的事务数量
+	private static final int	REMOTE_DELAY = 2;		// 模拟远程应答的延迟(毫秒)
+
+	private static final ScheduledExecutorService	remote	   = Executors.newSingleThreadScheduledExecutor();
+	private static final long[]						seqs	   = new long[SID_COUNT];							// 每个sid已提交的事务序号
+	private static final AtomicLong					errorCount = new AtomicLong();
+
+	private static CompletableFuture<Integer> askRemote(int v)
+	{
+		CompletableFuture<Integer> f = new CompletableFuture<>();
+		remote.schedule(() -> f.complete(v + 1), REMOTE_DELAY, TimeUnit.MILLISECONDS);
+		return f;
+	}
+
+	private static final class IncProcedure extends Procedure
+	{
+		private final int			 sid;
+		private final long			 seq;
+		private final CountDownLatch latch;
+
+		IncProcedure(int sid, long seq, CountDownLatch latch)
+		{
+			this.sid = sid;
+			this.seq = seq;
+			this.latch = latch;
+		}
+
+		@Override
+		protected void onProcess() throws Exception
+		{
+			TestBean.Safe r = Benchmark.lockGet(sid);
+			int v = r.getValue1();
+			r.setValue1(await(() -> askRemote(v)));
+			addOnCommit(() ->
+			{
+				if (seqs[sid] + 1 != seq)
+					errorCount.getAndIncrement();
+				seqs[sid] = seq;
+				latch.countDown();
+			});
+		}
+	}
+
+	private static void runProc(Runnable r) throws InterruptedException
+	{
+		Thread pt = new ProcThread(null, r);
+		pt.start();
+		pt.join();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+		AllTables.register();
+		System.out.println("start: threads=" + dbm.getProcThreadCount());
+
+		runProc(() ->
+		{
+			for (int i = 0; i < SID_COUNT; ++i)
+			{
+				final int k = i;
+				new Procedure()
+				{
+					@Override
+					protected void onProcess() throws Exception
+					{
+						TestBean.Safe r = Benchmark.lockGet(k);
+						if (r != null)
+							r.setValue1(0);
+						else
+							Benchmark.put(k, new TestBean(0, 0));
+					}
+				}.run();
+			}
+		});
+
+		// 1. 大量挂起的事务
+		CountDownLatch latch = new CountDownLatch(SID_COUNT * PROC_PER_SID);
+		long t = System.currentTimeMillis();
+		for (int j = 1; j <= PROC_PER_SID; ++j)
+			for (int i = 0; i < SID_COUNT; ++i)
+				dbm.submit(i, new IncProcedure(i, j, latch));
+		latch.await();
+		t = System.currentTimeMillis() - t;
+		runProc(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				for (int i = 0; i < SID_COUNT; ++i)
+				{
+					if (Benchmark.lockGet(i).getValue1() != PROC_PER_SID)
+						errorCount.getAndIncrement();
+					unlock();
+				}
+			}
+		});
+		System.out.println("time: " + t + " ms (" + (long)SID_COUNT * PROC_PER_SID * REMOTE_DELAY / dbm.getProcThreadCount() +
+				" ms if blocking), suspends: " + Procedure.getSuspendCount() + ", errors: " + errorCount.get() +
+				", sessions: " + dbm.getSessionCount());
+
+		// 2. 挂起期间记录被修改
+		CompletableFuture<Integer> gate = new CompletableFuture<>();
+		AtomicInteger askCount = new AtomicInteger();
+		CountDownLatch staleLatch = new CountDownLatch(1);
+		long suspends = Procedure.getSuspendCount();
+		dbm.submit("a", new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				TestBean.Safe r = Benchmark.lockGet(0);
+				int v = r.getValue1();
+				r.setValue1(await(() -> askCount.getAndIncrement() == 0 ? gate.thenApply(x -> v + 1) : CompletableFuture.completedFuture(v + 1)));
+				addOnCommit(staleLatch::countDown);
+			}
+		});
+		while (Procedure.getSuspendCount() == suspends)
+			Thread.sleep(1);
+		runProc(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				Benchmark.lockGet(0).setValue1(100);
+			}
+		});
+		gate.complete(0);
+		staleLatch.await();
+		int[] v = new int[1];
+		runProc(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				v[0] = Benchmark.lockGet(0).getValue1();
+			}
+		});
+		System.out.println("stale: asks=" + askCount.get() + "(expect 2), value=" + v[0] + "(expect 101)");
+
+		// 3. submitFuture提交的事务挂起
+		CompletableFuture<Integer> gate2 = new CompletableFuture<>();
+		AtomicInteger commitCount = new AtomicInteger();
+		suspends = Procedure.getSuspendCount();
+		Future<?> f = dbm.submitFuture(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				Benchmark.lockGet(1).setValue1(await(() -> gate2));
+				addOnCommit(commitCount::getAndIncrement);
+			}
+		});
+		while (Procedure.getSuspendCount() == suspends)
+			Thread.sleep(1);
+		boolean doneEarly = f.isDone();
+		gate2.complete(7);
+		f.get();
+		System.out.println("future: doneWhileSuspended=" + doneEarly + "(expect false), commits=" + commitCount.get() + "(expect 1)");
+
+		// 4. 直接调用execute
+		boolean[] executed = new boolean[1];
+		commitCount.set(0);
+		runProc(() ->
+		{
+			try
+			{
+				executed[0] = new Procedure()
+				{
+					@Override
+					protected void onProcess() throws Exception
+					{
+						Benchmark.lockGet(1).setValue1(await(() -> askRemote(8)));
+						addOnCommit(commitCount::getAndIncrement);
+					}
+				}.execute();
+			}
+			catch (Exception e)
+			{
+				errorCount.getAndIncrement();
+			}
+		});
+		System.out.println("execute: result=" + executed[0] + "(expect true), commits=" + commitCount.get() + "(expect 1)");
+
+		// 5. 并发调用execute
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger rejectCount = new AtomicInteger();
+		commitCount.set(0);
+		Procedure p = new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				Benchmark.lockGet(2).setValue1(9);
+				entered.countDown();
+				release.await();
+				addOnCommit(commitCount::getAndIncrement);
+			}
+
+			@Override
+			protected void onException(Throwable e)
+			{
+				if (e instanceof IllegalStateException)
+					rejectCount.getAndIncrement();
+			}
+		};
+		Thread pt = new ProcThread(null, p);
+		pt.start();
+		entered.await();
+		runProc(p);
+		release.countDown();
+		pt.join();
+		runProc(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				v[0] = Benchmark.lockGet(2).getValue1();
+			}
+		});
+		System.out.println("reenter: rejects=" + rejectCount.get() + "(expect 1), commits=" + commitCount.get() + "(expect 1), value=" + v[0] +
+				"(expect 9), errors=" + errorCount.get());
+
+		System.out.println("checkpoint");
+		dbm.checkpoint();
+		System.out.println("end");
+		System.exit(0);
+	}
+}
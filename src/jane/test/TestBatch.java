@@ -0,0 +1,279 @@
+package jane.test;
+
+import static jane.bean.AllTables.Benchmark;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.BatchProcedure;
+import jane.core.DBManager;
+import jane.core.ProcStat;
+import jane.core.ProcThread;
+import jane.core.Procedure;
+import jane.bean.AllTables;
+import jane.bean.TestBean;
+
+/**
+ * 合并运行的事务(BatchProcedure)测试
+ * <p>
+ * 多个sid各提交一批给记录加1的小事务,对比普通事务和可合并事务的耗时<br>
+ * 再在可合并事务中混入抛异常,undo和redo的事务,验证只回滚各自的修改,redo的事务单独重新运行,并且同一sid的提交顺序不变<br>
+ * 最后合并运行的两个事务通过同一个安全封装修改同一字段,验证后一个事务异常回滚时保留前一个事务的修改<br>
+ * 开启procStat=1时还验证合并运行的每个事务都有运行统计<br>
+ * 参数: [每个sid的事务数量]
+ */
+public final class TestBatch
+{
+	private static final int SID_COUNT = 100; // sid的数量,每个sid对应一条记录
+
+	private static final long[]		seqs	   = new long[SID_COUNT];	// 每个sid最后提交的事务序号
+	private static final AtomicLong	errorCount = new AtomicLong();
+	private static CountDownLatch	doneLatch;
+	private static boolean			mixed;								// 是否混入回滚和重做的事务
+
+	private static void onCommit(int sid, long seq)
+	{
+		if (seqs[sid] >= seq)
+			errorCount.getAndIncrement();
+		seqs[sid] = seq;
+	}
+
+	private static final class IncProcedure extends Procedure
+	{
+		private final int  sid;
+		private final long seq;
+
+		IncProcedure(int sid, long seq)
+		{
+			this.sid = sid;
+			this.seq = seq;
+		}
+
+		@Override
+		protected void onProcess() throws Exception
+		{
+			TestBean.Safe r = Benchmark.lockGet(sid);
+			r.setValue1(r.getValue1() + 1);
+			addOnCommit(() -> onCommit(sid, seq));
+			doneLatch.countDown();
+		}
+	}
+
+	private static final class IncBatchProcedure extends BatchProcedure
+	{
+		private final int  sid;
+		private final long seq;
+		private boolean	   redone;
+
+		IncBatchProcedure(int sid, long seq)
+		{
+			this.sid = sid;
+			this.seq = seq;
+		}
+
+		@Override
+		protected void onProcess() throws Exception
+		{
+			TestBean.Safe r = Benchmark.lockGet(sid);
+			r.setValue1(r.getValue1() + 1);
+			if (!mixed)
+			{
+				addOnCommit(() -> onCommit(sid, seq));
+				doneLatch.countDown();
+				return;
+			}
+			if (seq % 7 == 0)
+				Benchmark.lockGet(sid + SID_COUNT).setValue2((int)seq); // 多加一个锁,合并运行时可能需要调整加锁顺序
+			if (seq % 10 == 3)
+			{
+				doneLatch.countDown();
+				throw new IllegalStateException("test exception"); // 回滚,不计数
+			}
+			if (seq % 10 == 6)
+			{
+				doneLatch.countDown();
+				undo(); // 回滚,不计数
+			}
+			if (seq % 10 == 9 && !redone)
+			{
+				redone = true;
+				redo(); // 合并运行时会放回队列后单独运行
+			}
+			addOnCommit(() -> onCommit(sid, seq));
+			doneLatch.countDown();
+		}
+
+		@Override
+		protected void onException(Throwable e)
+		{
+			if (!"test exception".equals(e.getMessage()))
+				super.onException(e);
+		}
+	}
+
+	private static void runProc(Runnable r) throws InterruptedException
+	{
+		Thread pt = new ProcThread(null, r);
+		pt.start();
+		pt.join();
+	}
+
+	private static void reset() throws InterruptedException
+	{
+		runProc(() ->
+		{
+			for (int i = 0; i < SID_COUNT * 2; ++i)
+			{
+				final int k = i;
+				new Procedure()
+				{
+					@Override
+					protected void onProcess() throws Exception
+					{
+						TestBean.Safe r = Benchmark.lockGet(k);
+						if (r != null)
+							r.setValue1(0);
+						else
+							Benchmark.put(k, new TestBean(0, 0));
+					}
+				}.run();
+			}
+		});
+		for (int i = 0; i < SID_COUNT; ++i)
+			seqs[i] = 0;
+	}
+
+	private static long sum() throws InterruptedException
+	{
+		long[] s = new long[1];
+		runProc(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				for (int i = 0; i < SID_COUNT; ++i)
+				{
+					s[0] += Benchmark.lockGet(i).getValue1();
+					unlock();
+				}
+			}
+		});
+		return s[0];
+	}
+
+	private static long batchExecCount()
+	{
+		ProcStat.ClassStat s = ProcStat.getStat(IncBatchProcedure.class);
+		return s != null ? s.getExecCount() : 0;
+	}
+
+	private static void bench(boolean batch, boolean mix, int procCount) throws Exception
+	{
+		reset();
+		long execCount = batchExecCount();
+		mixed = mix;
+		DBManager dbm = DBManager.instance();
+		doneLatch = new CountDownLatch(SID_COUNT * procCount);
+		long t = System.nanoTime();
+		for (int j = 1; j <= procCount; ++j)
+			for (int i = 0; i < SID_COUNT; ++i)
+				dbm.submit(i, batch ? new IncBatchProcedure(i, j) : new IncProcedure(i, j));
+		doneLatch.await();
+		while (dbm.getSessionCount() > 0)
+			Thread.sleep(1);
+		t = (System.nanoTime() - t) / 1_000_000;
+		long expect = 0;
+		for (int j = 1; j <= procCount; ++j)
+		{
+			if (!mix || j % 10 != 3 && j % 10 != 6) // 序号为10n+3和10n+6的事务会回滚
+				expect += SID_COUNT;
+		}
+		long s = sum();
+		if (s != expect)
+			errorCount.getAndIncrement();
+		execCount = batchExecCount() - execCount;
+		if (ProcStat.ENABLED && batch && !mix && execCount != (long)SID_COUNT * procCount)
+			errorCount.getAndIncrement();
+		System.out.println((batch ? (mix ? "mixed" : "batch") : "plain") + ": " + t + " ms, sum=" + s + "(expect " + expect + ")" +
+				(ProcStat.ENABLED ? ", execs=" + execCount : "") + ", errors: " + errorCount.get());
+	}
+
+	private static void testSavepoint() throws Exception
+	{
+		reset();
+		DBManager dbm = DBManager.instance();
+		CountDownLatch gate = new CountDownLatch(1);
+		TestBean.Safe[] shared = new TestBean.Safe[1];
+		boolean[] committed = new boolean[1];
+		boolean[] batched = new boolean[1];
+		dbm.submit(0, new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				gate.await(); // 阻塞队列,使后面的两个事务合并运行
+			}
+		});
+		dbm.submit(0, new BatchProcedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				TestBean.Safe r = Benchmark.lockGet(0);
+				r.setValue1(1);
+				shared[0] = r;
+				addOnCommit(() -> committed[0] = true);
+			}
+		});
+		dbm.submit(0, new BatchProcedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				Benchmark.lockGet(0);
+				batched[0] = !committed[0];
+				if (batched[0])
+					shared[0].setValue1(2); // 前一个事务已修改过此字段,仍然要记录回滚
+				throw new IllegalStateException("test exception");
+			}
+
+			@Override
+			protected void onException(Throwable e)
+			{
+				if (!"test exception".equals(e.getMessage()))
+					super.onException(e);
+			}
+		});
+		gate.countDown();
+		while (dbm.getSessionCount() > 0)
+			Thread.sleep(1);
+		int[] v = new int[1];
+		runProc(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				v[0] = Benchmark.lockGet(0).getValue1();
+			}
+		});
+		if (v[0] != 1 || !batched[0])
+			errorCount.getAndIncrement();
+		System.out.println("savepoint: batched=" + batched[0] + ", value=" + v[0] + "(expect 1), errors: " + errorCount.get());
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int procCount = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+		DBManager.instance().startup();
+		AllTables.register();
+		for (int i = 0; i < 3; ++i)
+		{
+			bench(false, false, procCount);
+			bench(true, false, procCount);
+		}
+		bench(true, true, procCount);
+		testSavepoint();
+		System.out.println("checkpoint");
+		DBManager.instance().checkpoint();
+		System.out.println("end");
+		System.exit(0);
+	}
+}
@@ -1,5 +1,7 @@
 package jane.test;
 
+import java.util.ArrayList;
+import jane.core.map.LRUCleaner;
 import jane.core.map.LongConcurrentLRUMap;
 import jane.core.map.LongMap;
 import jane.core.map.LongMap.LongIterator;
@@ -37,12 +39,54 @@ public class TestCache
 		printMap(m);
 	}
 
-	public static void main(String[] args)
+	/**
+	 * 多个线程同时向多个大LRUMap写入,观察后台增量清理能否把各map的大小控制住
+	 */
+	public static void testSweep(int mapCount, int lowerSize, int putCount) throws InterruptedException
+	{
+		ArrayList<LongConcurrentLRUMap<Integer>> maps = new ArrayList<>(mapCount);
+		for (int i = 0; i < mapCount; ++i)
+			maps.add(new LongConcurrentLRUMap<>(lowerSize, 0.5f, "TestSweep" + i));
+		int[] maxSizes = new int[mapCount];
+		Thread[] threads = new Thread[mapCount];
+		long time = System.currentTimeMillis();
+		for (int i = 0; i < mapCount; ++i)
+		{
+			final int idx = i;
+			threads[i] = new Thread(() ->
+			{
+				LongConcurrentLRUMap<Integer> m = maps.get(idx);
+				for (int j = 0; j < putCount; ++j)
+				{
+					m.put(j, j);
+					int s = m.size();
+					if (maxSizes[idx] < s)
+						maxSizes[idx] = s;
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		time = System.currentTimeMillis() - time;
+		for (int i = 0; i < 100 && LRUCleaner.getSweepingCount() > 0; ++i)
+			Thread.sleep(100);
+		for (int i = 0; i < mapCount; ++i)
+		{
+			LongConcurrentLRUMap<Integer> m = maps.get(i);
+			System.out.format("map%d: size=%d, maxSize=%d, rounds=%d, steps=%d, evicted=%d, maxStepTime=%dus%n", i, m.size(), maxSizes[i],
+					m.getSweepRoundCount(), m.getSweepStepCount(), m.getSweepEvictCount(), m.getSweepMaxStepTime() / 1000);
+		}
+		System.out.println("time: " + time + "ms");
+	}
+
+	public static void main(String[] args) throws InterruptedException
 	{
 		final int COUNT = 10;
 
 		test(new ConcurrentLinkedHashMap.Builder().concurrencyLevel(1)
 				.maximumWeightedCapacity(COUNT).initialCapacity(COUNT).<Integer>buildLong());
 		test(new LongConcurrentLRUMap<Integer>(COUNT, 0.75f, "Test"));
+		testSweep(4, 100000, 1000000);
 	}
 }
@@ -0,0 +1,144 @@
+package jane.test;
+
+import static jane.bean.AllTables.Benchmark;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.DBManager;
+import jane.core.ProcThread;
+import jane.core.Procedure;
+import jane.bean.AllTables;
+import jane.bean.TestBean;
+
+/**
+ * 并发保存快照(checkpoint)的测试
+ * <p>
+ * 多个线程不停地运行在记录之间转移数值的事务(总和不变),同时反复做checkpoint<br>
+ * 每次checkpoint后只遍历数据库存储中的记录,验证总和不变(即保存的是某一时刻的一致状态),并统计checkpoint期间事务的最大耗时<br>
+ * 参数: [线程数] [checkpoint次数]
+ */
+public final class TestCheckpoint
+{
+	private static final int RECORD_COUNT = 1000; // 记录数量
+	private static final int INIT_VALUE	  = 1000; // 每条记录的初始值
+
+	private static final AtomicLong	procCount  = new AtomicLong();
+	private static final AtomicLong	maxNanos   = new AtomicLong();
+	private static long				errorCount;
+	private static volatile boolean	running	   = true;
+
+	private static void runProc(Runnable r) throws InterruptedException
+	{
+		Thread pt = new ProcThread(null, r);
+		pt.start();
+		pt.join();
+	}
+
+	private static final class TransferProcedure extends Procedure
+	{
+		@Override
+		protected void onProcess() throws Exception
+		{
+			ThreadLocalRandom rand = ThreadLocalRandom.current();
+			long k1 = rand.nextInt(RECORD_COUNT);
+			long k2 = rand.nextInt(RECORD_COUNT);
+			if (k1 == k2)
+				return;
+			lock(Benchmark.lockId(k1), Benchmark.lockId(k2));
+			TestBean.Safe r1 = Benchmark.get(k1);
+			TestBean.Safe r2 = Benchmark.get(k2);
+			int x = rand.nextInt(10);
+			r1.setValue1(r1.getValue1() - x);
+			if (rand.nextInt(10) == 0) // 部分事务用put替换记录
+				Benchmark.put(k2, new TestBean(r2.getValue1() + x, 0));
+			else
+				r2.setValue1(r2.getValue1() + x);
+		}
+	}
+
+	private static long sumStored() throws Exception
+	{
+		long[] s = new long[2];
+		Benchmark.walkValue((k, v) ->
+		{
+			s[0] += v.getValue1();
+			++s[1];
+			return true;
+		});
+		if (s[1] != RECORD_COUNT)
+			++errorCount;
+		return s[0];
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int threadCount = (args.length > 0 ? Integer.parseInt(args[0]) : 4);
+		int checkpointCount = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+		AllTables.register();
+
+		runProc(() ->
+		{
+			for (int i = 0; i < RECORD_COUNT; ++i)
+			{
+				final long k = i;
+				new Procedure()
+				{
+					@Override
+					protected void onProcess() throws Exception
+					{
+						lock(Benchmark.lockId(k));
+						Benchmark.put(k, new TestBean(INIT_VALUE, 0));
+					}
+				}.run();
+			}
+		});
+		dbm.checkpoint();
+		long expect = (long)RECORD_COUNT * INIT_VALUE;
+
+		ArrayList<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < threadCount; ++i)
+		{
+			Thread t = new ProcThread(null, () ->
+			{
+				Procedure p = new TransferProcedure();
+				while (running)
+				{
+					long t0 = System.nanoTime();
+					p.run();
+					long d = System.nanoTime() - t0;
+					if (d > maxNanos.get())
+						maxNanos.accumulateAndGet(d, Math::max);
+					procCount.getAndIncrement();
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+
+		for (int i = 0; i < checkpointCount; ++i)
+		{
+			Thread.sleep(100);
+			maxNanos.set(0);
+			long t = System.nanoTime();
+			dbm.checkpoint();
+			t = System.nanoTime() - t;
+			long s = sumStored();
+			if (s != expect)
+				++errorCount;
+			System.out.format("checkpoint %2d: %4d ms, max procedure: %6d us, sum=%d(expect %d), procedures: %d%n",
+					i, t / 1_000_000, maxNanos.get() / 1000, s, expect, procCount.get());
+		}
+
+		running = false;
+		for (Thread t : threads)
+			t.join();
+		dbm.checkpoint();
+		if (sumStored() != expect)
+			++errorCount;
+		System.out.println("errors: " + errorCount);
+		System.out.println("end");
+		System.exit(0);
+	}
+}
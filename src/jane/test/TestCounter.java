@@ -0,0 +1,79 @@
+package jane.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import jane.core.StripedCounter;
+
+/**
+ * 多线程计数器的性能测试
+ * <p>
+ * 1~64个线程同时频繁计数,对比AtomicLong,LongAdder和StripedCounter的吞吐量,并验证结束后的总数正确<br>
+ * StripedCounter另测一项每64次修改检查一次总数的用法(同DBManager的记录修改计数)<br>
+ * 参数: [每个线程的计数次数] [最大线程数]
+ */
+public final class TestCounter
+{
+	private static long errorCount;
+
+	private static void bench(String name, int threadCount, long count, Runnable inc, LongSupplier sum) throws Exception
+	{
+		CountDownLatch startLatch = new CountDownLatch(1);
+		Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; ++i)
+		{
+			threads[i] = new Thread(() ->
+			{
+				try
+				{
+					startLatch.await();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				for (long j = 0; j < count; ++j)
+					inc.run();
+			});
+			threads[i].start();
+		}
+		long t = System.nanoTime();
+		startLatch.countDown();
+		for (Thread th : threads)
+			th.join();
+		t = System.nanoTime() - t;
+		long total = threadCount * count;
+		System.out.format("%-22s threads=%2d: %5d ms, %7.2f Mops/s%n", name, threadCount, t / 1_000_000, total * 1000.0 / t);
+		long s = sum.getAsLong();
+		if (s != total)
+		{
+			System.out.println("ERROR: sum=" + s + ", expect " + total);
+			++errorCount;
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		long count = (args.length > 0 ? Long.parseLong(args[0]) : 2_000_000);
+		int maxThreads = (args.length > 1 ? Integer.parseInt(args[1]) : 64);
+		for (int threadCount = 1; threadCount <= maxThreads; threadCount *= 2)
+		{
+			AtomicLong al = new AtomicLong();
+			bench("AtomicLong", threadCount, count, al::getAndIncrement, al::get);
+			LongAdder la = new LongAdder();
+			bench("LongAdder", threadCount, count, la::increment, la::sum);
+			StripedCounter sc = new StripedCounter(threadCount);
+			bench("StripedCounter", threadCount, count, sc::increment, sc::sum);
+			StripedCounter sc2 = new StripedCounter(threadCount);
+			long[] checks = new long[1];
+			bench("StripedCounter+check", threadCount, count, () ->
+			{
+				if ((sc2.increment() & 63) == 0 && sc2.sum() < 0)
+					++checks[0];
+			}, () -> sc2.sum() + checks[0]);
+		}
+		System.out.println("errors: " + errorCount);
+		System.out.println("end");
+	}
+}
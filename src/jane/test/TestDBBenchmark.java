@@ -1,11 +1,15 @@
 package jane.test;
 
 import static jane.bean.AllTables.Benchmark;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import jane.core.CacheRef;
 import jane.core.DBManager;
 import jane.core.Log;
+import jane.core.ProcScheduler;
 import jane.core.ProcThread;
 import jane.core.Procedure;
 import jane.bean.AllTables;
@@ -13,10 +17,101 @@ import jane.bean.TestBean;
 
 // JVM: -Xms512M -Xmx512M
 // RUN: start.bat b 100000 50000 1000 500000
+// RUN: start.bat b lanes 1000 100 4 (对比不同的执行器运行绑定sid的事务: sid数量 每个sid的事务数量 线程数量)
 public final class TestDBBenchmark
 {
+	private static final int RECORDS_PER_SID = 8; // 每个sid的事务访问的记录数量
+
+	private static void benchExecutor(String name, ExecutorService executor, int sidCount, int procPerSid) throws InterruptedException
+	{
+		DBManager dbm = DBManager.instance();
+		CountDownLatch latch = new CountDownLatch(sidCount * procPerSid);
+		long t = System.nanoTime();
+		for (int j = 0; j < procPerSid; ++j)
+		{
+			for (int i = 0; i < sidCount; ++i)
+			{
+				final long k0 = (long)i * RECORDS_PER_SID;
+				dbm.submit(executor, i, new Procedure()
+				{
+					@Override
+					protected void onProcess() throws Exception
+					{
+						for (int r = 0; r < RECORDS_PER_SID; ++r)
+						{
+							TestBean.Safe a = lockGet(Benchmark, k0 + r);
+							a.setValue1(a.getValue1() + 1);
+						}
+						latch.countDown();
+					}
+				});
+			}
+		}
+		latch.await();
+		t = System.nanoTime() - t;
+		Log.info("{}: {} ms, {} procedures/s", name, t / 1_000_000, (long)sidCount * procPerSid * 1_000_000_000L / t);
+	}
+
+	/**
+	 * 对比普通线程池(ThreadPoolExecutor),带工作窃取的调度器和按sid固定通道的调度器运行绑定sid的事务的耗时
+	 */
+	private static void benchExecutors(int sidCount, int procPerSid, int threadCount) throws Throwable
+	{
+		Log.info("begin: sids: {}, procedures/sid: {}, threads: {}", sidCount, procPerSid, threadCount);
+		DBManager.instance().startup();
+		AllTables.register();
+		Thread pt = new ProcThread(null, () ->
+		{
+			for (int i = 0, n = sidCount * RECORDS_PER_SID; i < n; ++i)
+			{
+				final long k = i;
+				new Procedure()
+				{
+					@Override
+					protected void onProcess() throws Exception
+					{
+						if (lockGet(Benchmark, k) == null)
+							Benchmark.put(k, new TestBean());
+					}
+				}.run();
+			}
+		});
+		pt.start();
+		pt.join();
+
+		AtomicInteger counter = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threadCount, r ->
+		{
+			Thread t = new ProcThread("BenchPool-" + counter.incrementAndGet(), r);
+			t.setDaemon(true);
+			return t;
+		});
+		ProcScheduler stealing = new ProcScheduler(threadCount, "BenchSteal", false, null);
+		ProcScheduler lanes = new ProcScheduler(threadCount, "BenchLane", true, null);
+		for (int i = 0; i < 3; ++i)
+		{
+			benchExecutor("ThreadPoolExecutor", pool, sidCount, procPerSid);
+			benchExecutor("ProcScheduler(stealing)", stealing, sidCount, procPerSid);
+			benchExecutor("ProcScheduler(lanes)", lanes, sidCount, procPerSid);
+		}
+		Log.info("lane migrations: {}", lanes.getMigrateCount());
+		pool.shutdown();
+		stealing.shutdown();
+		lanes.shutdown();
+		Log.info("checkpoint");
+		DBManager.instance().checkpoint();
+		Log.info("end");
+		System.exit(0);
+	}
+
 	public static void main(String[] args) throws Throwable
 	{
+		if (args.length > 0 && "lanes".equals(args[0]))
+		{
+			benchExecutors(args.length > 1 ? Integer.parseInt(args[1]) : 1000, args.length > 2 ? Integer.parseInt(args[2]) : 100,
+					args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors());
+			return;
+		}
 		final int keyAllCount = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
 		final int keyWinCount = Math.min(args.length > 1 ? Integer.parseInt(args[1]) : keyAllCount / 2, keyAllCount);
 		final int countIn = (args.length > 2 ? Integer.parseInt(args[2]) : 100);
@@ -0,0 +1,123 @@
+package jane.test;
+
+import static jane.bean.AllTables.Benchmark;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import jane.core.DBManager;
+import jane.core.JfrEvents;
+import jane.core.Procedure;
+import jane.bean.AllTables;
+import jane.bean.TestBean;
+
+/**
+ * 自定义JFR事件的测试
+ * <p>
+ * 多个sid并发提交修改少量记录的事务(产生排队,等锁和提交事件),读取不存在的记录(产生读存储事件),再做一次数据库提交(产生各阶段事件)<br>
+ * 然后导出记录快照,验证每种数据库相关的事件都有记录. 网络相关的事件需要用客户端和服务器测试<br>
+ * 需要在配置中开启jfrEvents=1,jfrThresholdUs=0<br>
+ * 参数: [事务数量]
+ */
+public final class TestJfrEvents
+{
+	private static final int SID_COUNT	  = 8; // 提交事务的sid数量
+	private static final int RECORD_COUNT = 4; // 修改的记录数量
+
+	private static final AtomicLong	errorCount = new AtomicLong();
+	private static CountDownLatch	doneLatch;
+
+	private static final class IncProc extends Procedure
+	{
+		private final int k;
+
+		IncProc(int k)
+		{
+			this.k = k;
+		}
+
+		@Override
+		protected void onProcess() throws Exception
+		{
+			TestBean.Safe a = Benchmark.lockGet(k);
+			if (a != null)
+				a.setValue1(a.getValue1() + 1);
+			else
+				Benchmark.put(k, new TestBean(1, 0));
+			for (long t = System.nanoTime(); System.nanoTime() - t < 20_000;) // 持有锁一段时间,增加等锁的机会
+				Thread.onSpinWait();
+			addOnCommit(doneLatch::countDown);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : 20_000);
+		if (!JfrEvents.ENABLED || !JfrEvents.isRecording())
+		{
+			System.out.println("ERROR: jfrEvents is not enabled or recording");
+			System.exit(1);
+		}
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+		AllTables.register();
+		System.out.println("start");
+
+		doneLatch = new CountDownLatch(count);
+		for (int i = 0; i < count; ++i)
+			dbm.submit(i % SID_COUNT, new IncProc(i % RECORD_COUNT));
+		doneLatch.await();
+		doneLatch = new CountDownLatch(1);
+		dbm.submit(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				for (int i = 0; i < 100; ++i)
+				{
+					if (Benchmark.lockGet(RECORD_COUNT + i) != null) // 不存在的记录,会从存储中读取
+						errorCount.getAndIncrement();
+					unlock();
+				}
+				doneLatch.countDown();
+			}
+		});
+		doneLatch.await();
+		dbm.checkpoint();
+
+		byte[] data = JfrEvents.dump();
+		Path path = Files.createTempFile("TestJfrEvents-", ".jfr");
+		TreeMap<String, Integer> counts = new TreeMap<>();
+		try
+		{
+			Files.write(path, data);
+			for (RecordedEvent e : RecordingFile.readAllEvents(path))
+			{
+				String name = e.getEventType().getName();
+				if (name.startsWith("jane."))
+					counts.merge(name, 1, Integer::sum);
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(path);
+		}
+		System.out.println("dump: " + data.length + " bytes, events: " + counts);
+		for (String name : new String[] { "jane.ProcQueueWait", "jane.LockWait", "jane.StorageGet", "jane.ProcCommit", "jane.CommitPhase" })
+		{
+			if (!counts.containsKey(name))
+			{
+				System.out.println("ERROR: no event: " + name);
+				errorCount.getAndIncrement();
+			}
+		}
+		if (counts.getOrDefault("jane.ProcCommit", 0) < count)
+			errorCount.getAndIncrement();
+		System.out.println("errors: " + errorCount.get());
+		System.out.println("end");
+		System.exit(0);
+	}
+}
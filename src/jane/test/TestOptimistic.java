@@ -0,0 +1,144 @@
+package jane.test;
+
+import static jane.bean.AllTables.Benchmark;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.DBManager;
+import jane.core.OptimisticProcedure;
+import jane.core.ProcThread;
+import jane.core.Procedure;
+import jane.bean.AllTables;
+import jane.bean.TestBean;
+
+/**
+ * 乐观事务的并发测试
+ * <p>
+ * 多个线程在少量记录间并发转账(乐观和普通事务混合),同时用乐观事务统计总额,提交后的总额必须不变
+ */
+public final class TestOptimistic
+{
+	private static final int RECORD_COUNT = 16;	   // 记录数量. 可调小来增加冲突
+	private static final int THREAD_COUNT = 4;	   // 并发线程数量
+	private static final int LOOP_COUNT	  = 200000; // 每个线程的事务数量
+	private static final int INIT_VALUE	  = 1000;
+
+	private static final AtomicLong errorCount = new AtomicLong();
+
+	public static void main(String[] args) throws Throwable
+	{
+		DBManager.instance().startup();
+		AllTables.register();
+		System.out.println("start");
+
+		ProcThread[] pts = new ProcThread[THREAD_COUNT];
+		pts[0] = new ProcThread(null, () -> new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				for (int i = 0; i < RECORD_COUNT; ++i)
+				{
+					TestBean.Safe a = Benchmark.lockGet(i);
+					if (a != null)
+						a.setValue1(INIT_VALUE);
+					else
+						Benchmark.put(i, new TestBean(INIT_VALUE, 0));
+				}
+			}
+		}.run());
+		pts[0].start();
+		pts[0].join();
+
+		long t = System.currentTimeMillis();
+		for (int i = 0; i < THREAD_COUNT; ++i)
+		{
+			final int idx = i;
+			pts[i] = new ProcThread(null, () ->
+			{
+				ThreadLocalRandom rand = ThreadLocalRandom.current();
+				for (int j = 0; j < LOOP_COUNT; ++j)
+				{
+					int k0 = rand.nextInt(RECORD_COUNT);
+					int k1 = (k0 + 1 + rand.nextInt(RECORD_COUNT - 1)) % RECORD_COUNT;
+					if (j % 10 == 0)
+						new CheckSum().run();
+					else if (idx == 0)
+						new Transfer(k0, k1).run();
+					else
+						new OptimisticTransfer(k0, k1).run();
+				}
+			});
+			pts[i].start();
+		}
+		for (int i = 0; i < THREAD_COUNT; ++i)
+			pts[i].join();
+		t = System.currentTimeMillis() - t;
+
+		System.out.println("time: " + t + " ms, conflicts: " + Procedure.getOptimisticConflictCount() + ", errors: " + errorCount.get());
+		System.out.println("checkpoint");
+		DBManager.instance().checkpoint();
+		System.out.println("end");
+		System.exit(0);
+	}
+
+	private static final class Transfer extends Procedure
+	{
+		private final int k0, k1;
+
+		Transfer(int k0, int k1)
+		{
+			this.k0 = k0;
+			this.k1 = k1;
+		}
+
+		@Override
+		protected void onProcess() throws Exception
+		{
+			lock(Benchmark.lockId(k0), Benchmark.lockId(k1));
+			TestBean.Safe a = Benchmark.get(k0);
+			TestBean.Safe b = Benchmark.get(k1);
+			a.setValue1(a.getValue1() - 1);
+			b.setValue1(b.getValue1() + 1);
+		}
+	}
+
+	private static final class OptimisticTransfer extends OptimisticProcedure
+	{
+		private final int k0, k1;
+
+		OptimisticTransfer(int k0, int k1)
+		{
+			this.k0 = k0;
+			this.k1 = k1;
+		}
+
+		@Override
+		protected void onProcess() throws Exception
+		{
+			TestBean.Safe a = Benchmark.lockGet(k0);
+			TestBean.Safe b = Benchmark.lockGet(k1);
+			a.setValue1(a.getValue1() + 1);
+			b.setValue1(b.getValue1() - 1);
+		}
+	}
+
+	private static final class CheckSum extends OptimisticProcedure
+	{
+		@Override
+		protected void onProcess() throws Exception
+		{
+			long sum = 0;
+			for (int i = 0; i < RECORD_COUNT; ++i)
+				sum += Benchmark.lockGet(i).getValue1();
+			final long s = sum;
+			addOnCommit(() -> // 无锁读取的结果只有在验证通过提交后才可信
+			{
+				if (s != (long)INIT_VALUE * RECORD_COUNT)
+				{
+					System.out.println("ERROR: sum=" + s);
+					errorCount.getAndIncrement();
+				}
+			});
+		}
+	}
+}
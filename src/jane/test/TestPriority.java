@@ -0,0 +1,146 @@
+package jane.test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.DBManager;
+import jane.core.Histogram;
+import jane.core.PriorityExecutor;
+import jane.core.ProcThread;
+import jane.core.Procedure;
+
+/**
+ * 按优先级分通道的事务执行器测试
+ * <p>
+ * 先提交大量占用CPU的后台事务,再定时提交少量交互事务,统计交互事务从提交到开始运行的延迟<br>
+ * 对比不区分优先级(直接提交到线程池)和使用{@link PriorityExecutor}的延迟,并验证后台通道同时运行的数量不超过上限<br>
+ * 配置dbProcPriority=1时,再验证按后台优先级提交的事务挂起后仍在后台通道恢复运行<br>
+ * 参数: [后台事务数量] [交互事务数量]
+ */
+public final class TestPriority
+{
+	private static final int	THREAD_COUNT   = 4;			// 事务线程数量
+	private static final int	BACKGROUND_MAX = 1;			// 后台通道同时运行的任务数量上限
+	private static final int	SPIN_NANOS	   = 200_000;	// 每个后台事务占用CPU的时间(纳秒)
+
+	private static final AtomicLong	   errorCount = new AtomicLong();
+	private static final AtomicInteger bgRunning  = new AtomicInteger();
+	private static volatile boolean	   checkBgMax;
+	private static CountDownLatch	   doneLatch;
+
+	private static final class BackgroundProcedure extends Procedure
+	{
+		@Override
+		protected void onProcess()
+		{
+			if (bgRunning.incrementAndGet() > BACKGROUND_MAX && checkBgMax)
+				errorCount.getAndIncrement();
+			for (long t = System.nanoTime(); System.nanoTime() - t < SPIN_NANOS;)
+				Thread.onSpinWait();
+			bgRunning.decrementAndGet();
+			doneLatch.countDown();
+		}
+	}
+
+	private static final class InteractiveProcedure extends Procedure
+	{
+		private final Histogram	latency;
+		private final long		submitTime = System.nanoTime();
+
+		InteractiveProcedure(Histogram latency)
+		{
+			this.latency = latency;
+		}
+
+		@Override
+		protected void onProcess()
+		{
+			latency.record(System.nanoTime() - submitTime);
+			doneLatch.countDown();
+		}
+	}
+
+	private static void bench(String name, Executor interactive, Executor background, int bgCount, int interactiveCount) throws Exception
+	{
+		Histogram latency = new Histogram(0);
+		doneLatch = new CountDownLatch(bgCount + interactiveCount);
+		long t = System.nanoTime();
+		for (int i = 0; i < bgCount; ++i)
+			background.execute(new BackgroundProcedure());
+		for (int i = 0; i < interactiveCount; ++i)
+		{
+			interactive.execute(new InteractiveProcedure(latency));
+			Thread.sleep(1);
+		}
+		doneLatch.await();
+		t = (System.nanoTime() - t) / 1_000_000;
+		long[] counts = latency.getCounts(false);
+		if (Histogram.getCount(counts) != interactiveCount)
+			errorCount.getAndIncrement();
+		System.out.format("%-9s: %5d ms, interactive latency p50/p99/max: %6d/%6d/%6d us, errors: %d%n", name, t,
+				Histogram.getPercentile(counts, 0.5) / 1000, Histogram.getPercentile(counts, 0.99) / 1000,
+				Histogram.getPercentile(counts, 1) / 1000, errorCount.get());
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int bgCount = (args.length > 0 ? Integer.parseInt(args[0]) : 10000);
+		int interactiveCount = (args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+		DBManager.instance().startup();
+		AtomicInteger counter = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(THREAD_COUNT, r ->
+		{
+			Thread t = new ProcThread("ProcThread-" + counter.incrementAndGet(), r);
+			t.setDaemon(true);
+			return t;
+		});
+		PriorityExecutor pe = new PriorityExecutor(pool, THREAD_COUNT, BACKGROUND_MAX, PriorityExecutor.parseWeights("8,4,1"));
+		for (int i = 0; i < 2; ++i)
+		{
+			checkBgMax = false;
+			bench("plain", pool, pool, bgCount, interactiveCount);
+			checkBgMax = true;
+			bench("priority", pe.getLane(PriorityExecutor.INTERACTIVE), pe.getLane(PriorityExecutor.BACKGROUND), bgCount, interactiveCount);
+		}
+		for (int i = 0; i < PriorityExecutor.LANE_COUNT; ++i)
+		{
+			PriorityExecutor.Lane lane = pe.getLane(i);
+			long[] ws = lane.getWaitTimePercentiles(0.5, 0.99);
+			System.out.format("lane %-11s: submitted=%d, queued=%d, queueSize=%d, wait p50/p99: %d/%d us%n", lane.getName(),
+					lane.getSubmitCount(), lane.getQueuedCount(), lane.getQueueSize(), ws[0] / 1000, ws[1] / 1000);
+		}
+		PriorityExecutor dpe = DBManager.instance().getPriorityExecutor();
+		if (dpe != null)
+		{
+			PriorityExecutor.Lane bgLane = dpe.getLane(PriorityExecutor.BACKGROUND);
+			PriorityExecutor.Lane normalLane = dpe.getLane(PriorityExecutor.NORMAL);
+			long bgSubmits = bgLane.getSubmitCount();
+			long normalSubmits = normalLane.getSubmitCount();
+			DBManager.instance().submitFuture(PriorityExecutor.BACKGROUND, new Procedure()
+			{
+				@Override
+				protected void onProcess() throws Exception
+				{
+					await(() -> CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(10, TimeUnit.MILLISECONDS)));
+				}
+			}).get();
+			bgSubmits = bgLane.getSubmitCount() - bgSubmits;
+			normalSubmits = normalLane.getSubmitCount() - normalSubmits;
+			if (bgSubmits != 2 || normalSubmits != 0)
+				errorCount.getAndIncrement();
+			System.out.println("resume: background submits=" + bgSubmits + "(expect 2), normal submits=" + normalSubmits + "(expect 0)");
+		}
+		pool.shutdown();
+		pool.awaitTermination(10, TimeUnit.SECONDS);
+		if (pe.getRunningCount() != 0 || pe.getBackgroundRunningCount() != 0)
+			errorCount.getAndIncrement();
+		System.out.println("errors: " + errorCount.get());
+		System.out.println("end");
+		System.exit(0);
+	}
+}
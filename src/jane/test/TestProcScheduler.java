@@ -0,0 +1,87 @@
+package jane.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.DBManager;
+import jane.core.Procedure;
+
+/**
+ * 绑定sid的事务调度测试
+ * <p>
+ * 多个线程并发向多个sid提交事务,验证同一sid的事务按提交顺序且不并发地运行,运行完后sid队列全部被回收<br>
+ * 参数为plain时,事务改在普通线程(非ProcThread)上运行,用于验证临时绑定的事务上下文(同虚拟线程的运行方式)
+ */
+public final class TestProcScheduler
+{
+	private static final int SID_COUNT	   = 1000;	  // sid的数量
+	private static final int PRODUCER_COUNT = 4;	  // 提交事务的线程数量(每个线程负责一部分sid)
+	private static final int PROC_COUNT	   = 2000000; // 总事务数量
+
+	private static final long[]		seqs	   = new long[SID_COUNT];  // 每个sid已运行的事务序号
+	private static final int[]		running	   = new int[SID_COUNT];   // 每个sid正在运行的事务数量
+	private static final AtomicLong	errorCount = new AtomicLong();
+	private static CountDownLatch	doneLatch;
+
+	private static final class SeqProcedure extends Procedure
+	{
+		private final int  sid;
+		private final long seq;
+
+		SeqProcedure(int sid, long seq)
+		{
+			this.sid = sid;
+			this.seq = seq;
+		}
+
+		@Override
+		protected void onProcess()
+		{
+			if (++running[sid] != 1 || seqs[sid] + 1 != seq)
+				errorCount.getAndIncrement();
+			seqs[sid] = seq;
+			--running[sid];
+			doneLatch.countDown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+		ExecutorService plainExecutor = (args.length > 0 && args[0].equals("plain") ? Executors.newCachedThreadPool() : null);
+		System.out.println("start: scheduler=" + (dbm.getProcScheduler() != null) + ", virtual=" + dbm.isProcVirtual() +
+				", threads=" + dbm.getProcThreadCount() + ", plain=" + (plainExecutor != null));
+		doneLatch = new CountDownLatch(PROC_COUNT);
+		long t = System.currentTimeMillis();
+		Thread[] producers = new Thread[PRODUCER_COUNT];
+		for (int i = 0; i < PRODUCER_COUNT; ++i)
+		{
+			final int p = i;
+			producers[i] = new Thread(() ->
+			{
+				long[] nextSeqs = new long[SID_COUNT];
+				for (int j = 0, n = PROC_COUNT / PRODUCER_COUNT; j < n; ++j)
+				{
+					int sid = (int)((long)j * 7919 % (SID_COUNT / PRODUCER_COUNT)) * PRODUCER_COUNT + p;
+					SeqProcedure proc = new SeqProcedure(sid, ++nextSeqs[sid]);
+					if (plainExecutor != null)
+						dbm.submit(plainExecutor, sid, proc);
+					else
+						dbm.submit(sid, proc);
+				}
+			});
+			producers[i].start();
+		}
+		for (Thread th : producers)
+			th.join();
+		doneLatch.await();
+		t = System.currentTimeMillis() - t;
+		Thread.sleep(100); // 等待最后的队列关闭
+		System.out.println("time: " + t + " ms, errors: " + errorCount.get() + ", sessions: " + dbm.getSessionCount() +
+				", queued: " + dbm.getProcQueuedCount() + ", completed: " + dbm.getProcCompletedCount());
+		System.out.println("end");
+		System.exit(0);
+	}
+}
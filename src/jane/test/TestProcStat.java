@@ -0,0 +1,202 @@
+package jane.test;
+
+import static jane.bean.AllTables.Benchmark;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.Const;
+import jane.core.DBManager;
+import jane.core.OptimisticProcedure;
+import jane.core.ProcStat;
+import jane.core.Procedure;
+import jane.bean.AllTables;
+import jane.bean.TestBean;
+
+/**
+ * 事务运行统计和重做退避的测试
+ * <p>
+ * 多个sid并发提交在少量记录间转账的乐观事务来制造冲突重做,同时混合提交撤销和抛出异常的事务<br>
+ * 全部运行完后验证总额不变,以及统计的运行,撤销和异常次数与提交的一致,有冲突时必须统计到重做<br>
+ * 需要在配置中开启procStat=1(单核时还需要dbThreadCount>1才会有冲突), 可用procRedoBackoff=0~3对比不同退避方式的耗时和重做次数<br>
+ * 参数: [转账事务数量] [记录数量]
+ */
+public final class TestProcStat
+{
+	private static final int SID_COUNT	= 16;		// 提交事务的sid数量
+	private static final int SPIN_NANOS	= 20_000;	// 转账事务读取和修改之间占用CPU的时间(纳秒),增加冲突的机会
+	private static final int INIT_VALUE	= 1000;
+
+	private static final AtomicLong	errorCount = new AtomicLong();
+	private static CountDownLatch	doneLatch;
+
+	private static final class Transfer extends OptimisticProcedure
+	{
+		private final int k0, k1;
+
+		Transfer(int k0, int k1)
+		{
+			this.k0 = k0;
+			this.k1 = k1;
+		}
+
+		@Override
+		protected void onProcess() throws Exception
+		{
+			TestBean.Safe a = Benchmark.lockGet(k0);
+			TestBean.Safe b = Benchmark.lockGet(k1);
+			for (long t = System.nanoTime(); System.nanoTime() - t < SPIN_NANOS;)
+				Thread.onSpinWait();
+			a.setValue1(a.getValue1() - 1);
+			b.setValue1(b.getValue1() + 1);
+			addOnCommit(doneLatch::countDown);
+		}
+	}
+
+	private static final class UndoProc extends Procedure
+	{
+		private final int k;
+
+		UndoProc(int k)
+		{
+			this.k = k;
+		}
+
+		@Override
+		protected void onProcess() throws Exception
+		{
+			TestBean.Safe a = Benchmark.lockGet(k);
+			a.setValue1(a.getValue1() + 1000);
+			doneLatch.countDown();
+			undo(); // 回滚修改
+		}
+	}
+
+	private static final class ErrorProc extends Procedure
+	{
+		@Override
+		protected void onProcess() throws Exception
+		{
+			throw new IllegalStateException("test exception");
+		}
+
+		@Override
+		protected void onException(Throwable e)
+		{
+			doneLatch.countDown();
+		}
+	}
+
+	private static final class CheckSum extends Procedure
+	{
+		private final int recordCount;
+
+		CheckSum(int recordCount)
+		{
+			this.recordCount = recordCount;
+		}
+
+		@Override
+		protected void onProcess() throws Exception
+		{
+			long sum = 0;
+			for (int i = 0; i < recordCount; ++i)
+				sum += Benchmark.lockGet(i).getValue1();
+			if (sum != (long)INIT_VALUE * recordCount)
+			{
+				System.out.println("ERROR: sum=" + sum);
+				errorCount.getAndIncrement();
+			}
+			doneLatch.countDown();
+		}
+	}
+
+	private static void checkCount(String name, long count, long expect)
+	{
+		if (count != expect)
+		{
+			System.out.println("ERROR: " + name + '=' + count + ", expect " + expect);
+			errorCount.getAndIncrement();
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : 100_000);
+		int recordCount = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+		if (!ProcStat.ENABLED)
+		{
+			System.out.println("ERROR: procStat is not enabled");
+			System.exit(1);
+		}
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+		AllTables.register();
+		System.out.println("start: procRedoBackoff=" + Const.procRedoBackoff);
+
+		doneLatch = new CountDownLatch(1);
+		dbm.submit(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				for (int i = 0; i < recordCount; ++i)
+				{
+					if (Benchmark.lockGet(i) == null) // 加锁
+						Benchmark.put(i, new TestBean(INIT_VALUE, 0));
+				}
+				doneLatch.countDown();
+			}
+		});
+		doneLatch.await();
+
+		int undoCount = count / 100, exceptionCount = count / 100;
+		doneLatch = new CountDownLatch(count + undoCount + exceptionCount);
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		long t = System.nanoTime();
+		for (int i = 0; i < count; ++i)
+		{
+			int k0 = rand.nextInt(recordCount);
+			int k1 = (k0 + 1 + rand.nextInt(recordCount - 1)) % recordCount;
+			dbm.submit(i % SID_COUNT, new Transfer(k0, k1));
+			if (i % 100 == 0)
+			{
+				dbm.submit(i % SID_COUNT, new UndoProc(k0));
+				dbm.submit(i % SID_COUNT, new ErrorProc());
+			}
+		}
+		if (!doneLatch.await(60, TimeUnit.SECONDS))
+		{
+			System.out.println("ERROR: timeout, remain=" + doneLatch.getCount());
+			errorCount.getAndIncrement();
+		}
+		t = (System.nanoTime() - t) / 1_000_000;
+		doneLatch = new CountDownLatch(1);
+		dbm.submit(new CheckSum(recordCount));
+		doneLatch.await();
+		Thread.sleep(100); // 完成计数在事务运行结束前,等待最后的事务记录统计
+
+		ProcStat.ClassStat ts = ProcStat.getStat(Transfer.class);
+		ProcStat.ClassStat us = ProcStat.getStat(UndoProc.class);
+		ProcStat.ClassStat es = ProcStat.getStat(ErrorProc.class);
+		long redoCount = ts.getRedoCount();
+		long resumeCount = (Const.procRedoBackoff == 3 ? redoCount : 0); // 每次延迟重新调度都会多运行一次
+		checkCount("Transfer.execCount", ts.getExecCount() - resumeCount, count);
+		checkCount("Transfer.undoCount", ts.getUndoCount() + ts.getExceptionCount(), 0);
+		checkCount("UndoProc.undoCount", us.getUndoCount(), undoCount);
+		checkCount("ErrorProc.exceptionCount", es.getExceptionCount(), exceptionCount);
+		if (Procedure.getOptimisticConflictCount() > 0 && redoCount == 0)
+		{
+			System.out.println("ERROR: no redo recorded");
+			errorCount.getAndIncrement();
+		}
+		long[] rt = ts.getRunTimePercentiles(0.5, 0.99, 1);
+		long[] lw = us.getLockWaitPercentiles(0.5, 0.99, 1);
+		System.out.format("time: %d ms, conflicts: %d, Transfer redos: %d, run p50/p99/max: %d/%d/%d us, UndoProc lock wait p50/p99/max: %d/%d/%d us%n",
+				t, Procedure.getOptimisticConflictCount(), redoCount, rt[0] / 1000, rt[1] / 1000, rt[2] / 1000, lw[0] / 1000, lw[1] / 1000, lw[2] / 1000);
+		ProcStat.dump();
+		System.out.println("errors: " + errorCount.get());
+		System.out.println("end");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,198 @@
+package jane.test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import jane.core.FastRWLock;
+
+/**
+ * 对比FastRWLock和CommitEpoch(事务提交的轮次,替代了原来事务提交的读写锁)在大量并发读,少量写时的性能,同时验证写时没有旧的读
+ * <p>
+ * 读线程对应事务的运行(FastRWLock加读锁,CommitEpoch进入轮次),写线程对应提交线程(FastRWLock加写锁,CommitEpoch切换轮次并等待旧轮次结束)<br>
+ * CommitEpoch是包内的类,通过反射获取其方法句柄调用<br>
+ * 参数: [读线程数量] [每线程读的次数] [写的间隔(微秒)]
+ */
+public final class TestRWLock
+{
+	private interface RWLock
+	{
+		int readLock(); // 返回读期间的标记,不能为0
+
+		void readUnlock(int mark);
+
+		int writeLock(); // 返回此时不允许存在的读标记
+
+		void writeUnlock();
+	}
+
+	private static final int SLOT_SHIFT = 4; // 每个读线程的标记占用16个int(64字节),避免伪共享
+
+	private static final MethodHandle _epochEnter;
+	private static final MethodHandle _epochExit;
+	private static final MethodHandle _epochCurrent;
+	private static final MethodHandle _epochFlip;
+
+	private static volatile boolean	stop;
+	private static int[]			marks;		// 各读线程当前的读标记. 0表示不在读
+	private static long				errorCount;
+
+	static
+	{
+		try
+		{
+			Class<?> cls = Class.forName("jane.core.CommitEpoch");
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			_epochEnter = lookup.unreflect(accessible(cls.getDeclaredMethod("enter")));
+			_epochExit = lookup.unreflect(accessible(cls.getDeclaredMethod("exit", int.class)));
+			_epochCurrent = lookup.unreflect(accessible(cls.getDeclaredMethod("current")));
+			_epochFlip = lookup.unreflect(accessible(cls.getDeclaredMethod("flip")));
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static Method accessible(Method method)
+	{
+		method.setAccessible(true);
+		return method;
+	}
+
+	private static void test(String name, RWLock lock, int threadCount, int loopCount, int writeIntervalUs) throws InterruptedException
+	{
+		stop = false;
+		errorCount = 0;
+		marks = new int[threadCount << SLOT_SHIFT];
+		long[] writeCount = new long[1];
+		Thread writer = new Thread(() ->
+		{
+			while (!stop)
+			{
+				int staleMark = lock.writeLock();
+				for (int i = 0, n = marks.length; i < n; i += 1 << SLOT_SHIFT)
+				{
+					if (marks[i] == staleMark)
+					{
+						synchronized (TestRWLock.class)
+						{
+							++errorCount;
+						}
+					}
+				}
+				lock.writeUnlock();
+				++writeCount[0];
+				if (writeIntervalUs > 0)
+				{
+					try
+					{
+						Thread.sleep(writeIntervalUs / 1000, (writeIntervalUs % 1000) * 1000);
+					}
+					catch (InterruptedException e)
+					{
+						break;
+					}
+				}
+			}
+		}, "WriterThread");
+		Thread[] readers = new Thread[threadCount];
+		for (int i = 0; i < threadCount; ++i)
+		{
+			final int idx = i << SLOT_SHIFT;
+			readers[i] = new Thread(() ->
+			{
+				int[] ms = marks;
+				for (int j = 0; j < loopCount; ++j)
+				{
+					int mark = lock.readLock();
+					ms[idx] = mark;
+					ms[idx] = 0;
+					lock.readUnlock(mark);
+				}
+			}, "ReaderThread-" + i);
+		}
+		long t = System.nanoTime();
+		writer.start();
+		for (Thread r : readers)
+			r.start();
+		for (Thread r : readers)
+			r.join();
+		t = System.nanoTime() - t;
+		stop = true;
+		writer.join();
+		System.out.format("%-11s: %5d ms, %6.1f ns/op, writes=%d, errors=%d%n", name, t / 1_000_000,
+				(double)t / loopCount, writeCount[0], errorCount);
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int threadCount = (args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors());
+		int loopCount = (args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000);
+		int writeIntervalUs = (args.length > 2 ? Integer.parseInt(args[2]) : 1000);
+		System.out.println("threads=" + threadCount + ", loops=" + loopCount + ", writeInterval=" + writeIntervalUs + "us");
+
+		FastRWLock fastLock = new FastRWLock();
+		RWLock fast = new RWLock()
+		{
+			//@formatter:off
+			@Override public int readLock() { fastLock.readLock(); return 1; }
+			@Override public void readUnlock(int mark) { fastLock.readUnlock(); }
+			@Override public int writeLock() { fastLock.writeLock(); return 1; } // 持有写锁时不能有任何读
+			@Override public void writeUnlock() { fastLock.writeUnlock(); }
+			//@formatter:on
+		};
+		RWLock epoch = new RWLock()
+		{
+			@Override
+			public int readLock()
+			{
+				try
+				{
+					return (int)_epochEnter.invokeExact();
+				}
+				catch (Throwable e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+
+			@Override
+			public void readUnlock(int mark)
+			{
+				try
+				{
+					_epochExit.invokeExact(mark);
+				}
+				catch (Throwable e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+
+			@Override
+			public int writeLock()
+			{
+				try
+				{
+					int e = (int)_epochCurrent.invokeExact();
+					_epochFlip.invokeExact(); // 切换轮次后旧轮次的读都已结束,新轮次的读可以并发
+					return e;
+				}
+				catch (Throwable e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+
+			@Override
+			public void writeUnlock()
+			{
+			}
+		};
+		for (int i = 0; i < 3; ++i)
+		{
+			test("FastRWLock", fast, threadCount, loopCount, writeIntervalUs);
+			test("CommitEpoch", epoch, threadCount, loopCount, writeIntervalUs);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package jane.test;
+
+import static jane.bean.AllTables.Benchmark;
+import jane.core.DBManager;
+import jane.core.ProcThread;
+import jane.core.Procedure;
+import jane.bean.AllTables;
+import jane.bean.TestBean;
+
+/**
+ * 大事务中查找已访问记录的测试
+ * <p>
+ * 一个事务中修改并删除大量记录后再次获取这些记录(会从事务上下文中查找),验证结果正确并且耗时随记录数线性增长<br>
+ * 为了让大量记录能在一个事务中加锁,记录的key高低32位取相同的值,使所有记录对应同一个锁<br>
+ * 参数: [最大记录数]
+ */
+public final class TestRecordIndex
+{
+	private static long errorCount;
+
+	private static void runProc(Runnable r) throws InterruptedException
+	{
+		Thread pt = new ProcThread(null, r);
+		pt.start();
+		pt.join();
+	}
+
+	private static long key(int i)
+	{
+		return ((long)i << 32) + i;
+	}
+
+	private static void bench(int count) throws InterruptedException
+	{
+		long[] t = new long[1];
+		runProc(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				for (int i = 0; i < count; ++i)
+				{
+					if (Benchmark.lockGet(key(i)) == null)
+						Benchmark.put(key(i), new TestBean());
+				}
+			}
+		});
+		runProc(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				long t0 = System.nanoTime();
+				for (int i = 0; i < count; ++i)
+				{
+					Benchmark.lockGet(key(i)).setValue1(i + 1);
+					Benchmark.remove(key(i));
+				}
+				for (int i = 0; i < count; ++i)
+				{
+					TestBean.Safe r = Benchmark.lockGet(key(i));
+					if (r == null || r.getValue1() != i + 1)
+						++errorCount;
+				}
+				t[0] = System.nanoTime() - t0;
+				undo();
+			}
+		});
+		System.out.format("records=%6d: %6d us, %6.1f ns/record%n", count, t[0] / 1000, (double)t[0] / count);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int maxCount = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+		DBManager.instance().startup();
+		AllTables.register();
+		for (int i = 0; i < 3; ++i)
+		{
+			for (int n = 10; n <= maxCount; n *= 10)
+				bench(n);
+			bench(maxCount);
+		}
+		System.out.println("errors: " + errorCount);
+		System.out.println("end");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,88 @@
+package jane.test;
+
+import static jane.bean.AllTables.Benchmark;
+import static jane.bean.AllTables.TestTable;
+import java.util.concurrent.CountDownLatch;
+import jane.core.DBManager;
+import jane.core.Procedure;
+import jane.bean.AllTables;
+import jane.bean.TestBean;
+import jane.bean.TestType;
+
+/**
+ * 关闭进程时排空事务队列和最后一次并行保存的测试
+ * <p>
+ * write模式: 向多个sid提交大量修改两个表记录的事务,不等待运行完就退出进程,由关闭回调等待sid队列中的事务运行完并保存全部修改<br>
+ * check模式: 重新打开数据库(不要清除数据库文件),验证全部记录都已保存<br>
+ * 关闭时的各阶段耗时见日志"DBManager.OnJVMShutDown: db closed". 需要配置procedureShutdownTimeout足够运行完全部事务<br>
+ * 参数: write|check [记录数量] [sid数量]
+ */
+public final class TestShutdown
+{
+	private static final class PutProc extends Procedure
+	{
+		private final int k;
+
+		PutProc(int k)
+		{
+			this.k = k;
+		}
+
+		@Override
+		protected void onProcess() throws Exception
+		{
+			lock(Benchmark.lockId(k), TestTable.lockId(k));
+			Benchmark.put(k, new TestBean(k, -k));
+			TestType t = new TestType();
+			t.setV4(-k);
+			t.setV5(k);
+			TestTable.put(k, t);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		boolean write = (args.length > 0 && args[0].equals("write"));
+		int count = (args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+		int sidCount = (args.length > 2 ? Integer.parseInt(args[2]) : 16);
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+		AllTables.register();
+
+		if (write)
+		{
+			System.out.println("write: " + count);
+			for (int i = 0; i < count; ++i)
+				dbm.submit(i % sidCount, new PutProc(i));
+			System.out.println("exit: sessions=" + dbm.getSessionCount());
+			System.exit(0);
+		}
+
+		System.out.println("check: " + count);
+		long[] errorCount = new long[1];
+		CountDownLatch latch = new CountDownLatch(1);
+		dbm.submit(new Procedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				for (int k = 0; k < count; ++k)
+				{
+					TestBean.Safe a = Benchmark.lockGet(k);
+					TestType.Safe b = TestTable.lockGet(k);
+					if (a == null || a.getValue1() != k || a.getValue2() != -k || b == null || b.getV4() != -k || b.getV5() != k)
+					{
+						if (++errorCount[0] <= 10)
+							System.out.println("ERROR: key=" + k + ", bench=" + a + ", test=" + b);
+					}
+					unlock();
+				}
+				latch.countDown();
+			}
+		});
+		latch.await();
+		System.out.println("errors: " + errorCount[0]);
+		System.out.println("end");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,143 @@
+package jane.test;
+
+import static jane.bean.AllTables.Benchmark;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.Const;
+import jane.core.DBManager;
+import jane.core.DBSimpleManager;
+import jane.core.Procedure;
+import jane.core.ReadOnlyProcedure;
+import jane.core.StorageLevelDB;
+import jane.bean.AllTables;
+import jane.bean.TestBean;
+
+/**
+ * DBSimpleManager与DBManager表的读写吞吐量对比
+ * <p>
+ * 多个线程按key分段并发读取并修改记录(不存在时写入新记录),每轮结束后做一次数据库提交<br>
+ * 分别测试单分片和多分片的DBSimpleManager(使用各自的数据库文件),以及用事务访问DBManager表(每个线程对应一个sid),输出读写和提交的速度<br>
+ * 最后验证每个记录被修改的次数与轮数一致<br>
+ * 参数: [记录数量] [线程数量] [轮数] [分片数量]
+ */
+public final class TestSimpleBenchmark
+{
+	private static final int TABLE_ID = 1; // DBSimpleManager使用的表ID
+
+	private static final AtomicLong errorCount = new AtomicLong();
+
+	private static void log(String name, int round, long opCount, long opNanos, long commitNanos)
+	{
+		System.out.format("%s: round %d, %d ops/s, commit %d ms%n", name, round, opCount * 1_000_000_000L / Math.max(opNanos, 1), commitNanos / 1_000_000);
+	}
+
+	private static void checkRecord(String name, long key, TestBean b, int rounds)
+	{
+		if (b == null || b.getValue1() != rounds || b.getValue2() != key)
+		{
+			if (errorCount.getAndIncrement() < 10)
+				System.out.println("ERROR: " + name + ": key=" + key + ", bean=" + b);
+		}
+	}
+
+	private static void benchSimple(int shardCount, int recordCount, int threadCount, int rounds) throws Exception
+	{
+		DBSimpleManager dbm = new DBSimpleManager(Const.dbSimpleCacheSize, shardCount);
+		dbm.startup(new StorageLevelDB(), Const.dbFilename + ".simple" + shardCount, Const.dbBackupPath);
+		String name = "DBSimpleManager(shards=" + dbm.getShardCount() + ')';
+		for (int r = 1; r <= rounds; ++r)
+		{
+			Thread[] threads = new Thread[threadCount];
+			long t = System.nanoTime();
+			for (int i = 0; i < threadCount; ++i)
+			{
+				final int tid = i;
+				threads[i] = new Thread(() ->
+				{
+					for (long k = tid; k < recordCount; k += threadCount)
+					{
+						TestBean b = dbm.get(TABLE_ID, k, TestBean.BEAN_STUB);
+						if (b == null)
+							b = new TestBean(0, k);
+						b.setValue1(b.getValue1() + 1);
+						dbm.put(TABLE_ID, k, b);
+					}
+				});
+				threads[i].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			long t1 = System.nanoTime();
+			dbm.checkpoint();
+			log(name, r, recordCount, t1 - t, System.nanoTime() - t1);
+		}
+		for (long k = 0; k < recordCount; ++k)
+			checkRecord(name, k, dbm.get(TABLE_ID, k, TestBean.BEAN_STUB), rounds);
+		dbm.shutdown();
+	}
+
+	private static void benchTable(int recordCount, int threadCount, int rounds) throws Exception
+	{
+		String name = "DBManager(table)";
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+		AllTables.register();
+		for (int r = 1; r <= rounds; ++r)
+		{
+			CountDownLatch latch = new CountDownLatch(recordCount);
+			long t = System.nanoTime();
+			for (long k = 0; k < recordCount; ++k)
+			{
+				final long key = k;
+				dbm.submit((int)(k % threadCount), new Procedure()
+				{
+					@Override
+					protected void onProcess() throws Exception
+					{
+						TestBean.Safe b = Benchmark.lockGet(key);
+						if (b != null)
+							b.setValue1(b.getValue1() + 1);
+						else
+							Benchmark.put(key, new TestBean(1, key));
+						latch.countDown();
+					}
+				});
+			}
+			latch.await();
+			long t1 = System.nanoTime();
+			dbm.checkpoint();
+			log(name, r, recordCount, t1 - t, System.nanoTime() - t1);
+		}
+		CountDownLatch latch = new CountDownLatch(1);
+		dbm.submit(new ReadOnlyProcedure()
+		{
+			@Override
+			protected void onProcess() throws Exception
+			{
+				for (long k = 0; k < recordCount; ++k)
+				{
+					TestBean.Safe b = Benchmark.lockGet(k);
+					checkRecord(name, k, b != null ? b.clone() : null, rounds);
+					unlock();
+				}
+				latch.countDown();
+			}
+		});
+		latch.await();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int recordCount = (args.length > 0 ? Integer.parseInt(args[0]) : 200_000);
+		int threadCount = (args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+		int rounds = (args.length > 2 ? Integer.parseInt(args[2]) : 5);
+		int shardCount = (args.length > 3 ? Integer.parseInt(args[3]) : 16);
+		System.out.println("start: records=" + recordCount + ", threads=" + threadCount + ", rounds=" + rounds);
+		benchSimple(1, recordCount, threadCount, rounds);
+		benchSimple(shardCount, recordCount, threadCount, rounds);
+		benchTable(recordCount, threadCount, rounds);
+		System.out.println("errors: " + errorCount.get());
+		System.out.println("end");
+		System.exit(0);
+	}
+}
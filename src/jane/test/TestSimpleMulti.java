@@ -0,0 +1,108 @@
+package jane.test;
+
+import java.util.ArrayList;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import jane.core.Const;
+import jane.core.DBSimpleManager;
+import jane.bean.TestBean;
+
+/**
+ * DBSimpleManager批量读写和分页遍历的测试
+ * <p>
+ * 随机写入记录(包括负数key)后提交一部分,再修改和删除一部分留在写缓存中,然后与内存中的期望结果对比:<br>
+ * getMulti的结果与逐个get一致, scan分页遍历的结果与期望的全部记录和存储顺序(先非负数,再负数)一致<br>
+ * 参数: [记录数量] [每页数量]
+ */
+public final class TestSimpleMulti
+{
+	private static final int TABLE_ID = 1; // 测试使用的表ID
+
+	private static long errorCount;
+
+	private static void error(String msg)
+	{
+		if (++errorCount <= 10)
+			System.out.println("ERROR: " + msg);
+	}
+
+	private static long nextKey(ThreadLocalRandom rand, int recordCount)
+	{
+		return rand.nextInt(recordCount * 2) - recordCount;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int recordCount = (args.length > 0 ? Integer.parseInt(args[0]) : 10000);
+		int pageSize = (args.length > 1 ? Integer.parseInt(args[1]) : 100);
+		DBSimpleManager dbm = DBSimpleManager.instance();
+		dbm.startup();
+		System.out.println("start: shards=" + dbm.getShardCount() + ", dbSimpleShardCount=" + Const.dbSimpleShardCount);
+
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		TreeMap<Long, Integer> expect = new TreeMap<>((k0, k1) -> Long.compareUnsigned(k0, k1)); // 与存储顺序一致
+		long[] keys = new long[recordCount];
+		TestBean[] beans = new TestBean[recordCount];
+		for (int i = 0; i < recordCount; ++i)
+		{
+			keys[i] = nextKey(rand, recordCount);
+			beans[i] = new TestBean(i, keys[i]);
+			expect.put(keys[i], i);
+		}
+		dbm.putMulti(TABLE_ID, keys, beans);
+		dbm.checkpoint();
+		for (int i = 0; i < recordCount / 4; ++i) // 修改和删除的记录留在写缓存中
+		{
+			long k = nextKey(rand, recordCount);
+			if (rand.nextBoolean())
+			{
+				dbm.put(TABLE_ID, k, new TestBean(-i, k));
+				expect.put(k, -i);
+			}
+			else
+			{
+				dbm.remove(TABLE_ID, k);
+				expect.remove(k);
+			}
+		}
+		System.out.println("records: " + expect.size() + ", writeCache: " + dbm.getWriteCacheSize());
+
+		for (int i = 0; i < recordCount; ++i)
+			keys[i] = nextKey(rand, recordCount);
+		ArrayList<TestBean> list = dbm.getMulti(TABLE_ID, keys, TestBean.BEAN_STUB);
+		for (int i = 0; i < recordCount; ++i)
+		{
+			TestBean b = list.get(i);
+			TestBean b1 = dbm.get(TABLE_ID, keys[i], TestBean.BEAN_STUB);
+			Integer v = expect.get(keys[i]);
+			if (v == null ? b != null || b1 != null : b == null || !b.equals(b1) || b.getValue1() != v)
+				error("getMulti: key=" + keys[i] + ", bean=" + b + ", get=" + b1 + ", expect=" + v);
+		}
+
+		int pageCount = 0;
+		Entry<Long, Integer> e = expect.firstEntry();
+		for (long from = 0;; ++pageCount)
+		{
+			ArrayList<Entry<Long, TestBean>> page = dbm.scan(TABLE_ID, from, pageSize, TestBean.BEAN_STUB);
+			for (Entry<Long, TestBean> r : page)
+			{
+				long k = r.getKey();
+				if (e == null || e.getKey() != k || r.getValue().getValue1() != e.getValue() || r.getValue().getValue2() != k)
+					error("scan: key=" + k + ", bean=" + r.getValue() + ", expect=" + e);
+				e = (e != null ? expect.higherEntry(e.getKey()) : null);
+			}
+			if (page.size() < pageSize)
+				break;
+			from = page.get(page.size() - 1).getKey() + 1;
+			if (from == 0)
+				break;
+		}
+		if (e != null)
+			error("scan: missing from key=" + e.getKey());
+		System.out.println("scan pages: " + pageCount);
+		System.out.println("errors: " + errorCount);
+		System.out.println("end");
+		System.exit(0);
+	}
+}
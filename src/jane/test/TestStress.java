@@ -1,6 +1,5 @@
 package jane.test;
 
-import java.lang.reflect.Field;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
 import jane.core.Bean;
@@ -11,7 +10,6 @@ import jane.core.MarshalException;
 import jane.core.Octets;
 import jane.core.OctetsStream;
 import jane.core.Procedure;
-import jane.core.SBase;
 import jane.core.SContext;
 import jane.core.TableLong;
 import jane.core.map.LongConcurrentHashMap;
@@ -160,21 +158,6 @@ public final class TestStress extends Procedure
 
 		public static final class Safe extends SContext.Safe<StressBean>
 		{
-			private static final Field FIELD_value1;
-
-			static
-			{
-				try
-				{
-					FIELD_value1 = StressBean.class.getDeclaredField("value1");
-					FIELD_value1.setAccessible(true);
-				}
-				catch (Exception e)
-				{
-					throw new Error(e);
-				}
-			}
-
 			private Safe(StressBean bean, SContext.Safe<?> _parent_)
 			{
 				super(bean, _parent_);
@@ -187,8 +170,11 @@ public final class TestStress extends Procedure
 
 			public void setValue1(int value1)
 			{
-				if (initSContext())
-					_sctx.addOnRollback(new SBase.SInteger(_bean, FIELD_value1, _bean.getValue1()));
+				if (initSContext(1L))
+				{
+					int v = _bean.value1;
+					_sctx.addOnRollback(() -> _bean.value1 = v);
+				}
 				_bean.setValue1(value1);
 			}
 		}
@@ -277,8 +263,8 @@ public final class TestStress extends Procedure
 		for (;;) //NOSONAR
 		{
 			long curRemoveCount = CacheRef.getRefRemoveCount();
-			Log.info("TQ=" + dbm.getProcThreads().getQueue().size() +
-					"  TA=" + dbm.getProcThreads().getActiveCount() +
+			Log.info("TQ=" + dbm.getProcSubmittedCount() +
+					"  TA=" + dbm.getProcRunningCount() +
 					"  RR=" + (curRemoveCount - lastRemoveCount) +
 					"  C=" + counter.getAndSet(0));
 			lastRemoveCount = curRemoveCount;
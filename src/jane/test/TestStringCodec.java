@@ -0,0 +1,155 @@
+package jane.test;
+
+import java.util.concurrent.ThreadLocalRandom;
+import jane.core.MarshalException;
+import jane.core.Octets;
+import jane.core.OctetsStream;
+
+/**
+ * 字符串序列化和反序列化的正确性和性能测试
+ * <p>
+ * 先用随机字符串(ASCII,Latin-1,中文,代理对,以及长度前缀字节数变化的边界)验证Octets.marshal(String)的结果与逐个char编码的结果完全一致,
+ * OctetsStream.unmarshalString的结果与逐个char解码的结果一致<br>
+ * 然后分别对比ASCII短字符串(名字),ASCII长字符串和中文长字符串(聊天/邮件内容)的编解码速度<br>
+ * 参数: [每种字符串的编解码次数]
+ */
+public final class TestStringCodec
+{
+	private static long errorCount;
+
+	private static void error(String msg)
+	{
+		if (++errorCount <= 10)
+			System.out.println("ERROR: " + msg);
+	}
+
+	/**
+	 * 原来的逐个char编码
+	 */
+	private static Octets marshalSlow(Octets os, String str)
+	{
+		int bn = Octets.marshalStrLen(str);
+		if (bn <= 0)
+			return os.marshalZero();
+		os.marshalUInt(bn);
+		for (int i = 0, n = str.length(); i < n; ++i)
+			os.marshalUTF8(str.charAt(i));
+		return os;
+	}
+
+	/**
+	 * 原来的逐个char解码
+	 */
+	private static String unmarshalSlow(OctetsStream os) throws MarshalException
+	{
+		int size = os.unmarshalUInt();
+		if (size <= 0)
+			return "";
+		int posNew = os.position() + size;
+		char[] tmp = new char[size];
+		int n = 0;
+		while (os.position() < posNew)
+			tmp[n++] = os.unmarshalUTF8();
+		os.setPosition(posNew);
+		return new String(tmp, 0, n);
+	}
+
+	private static String randomString(ThreadLocalRandom rand, int len, int maxChar)
+	{
+		char[] cs = new char[len];
+		for (int i = 0; i < len; ++i)
+			cs[i] = (char)rand.nextInt(maxChar + 1);
+		return new String(cs);
+	}
+
+	private static void check(String str) throws MarshalException
+	{
+		OctetsStream os = new OctetsStream();
+		os.marshal1((byte)0x5a).marshal(str); // 测试非0的起始位置
+		Octets os1 = marshalSlow(new Octets().marshal1((byte)0x5a), str);
+		if (!os.equals(os1))
+		{
+			error("marshal: str=" + str + ", fast=" + os.dump() + ", slow=" + os1.dump());
+			return;
+		}
+		os.marshal1((byte)0x5a);
+		os.setPosition(1);
+		String s = os.unmarshalString();
+		int pos = os.position();
+		os.setPosition(1);
+		String s1 = unmarshalSlow(os);
+		if (!s.equals(s1) || pos != os.position() || os.unmarshalByte() != 0x5a)
+			error("unmarshal: str=" + str + ", fast=" + s + ", slow=" + s1);
+	}
+
+	private static String bench(String name, String str, int count) throws MarshalException
+	{
+		OctetsStream os = new OctetsStream(str.length() * 3 + 8);
+		long r = 0;
+		long t0 = System.nanoTime();
+		for (int i = 0; i < count; ++i)
+		{
+			os.clear();
+			r += marshalSlow(os, str).size();
+		}
+		long t1 = System.nanoTime();
+		for (int i = 0; i < count; ++i)
+		{
+			os.clear();
+			r += os.marshal(str).size();
+		}
+		long t2 = System.nanoTime();
+		for (int i = 0; i < count; ++i)
+		{
+			os.setPosition(0);
+			r += unmarshalSlow(os).length();
+		}
+		long t3 = System.nanoTime();
+		for (int i = 0; i < count; ++i)
+		{
+			os.setPosition(0);
+			r += os.unmarshalString().length();
+		}
+		long t4 = System.nanoTime();
+		return String.format("%s(%d chars, %d bytes): encode %d => %d ns, decode %d => %d ns (%d)", name, str.length(), os.size(),
+				(t1 - t0) / count, (t2 - t1) / count, (t3 - t2) / count, (t4 - t3) / count, r);
+	}
+
+	public static void main(String[] args) throws MarshalException
+	{
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000);
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		System.out.println("start");
+
+		check("");
+		check("\0");
+		check("😀"); // 代理对
+		check("\ud83d"); // 单独的代理char
+		for (int len = 1; len <= 300; ++len)
+		{
+			for (int maxChar : new int[] { 0x7f, 0xff, 0x7ff, 0xffff })
+				check(randomString(rand, len, maxChar));
+			String ascii = randomString(rand, len, 0x7f);
+			check(ascii + 'é'); // 非ASCII字符之前的前缀长度可能改变长度前缀的字节数
+			check(ascii + '中' + ascii);
+		}
+		for (int i = 0; i < 10000; ++i)
+			check(randomString(rand, rand.nextInt(20000), rand.nextBoolean() ? 0x7f : 0xffff));
+		System.out.println("check errors: " + errorCount);
+
+		String name = "PlayerName_1234";
+		String asciiText = randomString(rand, 500, 0x5f).replace('\0', ' ').replace('\n', ' ');
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 500)
+			sb.append("今天晚上八点一起打副本吧, ok? ");
+		String cnText = sb.toString();
+		for (int round = 0; round < 3; ++round) // 前几轮用于预热
+		{
+			System.out.println(bench("ascii name", name, count));
+			System.out.println(bench("ascii text", asciiText, count / 10));
+			System.out.println(bench("chinese text", cnText, count / 10));
+		}
+		System.out.println("errors: " + errorCount);
+		System.out.println("end");
+	}
+}
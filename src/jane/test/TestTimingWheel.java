@@ -0,0 +1,165 @@
+package jane.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.Histogram;
+import jane.core.TimingWheel;
+
+/**
+ * 分层时间轮定时器的测试
+ * <p>
+ * 多个线程添加随机延迟的定时任务并取消其中一半,验证取消的不会运行,其余的只运行一次且不会提前,并统计延迟误差<br>
+ * 再验证周期任务的运行次数和跨越多层的长延迟任务,最后对比添加并取消大量定时任务时和ScheduledThreadPoolExecutor的耗时<br>
+ * 参数: [定时任务数量] [最大延迟(毫秒)] [长延迟(毫秒)]
+ */
+public final class TestTimingWheel
+{
+	private static final int THREAD_COUNT = 4; // 添加定时任务的线程数量
+
+	private static final AtomicLong	errorCount = new AtomicLong();
+
+	private static void testRandom(TimingWheel tw, int count, int maxDelay) throws Exception
+	{
+		Histogram lateness = new Histogram(0);
+		AtomicInteger[] runs = new AtomicInteger[count];
+		for (int i = 0; i < count; ++i)
+			runs[i] = new AtomicInteger();
+		CountDownLatch doneLatch = new CountDownLatch(count / 2);
+		Thread[] threads = new Thread[THREAD_COUNT];
+		for (int i = 0; i < THREAD_COUNT; ++i)
+		{
+			final int p = i;
+			threads[i] = new Thread(() ->
+			{
+				ThreadLocalRandom rand = ThreadLocalRandom.current();
+				for (int j = p; j < count; j += THREAD_COUNT)
+				{
+					final int k = j;
+					int delay = rand.nextInt(maxDelay);
+					long t = System.nanoTime();
+					ScheduledFuture<?> f = tw.schedule(delay, () ->
+					{
+						long d = System.nanoTime() - t - delay * 1_000_000L;
+						if (d < -1_000_000) // 只有毫秒精度
+							errorCount.getAndIncrement();
+						lateness.record(Math.max(d, 0));
+						runs[k].getAndIncrement();
+						if ((k & 1) == 0)
+							doneLatch.countDown();
+					});
+					if ((k & 1) != 0)
+						f.cancel(false);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		if (!doneLatch.await(maxDelay + 10_000, TimeUnit.MILLISECONDS))
+			errorCount.getAndIncrement();
+		Thread.sleep(100);
+		for (int i = 0; i < count; ++i)
+		{
+			if (runs[i].get() != ((i & 1) == 0 ? 1 : 0))
+				errorCount.getAndIncrement();
+		}
+		long[] counts = lateness.getCounts(false);
+		System.out.format("random: %d timers, half canceled, lateness p50/p99/max: %d/%d/%d us, remain: %d, errors: %d%n", count,
+				Histogram.getPercentile(counts, 0.5) / 1000, Histogram.getPercentile(counts, 0.99) / 1000,
+				Histogram.getPercentile(counts, 1) / 1000, tw.getTimerCount(), errorCount.get());
+		if (tw.getTimerCount() != 0)
+			errorCount.getAndIncrement();
+	}
+
+	private static void testPeriodic(TimingWheel tw) throws Exception
+	{
+		AtomicInteger rateCount = new AtomicInteger();
+		AtomicInteger delayCount = new AtomicInteger();
+		ScheduledFuture<?> f1 = tw.scheduleAtFixedRate(0, 10, rateCount::getAndIncrement);
+		ScheduledFuture<?> f2 = tw.scheduleWithFixedDelay(0, 10, () ->
+		{
+			delayCount.getAndIncrement();
+			if (delayCount.get() == 50)
+				throw new IllegalStateException("test exception"); // 抛出异常后不再运行
+		});
+		Thread.sleep(1000);
+		f1.cancel(false);
+		Thread.sleep(100);
+		int r = rateCount.get(), d = delayCount.get();
+		if (r < 95 || r > 102 || d != 50 || !f1.isCancelled() || !f2.isDone())
+			errorCount.getAndIncrement();
+		System.out.println("periodic: fixed rate runs=" + r + "(expect 100), fixed delay runs=" + d + "(expect 50), errors: " + errorCount.get());
+	}
+
+	private static void testLong(TimingWheel tw, int delay) throws Exception
+	{
+		CountDownLatch latch = new CountDownLatch(3);
+		AtomicLong maxLateness = new AtomicLong();
+		long t = System.nanoTime();
+		for (int i = 0; i < 3; ++i)
+		{
+			int d = delay - i * (delay / 4); // 分布在不同的层和槽
+			tw.schedule(d, () ->
+			{
+				long late = System.nanoTime() - t - d * 1_000_000L;
+				if (late < -1_000_000)
+					errorCount.getAndIncrement();
+				maxLateness.accumulateAndGet(late, Math::max);
+				latch.countDown();
+			});
+		}
+		ScheduledFuture<?> far = tw.schedule(Long.MAX_VALUE / 2, () -> errorCount.getAndIncrement()); // 超出时间轮的范围
+		if (!latch.await(delay + 5000, TimeUnit.MILLISECONDS))
+			errorCount.getAndIncrement();
+		far.cancel(false);
+		System.out.println("long: delay=" + delay + " ms, max lateness: " + maxLateness.get() / 1000 + " us, errors: " + errorCount.get());
+	}
+
+	private static void bench(TimingWheel tw, int count)
+	{
+		ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1);
+		stpe.setRemoveOnCancelPolicy(true);
+		ScheduledFuture<?>[] fs = new ScheduledFuture<?>[count];
+		Runnable r = () ->
+		{
+		};
+		for (int k = 0; k < 3; ++k)
+		{
+			long t = System.nanoTime();
+			for (int i = 0; i < count; ++i)
+				fs[i] = tw.schedule(30_000 + i % 1000, r);
+			for (int i = 0; i < count; ++i)
+				fs[i].cancel(false);
+			long t1 = System.nanoTime() - t;
+			t = System.nanoTime();
+			for (int i = 0; i < count; ++i)
+				fs[i] = stpe.schedule(r, 30_000 + i % 1000, TimeUnit.MILLISECONDS);
+			for (int i = 0; i < count; ++i)
+				fs[i].cancel(false);
+			long t2 = System.nanoTime() - t;
+			System.out.format("bench: schedule+cancel %d timers: TimingWheel %d ms, ScheduledThreadPoolExecutor %d ms%n",
+					count, t1 / 1_000_000, t2 / 1_000_000);
+		}
+		stpe.shutdown();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : 200_000);
+		int maxDelay = (args.length > 1 ? Integer.parseInt(args[1]) : 3000);
+		int longDelay = (args.length > 2 ? Integer.parseInt(args[2]) : 20_000);
+		TimingWheel tw = new TimingWheel("TestTimingWheel");
+		testRandom(tw, count, maxDelay);
+		testPeriodic(tw);
+		testLong(tw, longDelay);
+		bench(tw, count * 5);
+		System.out.println("errors: " + errorCount.get());
+		System.out.println("end");
+		System.exit(0);
+	}
+}
@@ -8,6 +8,7 @@ import jane.core.DBManager;
 import jane.core.Octets;
 import jane.core.ProcThread;
 import jane.core.Procedure;
+import jane.core.ReadOnlyProcedure;
 import jane.bean.AllTables;
 import jane.bean.TestBean;
 import jane.bean.TestType;
@@ -123,6 +124,41 @@ public final class TestUndo
 					System.out.println("=== 6");
 				}
 			}.run();
+
+			new ReadOnlyProcedure()
+			{
+				@Override
+				protected void onProcess() throws Exception
+				{
+					TestBean.Safe a = Benchmark.lockGet(id);
+					System.out.println("get: " + a.getValue1());
+					System.out.println("=== 7");
+					a.setValue1(v + 3); // 只读事务中修改会抛出IllegalStateException
+				}
+
+				@Override
+				protected void onException(Throwable e)
+				{
+					System.out.println("read-only: " + e);
+				}
+			}.run();
+
+			new ReadOnlyProcedure()
+			{
+				@Override
+				protected void onProcess() throws Exception
+				{
+					TestType.Safe a = TestTable.lockGet(1);
+					System.out.println("=== 8");
+					a.getV18().remove(Octets.wrap("b")); // 容器字段的修改同样不允许
+				}
+
+				@Override
+				protected void onException(Throwable e)
+				{
+					System.out.println("read-only: " + e);
+				}
+			}.run();
 		});
 
 		pt.start();
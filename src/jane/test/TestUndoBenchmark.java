@@ -0,0 +1,156 @@
+package jane.test;
+
+import static jane.bean.AllTables.Benchmark;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import jane.core.DBManager;
+import jane.core.ProcThread;
+import jane.core.Procedure;
+import jane.core.SBase;
+import jane.bean.AllTables;
+import jane.bean.TestBean;
+
+/**
+ * 字段修改的回滚记录性能测试
+ * <p>
+ * 1. 只测回滚记录: 对比反射(SBase)和直接赋值的lambda,以及同一字段多次修改合并成一条记录的方式<br>
+ * 2. 实际事务中多次修改同一记录的字段后回滚(生成的Safe类)<br>
+ * 参数: [每轮修改次数] [轮数]
+ */
+@SuppressWarnings("deprecation")
+public final class TestUndoBenchmark
+{
+	private static long sink;
+
+	private static void undo(ArrayList<Runnable> undos)
+	{
+		for (int i = undos.size() - 1; i >= 0; --i)
+			undos.get(i).run();
+		undos.clear();
+	}
+
+	private static void benchReflect(TestBean b, Field f, int setCount, int loopCount)
+	{
+		ArrayList<Runnable> undos = new ArrayList<>();
+		long t = System.nanoTime();
+		for (int i = 0; i < loopCount; ++i)
+		{
+			for (int j = 0; j < setCount; ++j)
+			{
+				undos.add(new SBase.SInteger(b, f, b.getValue1()));
+				b.setValue1(j + 1);
+			}
+			undo(undos);
+			sink += b.getValue1();
+		}
+		print("reflect", t, setCount, loopCount);
+	}
+
+	private static void benchLambda(TestBean b, int setCount, int loopCount)
+	{
+		ArrayList<Runnable> undos = new ArrayList<>();
+		long t = System.nanoTime();
+		for (int i = 0; i < loopCount; ++i)
+		{
+			for (int j = 0; j < setCount; ++j)
+			{
+				int v = b.getValue1();
+				undos.add(() -> b.setValue1(v));
+				b.setValue1(j + 1);
+			}
+			undo(undos);
+			sink += b.getValue1();
+		}
+		print("lambda", t, setCount, loopCount);
+	}
+
+	private static void benchCoalesce(TestBean b, int setCount, int loopCount)
+	{
+		ArrayList<Runnable> undos = new ArrayList<>();
+		long t = System.nanoTime();
+		for (int i = 0; i < loopCount; ++i)
+		{
+			long mask = 0;
+			for (int j = 0; j < setCount; ++j)
+			{
+				if ((mask & 1) == 0)
+				{
+					mask |= 1;
+					int v = b.getValue1();
+					undos.add(() -> b.setValue1(v));
+				}
+				b.setValue1(j + 1);
+			}
+			undo(undos);
+			sink += b.getValue1();
+		}
+		print("coalesce", t, setCount, loopCount);
+	}
+
+	private static void benchProcedure(int setCount, int loopCount) throws InterruptedException
+	{
+		long[] t = new long[1];
+		Thread pt = new ProcThread(null, () ->
+		{
+			new Procedure()
+			{
+				@Override
+				protected void onProcess() throws Exception
+				{
+					if (Benchmark.lockGet(1) == null)
+						Benchmark.put(1, new TestBean());
+				}
+			}.run();
+			Procedure p = new Procedure()
+			{
+				@Override
+				protected void onProcess() throws Exception
+				{
+					TestBean.Safe a = Benchmark.lockGet(1);
+					for (int j = 0; j < setCount; ++j)
+					{
+						a.setValue1(j + 1);
+						a.setValue2(j + 1);
+					}
+					undo();
+				}
+			};
+			t[0] = System.nanoTime();
+			for (int i = 0; i < loopCount; ++i)
+				p.run();
+		});
+		pt.start();
+		pt.join();
+		print("procedure", t[0], setCount * 2, loopCount);
+	}
+
+	private static void print(String name, long t, int setCount, int loopCount)
+	{
+		t = System.nanoTime() - t;
+		System.out.format("%-9s: %5d ms, %6.1f ns/set%n", name, t / 1_000_000, (double)t / ((long)setCount * loopCount));
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int setCount = (args.length > 0 ? Integer.parseInt(args[0]) : 10);
+		int loopCount = (args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+		System.out.println("sets=" + setCount + ", loops=" + loopCount);
+
+		Field f = TestBean.class.getDeclaredField("value1");
+		f.setAccessible(true);
+		TestBean b = new TestBean();
+		for (int i = 0; i < 3; ++i)
+		{
+			benchReflect(b, f, setCount, loopCount);
+			benchLambda(b, setCount, loopCount);
+			benchCoalesce(b, setCount, loopCount);
+		}
+
+		DBManager.instance().startup();
+		AllTables.register();
+		for (int i = 0; i < 3; ++i)
+			benchProcedure(setCount, loopCount / 10);
+		System.out.println("end: " + sink);
+		System.exit(0);
+	}
+}
@@ -12,12 +12,20 @@ import jane.core.CacheRef;
 import jane.core.DBManager;
 import jane.core.DBSimpleManager;
 import jane.core.HttpCodec;
+import jane.core.JfrEvents;
+import jane.core.LockProfiler;
+import jane.core.Log;
 import jane.core.NetManager;
 import jane.core.Octets;
 import jane.core.OctetsStream;
+import jane.core.PriorityExecutor;
+import jane.core.ProcScheduler;
+import jane.core.ProcStat;
 import jane.core.ProcThread;
+import jane.core.Procedure;
 import jane.core.StorageLevelDB;
 import jane.core.TableBase;
+import jane.core.map.LRUCleaner;
 
 public class StatusServer extends NetManager
 {
@@ -27,6 +35,13 @@ public class StatusServer extends NetManager
 			"Connection: keep-alive",
 			"Cache-Control: no-cache",
 			"Pragma: no-cache"));
+	private static final Octets jfrExtraHead = HttpCodec.createExtraHead(Arrays.asList(
+			"Server: jane",
+			"Content-Type: application/octet-stream",
+			"Content-Disposition: attachment; filename=jane.jfr",
+			"Connection: keep-alive",
+			"Cache-Control: no-cache",
+			"Pragma: no-cache"));
 
 	public StatusServer()
 	{
@@ -37,7 +52,8 @@ public class StatusServer extends NetManager
 	{
 		ArrayList<Object> list = new ArrayList<>();
 
-		long v1 = 0, v2 = 0, v3 = 0, v4 = 0, v5 = 0, v6 = 0;
+		long v1 = 0, v2 = 0, v3 = 0, v4 = 0, v5 = 0, v6 = 0, v7 = 0, v8 = 0;
+		double r1 = 0, r2 = 0;
 		for (TableBase<?> table : TableBase.getTables())
 		{
 			ArrayList<Object> strs = new ArrayList<>();
@@ -48,6 +64,14 @@ public class StatusServer extends NetManager
 			v = table.getCacheModSize();
 			v2 += v;
 			strs.add(v);
+			long mb = table.getCacheModBytes();
+			if (mb >= 0)
+			{
+				v8 += mb;
+				strs.add(mb);
+			}
+			else
+				strs.add("-");
 			long rc = table.getReadCount();
 			long rtc = table.getReadStoCount();
 			v3 += rc;
@@ -55,6 +79,17 @@ public class StatusServer extends NetManager
 			strs.add(rc);
 			strs.add(rtc);
 			strs.add(rc > 0 && rtc > 0 ? String.format("%.2f%%", (double)(rc - rtc) * 100 / rc) : "-.--%");
+			long ec = table.getCacheEvictCount();
+			v7 += ec;
+			strs.add(ec);
+			double rr = table.getReadRate();
+			double rtr = table.getReadStoRate();
+			r1 += rr;
+			r2 += rtr;
+			strs.add(String.format("%.1f", rr));
+			strs.add(String.format("%.1f", rtr));
+			long[] ts = table.getStoGetTimePercentiles(0.5, 0.99, 0.999);
+			strs.add(ts[0] >= 0 ? (ts[0] / 1000) + "/" + (ts[1] / 1000) + "/" + (ts[2] / 1000) : "-");
 			v = table.getAverageValueSize();
 			if (v >= 0)
 			{
@@ -77,6 +112,7 @@ public class StatusServer extends NetManager
 			v = mgr.getWriteCacheSize();
 			v2 += v;
 			strs.add(v);
+			strs.add("-");
 			long rc = mgr.getReadCount();
 			long rtc = mgr.getReadStoCount();
 			v3 += rc;
@@ -84,6 +120,12 @@ public class StatusServer extends NetManager
 			strs.add(rc);
 			strs.add(rtc);
 			strs.add(rc > 0 && rtc > 0 ? String.format("%.2f%%", (double)(rc - rtc) * 100 / rc) : "-.--%");
+			long ec = mgr.getReadCacheEvictCount();
+			v7 += ec;
+			strs.add(ec);
+			strs.add("-");
+			strs.add("-");
+			strs.add("-");
 			v = mgr.getAverageValueSize();
 			if (v >= 0)
 			{
@@ -100,9 +142,14 @@ public class StatusServer extends NetManager
 		strs.add("<b>ALL</b>");
 		strs.add(v1);
 		strs.add(v2);
+		strs.add(v8);
 		strs.add(v3);
 		strs.add(v4);
 		strs.add(v3 > 0 && v4 > 0 ? String.format("%.2f%%", (double)(v3 - v4) * 100 / v3) : "-.--%");
+		strs.add(v7);
+		strs.add(String.format("%.1f", r1));
+		strs.add(String.format("%.1f", r2));
+		strs.add("-");
 		strs.add(v6 > 0 ? v5 / v6 : "-");
 		list.add(strs);
 
@@ -119,15 +166,45 @@ public class StatusServer extends NetManager
 		if (DBManager.hasCreated())
 		{
 			DBManager dbMgr = DBManager.instance();
-			ThreadPoolExecutor tpe = dbMgr.getProcThreads();
 			list.add(new SimpleEntry<String, Object>("jane.ProcSessionCount", formatter.format(dbMgr.getSessionCount())));
 			list.add(new SimpleEntry<String, Object>("jane.ProcWaitingCount", formatter.format(dbMgr.getProcQueuedCount())));
-			list.add(new SimpleEntry<String, Object>("jane.ProcQueueCount", formatter.format(tpe.getQueue().size())));
-			list.add(new SimpleEntry<String, Object>("jane.ProcThreadCount", tpe.getActiveCount() + "/" + tpe.getPoolSize() + "/" + tpe.getLargestPoolSize()));
-			list.add(new SimpleEntry<String, Object>("jane.ProcCompletedCount", formatter.format(tpe.getCompletedTaskCount())));
+			list.add(new SimpleEntry<String, Object>("jane.ProcQueueCount", formatter.format(dbMgr.getProcSubmittedCount())));
+			if (dbMgr.getProcScheduler() == null && !dbMgr.isProcVirtual())
+			{
+				ThreadPoolExecutor tpe = dbMgr.getProcThreads();
+				list.add(new SimpleEntry<String, Object>("jane.ProcThreadCount", tpe.getActiveCount() + "/" + tpe.getPoolSize() + "/" + tpe.getLargestPoolSize()));
+			}
+			else
+				list.add(new SimpleEntry<String, Object>("jane.ProcThreadCount", dbMgr.getProcRunningCount() + "/" + dbMgr.getProcThreadCount()));
+			list.add(new SimpleEntry<String, Object>("jane.ProcCompletedCount", formatter.format(dbMgr.getProcCompletedCount())));
+			ProcScheduler ps = dbMgr.getProcScheduler();
+			if (ps != null && ps.isLanes())
+				list.add(new SimpleEntry<String, Object>("jane.ProcLaneMigrateCount", formatter.format(ps.getMigrateCount())));
+			PriorityExecutor pe = dbMgr.getPriorityExecutor();
+			if (pe != null)
+			{
+				for (int i = 0; i < PriorityExecutor.LANE_COUNT; ++i)
+				{
+					PriorityExecutor.Lane lane = pe.getLane(i);
+					long[] ws = lane.getWaitTimePercentiles(0.5, 0.99);
+					list.add(new SimpleEntry<String, Object>("jane.ProcPriority." + lane.getName(), lane.getQueueSize() + " queued, " +
+							formatter.format(lane.getQueuedCount()) + '/' + formatter.format(lane.getSubmitCount()) + " waited, wait p50/p99: " +
+							ws[0] / 1000 + '/' + ws[1] / 1000 + " us"));
+				}
+			}
+			list.add(new SimpleEntry<String, Object>("jane.DBModCount", formatter.format(dbMgr.getModCount())));
+			list.add(new SimpleEntry<String, Object>("jane.DBAdmitLimited", dbMgr.isAdmitLimited()));
+			list.add(new SimpleEntry<String, Object>("jane.DBAdmitQueueCount", formatter.format(dbMgr.getAdmitQueuedCount())));
+			list.add(new SimpleEntry<String, Object>("jane.DBAdmitCount", formatter.format(dbMgr.getAdmitCount())));
+			list.add(new SimpleEntry<String, Object>("jane.DBAdmitRejectCount", formatter.format(dbMgr.getAdmitRejectCount())));
 		}
 		list.add(new SimpleEntry<String, Object>("jane.CacheRefRemoveCount", formatter.format(CacheRef.getRefRemoveCount())));
+		list.add(new SimpleEntry<String, Object>("jane.LRUSweepingCount", LRUCleaner.getSweepingCount()));
+		list.add(new SimpleEntry<String, Object>("jane.LRUSweepStepCount", formatter.format(LRUCleaner.getSweepStepCount())));
 		list.add(new SimpleEntry<String, Object>("jane.ProcInterruptCount", formatter.format(ProcThread.getInterruptCount())));
+		list.add(new SimpleEntry<String, Object>("jane.ProcOptimisticConflictCount", formatter.format(Procedure.getOptimisticConflictCount())));
+		list.add(new SimpleEntry<String, Object>("jane.ProcDeadlockCount", formatter.format(Procedure.getDeadlockCount())));
+		list.add(new SimpleEntry<String, Object>("jane.ProcSuspendCount", formatter.format(Procedure.getSuspendCount())));
 		list.add(new SimpleEntry<String, Object>("jane.AskWaitingCount", formatter.format(NetManager.getAskCount())));
 
 		return list;
@@ -137,8 +214,8 @@ public class StatusServer extends NetManager
 	public static void genStatus(StringBuilder sb)
 	{
 		ArrayList<Object> list = genStatusList();
-		sb.append("<table border=1 style=border-collapse:collapse><tr bgcolor=silver><td><b>Table</b><td><b>RCacheSize</b><td><b>WCacheSize</b>" +
-				"<td><b>RCount</b><td><b>RCacheMissCount</b><td><b>RCacheRatio</b><td><b>AverageSize</b>\n");
+		sb.append("<table border=1 style=border-collapse:collapse><tr bgcolor=silver><td><b>Table</b><td><b>RCacheSize</b><td><b>WCacheSize</b><td><b>WCacheBytes</b>" +
+				"<td><b>RCount</b><td><b>RCacheMissCount</b><td><b>RCacheRatio</b><td><b>RCacheEvictCount</b><td><b>RPerSec</b><td><b>RCacheMissPerSec</b><td><b>StoGetTime(us,P50/P99/P999)</b><td><b>AverageSize</b>\n");
 		int n = list.size();
 		for (int i = 0; i < n; ++i)
 		{
@@ -169,6 +246,41 @@ public class StatusServer extends NetManager
 		sb.append("</table>\n");
 	}
 
+	public static void genLockProfile(StringBuilder sb)
+	{
+		sb.append("<p><b>Lock profile</b> (samples: ").append(LockProfiler.getSampleCount()).append(")<br>\n");
+		sb.append("<table border=1 style=border-collapse:collapse><tr bgcolor=silver><td><b>Slot</b><td><b>WaitCount</b><td><b>WaitMs</b><td><b>AvgWaitUs</b><td><b>MaxWaitUs</b>" +
+				"<td><b>Tables</b><td><b>Holders</b><td><b>Waiters</b>\n");
+		for (LockProfiler.SlotStat s : LockProfiler.getTopSlots(50))
+		{
+			long c = s.getWaitCount();
+			sb.append("<tr><td bgcolor=silver>").append(s.getIndex()).append("<td align=right>").append(c);
+			sb.append("<td align=right>").append(s.getWaitNanos() / 1_000_000);
+			sb.append("<td align=right>").append(c > 0 ? s.getWaitNanos() / c / 1000 : 0);
+			sb.append("<td align=right>").append(s.getMaxNanos() / 1000);
+			sb.append("<td>").append(s.getTopTables(3)).append("<td>").append(s.getTopHolders(3)).append("<td>").append(s.getTopWaiters(3)).append('\n');
+		}
+		sb.append("</table>\n");
+	}
+
+	public static void genProcStat(StringBuilder sb)
+	{
+		sb.append("<p><b>Procedure stat</b><br>\n");
+		sb.append("<table border=1 style=border-collapse:collapse><tr bgcolor=silver><td><b>Procedure</b><td><b>ExecCount</b><td><b>RedoCount</b><td><b>UndoCount</b>" +
+				"<td><b>ExceptionCount</b><td><b>LockWait(us,P50/P99/MAX)</b><td><b>RunTime(us,P50/P99/MAX)</b>\n");
+		for (ProcStat.ClassStat s : ProcStat.getTopStats(50))
+		{
+			long[] lw = s.getLockWaitPercentiles(0.5, 0.99, 1);
+			long[] rt = s.getRunTimePercentiles(0.5, 0.99, 1);
+			sb.append("<tr><td bgcolor=silver>").append(s.getName()).append("<td align=right>").append(s.getExecCount());
+			sb.append("<td align=right>").append(s.getRedoCount()).append("<td align=right>").append(s.getUndoCount());
+			sb.append("<td align=right>").append(s.getExceptionCount());
+			sb.append("<td align=right>").append(lw[0] / 1000).append('/').append(lw[1] / 1000).append('/').append(lw[2] / 1000);
+			sb.append("<td align=right>").append(rt[0] / 1000).append('/').append(rt[1] / 1000).append('/').append(rt[2] / 1000).append('\n');
+		}
+		sb.append("</table>\n");
+	}
+
 	public static void genLevelDBInfo(StringBuilder sb)
 	{
 		@SuppressWarnings("resource")
@@ -180,16 +292,47 @@ public class StatusServer extends NetManager
 		// sb.append(sto.getProperty("leveldb.sstables")).append("</pre>\n");
 	}
 
+	/**
+	 * 发送当前全部JFR记录的快照文件. 没有正在进行的记录时回复404
+	 * <p>
+	 * 导出时会在当前线程同步写读临时文件,只适合偶尔手动调用
+	 */
+	public static void sendJfr(IoSession session)
+	{
+		byte[] data = null;
+		try
+		{
+			data = JfrEvents.dump();
+		}
+		catch (Exception e)
+		{
+			Log.error("StatusServer: dump JFR recording failed:", e);
+		}
+		if (data != null)
+			HttpCodec.sendHead(session, null, 0, jfrExtraHead, Octets.wrap(data));
+		else
+			HttpCodec.sendHead(session, "404 Not Found", 0, extraHead);
+	}
+
 	@Override
 	public void messageReceived(IoSession session, Object message)
 	{
-		if (HttpCodec.getHeadPath((OctetsStream)message).endsWith("/favicon.ico"))
+		String path = HttpCodec.getHeadPath((OctetsStream)message);
+		if (path.endsWith("/favicon.ico"))
 			HttpCodec.sendHead(session, "404 Not Found", 0, extraHead);
+		else if (path.endsWith("/jfr"))
+			sendJfr(session);
 		else
 		{
 			StringBuilder sb = new StringBuilder(4000);
 			sb.append("<html><head><meta http-equiv=\"content-type\" content=\"text/html;charset=utf-8\"/><title>Jane Status</title></head><body>\n");
 			genStatus(sb);
+			if (LockProfiler.ENABLED)
+				genLockProfile(sb);
+			if (ProcStat.ENABLED)
+				genProcStat(sb);
+			if (JfrEvents.ENABLED)
+				sb.append("<p><a href=jfr>Download JFR recording</a>\n");
 			sb.append("<p>\n");
 			genLevelDBInfo(sb);
 			sb.append("</body></html>\n");
@@ -415,7 +415,7 @@ local function get_unmarshal_kv(var, kv, t)
 end
 typedef.byte =
 {
-	import = { "jane.core.SBase" },
+	import = {},
 	name_u = function(var)
 		local name = var.name
 		local c1, c2 = name:byte(1, 2)
@@ -428,8 +428,8 @@ typedef.byte =
 	subtypeid = 0,
 	final = "",
 	new = "",
-	field = "\t\tprivate static final Field FIELD_#(var.name);\n",
-	fieldget = "\t\t\t\tFIELD_#(var.name) = _c_.getDeclaredField(\"#(var.name)\"); FIELD_#(var.name).setAccessible(true);\n",
+	field = "",
+	fieldget = "",
 	safecache = "",
 	new = "",
 	init = "this.#(var.name) = #(var.name)",
@@ -456,7 +456,7 @@ typedef.byte =
 		/** @param #(var.name) #(var.comment1) */
 		public void set#(var.name_u)(#(var.type) #(var.name))
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.S#(var.type_o)(_bean, FIELD_#(var.name), _bean.get#(var.name_u)()));
+			if (initSContext(#(var.undobit))) { #(var.type) _v_ = _bean.#(var.name); _sctx.addOnRollback(() -> _bean.#(var.name) = _v_); }
 			_bean.set#(var.name_u)(#(var.name));
 		}
 ]],
@@ -553,7 +553,7 @@ typedef.double = merge(typedef.byte,
 })
 typedef.string = merge(typedef.byte,
 {
-	import = { "jane.core.SBase" },
+	import = {},
 	type = "String", type_i = "String", type_o = "String",
 	subtypeid = 1,
 	new = "\t\t#(var.name) = \"\";\n",
@@ -573,7 +573,7 @@ typedef.string = merge(typedef.byte,
 		/** @param #(var.name) #(var.comment1) */
 		public void set#(var.name_u)(#(var.type) #(var.name))
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SObject(_bean, FIELD_#(var.name), _bean.get#(var.name_u)()));
+			if (initSContext(#(var.undobit))) { #(var.type) _v_ = _bean.#(var.name); _sctx.addOnRollback(() -> _bean.#(var.name) = _v_); }
 			_bean.set#(var.name_u)((#(var.name) != null ? #(var.name) : ""));
 		}
 ]],
@@ -593,7 +593,7 @@ typedef.string = merge(typedef.byte,
 })
 typedef.octets = merge(typedef.string,
 {
-	import = { "jane.core.Octets", "jane.core.DynBean", "jane.core.SBase" },
+	import = { "jane.core.Octets", "jane.core.DynBean" },
 	type = "Octets", type_i = "Octets", type_o = "Octets",
 	new = "\t\t#(var.name) = new Octets(#(var.cap));\n",
 	init = "this.#(var.name) = (#(var.name) != null ? #(var.name) : new Octets(#(var.cap)))",
@@ -641,7 +641,7 @@ typedef.octets = merge(typedef.string,
 		/** @param #(var.name) #(var.comment1) */
 		public void set#(var.name_u)(#(var.type) #(var.name))
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SOctets(_bean, FIELD_#(var.name), _bean.get#(var.name_u)(), false));
+			if (initSContext(#(var.undobit))) { #(var.type) _v_ = _bean.#(var.name); _sctx.addOnRollback(() -> _bean.#(var.name) = _v_); }
 			_bean.set#(var.name_u)((#(var.name) != null ? #(var.name).clone() : new Octets(#(var.cap))));
 		}
 
@@ -654,7 +654,7 @@ typedef.octets = merge(typedef.string,
 		/** #(var.comment1) */
 		public void marshal#(var.name_u)(Bean<?> _b_)
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SOctets(_bean, FIELD_#(var.name), _bean.get#(var.name_u)(), false));
+			if (initSContext(#(var.undobit))) { #(var.type) _v_ = _bean.#(var.name); _sctx.addOnRollback(() -> _bean.#(var.name) = _v_); }
 			_bean.set#(var.name_u)(_b_.marshal(new Octets(_b_.initSize())));
 		}
 
@@ -992,8 +992,8 @@ typedef.bean = merge(typedef.octets,
 typedef.ref = merge(typedef.bean,
 {
 	final = "",
-	field = "\t\tprivate static final Field FIELD_#(var.name);\n",
-	fieldget = "\t\t\t\tFIELD_#(var.name) = _c_.getDeclaredField(\"#(var.name)\"); FIELD_#(var.name).setAccessible(true);\n",
+	field = "",
+	fieldget = "",
 	new = "\t\t#(var.name) = null;\n",
 	init = "this.#(var.name) = #(var.name)",
 	reset = "#(var.name) = null",
@@ -1019,7 +1019,7 @@ typedef.ref = merge(typedef.bean,
 		/** @param #(var.name) #(var.comment1) */
 		public void set#(var.name_u)(#(var.type) #(var.name))
 		{
-			if (initSContext()) _sctx.addOnRollback(new SBase.SObject(_bean, FIELD_#(var.name), _bean.get#(var.name_u)()));
+			if (initSContext(#(var.undobit))) { #(var.type) _v_ = _bean.#(var.name); _sctx.addOnRollback(() -> _bean.#(var.name) = _v_); }
 			_bean.set#(var.name_u)(#(var.name));
 		}
 ]] end,
@@ -1151,7 +1151,6 @@ local function bean_const(code)
 		gsub("\n\tpublic static final class Safe.-}\n\t}\n", ""):
 		gsub("import java%.lang%.reflect%.Field;\n", ""):
 		gsub("import jane%.core%.DynBean;\n", ""):
-		gsub("import jane%.core%.SBase;\n", ""):
 		gsub("import jane%.core%.SContext;\n", ""):
 --		gsub("\tprivate static final Field .-\n", ""):
 --		gsub("\tstatic\n.-\n\t}\n\n", ""):
@@ -1187,8 +1186,13 @@ function bean(bean)
 	bean.import = { ["jane.core.Bean"] = true, ["jane.core.MarshalException"] = true, ["jane.core.Octets"] = true, ["jane.core.OctetsStream"] = true, ["jane.core.SContext"] = true }
 	local vartypes = { bean.name }
 	local id_used = {}
+	local undobits = 0
 	for _, var in ipairs(bean) do
 		do_var(var)
+		if var.id >= 0 then -- 回滚记录合并用的字段位,超过64个字段的不合并
+			var.undobit = (undobits < 64 and format("1L << %d", undobits) or "0")
+			undobits = undobits + 1
+		end
 		if var.id > 0 then
 			if id_used[var.id] then error("ERROR: duplicated var.id: " .. var.id .. " in bean: " .. bean.name) end
 			id_used[var.id] = true